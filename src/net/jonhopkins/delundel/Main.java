@@ -23,13 +23,29 @@
  */
 package net.jonhopkins.delundel;
 
+import java.io.File;
+
 import test.TestFSDetector;
 
 import net.jonhopkins.delundel.display.FSConsole;
+import net.jonhopkins.delundel.fs.FSDetector;
+import net.jonhopkins.delundel.fs.fat.BadSectorMap;
+import net.jonhopkins.delundel.fs.fat.FATImageDetector;
 
 public class Main {
 	public static void main(String[] args) {
-		FSConsole console = new FSConsole(new TestFSDetector());
+		FSDetector detector;
+		if (args.length > 0) {
+			FATImageDetector imageDetector = new FATImageDetector(args[0]);
+			if (args.length > 1) {
+				// keep going past unreadable sectors, remembering them for next time
+				imageDetector.setBadSectorMap(new BadSectorMap(new File(args[1])));
+			}
+			detector = imageDetector;
+		} else {
+			detector = new TestFSDetector();
+		}
+		FSConsole console = new FSConsole(detector);
 		console.start();
 	}
 }
@@ -27,6 +27,8 @@ import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -36,32 +38,57 @@ import net.jonhopkins.delundel.fs.FSDetector;
 import net.jonhopkins.delundel.fs.FSDirectory;
 import net.jonhopkins.delundel.fs.FSDirectoryEntry;
 import net.jonhopkins.delundel.fs.FSFileSystem;
+import net.jonhopkins.delundel.fs.fat.ClusterChainCache;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATChecker;
 import net.jonhopkins.delundel.fs.fat.FATFile;
+import net.jonhopkins.delundel.fs.fat.FATMirrors;
+import net.jonhopkins.delundel.fs.fat.InstrumentedIOManager;
+import net.jonhopkins.delundel.fs.fat.TracingIOManager;
 
 public class FSConsole {
 	private FSDetector filesystemDetector;
-	private FSFileSystem[] filesystems;
 	private FSFileSystem fs;
 	private FSDirectory pwd;
+	private TracingIOManager tracer;
+	private ByteBuffer copyBuffer;
 	
+	private final int COPY_BUFFER_SIZE = 64 * 1024;
 	private final String COMMAND_CHANGE_DIR = "cd";
+	private final String COMMAND_CHECK_FS = "fsck";
 	private final String COMMAND_COPY = "cp";
 	private final String COMMAND_HELP = "help";
 	private final String COMMAND_LIST_DIR = "ls";
+	private final String COMMAND_MIRRORS = "mirrors";
 	private final String COMMAND_MOUNT_FS = "mount";
 	private final String COMMAND_PRINT_WORKING_DIR = "pwd";
+	private final String COMMAND_STATS = "stats";
+	private final String COMMAND_TRACE = "trace";
 	private final String COMMAND_UNMOUNT_FS = "unmount";
 	private final String ERROR_ALREADY_MOUNTED = "A filesystem is already mounted";
 	private final String ERROR_FAILED_TO_COPY = "Error copying to file on host";
+	private final String ERROR_FAILED_TO_TRACE = "Error creating trace file on host";
 	private final String ERROR_FILE_NOT_FOUND = "No such file or directory";
 	private final String ERROR_FS_NOT_FOUND = "No such filesystem found";
 	private final String ERROR_MISSING_PARAMS = "Missing parameters";
 	private final String ERROR_NO_MOUNTED_FS = "No filesystem mounted";
 	private final String ERROR_NOT_DIR = "Not a directory";
 	private final String ERROR_NOT_FILE = "Not a file";
+	private final String ERROR_NO_FAT_COPY = "No such copy of the FAT";
+	private final String ERROR_NO_MIRRORS = "This filesystem has no FAT copies to compare";
+	private final String ERROR_NO_CHECK = "Checking is not available for this filesystem";
+	private final String ERROR_NO_STATS = "Statistics are not available for this filesystem";
+	private final String ERROR_NO_TRACE = "Tracing is not available for this filesystem";
+	private final String ERROR_NOT_TRACING = "No trace is being recorded";
+	private final String ERROR_ALREADY_TRACING = "A trace is already being recorded";
 	private final String ERROR_UNRECOGNIZED_COMMAND = "Command not recognized. Type 'help' for more information.";
 	private final String SUCCESS_COPY = "Successfully copied the file";
+	private final String SUCCESS_FAT_CHOSEN = "Now reading the FAT from the chosen copy";
+	private final String SUCCESS_FAT_MERGED = "Now reading each sector of the FAT from its healthiest copy";
 	private final String SUCCESS_MOUNT = "Successfully mounted filesystem";
+	private final String SUCCESS_STATS_RESET = "Statistics reset";
+	private final String SUCCESS_TRACE_START = "Recording sector accesses";
+	private final String SUCCESS_TRACE_STOP = "Stopped recording";
 	private final String SUCCESS_UNMOUNT = "Successfully unmounted filesystem";
 	
 	public FSConsole(FSDetector fsDetector) {
@@ -177,10 +204,23 @@ public class FSConsole {
 				break;
 			}
 			
+			if (copyBuffer == null) {
+				copyBuffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+			}
+			
 			try {
 				FileOutputStream fos = new FileOutputStream(destFile);
+				FileChannel out = fos.getChannel();
 				while (!fileToCopy.isEndOfFile()) {
-					fos.write(fs.getFileContents(fileToCopy));
+					copyBuffer.clear();
+					if (fs.getFileContents(fileToCopy, copyBuffer) < 0) {
+						fos.close();
+						throw new IOException("Error reading " + sourceFile);
+					}
+					copyBuffer.flip();
+					while (copyBuffer.hasRemaining()) {
+						out.write(copyBuffer);
+					}
 				}
 				fos.close();
 				info(COMMAND_COPY, SUCCESS_COPY);
@@ -189,6 +229,18 @@ public class FSConsole {
 				error(COMMAND_COPY, ERROR_FAILED_TO_COPY);
 			}
 			break;
+		case COMMAND_CHECK_FS:
+			if (fs == null) {
+				error(COMMAND_CHECK_FS, ERROR_NO_MOUNTED_FS);
+				break;
+			}
+			if (!(fs instanceof FAT)) {
+				error(COMMAND_CHECK_FS, ERROR_NO_CHECK);
+				break;
+			}
+			
+			info(new FATChecker((FAT)fs).check().toString());
+			break;
 		case COMMAND_HELP:
 			info(COMMAND_CHANGE_DIR, "<destination directory>");
 			info("\tChange the current directory to the specified directory");
@@ -200,6 +252,8 @@ public class FSConsole {
 			info(COMMAND_COPY, "<source file> <destination location>");
 			info("\tCopy the specified file to the specified location on the host filesystem");
 			
+			info(COMMAND_CHECK_FS, "Check the filesystem for lost, looping and cross-linked cluster chains");
+			
 			info(COMMAND_LIST_DIR, "List the files in the current directory");
 			info("\t-l : Print extra information about each file");
 			info("\t-a : Also show hidden files");
@@ -207,6 +261,10 @@ public class FSConsole {
 			
 			info(COMMAND_HELP, "Print this help message");
 			
+			info(COMMAND_MIRRORS, "Compare the copies of the FAT");
+			info("\tuse <n> : Read the FAT from copy n from now on");
+			info("\t  merge : Read each sector of the FAT from its healthiest copy");
+			
 			info(COMMAND_MOUNT_FS, "<target filesystem>");
 			info("\tMount the specified filesystem to access its files");
 			info("\tSpecial cases:");
@@ -214,6 +272,14 @@ public class FSConsole {
 			
 			info(COMMAND_PRINT_WORKING_DIR, "Print the name of the current directory");
 			
+			info(COMMAND_STATS, "Print the reads and writes made since mounting, by region, and the chain cache hit rate");
+			info("\treset : Clear the statistics");
+			
+			info(COMMAND_TRACE, "<trace file>");
+			info("\tRecord every sector read and written to the specified file on the host");
+			info("\tSpecial cases:");
+			info("\t\tstop : Stop recording");
+			
 			info(COMMAND_UNMOUNT_FS, "Unmount the current filesystem");
 			
 			break;
@@ -261,20 +327,48 @@ public class FSConsole {
 				}
 			}
 			break;
+		case COMMAND_MIRRORS:
+			if (fs == null) {
+				error(COMMAND_MIRRORS, ERROR_NO_MOUNTED_FS);
+				break;
+			}
+			if (!(fs instanceof FAT)) {
+				error(COMMAND_MIRRORS, ERROR_NO_MIRRORS);
+				break;
+			}
+			
+			FAT volume = (FAT)fs;
+			if (paramList.size() > 1 && paramList.get(1).equals("merge")) {
+				volume.useMergedFAT(volume.compareFATs());
+				info(COMMAND_MIRRORS, SUCCESS_FAT_MERGED);
+			} else if (paramList.size() > 2 && paramList.get(1).equals("use")) {
+				try {
+					volume.useFAT(Integer.parseInt(paramList.get(2)) - 1);
+					info(COMMAND_MIRRORS, paramList.get(2), SUCCESS_FAT_CHOSEN);
+				} catch (IllegalArgumentException e) {
+					error(COMMAND_MIRRORS, paramList.get(2), ERROR_NO_FAT_COPY);
+				}
+			} else {
+				FATMirrors.Report report = volume.compareFATs();
+				info(report.toString());
+			}
+			break;
 		case COMMAND_MOUNT_FS:
 			// redo detection every time filesystems are listed
-			filesystems = filesystemDetector.detectFileSystems();
+			FSFileSystem[] filesystems = filesystemDetector.detectFileSystems();
 			if (paramList.size() == 1) {
 				System.out.println("mount: Available filesystems:");
 				for (FSFileSystem filesystem : filesystems) {
 					System.out.format("  %s\n", filesystem.getFileSystemName());
 				}
-				break;
 			} else if (fs == null) {
 				String destFS = paramList.get(1);
 				for (FSFileSystem filesystem : filesystems) {
 					if (filesystem.getFileSystemName().equals(destFS)) {
 						fs = filesystem;
+						if (fs instanceof FAT) {
+							((FAT)fs).instrument();
+						}
 						pwd = fs.getRootDirectory();
 						info(COMMAND_MOUNT_FS, destFS, SUCCESS_MOUNT);
 						break;
@@ -286,6 +380,14 @@ public class FSConsole {
 			} else {
 				error(COMMAND_MOUNT_FS, ERROR_ALREADY_MOUNTED);
 			}
+			
+			// detection mounts everything it finds, so only keep the 
+			// filesystem in use
+			for (FSFileSystem filesystem : filesystems) {
+				if (filesystem != fs) {
+					filesystem.unmount();
+				}
+			}
 			break;
 		case COMMAND_PRINT_WORKING_DIR:
 			if (fs == null) {
@@ -294,16 +396,94 @@ public class FSConsole {
 			}
 			info(pwd.getName());
 			break;
+		case COMMAND_STATS:
+			if (fs == null) {
+				error(COMMAND_STATS, ERROR_NO_MOUNTED_FS);
+				break;
+			}
+			if (!(fs instanceof FAT)) {
+				error(COMMAND_STATS, ERROR_NO_STATS);
+				break;
+			}
+			
+			InstrumentedIOManager stats = ((FAT)fs).instrument();
+			ClusterChainCache chains = ((FAT)fs).getClusterChainCache();
+			if (paramList.size() > 1 && paramList.get(1).equals("reset")) {
+				stats.reset();
+				chains.resetStatistics();
+				info(COMMAND_STATS, SUCCESS_STATS_RESET);
+				break;
+			}
+			
+			System.out.format("%-10s %10s %14s %10s %10s %10s %10s %14s\n", "region", "reads",
+					"bytes read", "mean us", "p50 us", "p99 us", "writes", "bytes written");
+			for (InstrumentedIOManager.RegionStats region : stats.getRegions()) {
+				System.out.format("%-10s %10d %14d %10.1f %10.1f %10.1f %10d %14d\n",
+						region.getName(),
+						region.getReadCount(),
+						region.getBytesRead(),
+						region.getMeanReadNanos() / 1000.0,
+						region.getReadLatencyPercentile(50) / 1000.0,
+						region.getReadLatencyPercentile(99) / 1000.0,
+						region.getWriteCount(),
+						region.getBytesWritten()
+						);
+			}
+			System.out.format("chain cache: %d hits, %d misses (%.1f%%), %d evicted, %d invalidated\n",
+					chains.getHitCount(), chains.getMissCount(), chains.getHitRate() * 100,
+					chains.getEvictionCount(), chains.getInvalidationCount());
+			break;
+		case COMMAND_TRACE:
+			if (fs == null) {
+				error(COMMAND_TRACE, ERROR_NO_MOUNTED_FS);
+				break;
+			}
+			if (!(fs instanceof FAT)) {
+				error(COMMAND_TRACE, ERROR_NO_TRACE);
+				break;
+			}
+			if (paramList.size() == 1) {
+				error(COMMAND_TRACE, ERROR_MISSING_PARAMS);
+				break;
+			}
+			
+			FAT fat = (FAT)fs;
+			if (paramList.get(1).equals("stop")) {
+				if (tracer == null) {
+					error(COMMAND_TRACE, ERROR_NOT_TRACING);
+					break;
+				}
+				// other managers may have been stacked on top since
+				tracer.stop();
+				fat.removeIOManager(tracer);
+				info(COMMAND_TRACE, tracer.getRecordCount() + " records", SUCCESS_TRACE_STOP);
+				tracer = null;
+			} else if (tracer != null) {
+				error(COMMAND_TRACE, ERROR_ALREADY_TRACING);
+			} else {
+				try {
+					tracer = new TracingIOManager(fat.getIOManager(), paramList.get(1));
+				} catch (IOException e) {
+					e.printStackTrace();
+					error(COMMAND_TRACE, paramList.get(1), ERROR_FAILED_TO_TRACE);
+					break;
+				}
+				fat.setIOManager(tracer);
+				info(COMMAND_TRACE, paramList.get(1), SUCCESS_TRACE_START);
+			}
+			break;
 		case COMMAND_UNMOUNT_FS:
 			if (fs == null) {
 				error(COMMAND_UNMOUNT_FS, ERROR_NO_MOUNTED_FS);
 				break;
 			}
 			
+			// unmounting closes the trace along with the rest of the stack
 			fs.unmount();
 			info(COMMAND_UNMOUNT_FS, fs.getFileSystemName(), SUCCESS_UNMOUNT);
 			fs = null;
 			pwd = null;
+			tracer = null;
 			break;
 		default:
 			error(com, ERROR_UNRECOGNIZED_COMMAND);
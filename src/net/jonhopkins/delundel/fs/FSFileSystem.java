@@ -23,6 +23,8 @@
  */
 package net.jonhopkins.delundel.fs;
 
+import java.nio.ByteBuffer;
+
 public interface FSFileSystem {
 	
 	/**
@@ -48,6 +50,21 @@ public interface FSFileSystem {
 	 */
 	public byte[] getFileContents(FSFile file);
 	
+	/**
+	 * Read the next portion of the given file into {@code dst}, which is 
+	 * filled from its position up to at most its limit. The position 
+	 * within the file will be advanced by the number of bytes read.
+	 * <p>
+	 * Unlike {@link #getFileContents(FSFile)}, this allocates nothing, so 
+	 * it should be preferred when reading a whole file.
+	 * 
+	 * @param file The file whose contents are to be retrieved
+	 * @param dst The buffer to read into
+	 * @return The number of bytes read, or -1 if the end of the file has 
+	 *         been reached or the file could not be read
+	 */
+	public int getFileContents(FSFile file, ByteBuffer dst);
+	
 	/**
 	 * Get a stream to a file from a directory entry.
 	 * 
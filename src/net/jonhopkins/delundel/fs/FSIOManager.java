@@ -23,8 +23,65 @@
  */
 package net.jonhopkins.delundel.fs;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
 public interface FSIOManager {
-	public byte[] readSector(int sectorNumber, int size);
-	public void writeSector(int sectorNumber, byte[] data);
+	public byte[] readSector(long sectorNumber, int size);
+	
+	/**
+	 * Read {@code count} consecutive sectors in a single operation.
+	 * 
+	 * @param startSector The first sector to read
+	 * @param count The number of sectors to read
+	 * @param size The size of a sector
+	 * @return The contents of the sectors, {@code count * size} bytes long, 
+	 *         or null if they could not be read
+	 */
+	public byte[] readSectors(long startSector, int count, int size);
+	
+	/**
+	 * Read into a caller-supplied buffer, starting at the first byte of 
+	 * the given sector. Exactly {@code dst.remaining()} bytes are read, 
+	 * which may be part of one sector or span several, and the position 
+	 * of {@code dst} is advanced past them.
+	 * 
+	 * @param sectorNumber The sector to start reading at
+	 * @param size The size of a sector
+	 * @param dst The buffer to read into
+	 * @return Whether the read succeeded
+	 */
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst);
+	
+	/**
+	 * Start reading {@code count} consecutive sectors without waiting for 
+	 * them. Implementations which can't read asynchronously perform the 
+	 * read before returning.
+	 * 
+	 * @param startSector The first sector to read
+	 * @param count The number of sectors to read
+	 * @param size The size of a sector
+	 * @return A future for the contents of the sectors, with position 0 and 
+	 *         limit {@code count * size}, which completes exceptionally if 
+	 *         they could not be read
+	 */
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size);
+	
+	/**
+	 * Whether sectors can be written. A manager which can't write throws an 
+	 * {@link IllegalStateException} from {@link #writeSector(long, byte[])}.
+	 * 
+	 * @return Whether {@link #writeSector(long, byte[])} may be called
+	 */
+	public boolean isWritable();
+	
+	public void writeSector(long sectorNumber, byte[] data);
+	
+	/**
+	 * Make sure every sector passed to {@link #writeSector(long, byte[])} 
+	 * has been written out. Also done by {@link #close()}.
+	 */
+	public void flush();
+	
 	public void close();
 }
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Passes every call through to another {@link FSIOManager}. Subclasses 
+ * override only the calls they need to change, in the same way as 
+ * {@link java.io.FilterInputStream}.
+ */
+public abstract class FilterIOManager implements FSIOManager {
+	protected FSIOManager ioManager;
+	
+	protected FilterIOManager(FSIOManager ioManager) {
+		this.ioManager = ioManager;
+	}
+	
+	/**
+	 * Get the manager that calls are passed through to.
+	 * 
+	 * @return The wrapped manager
+	 */
+	public FSIOManager getWrappedManager() {
+		return ioManager;
+	}
+	
+	/**
+	 * Change the manager that calls are passed through to, e.g. to take 
+	 * out a manager which was stacked under this one.
+	 * 
+	 * @param ioManager The manager to pass calls through to
+	 */
+	public void setWrappedManager(FSIOManager ioManager) {
+		this.ioManager = ioManager;
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		return ioManager.readSector(sectorNumber, size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		return ioManager.readSectors(startSector, count, size);
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		return ioManager.readSectorInto(sectorNumber, size, dst);
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		return ioManager.readSectorsAsync(startSector, count, size);
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return ioManager.isWritable();
+	}
+	
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		ioManager.writeSector(sectorNumber, data);
+	}
+	
+	@Override
+	public void flush() {
+		ioManager.flush();
+	}
+	
+	@Override
+	public void close() {
+		ioManager.close();
+	}
+}
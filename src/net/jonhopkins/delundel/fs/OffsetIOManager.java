@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Presents part of an image, such as one partition of a whole-disk dump, 
+ * as if it were the whole image. Sector 0 of this manager is the sector at 
+ * byte {@code start} of the wrapped manager, and reads past the end of the 
+ * region fail.
+ */
+public class OffsetIOManager extends FilterIOManager {
+	private long start;
+	private long length;
+	
+	/**
+	 * @param ioManager The whole image
+	 * @param start The byte offset of the region within the image
+	 * @param length The length of the region in bytes
+	 */
+	public OffsetIOManager(FSIOManager ioManager, long start, long length) {
+		super(ioManager);
+		this.start = start;
+		this.length = length;
+	}
+	
+	public long getStart() {
+		return start;
+	}
+	
+	public long getLength() {
+		return length;
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		if (!inRange(sectorNumber, size, size)) {
+			return null;
+		}
+		return ioManager.readSector(translate(sectorNumber, size), size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		if (!inRange(startSector, size, (long)count * size)) {
+			return null;
+		}
+		return ioManager.readSectors(translate(startSector, size), count, size);
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		if (!inRange(sectorNumber, size, dst.remaining())) {
+			return false;
+		}
+		return ioManager.readSectorInto(translate(sectorNumber, size), size, dst);
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		if (!inRange(startSector, size, (long)count * size)) {
+			CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+			future.completeExceptionally(new IllegalArgumentException("Sectors "
+					+ startSector + "+" + count + " are outside the partition"));
+			return future;
+		}
+		return ioManager.readSectorsAsync(translate(startSector, size), count, size);
+	}
+	
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		if (!inRange(sectorNumber, data.length, data.length)) {
+			throw new IllegalArgumentException("Sector " + sectorNumber
+					+ " is outside the partition");
+		}
+		ioManager.writeSector(translate(sectorNumber, data.length), data);
+	}
+	
+	private boolean inRange(long sectorNumber, int size, long bytes) {
+		long offset = sectorNumber * size;
+		return sectorNumber >= 0 && offset + bytes <= length;
+	}
+	
+	private long translate(long sectorNumber, int size) {
+		if (start % size != 0) {
+			throw new IllegalArgumentException("Partition at byte " + start
+					+ " is not aligned to " + size + "-byte sectors");
+		}
+		return sectorNumber + start / size;
+	}
+}
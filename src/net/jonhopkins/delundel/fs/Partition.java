@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs;
+
+/**
+ * One partition found in a whole-disk image by {@link PartitionScanner}.
+ */
+public class Partition {
+	public enum Scheme {
+		/**
+		 * The image has no partition table and holds a single volume.
+		 */
+		NONE,
+		MBR,
+		GPT
+	}
+	
+	private int index;
+	private Scheme scheme;
+	private String type;
+	private String name;
+	private long start;
+	private long length;
+	
+	Partition(int index, Scheme scheme, String type, String name, long start, long length) {
+		this.index = index;
+		this.scheme = scheme;
+		this.type = type;
+		this.name = name;
+		this.start = start;
+		this.length = length;
+	}
+	
+	/**
+	 * Get the position of the partition in the partition table, counting 
+	 * from 0. Logical partitions inside an MBR extended partition follow 
+	 * the four primary entries.
+	 * 
+	 * @return The number of the partition
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	public Scheme getScheme() {
+		return scheme;
+	}
+	
+	/**
+	 * Get the partition type: the two hex digit type byte for MBR 
+	 * partitions, or the partition type GUID for GPT partitions.
+	 * 
+	 * @return The partition type
+	 */
+	public String getType() {
+		return type;
+	}
+	
+	/**
+	 * Get the name of a GPT partition.
+	 * 
+	 * @return The name, or an empty string for other schemes
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Get the byte offset of the partition within the image.
+	 * 
+	 * @return The start of the partition
+	 */
+	public long getStart() {
+		return start;
+	}
+	
+	/**
+	 * Get the length of the partition in bytes.
+	 * 
+	 * @return The length of the partition
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * Get a view of the image which only covers this partition.
+	 * 
+	 * @param image The whole-disk image the partition was found in
+	 * @return The partition's sectors, starting at its first sector
+	 */
+	public FSIOManager open(FSIOManager image) {
+		if (scheme == Scheme.NONE) {
+			return image;
+		}
+		return new OffsetIOManager(image, start, length);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s partition %d: type %s, %d bytes at byte %d%s",
+				scheme, index, type, length, start, name.isEmpty() ? "" : " (" + name + ")");
+	}
+}
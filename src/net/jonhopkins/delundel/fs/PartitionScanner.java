@@ -0,0 +1,271 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the partition table of a whole-disk image. Both MBR partition 
+ * tables, including logical partitions inside an extended partition, and 
+ * GPT partition tables behind a protective MBR are understood. An image 
+ * with no partition table, such as a floppy or a dump of a single 
+ * partition, is reported as one partition covering the whole image.
+ */
+public class PartitionScanner {
+	private static final int MBR_SECTOR_SIZE = 512;
+	private static final int MBR_TABLE_OFFSET = 446;
+	private static final int MBR_ENTRY_SIZE = 16;
+	private static final int MBR_ENTRY_COUNT = 4;
+	
+	private static final int TYPE_EMPTY = 0x00;
+	private static final int TYPE_EXTENDED_CHS = 0x05;
+	private static final int TYPE_EXTENDED_LBA = 0x0F;
+	private static final int TYPE_EXTENDED_LINUX = 0x85;
+	private static final int TYPE_GPT_PROTECTIVE = 0xEE;
+	
+	private static final long GPT_SIGNATURE = 0x5452415020494645L; // "EFI PART"
+	private static final int[] GPT_BLOCK_SIZES = { 512, 4096 };
+	private static final int GPT_MAX_ENTRIES = 1024;
+	private static final String GPT_UNUSED_ENTRY = "00000000-0000-0000-0000-000000000000";
+	
+	/**
+	 * The number of logical partitions followed before giving up on a 
+	 * damaged chain of extended boot records.
+	 */
+	private static final int MAX_LOGICAL_PARTITIONS = 128;
+	
+	private FSIOManager image;
+	private long imageLength;
+	
+	/**
+	 * @param image The whole-disk image
+	 * @param imageLength The length of the image in bytes
+	 */
+	public PartitionScanner(FSIOManager image, long imageLength) {
+		this.image = image;
+		this.imageLength = imageLength;
+	}
+	
+	/**
+	 * Find the partitions in the image.
+	 * 
+	 * @return The partitions, in partition table order
+	 */
+	public List<Partition> scan() {
+		List<Partition> partitions = new ArrayList<Partition>();
+		
+		ByteBuffer mbr = readBlock(0, MBR_SECTOR_SIZE);
+		if (mbr == null || isVolumeBootRecord(mbr) || !isMasterBootRecord(mbr)) {
+			partitions.add(new Partition(0, Partition.Scheme.NONE, "", "", 0, imageLength));
+			return partitions;
+		}
+		
+		for (int i = 0; i < MBR_ENTRY_COUNT; i++) {
+			if ((mbr.get(MBR_TABLE_OFFSET + i * MBR_ENTRY_SIZE + 4) & 0xFF) == TYPE_GPT_PROTECTIVE) {
+				if (scanGPT(partitions)) {
+					return partitions;
+				}
+				break;
+			}
+		}
+		
+		scanMBR(mbr, partitions);
+		return partitions;
+	}
+	
+	private void scanMBR(ByteBuffer mbr, List<Partition> partitions) {
+		long extendedStart = -1;
+		for (int i = 0; i < MBR_ENTRY_COUNT; i++) {
+			int entry = MBR_TABLE_OFFSET + i * MBR_ENTRY_SIZE;
+			int type = mbr.get(entry + 4) & 0xFF;
+			long firstSector = mbr.getInt(entry + 8) & 0xFFFFFFFFL;
+			long sectorCount = mbr.getInt(entry + 12) & 0xFFFFFFFFL;
+			if (type == TYPE_EMPTY || sectorCount == 0) {
+				continue;
+			}
+			if (isExtended(type)) {
+				extendedStart = firstSector;
+				continue;
+			}
+			partitions.add(new Partition(i, Partition.Scheme.MBR, String.format("%02X", type), "",
+					firstSector * MBR_SECTOR_SIZE, sectorCount * MBR_SECTOR_SIZE));
+		}
+		
+		if (extendedStart > 0) {
+			scanExtended(extendedStart, partitions);
+		}
+	}
+	
+	/*
+	 * Each extended boot record describes one logical partition, relative 
+	 * to the EBR itself, and links to the next EBR, relative to the start 
+	 * of the extended partition.
+	 */
+	private void scanExtended(long extendedStart, List<Partition> partitions) {
+		long ebrSector = extendedStart;
+		for (int i = 0; i < MAX_LOGICAL_PARTITIONS; i++) {
+			ByteBuffer ebr = readBlock(ebrSector, MBR_SECTOR_SIZE);
+			if (ebr == null || !isMasterBootRecord(ebr)) {
+				return;
+			}
+			
+			int type = ebr.get(MBR_TABLE_OFFSET + 4) & 0xFF;
+			long firstSector = ebr.getInt(MBR_TABLE_OFFSET + 8) & 0xFFFFFFFFL;
+			long sectorCount = ebr.getInt(MBR_TABLE_OFFSET + 12) & 0xFFFFFFFFL;
+			if (type != TYPE_EMPTY && sectorCount != 0) {
+				partitions.add(new Partition(MBR_ENTRY_COUNT + i, Partition.Scheme.MBR,
+						String.format("%02X", type), "", (ebrSector + firstSector) * MBR_SECTOR_SIZE,
+						sectorCount * MBR_SECTOR_SIZE));
+			}
+			
+			int next = MBR_TABLE_OFFSET + MBR_ENTRY_SIZE;
+			long nextSector = ebr.getInt(next + 8) & 0xFFFFFFFFL;
+			if (!isExtended(ebr.get(next + 4) & 0xFF) || nextSector == 0) {
+				return;
+			}
+			ebrSector = extendedStart + nextSector;
+		}
+	}
+	
+	/*
+	 * The GPT header is at LBA 1, but the size of an LBA depends on the 
+	 * disk the image came from, so try each likely block size.
+	 */
+	private boolean scanGPT(List<Partition> partitions) {
+		for (int blockSize : GPT_BLOCK_SIZES) {
+			ByteBuffer header = readBlock(1, blockSize);
+			if (header == null || header.getLong(0) != GPT_SIGNATURE) {
+				continue;
+			}
+			
+			long entryLBA = header.getLong(72);
+			int entryCount = header.getInt(80);
+			int entrySize = header.getInt(84);
+			if (entryCount <= 0 || entryCount > GPT_MAX_ENTRIES || entrySize < 128
+					|| blockSize % entrySize != 0) {
+				return false;
+			}
+			
+			int entrySectors = (int)(((long)entryCount * entrySize + blockSize - 1) / blockSize);
+			byte[] data = image.readSectors(entryLBA, entrySectors, blockSize);
+			if (data == null) {
+				return false;
+			}
+			ByteBuffer entries = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			
+			for (int i = 0; i < entryCount; i++) {
+				int entry = i * entrySize;
+				String type = readGUID(entries, entry);
+				if (type.equals(GPT_UNUSED_ENTRY)) {
+					continue;
+				}
+				long firstLBA = entries.getLong(entry + 32);
+				long lastLBA = entries.getLong(entry + 40);
+				partitions.add(new Partition(i, Partition.Scheme.GPT, type, readName(entries, entry + 56),
+						firstLBA * blockSize, (lastLBA - firstLBA + 1) * blockSize));
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * A GUID is stored as a little-endian int and two shorts, followed by 
+	 * eight bytes in order.
+	 */
+	private static String readGUID(ByteBuffer buffer, int offset) {
+		StringBuilder guid = new StringBuilder(36);
+		guid.append(String.format("%08X-%04X-%04X-", buffer.getInt(offset),
+				buffer.getShort(offset + 4), buffer.getShort(offset + 6)));
+		for (int i = 8; i < 16; i++) {
+			if (i == 10) {
+				guid.append('-');
+			}
+			guid.append(String.format("%02X", buffer.get(offset + i)));
+		}
+		return guid.toString();
+	}
+	
+	private static String readName(ByteBuffer buffer, int offset) {
+		byte[] name = new byte[72];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = buffer.get(offset + i);
+		}
+		String s = new String(name, StandardCharsets.UTF_16LE);
+		int end = s.indexOf('\0');
+		return end < 0 ? s : s.substring(0, end);
+	}
+	
+	private static boolean isExtended(int type) {
+		return type == TYPE_EXTENDED_CHS || type == TYPE_EXTENDED_LBA || type == TYPE_EXTENDED_LINUX;
+	}
+	
+	private static boolean isMasterBootRecord(ByteBuffer mbr) {
+		if ((mbr.get(510) & 0xFF) != 0x55 || (mbr.get(511) & 0xFF) != 0xAA) {
+			return false;
+		}
+		for (int i = 0; i < MBR_ENTRY_COUNT; i++) {
+			int status = mbr.get(MBR_TABLE_OFFSET + i * MBR_ENTRY_SIZE) & 0xFF;
+			if (status != 0x00 && status != 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * A volume boot record starts with a jump over a BIOS parameter block. 
+	 * Some boot loaders put a jump at the start of an MBR too, so also make 
+	 * sure the fields common to every BPB are sensible.
+	 */
+	private static boolean isVolumeBootRecord(ByteBuffer sector) {
+		int jump = sector.get(0) & 0xFF;
+		if (jump != 0xEB && jump != 0xE9) {
+			return false;
+		}
+		int bytesPerSector = sector.getShort(11) & 0xFFFF;
+		int sectorsPerCluster = sector.get(13) & 0xFF;
+		int reservedSectors = sector.getShort(14) & 0xFFFF;
+		int fatCount = sector.get(16) & 0xFF;
+		return bytesPerSector >= 512 && bytesPerSector <= 4096
+				&& Integer.bitCount(bytesPerSector) == 1
+				&& sectorsPerCluster > 0 && Integer.bitCount(sectorsPerCluster) == 1
+				&& reservedSectors > 0 && fatCount > 0;
+	}
+	
+	private ByteBuffer readBlock(long block, int size) {
+		if ((block + 1) * size > imageLength) {
+			return null;
+		}
+		byte[] data = image.readSector(block, size);
+		if (data == null) {
+			return null;
+		}
+		return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of which clusters of a FAT volume are in use, taken in a 
+ * single pass over the FAT. Alongside one bit per cluster, the runs of 
+ * free clusters are indexed both by position and by size, so questions 
+ * such as whether a cluster is free or where the largest hole is can be 
+ * answered without going back to the FAT.
+ * <p>
+ * The bitmap is indexed by cluster number, so clusters 0 and 1, which 
+ * hold the media descriptor rather than data, are always marked as in use.
+ * <p>
+ * The clusters marked as bad are noted on the same pass.
+ */
+public class AllocationBitmap {
+	private final long[] words;
+	private final int clusterCount;
+	private final long freeCount;
+	
+	private final int[] freeStarts;
+	private final int[] freeLengths;
+	
+	/**
+	 * Indices into {@link #freeStarts} and {@link #freeLengths}, ordered 
+	 * by the length of the run from smallest to largest.
+	 */
+	private final int[] freeBySize;
+	
+	// in ascending order
+	private final int[] badClusters;
+	
+	/**
+	 * Build the bitmap from the FAT of the given volume.
+	 * 
+	 * @param fat The volume to read the FAT of
+	 */
+	AllocationBitmap(FAT fat) {
+		clusterCount = fat.getGeometry().getClusterCount() + 2;
+		words = new long[(clusterCount + 63) >>> 6];
+		words[0] |= 3L;
+		
+		int[] starts = new int[16];
+		int[] lengths = new int[16];
+		int runs = 0;
+		long free = 0;
+		int runStart = -1;
+		int[] bad = new int[0];
+		int badCount = 0;
+		
+		for (int cluster = 2; cluster < clusterCount; cluster++) {
+			int fatEntry = fat.getFATEntry(cluster);
+			if (fatEntry != 0) {
+				words[cluster >>> 6] |= 1L << cluster;
+				if (fat.isBadCluster(fatEntry)) {
+					if (badCount == bad.length) {
+						bad = Arrays.copyOf(bad, Math.max(16, badCount * 2));
+					}
+					bad[badCount++] = cluster;
+				}
+				if (runStart >= 0) {
+					if (runs == starts.length) {
+						starts = Arrays.copyOf(starts, runs * 2);
+						lengths = Arrays.copyOf(lengths, runs * 2);
+					}
+					starts[runs] = runStart;
+					lengths[runs] = cluster - runStart;
+					runs++;
+					runStart = -1;
+				}
+			} else {
+				free++;
+				if (runStart < 0) {
+					runStart = cluster;
+				}
+			}
+		}
+		if (runStart >= 0) {
+			if (runs == starts.length) {
+				starts = Arrays.copyOf(starts, runs + 1);
+				lengths = Arrays.copyOf(lengths, runs + 1);
+			}
+			starts[runs] = runStart;
+			lengths[runs] = clusterCount - runStart;
+			runs++;
+		}
+		
+		freeCount = free;
+		badClusters = Arrays.copyOf(bad, badCount);
+		freeStarts = Arrays.copyOf(starts, runs);
+		freeLengths = Arrays.copyOf(lengths, runs);
+		
+		// sort the runs by length, breaking ties by position, by packing 
+		// both into one key so that nothing needs boxing
+		long[] keys = new long[runs];
+		for (int i = 0; i < runs; i++) {
+			keys[i] = ((long)freeLengths[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		freeBySize = new int[runs];
+		for (int i = 0; i < runs; i++) {
+			freeBySize[i] = (int)keys[i];
+		}
+	}
+	
+	/**
+	 * Get the number of entries covered by the bitmap, which is one more 
+	 * than the highest cluster number on the volume.
+	 * 
+	 * @return The number of clusters, including the two reserved entries
+	 */
+	public int getClusterCount() {
+		return clusterCount;
+	}
+	
+	public long getFreeCount() {
+		return freeCount;
+	}
+	
+	/**
+	 * Check whether a cluster is marked in the FAT as being in use. 
+	 * Clusters outside of the volume are treated as being in use.
+	 * 
+	 * @param cluster The cluster to check
+	 * @return Whether the cluster is allocated
+	 */
+	public boolean isAllocated(int cluster) {
+		if (cluster < 0 || cluster >= clusterCount) {
+			return true;
+		}
+		return (words[cluster >>> 6] & (1L << cluster)) != 0;
+	}
+	
+	/**
+	 * Check whether a cluster is marked in the FAT as bad.
+	 * 
+	 * @param cluster The cluster to check
+	 * @return Whether the cluster is bad
+	 */
+	public boolean isBad(int cluster) {
+		return Arrays.binarySearch(badClusters, cluster) >= 0;
+	}
+	
+	public int getBadClusterCount() {
+		return badClusters.length;
+	}
+	
+	/**
+	 * Get every cluster marked in the FAT as bad.
+	 * 
+	 * @return The bad clusters, in ascending order
+	 */
+	public int[] getBadClusters() {
+		return badClusters.clone();
+	}
+	
+	public boolean isFree(int cluster) {
+		return !isAllocated(cluster);
+	}
+	
+	/**
+	 * Find the first free cluster at or after the given one.
+	 * 
+	 * @param from The cluster to start looking at
+	 * @return The free cluster, or -1 if there are none after {@code from}
+	 */
+	public int nextFree(int from) {
+		if (from < 0) {
+			from = 0;
+		}
+		if (from >= clusterCount) {
+			return -1;
+		}
+		
+		int word = from >>> 6;
+		long free = ~words[word] & (-1L << from);
+		while (true) {
+			if (free != 0) {
+				int cluster = (word << 6) + Long.numberOfTrailingZeros(free);
+				return cluster < clusterCount ? cluster : -1;
+			}
+			if (++word == words.length) {
+				return -1;
+			}
+			free = ~words[word];
+		}
+	}
+	
+	/**
+	 * Get the number of runs of consecutive free clusters.
+	 * 
+	 * @return The number of free extents
+	 */
+	public int getFreeExtentCount() {
+		return freeStarts.length;
+	}
+	
+	/**
+	 * Get the first cluster of a free extent. Extents are numbered in 
+	 * order of their position on the volume.
+	 * 
+	 * @param extent The extent
+	 * @return The first cluster of the extent
+	 */
+	public int getFreeExtentStart(int extent) {
+		return freeStarts[extent];
+	}
+	
+	public int getFreeExtentLength(int extent) {
+		return freeLengths[extent];
+	}
+	
+	/**
+	 * Get the free extents ordered by size, from smallest to largest. 
+	 * Extents of the same size are ordered by position.
+	 * 
+	 * @return The numbers of the extents, in order of size
+	 */
+	public int[] getFreeExtentsBySize() {
+		return freeBySize.clone();
+	}
+	
+	/**
+	 * Find the free extent holding the given cluster.
+	 * 
+	 * @param cluster The cluster to look for
+	 * @return The extent, or -1 if the cluster is not free
+	 */
+	public int findFreeExtent(int cluster) {
+		int low = 0;
+		int high = freeStarts.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (cluster < freeStarts[mid]) {
+				high = mid - 1;
+			} else if (cluster - freeStarts[mid] >= freeLengths[mid]) {
+				low = mid + 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Find the smallest free extent of at least the given number of 
+	 * clusters, preferring the one nearest the start of the volume when 
+	 * there is more than one.
+	 * 
+	 * @param minLength The number of clusters needed
+	 * @return The extent, or -1 if no run of free clusters is long enough
+	 */
+	public int findFreeExtentOfLength(int minLength) {
+		int low = 0;
+		int high = freeBySize.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (freeLengths[freeBySize[mid]] < minLength) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low < freeBySize.length ? freeBySize[low] : -1;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+
+/**
+ * Reads sectors from a raw dump file through an 
+ * {@link AsynchronousFileChannel}, so that many reads can be in flight at 
+ * once. Devices such as USB 3 sticks and NVMe drives only reach their full 
+ * throughput when more than one request is queued.
+ * <p>
+ * Unlike {@link FATIOManager}, whose asynchronous reads are done on the 
+ * calling thread before the future is returned, reads here are serviced by 
+ * a pool of threads of its own, one per read that may be queued at once. 
+ * The synchronous methods simply wait for the matching asynchronous read. 
+ * Nothing is cached and nothing can be written.
+ */
+public class AsyncIOManager implements FSIOManager {
+	/**
+	 * Default number of reads that can be serviced at once.
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 16;
+	
+	private AsynchronousFileChannel channel;
+	private ExecutorService executor;
+	
+	public AsyncIOManager(String filename) {
+		this(filename, DEFAULT_QUEUE_DEPTH);
+	}
+	
+	/**
+	 * Open a dump file for asynchronous reading.
+	 * 
+	 * @param filename The dump file to open
+	 * @param queueDepth The number of reads that can be serviced at once
+	 */
+	public AsyncIOManager(String filename, int queueDepth) {
+		executor = Executors.newFixedThreadPool(queueDepth);
+		try {
+			channel = AsynchronousFileChannel.open(Paths.get(filename),
+					Collections.singleton(StandardOpenOption.READ), executor);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		return readSectors(sectorNumber, 1, size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		try {
+			return readSectorsAsync(startSector, count, size).get().array();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return null;
+		}
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		if (sectorNumber < 0) {
+			return false;
+		}
+		
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		read(dst, sectorNumber * size, future, false);
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		if (startSector < 0 || count < 0) {
+			future.completeExceptionally(new IOException("Invalid sector range "
+					+ startSector + "+" + count));
+			return future;
+		}
+		
+		read(ByteBuffer.allocate(count * size), startSector * size, future, true);
+		return future;
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return false;
+	}
+	
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		throw new IllegalStateException("Asynchronous dump files are read-only");
+	}
+	
+	@Override
+	public void flush() {
+		// nothing is ever written
+	}
+	
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		executor.shutdown();
+	}
+	
+	/**
+	 * Fill the rest of {@code dst} starting at byte {@code offset}, issuing 
+	 * further reads if the channel returns less than was asked for. Once 
+	 * {@code dst} is full, it is used to complete {@code future}, flipped 
+	 * first if {@code flip} is set.
+	 */
+	private void read(final ByteBuffer dst, final long offset,
+			final CompletableFuture<ByteBuffer> future, final boolean flip) {
+		channel.read(dst, offset, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer read, Void attachment) {
+				if (read < 0) {
+					future.completeExceptionally(new IOException("Read past end of file at byte "
+							+ offset));
+				} else if (dst.hasRemaining()) {
+					read(dst, offset + read, future, flip);
+				} else {
+					if (flip) {
+						dst.flip();
+					}
+					future.complete(dst);
+				}
+			}
+			
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				future.completeExceptionally(exc);
+			}
+		});
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The parts of an image which could not be read, kept as ranges of byte 
+ * offsets so that the map doesn't depend on the sector size of whoever 
+ * read them. Neighbouring ranges are merged as they are added.
+ * <p>
+ * A map may be kept in a file, so that a later run over the same image 
+ * skips straight past sectors already known to be bad. The file is plain 
+ * text, one range per line as its byte offset and length in decimal; 
+ * blank lines and lines starting with {@code #} are ignored.
+ * <p>
+ * All methods are synchronized, so one map can be shared by every 
+ * partition of an image.
+ */
+public class BadSectorMap {
+	private final File file;
+	
+	// the start of each range and the offset just past its end
+	private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+	private boolean dirty;
+	
+	/**
+	 * Create an empty map which is only held in memory.
+	 */
+	public BadSectorMap() {
+		this.file = null;
+	}
+	
+	/**
+	 * Create a map kept in a file, reading the ranges already in the file 
+	 * if it exists.
+	 * 
+	 * @param file The file to keep the map in
+	 */
+	public BadSectorMap(File file) {
+		this.file = file;
+		if (!file.exists()) {
+			return;
+		}
+		
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				try {
+					add(Long.parseLong(fields[0]), fields.length > 1 ? Long.parseLong(fields[1]) : 1);
+				} catch (NumberFormatException e) {
+					e.printStackTrace();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		dirty = false;
+	}
+	
+	/**
+	 * Mark part of the image as bad.
+	 * 
+	 * @param offset The byte offset of the start of the bad part
+	 * @param length The number of bad bytes
+	 */
+	public synchronized void add(long offset, long length) {
+		if (offset < 0 || length <= 0) {
+			throw new IllegalArgumentException("Bad range " + offset + "+" + length);
+		}
+		
+		long end = offset + length;
+		Map.Entry<Long, Long> before = ranges.floorEntry(offset);
+		if (before != null && before.getValue() >= offset) {
+			if (before.getValue() >= end) {
+				return;
+			}
+			offset = before.getKey();
+		}
+		
+		// swallow every range this one reaches
+		Map.Entry<Long, Long> next;
+		while ((next = ranges.ceilingEntry(offset)) != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+		}
+		ranges.put(offset, end);
+		dirty = true;
+	}
+	
+	/**
+	 * Check whether any of part of the image is marked as bad.
+	 * 
+	 * @param offset The byte offset of the start of the part
+	 * @param length The length of the part in bytes
+	 * @return Whether any byte of the part is bad
+	 */
+	public synchronized boolean overlaps(long offset, long length) {
+		Map.Entry<Long, Long> entry = ranges.lowerEntry(offset + length);
+		return entry != null && entry.getValue() > offset;
+	}
+	
+	/**
+	 * Get the number of separate bad ranges.
+	 * 
+	 * @return The number of ranges
+	 */
+	public synchronized int getRangeCount() {
+		return ranges.size();
+	}
+	
+	/**
+	 * Get the total size of the bad ranges.
+	 * 
+	 * @return The number of bad bytes
+	 */
+	public synchronized long getByteCount() {
+		long bytes = 0;
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			bytes += range.getValue() - range.getKey();
+		}
+		return bytes;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Write the map to its file, if it has one and anything has been 
+	 * added since it was last written.
+	 * 
+	 * @return Whether the file is up to date
+	 */
+	public synchronized boolean save() {
+		if (file == null || !dirty) {
+			return true;
+		}
+		
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new FileWriter(file));
+			out.println("# unreadable ranges: byte offset, length");
+			for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+				out.println(range.getKey() + " " + (range.getValue() - range.getKey()));
+			}
+			if (out.checkError()) {
+				return false;
+			}
+			dirty = false;
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+	
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(range.getKey()).append('-').append(range.getValue() - 1);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.util.Arrays;
+
+/**
+ * A cluster chain stored as runs of consecutive clusters. Each extent is 
+ * a starting cluster and a length, kept in primitive arrays, so a file 
+ * written contiguously costs a single extent however large it is.
+ * <p>
+ * Looking up the cluster at a given position in the chain is a binary 
+ * search over the extents, rather than a walk along the chain.
+ */
+public class ClusterChain {
+	
+	/**
+	 * How a walk along the FAT came to stop.
+	 */
+	public enum End {
+		/** The chain finished with an end of chain marker, as it should. */
+		END_OF_CHAIN,
+		/** The chain looped back on itself, and was cut off before repeating. */
+		CYCLE,
+		/** The chain led to a cluster marked as bad. */
+		BAD_CLUSTER,
+		/** The chain led to a cluster marked as free. */
+		FREE_CLUSTER,
+		/** The chain led to a cluster number outside of the volume. */
+		OUT_OF_RANGE
+	}
+	
+	private static final int INITIAL_CAPACITY = 4;
+	
+	private int[] starts = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	
+	/**
+	 * The position in the chain of the first cluster of each extent.
+	 */
+	private int[] offsets = new int[INITIAL_CAPACITY];
+	
+	private int extentCount = 0;
+	private int clusterCount = 0;
+	private End end = End.END_OF_CHAIN;
+	private int badLink = -1;
+	
+	/**
+	 * Append a cluster to the end of the chain. If it directly follows 
+	 * the last cluster in the chain, the last extent is grown rather than 
+	 * starting a new one.
+	 * 
+	 * @param cluster The cluster to append
+	 */
+	void add(int cluster) {
+		int last = extentCount - 1;
+		if (last >= 0 && starts[last] + lengths[last] == cluster) {
+			lengths[last]++;
+		} else {
+			if (extentCount == starts.length) {
+				int capacity = extentCount * 2;
+				starts = Arrays.copyOf(starts, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+			}
+			starts[extentCount] = cluster;
+			lengths[extentCount] = 1;
+			offsets[extentCount] = clusterCount;
+			extentCount++;
+		}
+		clusterCount++;
+	}
+	
+	/**
+	 * Drop clusters from the end of the chain.
+	 * 
+	 * @param size The number of clusters to keep
+	 */
+	void truncate(int size) {
+		if (size >= clusterCount) {
+			return;
+		}
+		if (size <= 0) {
+			extentCount = 0;
+			clusterCount = 0;
+			return;
+		}
+		int last = findExtent(size - 1);
+		lengths[last] = size - offsets[last];
+		extentCount = last + 1;
+		clusterCount = size;
+	}
+	
+	/**
+	 * Record why the chain stopped.
+	 * 
+	 * @param end How the chain ended
+	 * @param badLink The entry which ended the chain, if it was not an end 
+	 *        of chain marker
+	 */
+	void setEnd(End end, int badLink) {
+		this.end = end;
+		this.badLink = badLink;
+	}
+	
+	public End getEnd() {
+		return end;
+	}
+	
+	/**
+	 * Check whether the chain finished with an end of chain marker.
+	 * 
+	 * @return Whether the chain is intact
+	 */
+	public boolean isComplete() {
+		return end == End.END_OF_CHAIN;
+	}
+	
+	/**
+	 * Get the FAT entry which broke the chain, which is the cluster the 
+	 * last cluster of the chain pointed to.
+	 * 
+	 * @return The offending entry, or -1 if the chain is intact
+	 */
+	public int getBadLink() {
+		return badLink;
+	}
+	
+	/**
+	 * Get the number of clusters in the chain.
+	 * 
+	 * @return The length of the chain
+	 */
+	public int size() {
+		return clusterCount;
+	}
+	
+	/**
+	 * Get the number of runs of consecutive clusters in the chain.
+	 * 
+	 * @return The number of extents
+	 */
+	public int getExtentCount() {
+		return extentCount;
+	}
+	
+	public int getExtentStart(int extent) {
+		checkExtent(extent);
+		return starts[extent];
+	}
+	
+	public int getExtentLength(int extent) {
+		checkExtent(extent);
+		return lengths[extent];
+	}
+	
+	/**
+	 * Get the position in the chain of the first cluster of an extent.
+	 * 
+	 * @param extent The extent
+	 * @return The number of clusters in the chain before the extent
+	 */
+	public int getExtentOffset(int extent) {
+		checkExtent(extent);
+		return offsets[extent];
+	}
+	
+	/**
+	 * Find the extent holding the cluster at the given position in the 
+	 * chain.
+	 * 
+	 * @param index The position in the chain
+	 * @return The extent
+	 */
+	public int findExtent(int index) {
+		if (index < 0 || index >= clusterCount) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + clusterCount);
+		}
+		
+		int low = 0;
+		int high = extentCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (offsets[mid] <= index) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * Get the cluster at the given position in the chain.
+	 * 
+	 * @param index The position in the chain
+	 * @return The cluster
+	 */
+	public int get(int index) {
+		int extent = findExtent(index);
+		return starts[extent] + (index - offsets[extent]);
+	}
+	
+	/**
+	 * Check whether the chain passes through the given cluster.
+	 * 
+	 * @param cluster The cluster to look for
+	 * @return Whether the cluster is part of the chain
+	 */
+	public boolean contains(int cluster) {
+		for (int i = 0; i < extentCount; i++) {
+			if (cluster >= starts[i] && cluster - starts[i] < lengths[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void checkExtent(int extent) {
+		if (extent < 0 || extent >= extentCount) {
+			throw new IndexOutOfBoundsException("Extent: " + extent + ", Count: " + extentCount);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < extentCount; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(starts[i]);
+			if (lengths[i] > 1) {
+				sb.append('-').append(starts[i] + lengths[i] - 1);
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
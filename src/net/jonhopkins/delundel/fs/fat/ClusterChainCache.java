@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the cluster chains most recently resolved on a volume, keyed 
+ * by their first cluster, so that opening the same file or directory 
+ * again doesn't walk the FAT again. The least recently used chain is 
+ * dropped once the cache is full.
+ * <p>
+ * A chain depends only on the FAT entries of its own clusters, so when an 
+ * entry is changed only the chains holding that cluster are dropped.
+ * <p>
+ * Chains handed out are shared, and must not be changed. All methods are 
+ * synchronized, so the cache can be shared by several threads.
+ */
+public class ClusterChainCache {
+	/**
+	 * The default number of chains kept.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+	
+	private final int capacity;
+	private final LinkedHashMap<Integer, ClusterChain> chains;
+	
+	// bumped whenever chains are dropped, so that a chain walked while the 
+	// FAT was being changed isn't cached afterwards
+	private long version;
+	
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+	
+	/**
+	 * @param capacity The most chains to keep. At least one is always kept.
+	 */
+	public ClusterChainCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.chains = new LinkedHashMap<Integer, ClusterChain>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, ClusterChain> eldest) {
+				if (size() > ClusterChainCache.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Look up the chain starting at a cluster.
+	 * 
+	 * @param firstCluster The first cluster of the chain
+	 * @return The chain, or null if it isn't cached
+	 */
+	synchronized ClusterChain get(int firstCluster) {
+		ClusterChain chain = chains.get(firstCluster);
+		if (chain == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return chain;
+	}
+	
+	/**
+	 * Get a token to pass to {@link #put(int, ClusterChain, long)}, taken 
+	 * before the chain is walked.
+	 * 
+	 * @return The current version of the cache
+	 */
+	synchronized long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Cache a chain, unless any chain has been dropped since it was walked, 
+	 * in which case it may already be out of date.
+	 * 
+	 * @param firstCluster The first cluster of the chain
+	 * @param chain The chain
+	 * @param version The version of the cache from before the chain was 
+	 *        walked
+	 */
+	synchronized void put(int firstCluster, ClusterChain chain, long version) {
+		if (version == this.version) {
+			chains.put(firstCluster, chain);
+		}
+	}
+	
+	/**
+	 * Drop every chain which passes through a cluster, e.g. after its FAT 
+	 * entry has been written to.
+	 * 
+	 * @param cluster The cluster whose entry changed
+	 */
+	public synchronized void invalidate(int cluster) {
+		version++;
+		Iterator<ClusterChain> iterator = chains.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().contains(cluster)) {
+				iterator.remove();
+				invalidations++;
+			}
+		}
+	}
+	
+	/**
+	 * Drop every chain, e.g. after switching to another copy of the FAT.
+	 */
+	public synchronized void invalidate() {
+		version++;
+		invalidations += chains.size();
+		chains.clear();
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public synchronized int size() {
+		return chains.size();
+	}
+	
+	public synchronized long getHitCount() {
+		return hits;
+	}
+	
+	public synchronized long getMissCount() {
+		return misses;
+	}
+	
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+	
+	/**
+	 * Get the number of chains dropped because the FAT changed under them.
+	 * 
+	 * @return The number of chains invalidated
+	 */
+	public synchronized long getInvalidationCount() {
+		return invalidations;
+	}
+	
+	/**
+	 * Get the fraction of lookups which found their chain in the cache.
+	 * 
+	 * @return The hit rate, or 0 if nothing has been looked up
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double)hits / lookups;
+	}
+	
+	/**
+	 * Start counting hits, misses, evictions and invalidations from zero. 
+	 * Cached chains are kept.
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		invalidations = 0;
+	}
+}
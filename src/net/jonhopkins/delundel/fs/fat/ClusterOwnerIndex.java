@@ -0,0 +1,326 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+
+/**
+ * An index from each cluster of a FAT volume back to the directory entry 
+ * whose cluster chain passes through it. It is built by walking the 
+ * directory tree, with each directory read as its own fork/join task, 
+ * and is stored as one int per cluster.
+ * <p>
+ * Only live entries are indexed. A cluster claimed by a second entry is 
+ * a cross-link, and is recorded rather than overwriting the first owner.
+ */
+public class ClusterOwnerIndex {
+	
+	/**
+	 * The owner of a cluster which no directory entry claims.
+	 */
+	public static final int UNOWNED = 0;
+	
+	/**
+	 * The owner of a cluster which holds part of the root directory.
+	 */
+	public static final int ROOT_DIRECTORY = -1;
+	
+	private final FAT fat;
+	private final AtomicIntegerArray owners;
+	
+	// entry ids start at 1, so the entry with id n is at index n - 1
+	private final List<FATDirectoryEntry> entries = new ArrayList<FATDirectoryEntry>();
+	private final List<String> paths = new ArrayList<String>();
+	private final List<CrossLink> crossLinks = new ArrayList<CrossLink>();
+	
+	/**
+	 * Build the index for the given volume.
+	 * 
+	 * @param fat The volume to index
+	 * @param parallelism The number of threads to read directories with
+	 */
+	ClusterOwnerIndex(FAT fat, int parallelism) {
+		this.fat = fat;
+		this.owners = new AtomicIntegerArray(fat.getGeometry().getClusterCount() + 2);
+		
+		FATDirectory root = (FATDirectory)fat.getRootDirectory();
+		int rootCluster = fat.getRootCluster();
+		if (rootCluster >= 2) {
+			claim(fat.readClusterChain(rootCluster), ROOT_DIRECTORY);
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new DirectoryTask(root, ""));
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Get the id of the owner of a cluster.
+	 * 
+	 * @param cluster The cluster
+	 * @return The id of the owning entry, {@link #UNOWNED} or 
+	 *         {@link #ROOT_DIRECTORY}
+	 */
+	public int getOwnerId(int cluster) {
+		if (cluster < 0 || cluster >= owners.length()) {
+			return UNOWNED;
+		}
+		return owners.get(cluster);
+	}
+	
+	/**
+	 * Get the directory entry whose chain passes through a cluster.
+	 * 
+	 * @param cluster The cluster
+	 * @return The owning entry, or null if the cluster is unowned or part 
+	 *         of the root directory
+	 */
+	public FATDirectoryEntry getOwner(int cluster) {
+		return getEntry(getOwnerId(cluster));
+	}
+	
+	/**
+	 * Get the directory entry owning the cluster which holds a sector.
+	 * 
+	 * @param sector The sector, counted from the start of the volume
+	 * @return The owning entry, or null if the sector is outside of the 
+	 *         data region or is not part of any file or directory
+	 */
+	public FATDirectoryEntry getOwnerOfSector(long sector) {
+		return getOwner(fat.getGeometry().clusterOfSector(sector));
+	}
+	
+	/**
+	 * Get the path of the entry owning a cluster, starting from the root 
+	 * directory.
+	 * 
+	 * @param cluster The cluster
+	 * @return The path of the owning entry, "/" for the root directory, 
+	 *         or null if the cluster is unowned
+	 */
+	public String getOwnerPath(int cluster) {
+		int id = getOwnerId(cluster);
+		if (id == ROOT_DIRECTORY) {
+			return "/";
+		}
+		synchronized (entries) {
+			return id == UNOWNED ? null : paths.get(id - 1);
+		}
+	}
+	
+	/**
+	 * Get the number of directory entries which were indexed.
+	 * 
+	 * @return The number of live files and directories on the volume
+	 */
+	public int getEntryCount() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+	
+	public List<CrossLink> getCrossLinks() {
+		synchronized (crossLinks) {
+			return Collections.unmodifiableList(new ArrayList<CrossLink>(crossLinks));
+		}
+	}
+	
+	/**
+	 * Check whether any of the clusters a deleted file would have used 
+	 * now belong to a live file or directory. Deleting a file clears its 
+	 * chain from the FAT, so the file is assumed to have been contiguous, 
+	 * the same assumption undeleting it has to make.
+	 * 
+	 * @param deleted The deleted entry
+	 * @return Whether part of the deleted file has been reallocated
+	 */
+	public boolean isReallocated(FATDirectoryEntry deleted) {
+		int firstCluster = deleted.getFirstCluster();
+		if (firstCluster < 2) {
+			return false;
+		}
+		
+		long bytesPerCluster = fat.getGeometry().getBytesPerCluster();
+		long clusters = Math.max(1, (deleted.getFileSize() + bytesPerCluster - 1) / bytesPerCluster);
+		for (long i = 0; i < clusters && firstCluster + i < owners.length(); i++) {
+			if (owners.get((int)(firstCluster + i)) != UNOWNED) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private FATDirectoryEntry getEntry(int id) {
+		if (id <= 0) {
+			return null;
+		}
+		synchronized (entries) {
+			return entries.get(id - 1);
+		}
+	}
+	
+	private int register(FATDirectoryEntry entry, String path) {
+		synchronized (entries) {
+			entries.add(entry);
+			paths.add(path);
+			return entries.size();
+		}
+	}
+	
+	/**
+	 * Mark the clusters of a chain as belonging to an owner.
+	 * 
+	 * @param chain The clusters to claim
+	 * @param id The owner
+	 * @return Whether the first cluster of the chain was claimed, rather 
+	 *         than already belonging to something else
+	 */
+	private boolean claim(ClusterChain chain, int id) {
+		boolean claimedFirst = true;
+		for (int extent = 0; extent < chain.getExtentCount(); extent++) {
+			int start = chain.getExtentStart(extent);
+			int end = start + chain.getExtentLength(extent);
+			for (int cluster = start; cluster < end; cluster++) {
+				if (cluster < 0 || cluster >= owners.length()) {
+					continue;
+				}
+				if (!owners.compareAndSet(cluster, UNOWNED, id)) {
+					int other = owners.get(cluster);
+					if (other == id) {
+						// the chain runs back into itself
+						continue;
+					}
+					synchronized (crossLinks) {
+						crossLinks.add(new CrossLink(cluster, other, id));
+					}
+					if (cluster == chain.getExtentStart(0)) {
+						claimedFirst = false;
+					}
+				}
+			}
+		}
+		return claimedFirst;
+	}
+	
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final FATDirectory dir;
+		private final String path;
+		
+		DirectoryTask(FATDirectory dir, String path) {
+			this.dir = dir;
+			this.path = path;
+		}
+		
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+			for (FSDirectoryEntry fsEntry : dir.listDirectory()) {
+				FATDirectoryEntry entry = (FATDirectoryEntry)fsEntry;
+				String name = entry.getName();
+				if (entry.isDeleted() || entry.isVolumeID()
+						|| name.equals(".") || name.equals("..")) {
+					continue;
+				}
+				
+				String entryPath = path + "/" + name;
+				int id = register(entry, entryPath);
+				int firstCluster = entry.getFirstCluster();
+				if (firstCluster < 2) {
+					continue;
+				}
+				
+				// only descend into a directory whose clusters it owns, so 
+				// that a directory cross-linked with one of its ancestors 
+				// can't send the walk round in circles
+				boolean owned = claim(fat.readClusterChain(firstCluster), id);
+				if (entry.isDirectory() && owned) {
+					FATDirectory subdirectory = (FATDirectory)fat.getDirectory(entry);
+					if (subdirectory != null) {
+						subdirectories.add(new DirectoryTask(subdirectory, entryPath));
+					}
+				}
+			}
+			invokeAll(subdirectories);
+		}
+	}
+	
+	/**
+	 * A cluster which is claimed by more than one cluster chain.
+	 */
+	public class CrossLink {
+		private final int cluster;
+		private final int firstOwner;
+		private final int secondOwner;
+		
+		CrossLink(int cluster, int firstOwner, int secondOwner) {
+			this.cluster = cluster;
+			this.firstOwner = firstOwner;
+			this.secondOwner = secondOwner;
+		}
+		
+		public int getCluster() {
+			return cluster;
+		}
+		
+		/**
+		 * Get the entry which was found to own the cluster first.
+		 * 
+		 * @return The first owner, or null for the root directory
+		 */
+		public FATDirectoryEntry getFirstOwner() {
+			return getEntry(firstOwner);
+		}
+		
+		public FATDirectoryEntry getSecondOwner() {
+			return getEntry(secondOwner);
+		}
+		
+		@Override
+		public String toString() {
+			return "cluster " + cluster + " is claimed by " + describe(firstOwner)
+					+ " and " + describe(secondOwner);
+		}
+		
+		private String describe(int id) {
+			if (id == ROOT_DIRECTORY) {
+				return "/";
+			}
+			synchronized (entries) {
+				return paths.get(id - 1);
+			}
+		}
+	}
+}
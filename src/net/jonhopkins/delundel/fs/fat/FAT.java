@@ -23,14 +23,19 @@
  */
 package net.jonhopkins.delundel.fs.fat;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import net.jonhopkins.delundel.fs.FSDirectory;
 import net.jonhopkins.delundel.fs.FSDirectoryEntry;
 import net.jonhopkins.delundel.fs.FSFile;
 import net.jonhopkins.delundel.fs.FSFileSystem;
 import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+import net.jonhopkins.delundel.fs.OffsetIOManager;
 
 public abstract class FAT implements FSFileSystem {
 	
@@ -60,7 +65,7 @@ public abstract class FAT implements FSFileSystem {
 	 * offset: 0<br>
 	 * size: 3<br>
 	 */
-	protected static byte[] bs_jmpBoot = new byte[3];
+	protected byte[] bs_jmpBoot = new byte[3];
 	
 	/**
 	 * “MSWIN4.1” There are many misconceptions about this field. It is
@@ -76,269 +81,210 @@ public abstract class FAT implements FSFileSystem {
 	 * offset: 3<br>
 	 * size: 8<br>
 	 */
-	protected static String bs_OEMName;
+	protected String bs_OEMName;
 	
-	/*
-	 * Start of Boot Parameter Block (bpb_) variables
-	 */
-	
-	/**
-	 * Count of bytes per sector. This value may take on only the
-	 * following values: 512, 1024, 2048 or 4096. If maximum
-	 * compatibility with old implementations is desired, only the value
-	 * 512 should be used. There is a lot of FAT code in the world that is
-	 * basically “hard wired” to 512 bytes per sector and doesn’t bother to
-	 * check this field to make sure it is 512. Microsoft operating systems
-	 * will properly support 1024, 2048, and 4096.
-	 * <p>
-	 * Note: Do not misinterpret these statements about maximum
-	 * compatibility. If the media being recorded has a physical sector size
-	 * N, you must use N and this must still be less than or equal to 4096.
-	 * Maximum compatibility is achieved by only using media with
-	 * specific sector sizes.
-	 * <p>
-	 * offset: 11<br>
-	 * size: 2<br>
-	 */
-	protected static int bpb_bytesPerSector;
-	
-	/**
-	 * Number of sectors per allocation unit. This value must be a power
-	 * of 2 that is greater than 0. The legal values are 1, 2, 4, 8, 16, 32, 64,
-	 * and 128. Note however, that a value should never be used that
-	 * results in a “bytes per cluster” value (BPB_BytsPerSec *
-	 * BPB_SecPerClus) greater than 32K (32 * 1024). There is a
-	 * misconception that values greater than this are OK. Values that
-	 * cause a cluster size greater than 32K bytes do not work properly; do
-	 * not try to define one. Some versions of some systems allow 64K
-	 * bytes per cluster value. Many application setup programs will not
-	 * work correctly on such a FAT volume.
-	 * <p>
-	 * offset: 13<br>
-	 * size: 1<br>
-	 */
-	protected static int bpb_sectorsPerCluster;
-	
-	/**
-	 * Number of reserved sectors in the Reserved region of the volume
-	 * starting at the first sector of the volume. This field must not be 0.
-	 * For FAT12 and FAT16 volumes, this value should never be
-	 * anything other than 1. For FAT32 volumes, this value is typically
-	 * 32. There is a lot of FAT code in the world “hard wired” to 1
-	 * reserved sector for FAT12 and FAT16 volumes and that doesn’t
-	 * bother to check this field to make sure it is 1. Microsoft operating
-	 * systems will properly support any non-zero value in this field.
-	 * <p>
-	 * offset: 14<br>
-	 * size: 2<br>
-	 */
-	protected static int bpb_reservedSectorCount;
-	
-	/**
-	 * The count of FAT data structures on the volume. This field should
-	 * always contain the value 2 for any FAT volume of any type.
-	 * Although any value greater than or equal to 1 is perfectly valid,
-	 * many software programs and a few operating systems’ FAT file
-	 * system drivers may not function properly if the value is something
-	 * other than 2. All Microsoft file system drivers will support a value
-	 * other than 2, but it is still highly recommended that no value other
-	 * than 2 be used in this field.
-	 * <p>
-	 * The reason the standard value for this field is 2 is to provide redundancy
-	 * for the FAT data structure so that if a sector goes bad in one
-	 * of the FATs, that data is not lost because it is duplicated in the other
-	 * FAT. On non-disk-based media, such as FLASH memory cards,
-	 * where such redundancy is a useless feature, a value of 1 may be
-	 * used to save the space that a second copy of the FAT uses, but
-	 * some FAT file system drivers might not recognize such a volume
-	 * properly.
-	 * <p>
-	 * offset: 16<br>
-	 * size: 1<br>
-	 */
-	protected static int bpb_FATCount;
-	
-	/**
-	 * For FAT12 and FAT16 volumes, this field contains the count of 32-
-	 * byte directory entries in the root directory. For FAT32 volumes,
-	 * this field must be set to 0. For FAT12 and FAT16 volumes, this
-	 * value should always specify a count that when multiplied by 32
-	 * results in an even multiple of BPB_BytsPerSec. For maximum
-	 * compatibility, FAT16 volumes should use the value 512.
-	 * <p>
-	 * offset: 17<br>
-	 * size: 2<br>
-	 */
-	protected static int bpb_rootEntryCount;
-	
-	/**
-	 * This field is the old 16-bit total count of sectors on the volume.
-	 * This count includes the count of all sectors in all four regions of the
-	 * volume. This field can be 0; if it is 0, then BPB_TotSec32 must be
-	 * non-zero. For FAT32 volumes, this field must be 0. For FAT12 and
-	 * FAT16 volumes, this field contains the sector count, and
-	 * BPB_TotSec32 is 0 if the total sector count “fits” (is less than
-	 * 0x10000).
-	 * <p>
-	 * offset: 19<br>
-	 * size: 2<br>
-	 */
-	protected static int bpb_totalSectorCount_16;
-	
-	/**
-	 * 0xF8 is the standard value for “fixed” (non-removable) media. For
-	 * removable media, 0xF0 is frequently used. The legal values for this
-	 * field are 0xF0, 0xF8, 0xF9, 0xFA, 0xFB, 0xFC, 0xFD, 0xFE, and
-	 * 0xFF. The only other important point is that whatever value is put
-	 * in here must also be put in the low byte of the FAT[0] entry. This
-	 * dates back to the old MS-DOS 1.x media determination noted
-	 * earlier and is no longer usually used for anything.
-	 * <p>
-	 * offset: 21<br>
-	 * size: 1<br>
-	 */
-	protected static int bpb_mediaType;
+	protected void initializeBootParameterBlock(byte[] bootSector) {
+		for (int i = 0; i < 3; i++) {
+			bs_jmpBoot[i] = bootSector[i];
+		}
+		
+		char[] oemName = new char[8];
+		for (int i = 0; i < 8; i++) {
+			oemName[i] = (char)bootSector[i + 3];
+		}
+		bs_OEMName = new String(oemName);
+	}
 	
 	/**
-	 * This field is the FAT12/FAT16 16-bit count of sectors occupied by
-	 * ONE FAT. On FAT32 volumes this field must be 0, and
-	 * BPB_FATSz32 contains the FAT size count.
-	 * <p>
-	 * offset: 22<br>
-	 * size: 2<br>
+	 * Check that a boot sector has a BPB which could belong to a FAT
+	 * volume. This only looks at the fields every FAT volume must have set
+	 * sensibly, so that other filesystems such as NTFS and exFAT, whose
+	 * boot sectors leave those fields zero, are rejected.
+	 *
+	 * @param bootSector The first 512 bytes of the volume
+	 * @return Whether the volume looks like a FAT volume
 	 */
-	protected static int bpb_FATSize_16;
+	public static boolean isFAT(byte[] bootSector) {
+		if (bootSector.length < 512
+				|| (bootSector[510] & 0xFF) != 0x55 || (bootSector[511] & 0xFF) != 0xAA) {
+			return false;
+		}
+		return hasValidBPB(bootSector);
+	}
 	
 	/**
-	 * Sectors per track for interrupt 0x13. This field is only relevant for
-	 * media that have a geometry (volume is broken down into tracks by
-	 * multiple heads and cylinders) and are visible on interrupt 0x13.
-	 * This field contains the “sectors per track” geometry value.
-	 * <p>
-	 * offset: 24<br>
-	 * size: 2<br>
+	 * Check that the BPB of a boot sector describes a layout that can be 
+	 * worked out, which is what mounting needs. Unlike 
+	 * {@link #isFAT(byte[])} this doesn't require the boot signature, 
+	 * which DOS 1.x floppies and some formatters leave out, so it is used 
+	 * for volumes the user has already said are FAT rather than for 
+	 * telling filesystems apart.
+	 * 
+	 * @param bootSector The start of the volume
+	 * @return Whether the BPB's sizes are sane
 	 */
-	protected static int bpb_sectorsPerTrack;
-	
+	public static boolean hasValidBPB(byte[] bootSector) {
+		// the BPB, up to BPB_FATSz32
+		if (bootSector.length < 40) {
+			return false;
+		}
+		
+		int bytesPerSector = Util.unsignedInt(bootSector, 11, 2);
+		int sectorsPerCluster = Util.unsignedInt(bootSector, 13, 1);
+		int reservedSectors = Util.unsignedInt(bootSector, 14, 2);
+		int fatCount = Util.unsignedInt(bootSector, 16, 1);
+		long fatSize = Util.unsignedInt(bootSector, 22, 2);
+		if (fatSize == 0) {
+			fatSize = Util.unsignedLong(bootSector, 36, 4);
+		}
+		long totalSectors = Util.unsignedInt(bootSector, 19, 2);
+		if (totalSectors == 0) {
+			totalSectors = Util.unsignedLong(bootSector, 32, 4);
+		}
+		
+		return bytesPerSector >= 512 && bytesPerSector <= 4096
+				&& Integer.bitCount(bytesPerSector) == 1
+				&& sectorsPerCluster > 0 && Integer.bitCount(sectorsPerCluster) == 1
+				&& reservedSectors > 0 && fatCount > 0 && fatSize > 0
+				&& totalSectors > reservedSectors + fatCount * fatSize;
+	}
+		
 	/**
-	 * Number of heads for interrupt 0x13. This field is relevant as
-	 * discussed earlier for BPB_SecPerTrk. This field contains the one
-	 * based “count of heads”. For example, on a 1.44 MB 3.5-inch floppy
-	 * drive this value is 2.
-	 * <p>
-	 * offset: 26<br>
-	 * size: 2<br>
+	 * Mount the FAT volume on a device. The type of FAT is chosen from the 
+	 * number of clusters in the volume, as worked out by 
+	 * {@link FATGeometry}. Each volume keeps its own geometry, so any 
+	 * number of volumes can be mounted and read at the same time.
+	 * 
+	 * @param ioManager The device holding the volume
+	 * @return The volume, or null if its boot sector could not be read or 
+	 *         its BPB is not sane
 	 */
-	protected static int bpb_headCount;
+	public static FAT getFAT(FSIOManager ioManager) {
+		return getFAT(ioManager, FATMirrors.Policy.ACTIVE);
+	}
 	
 	/**
-	 * Count of hidden sectors preceding the partition that contains this
-	 * FAT volume. This field is generally only relevant for media visible
-	 * on interrupt 0x13. This field should always be zero on media that
-	 * are not partitioned. Exactly what value is appropriate is operating
-	 * system specific.
-	 * <p>
-	 * offset: 28<br>
-	 * size: 4<br>
+	 * Mount the FAT volume on a device, choosing which copy of the FAT to 
+	 * read. The policy only applies to this volume.
+	 * 
+	 * @param ioManager The device holding the volume
+	 * @param policy How to choose the copy of the FAT
+	 * @return The volume, or null if its boot sector could not be read or 
+	 *         its BPB is not sane
 	 */
-	protected static int bpb_hiddenSectorCount;
+	public static FAT getFAT(FSIOManager ioManager, FATMirrors.Policy policy) {
+		return getFAT(ioManager, policy, FATPageCache.DEFAULT_BUDGET);
+	}
 	
 	/**
-	 * This field is the new 32-bit total count of sectors on the volume.
-	 * This count includes the count of all sectors in all four regions of the
-	 * volume. This field can be 0; if it is 0, then BPB_TotSec16 must be
-	 * non-zero. For FAT32 volumes, this field must be non-zero. For
-	 * FAT12/FAT16 volumes, this field contains the sector count if
-	 * BPB_TotSec16 is 0 (count is greater than or equal to 0x10000).
-	 * <p>
-	 * offset: 32<br>
-	 * size: 4<br>
-	 */
-	protected static int bpb_totalSectorCount_32;
-	
-	/*
-	 * A cheat to get the determine the size of the FAT without instantiating 
-	 * a specific filesystem, since we know that this value is stored at 
-	 * offset 36 in a FAT32 system, which is the only place it exists.
+	 * Mount the FAT volume on a device, choosing which copy of the FAT to 
+	 * read and how much memory to hold it in. Both only apply to this 
+	 * volume.
+	 * 
+	 * @param ioManager The device holding the volume
+	 * @param policy How to choose the copy of the FAT
+	 * @param fatCacheBudget The most memory to keep pages of a FAT32 FAT 
+	 *        in, in bytes. FAT12 and FAT16 tables are always loaded whole.
+	 * @return The volume, or null if its boot sector could not be read or 
+	 *         its BPB is not sane
+	 * @see FATPageCache
 	 */
-	private static int bpb_FATSize_32;
-	
-	protected void initializeBootParameterBlock(byte[] bootSector) {
-		for (int i = 0; i < 3; i++) {
-			bs_jmpBoot[i] = bootSector[i];
+	public static FAT getFAT(FSIOManager ioManager, FATMirrors.Policy policy,
+			long fatCacheBudget) {
+		if (policy == null) {
+			throw new IllegalArgumentException("No policy for choosing the FAT");
 		}
-		
-		char[] oemName = new char[8];
-		for (int i = 0; i < 8; i++) {
-			oemName[i] = (char)bootSector[i + 3];
+		if (fatCacheBudget < 0) {
+			throw new IllegalArgumentException("Negative FAT cache budget " + fatCacheBudget);
 		}
-		bs_OEMName = new String(oemName);
 		
-		bpb_bytesPerSector = Util.unsignedInt(bootSector, 11, 2);
-		bpb_sectorsPerCluster = Util.unsignedInt(bootSector, 13, 1);
-		bpb_reservedSectorCount = Util.unsignedInt(bootSector, 14, 2);
-		bpb_FATCount = Util.unsignedInt(bootSector, 16, 1);
-		bpb_rootEntryCount = Util.unsignedInt(bootSector, 17, 2);
-		bpb_totalSectorCount_16 = Util.unsignedInt(bootSector, 19, 2);
-		bpb_mediaType = Util.unsignedInt(bootSector, 21, 1);
-		bpb_FATSize_16 = Util.unsignedInt(bootSector, 22, 2);
-		bpb_sectorsPerTrack = Util.unsignedInt(bootSector, 24, 2);
-		bpb_headCount = Util.unsignedInt(bootSector, 26, 2);
-		bpb_hiddenSectorCount = Util.unsignedInt(bootSector, 28, 4);
-		bpb_totalSectorCount_32 = Util.unsignedInt(bootSector, 32, 4);
-	}
-	
-	/*
-	 * This is the one and only way that FAT type is determined. There is no 
-	 * such thing as a FAT12 volume that has more than 4084 clusters. There 
-	 * is no such thing as a FAT16 volume that has less than 4085 clusters 
-	 * or more than 65,524 clusters. There is no such thing as a FAT32 volume 
-	 * that has less than 65,525 clusters. If you try to make a FAT volume 
-	 * that violates this rule, Microsoft operating systems will not handle 
-	 * it correctly because they will think the volume has a different type 
-	 * of FAT than what you think it does. 
-	 */
-	public static FAT getFAT(FSIOManager ioManager) {
 		byte[] bootSector = ioManager.readSector(0, 512);
+		if (bootSector == null || !hasValidBPB(bootSector)) {
+			return null;
+		}
+		FATGeometry geometry = new FATGeometry(bootSector);
 		
-		bpb_bytesPerSector = Util.unsignedInt(bootSector, 11, 2);
-		bpb_sectorsPerCluster = Util.unsignedInt(bootSector, 13, 1);
-		bpb_reservedSectorCount = Util.unsignedInt(bootSector, 14, 2);
-		bpb_FATCount = Util.unsignedInt(bootSector, 16, 1);
-		bpb_rootEntryCount = Util.unsignedInt(bootSector, 17, 2);
-		bpb_totalSectorCount_16 = Util.unsignedInt(bootSector, 19, 2);
-		bpb_FATSize_16 = Util.unsignedInt(bootSector, 22, 2);
-		bpb_totalSectorCount_32 = Util.unsignedInt(bootSector, 32, 4);
-		bpb_FATSize_32 = Util.unsignedInt(bootSector, 36, 4);
-		
-		int numClusters = clustersInDataRegion();
 		FAT fat;
-		if (numClusters < 4085) {
+		switch (geometry.getEntryBits()) {
+		case 12:
 			fat = new FAT12();
-		} else if(numClusters < 65525) {
+			break;
+		case 16:
 			fat = new FAT16();
-		} else {
+			break;
+		default:
 			fat = new FAT32();
+			break;
 		}
 		
+		fat.geometry = geometry;
+		fat.fatCacheBudget = fatCacheBudget;
 		fat.initializeBootParameterBlock(bootSector);
 		fat.setIOManager(ioManager);
+		fat.loadFAT();
+		fat.chooseFAT(policy);
 		
 		return fat;
 	}
 	
+	/**
+	 * Tell any {@link ResilientIOManager} beneath the volume not to read 
+	 * the clusters the FAT marks as bad. Finding them takes a pass over the 
+	 * FAT, so this waits until the allocation bitmap is built or a cluster 
+	 * is first read, and never reads the FAT at all when there is no 
+	 * ResilientIOManager. Partitions shift where the volume is in the 
+	 * image, so their offsets are added up on the way down.
+	 */
+	private void mapBadClusters() {
+		if (badClustersMapped) {
+			return;
+		}
+		synchronized (this) {
+			if (badClustersMapped) {
+				return;
+			}
+			long offset = 0;
+			FSIOManager manager = ioManager;
+			while (manager instanceof FilterIOManager) {
+				if (manager instanceof ResilientIOManager) {
+					if (allocationBitmap == null) {
+						allocationBitmap = new AllocationBitmap(this);
+					}
+					long bytesPerCluster = geometry.getBytesPerCluster();
+					for (int cluster : allocationBitmap.getBadClusters()) {
+						((ResilientIOManager)manager).skip(
+								offset + startOfCluster(cluster) * bytesPerSector(), bytesPerCluster);
+					}
+					break;
+				}
+				if (manager instanceof OffsetIOManager) {
+					offset += ((OffsetIOManager)manager).getStart();
+				}
+				manager = ((FilterIOManager)manager).getWrappedManager();
+			}
+			badClustersMapped = true;
+		}
+	}
+	
+	/**
+	 * Get the layout of this volume.
+	 * 
+	 * @return The geometry read from the BPB
+	 */
+	public FATGeometry getGeometry() {
+		return geometry;
+	}
+	
 	/**
 	 * The count of sectors occupied by the root directory.
 	 * <p>
 	 * Note that on a FAT32 volume the BPB_RootEntCnt value is always 0,  
 	 * so on a FAT32 volume RootDirSectors is always 0.
-	 * <p>
-	 * Note also that this computation rounds up.
 	 * 
 	 * @return The number of sectors occupied by the root directory.
 	 */
-	protected static int numRootDirSectors() {
-		return ((bpb_rootEntryCount * Util.SIZE_DIR_ENTRY) + (bpb_bytesPerSector - 1)) / bpb_bytesPerSector;
+	protected int numRootDirSectors() {
+		return geometry.getRootDirSectors();
 	}
 	
 	/**
@@ -346,43 +292,42 @@ public abstract class FAT implements FSFileSystem {
 	 * 
 	 * @return The size of the FAT
 	 */
-	protected static int fatSize() {
-		if (bpb_FATSize_16 != 0) {
-			return bpb_FATSize_16;
-		}
-		return bpb_FATSize_32;
+	protected int fatSize() {
+		return geometry.getFATSize();
 	}
 	
-	protected static int totalSectors() {
-		if (bpb_totalSectorCount_16 != 0) {
-			return bpb_totalSectorCount_16;
-		} else {
-			return bpb_totalSectorCount_32;
-		}
+	protected int bytesPerSector() {
+		return geometry.getBytesPerSector();
 	}
 	
-	/**
-	 * 
-	 * @return
-	 */
-	protected static int sectorsInDataRegion() {
-		return totalSectors() - (bpb_reservedSectorCount + (bpb_FATCount * fatSize()) + numRootDirSectors());
+	protected long totalSectors() {
+		return geometry.getTotalSectors();
 	}
 	
-	protected static int startOfFAT() {
-		return bpb_reservedSectorCount;
+	protected long sectorsInDataRegion() {
+		return geometry.getSectorsInDataRegion();
 	}
 	
-	protected static int startOfRootDir() {
-		return startOfFAT() + (bpb_FATCount * fatSize());
+	protected int startOfFAT() {
+		return geometry.getStartOfFAT();
+	}
+	
+	protected long startOfRootDir() {
+		return geometry.getStartOfRootDir();
+	}
+	
+	protected int clustersInDataRegion() {
+		return geometry.getClusterCount();
 	}
 	
 	/**
+	 * Get the width of one FAT entry, which follows from the number of 
+	 * clusters in the same way as the FAT type does.
 	 * 
-	 * @return
+	 * @return 12, 16 or 32
 	 */
-	protected static int clustersInDataRegion() {
-		return sectorsInDataRegion() / bpb_sectorsPerCluster;
+	protected int entryBits() {
+		return geometry.getEntryBits();
 	}
 	
 	/**
@@ -397,8 +342,8 @@ public abstract class FAT implements FSFileSystem {
 	 * 
 	 * @return The location of the start of the data region.
 	 */
-	protected static int startOfDataRegion() {
-		return startOfRootDir() + numRootDirSectors();
+	protected long startOfDataRegion() {
+		return geometry.getStartOfDataRegion();
 	}
 	
 	/**
@@ -408,42 +353,540 @@ public abstract class FAT implements FSFileSystem {
 	 * @param cluster The cluster whose location is to be calculated
 	 * @return The location of the start of the given cluster
 	 */
-	protected static int startOfCluster(int cluster) {
-		return ((cluster - 2) * bpb_sectorsPerCluster) + startOfDataRegion();
+	protected long startOfCluster(int cluster) {
+		return geometry.startOfCluster(cluster);
 	}
 	
+	// the number of runs of a directory's clusters which are read at once
+	private static final int DIRECTORY_PREFETCH = 4;
+	
+	private FATGeometry geometry;
+	private long fatCacheBudget;
 	protected FSIOManager ioManager;
 	protected FATDirectory root;
+	private AllocationBitmap allocationBitmap;
+	private ClusterOwnerIndex ownerIndex;
+	private final ClusterChainCache chainCache = new ClusterChainCache(
+			ClusterChainCache.DEFAULT_CAPACITY);
+	
+	// set once the bad clusters have been handed to any 
+	// ResilientIOManager beneath the volume
+	private volatile boolean badClustersMapped;
+	
+	// bumped whenever an entry of the FAT is written, so that each 
+	// thread's buffered FAT sector is read again
+	private volatile int fatVersion;
+	
+	// scratch buffers reused across reads so that walking chains and 
+	// reading files doesn't allocate for every sector. Each thread gets its 
+	// own, so one mounted volume can be read by several threads at once.
+	private ThreadLocal<Scratch> scratch = newScratch();
+	
+	private static class Scratch {
+		ByteBuffer fatSectorBuffer;
+		long bufferedFATSector = -1;
+		int bufferedFATVersion;
+		ByteBuffer sectorBuffer;
+	}
 	
 	protected abstract boolean isEndOfClusterChain(int fatEntry);
 	protected abstract boolean isBadCluster(int fatEntry);
 	protected abstract int getFATEntry(int entryNumber);
 	protected abstract void printFAT();
 	
+	/**
+	 * Encode an entry of the FAT into the sectors holding it, leaving the 
+	 * bits around it alone.
+	 * 
+	 * @param sectors The sectors of the FAT holding the entry
+	 * @param offset Where the entry starts in {@code sectors}
+	 * @param entryNumber The entry being written
+	 * @param value The new value of the entry
+	 */
+	protected abstract void putFATEntry(byte[] sectors, int offset, int entryNumber, int value);
+	
+	/**
+	 * Called once when the volume is mounted, after the BPB has been read, 
+	 * so that subclasses can load the FAT into memory. Until the FAT is 
+	 * loaded, and if loading it fails, entries are read from the volume one 
+	 * sector at a time.
+	 */
+	protected void loadFAT() {
+	}
+	
+	/**
+	 * Get the most memory this volume may keep pages of its FAT in.
+	 * 
+	 * @return The budget in bytes, as given when mounting
+	 */
+	public long getFATCacheBudget() {
+		return fatCacheBudget;
+	}
+	
+	/**
+	 * Read the first copy of the FAT in one sequential read, stopping 
+	 * after the sector holding the last byte needed.
+	 * 
+	 * @param bytesNeeded The number of bytes of the FAT to read
+	 * @return The start of the FAT, or null if it could not be read
+	 */
+	protected byte[] readFAT(long bytesNeeded) {
+		long sectors = (bytesNeeded + bytesPerSector() - 1) / bytesPerSector();
+		return ioManager.readSectors(startOfFAT(), (int)Math.min(sectors, fatSize()),
+				bytesPerSector());
+	}
+	
 	@Override
 	public void setIOManager(FSIOManager manager) {
 		this.ioManager = manager;
+		scratch = newScratch();
+		badClustersMapped = false;
+	}
+	
+	public FSIOManager getIOManager() {
+		return ioManager;
+	}
+	
+	/**
+	 * Take a manager out of the stack this volume reads through, wherever 
+	 * it sits in the stack. Managers stacked on top of it are kept, and 
+	 * pass their calls straight to the manager it wrapped.
+	 * 
+	 * @param manager The manager to take out
+	 * @return Whether the manager was found in the stack
+	 */
+	public boolean removeIOManager(FilterIOManager manager) {
+		if (ioManager == manager) {
+			setIOManager(manager.getWrappedManager());
+			return true;
+		}
+		
+		FSIOManager above = ioManager;
+		while (above instanceof FilterIOManager) {
+			FilterIOManager filter = (FilterIOManager)above;
+			if (filter.getWrappedManager() == manager) {
+				filter.setWrappedManager(manager.getWrappedManager());
+				return true;
+			}
+			above = filter.getWrappedManager();
+		}
+		return false;
+	}
+	
+	/**
+	 * Start counting the reads and writes made by this volume, broken down 
+	 * by region. Calling this again returns the same counters.
+	 * 
+	 * @return The manager holding the statistics
+	 */
+	public InstrumentedIOManager instrument() {
+		// other managers may have been stacked on top since
+		FSIOManager manager = ioManager;
+		while (manager instanceof FilterIOManager) {
+			if (manager instanceof InstrumentedIOManager) {
+				return (InstrumentedIOManager)manager;
+			}
+			manager = ((FilterIOManager)manager).getWrappedManager();
+		}
+		
+		InstrumentedIOManager instrumented = new InstrumentedIOManager(ioManager,
+				bytesPerSector(), startOfFAT(), fatSize(), geometry.getFATCount(),
+				startOfRootDir(), startOfDataRegion());
+		setIOManager(instrumented);
+		return instrumented;
+	}
+	
+	private static ThreadLocal<Scratch> newScratch() {
+		return new ThreadLocal<Scratch>() {
+			@Override
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+	}
+	
+	/**
+	 * Read a sector of the FAT into a buffer which is reused for every 
+	 * lookup by the calling thread. The same buffer is returned without 
+	 * rereading it if the thread's previous lookup was in the same sector. 
+	 * A mapped image hands out a view of the sector instead, so nothing is 
+	 * copied at all.
+	 * 
+	 * @param sectorNumber The sector of the FAT to read
+	 * @return The contents of the sector, or null if it could not be read
+	 */
+	protected ByteBuffer readFATSector(long sectorNumber) {
+		if (ioManager instanceof MappedIOManager) {
+			return ((MappedIOManager)ioManager).viewSector(sectorNumber, bytesPerSector());
+		}
+		
+		Scratch buffers = scratch.get();
+		if (buffers.fatSectorBuffer == null) {
+			buffers.fatSectorBuffer = ByteBuffer.allocate(bytesPerSector());
+		}
+		
+		int version = fatVersion;
+		if (sectorNumber != buffers.bufferedFATSector || version != buffers.bufferedFATVersion) {
+			buffers.fatSectorBuffer.clear();
+			if (!ioManager.readSectorInto(sectorNumber, bytesPerSector(),
+					buffers.fatSectorBuffer)) {
+				buffers.bufferedFATSector = -1;
+				return null;
+			}
+			buffers.bufferedFATSector = sectorNumber;
+			buffers.bufferedFATVersion = version;
+		}
+		
+		return buffers.fatSectorBuffer;
 	}
 	
 	@Override
-	public FSDirectory getRootDirectory() {
+	public synchronized FSDirectory getRootDirectory() {
 		if (root != null) {
 			return root;
 		}
 		
 		root = new FATDirectory();
-		int startOfRoot = startOfRootDir();
-		int endOfRoot = startOfRoot + numRootDirSectors();
-		
-		for (int sectorNumber = startOfRoot; sectorNumber < endOfRoot; sectorNumber++) {
-			root.addEntries(ioManager.readSector(sectorNumber, bpb_bytesPerSector));
-		}
+		readRootDirectory(root);
 		
 		root.setName("/");
 		
 		return root;
 	}
 	
+	/**
+	 * Read the entries of the root directory. On FAT12 and FAT16 volumes 
+	 * the root directory has a fixed region of its own just before the 
+	 * data region.
+	 * 
+	 * @param root The directory to add the entries to
+	 */
+	protected void readRootDirectory(FATDirectory root) {
+		byte[] sectors = ioManager.readSectors(startOfRootDir(), numRootDirSectors(),
+				bytesPerSector());
+		if (sectors != null) {
+			root.addEntries(ByteBuffer.wrap(sectors));
+		}
+	}
+	
+	/**
+	 * Read the entries of a directory stored in a cluster chain. Each run of 
+	 * consecutive clusters is read in one go, and the reads of the next few 
+	 * runs are started before the current one is parsed, so a fragmented 
+	 * directory keeps several reads in flight on a manager which can serve 
+	 * them at once.
+	 * 
+	 * @param firstCluster The first cluster of the directory
+	 * @param dir The directory to add the entries to
+	 */
+	protected void readDirectoryClusters(int firstCluster, FATDirectory dir) {
+		mapBadClusters();
+		ClusterChain clusterChain = getClusterChain(firstCluster);
+		int sectorsPerCluster = geometry.getSectorsPerCluster();
+		int extents = clusterChain.getExtentCount();
+		
+		ArrayDeque<CompletableFuture<ByteBuffer>> pending =
+				new ArrayDeque<CompletableFuture<ByteBuffer>>();
+		int nextExtent = 0;
+		for (int extent = 0; extent < extents; extent++) {
+			while (nextExtent < extents && nextExtent < extent + DIRECTORY_PREFETCH) {
+				pending.add(ioManager.readSectorsAsync(
+						startOfCluster(clusterChain.getExtentStart(nextExtent)),
+						clusterChain.getExtentLength(nextExtent) * sectorsPerCluster,
+						bytesPerSector()));
+				nextExtent++;
+			}
+			
+			try {
+				dir.addEntries(pending.remove().join());
+			} catch (CompletionException e) {
+				e.getCause().printStackTrace();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Get the map of which clusters are in use, building it with a pass 
+	 * over the FAT the first time it is asked for.
+	 * 
+	 * @return The allocation bitmap of the volume
+	 */
+	public synchronized AllocationBitmap getAllocationBitmap() {
+		if (allocationBitmap == null) {
+			allocationBitmap = new AllocationBitmap(this);
+			// the bad clusters have been found anyway
+			mapBadClusters();
+		}
+		return allocationBitmap;
+	}
+	
+	/**
+	 * Get the index from clusters back to the entries which own them, 
+	 * walking the directory tree with one thread per processor the first 
+	 * time it is asked for.
+	 * 
+	 * @return The cluster ownership index of the volume
+	 */
+	public synchronized ClusterOwnerIndex getOwnerIndex() {
+		if (ownerIndex == null) {
+			ownerIndex = new ClusterOwnerIndex(this, Runtime.getRuntime().availableProcessors());
+		}
+		return ownerIndex;
+	}
+	
+	/**
+	 * Get the copy of the FAT the volume says is in use. Every copy is 
+	 * kept up to date unless a FAT32 volume turns mirroring off.
+	 * 
+	 * @return The active copy of the FAT
+	 */
+	protected int getActiveFAT() {
+		return 0;
+	}
+	
+	/**
+	 * Compare the copies of the FAT with each other.
+	 * 
+	 * @return Where the copies differ and which looks healthiest
+	 */
+	public FATMirrors.Report compareFATs() {
+		return new FATMirrors(this).compare();
+	}
+	
+	/**
+	 * Read the FAT from the given copy from now on.
+	 * 
+	 * @param copy The copy of the FAT to use
+	 */
+	public void useFAT(int copy) {
+		if (copy < 0 || copy >= geometry.getFATCount()) {
+			throw new IllegalArgumentException("No FAT " + copy + " on a volume with "
+					+ geometry.getFATCount() + " FATs");
+		}
+		byte[] copyForSector = new byte[fatSize()];
+		Arrays.fill(copyForSector, (byte)copy);
+		useFAT(copyForSector);
+	}
+	
+	/**
+	 * Read each sector of the FAT from whichever copy looked healthiest 
+	 * there when the copies were compared.
+	 * 
+	 * @param report The result of comparing the copies
+	 */
+	public void useMergedFAT(FATMirrors.Report report) {
+		useFAT(report.getMergePlan());
+	}
+	
+	private void useFAT(byte[] copyForSector) {
+		FSIOManager manager = ioManager;
+		while (manager instanceof FilterIOManager) {
+			if (manager instanceof FATMirrorIOManager) {
+				((FATMirrorIOManager)manager).setCopies(copyForSector);
+				break;
+			}
+			manager = ((FilterIOManager)manager).getWrappedManager();
+		}
+		if (!(manager instanceof FATMirrorIOManager)) {
+			setIOManager(new FATMirrorIOManager(ioManager, startOfFAT(), fatSize(),
+					copyForSector));
+		}
+		
+		// everything worked out from the old FAT is now stale
+		loadFAT();
+		chainCache.invalidate();
+		synchronized (this) {
+			root = null;
+			allocationBitmap = null;
+			ownerIndex = null;
+		}
+	}
+	
+	/**
+	 * Pick the copy of the FAT to read when mounting.
+	 * 
+	 * @param policy How to choose the copy
+	 */
+	private void chooseFAT(FATMirrors.Policy policy) {
+		if (geometry.getFATCount() < 2) {
+			return;
+		}
+		
+		switch (policy) {
+		case HEALTHIEST:
+			int healthiest = compareFATs().getHealthiestCopy();
+			if (healthiest != 0) {
+				useFAT(healthiest);
+			}
+			break;
+		case MERGE:
+			FATMirrors.Report report = compareFATs();
+			if (!report.isConsistent() || report.getHealthiestCopy() != 0) {
+				useMergedFAT(report);
+			}
+			break;
+		default:
+			int active = getActiveFAT();
+			if (active != 0) {
+				useFAT(active);
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * Change an entry of the FAT. The entry is written to every copy of the 
+	 * FAT which is kept up to date, and everything worked out from the old 
+	 * entry is dropped: the chains passing through the cluster, the 
+	 * allocation bitmap and the cluster ownership index.
+	 * 
+	 * @param cluster The cluster whose entry to change
+	 * @param value The new entry
+	 * @return Whether the sectors holding the entry could be read
+	 * @throws IllegalStateException If the volume was opened read-only, in 
+	 *         which case nothing is changed
+	 */
+	public boolean setFATEntry(int cluster, int value) {
+		int lastCluster = clustersInDataRegion() + 1;
+		if (cluster < 2 || cluster > lastCluster) {
+			throw new IllegalArgumentException("No cluster " + cluster
+					+ " on a volume with clusters 2-" + lastCluster);
+		}
+		if (!ioManager.isWritable()) {
+			throw new IllegalStateException("Volume was opened read-only");
+		}
+		
+		// a FAT12 entry may straddle two sectors
+		long byteOffset = (long)cluster * entryBits() / 8;
+		int entryBytes = (entryBits() + 7) / 8;
+		long firstSector = byteOffset / bytesPerSector();
+		int offsetInSector = (int)(byteOffset % bytesPerSector());
+		int sectors = offsetInSector + entryBytes > bytesPerSector() ? 2 : 1;
+		
+		byte[] data = ioManager.readSectors(startOfFAT() + firstSector, sectors,
+				bytesPerSector());
+		if (data == null) {
+			return false;
+		}
+		putFATEntry(data, offsetInSector, cluster, value);
+		
+		for (int copy = 0; copy < geometry.getFATCount(); copy++) {
+			if (!isFATMirrored() && copy != getActiveFAT()) {
+				continue;
+			}
+			for (int i = 0; i < sectors; i++) {
+				ioManager.writeSector(startOfFAT() + (long)copy * fatSize() + firstSector + i,
+						Arrays.copyOfRange(data, i * bytesPerSector(),
+								(i + 1) * bytesPerSector()));
+			}
+		}
+		
+		fatEntryChanged(cluster, value);
+		return true;
+	}
+	
+	/**
+	 * Called after an entry of the FAT has been written, to bring anything 
+	 * held in memory up to date. Subclasses holding the FAT themselves 
+	 * should update it and call this.
+	 * 
+	 * @param cluster The cluster whose entry changed
+	 * @param value The new entry
+	 */
+	protected void fatEntryChanged(int cluster, int value) {
+		chainCache.invalidate(cluster);
+		synchronized (this) {
+			fatVersion++;
+			allocationBitmap = null;
+			ownerIndex = null;
+			if (getRootCluster() != 0) {
+				// the root directory may have grown or shrunk
+				root = null;
+			}
+		}
+	}
+	
+	/**
+	 * Whether every copy of the FAT is kept up to date. A FAT32 volume may 
+	 * turn this off and only use its active copy.
+	 * 
+	 * @return Whether the FAT is mirrored
+	 */
+	protected boolean isFATMirrored() {
+		return true;
+	}
+	
+	/**
+	 * Get the first cluster of the root directory, if it is stored in a 
+	 * cluster chain rather than a fixed region.
+	 * 
+	 * @return The first cluster of the root directory, or 0 if it has a 
+	 *         region of its own
+	 */
+	protected int getRootCluster() {
+		return 0;
+	}
+	
+	/**
+	 * Count the free clusters on the volume using the allocation bitmap.
+	 * 
+	 * @return The number of free clusters
+	 */
+	public long getFreeClusterCount() {
+		return getAllocationBitmap().getFreeCount();
+	}
+	
+	/**
+	 * Find a free cluster, starting the search at {@link #getFreeClusterHint()} 
+	 * and wrapping round to the start of the data region. If the 
+	 * allocation bitmap has already been built, it is searched instead of 
+	 * the FAT.
+	 * 
+	 * @return A free cluster, or -1 if the volume is full
+	 */
+	public int findFreeCluster() {
+		int firstCluster = 2;
+		int lastCluster = clustersInDataRegion() + 1;
+		int hint = getFreeClusterHint();
+		if (hint < firstCluster || hint > lastCluster) {
+			hint = firstCluster;
+		}
+		
+		AllocationBitmap bitmap;
+		synchronized (this) {
+			bitmap = allocationBitmap;
+		}
+		if (bitmap != null) {
+			int cluster = bitmap.nextFree(hint);
+			if (cluster < 0) {
+				cluster = bitmap.nextFree(firstCluster);
+			}
+			return cluster;
+		}
+		
+		for (int cluster = hint; cluster <= lastCluster; cluster++) {
+			if (getFATEntry(cluster) == 0) {
+				return cluster;
+			}
+		}
+		for (int cluster = firstCluster; cluster < hint; cluster++) {
+			if (getFATEntry(cluster) == 0) {
+				return cluster;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the cluster to start looking for free clusters at.
+	 * 
+	 * @return The first cluster worth checking
+	 */
+	protected int getFreeClusterHint() {
+		return 2;
+	}
+	
 	@Override
 	public byte[] getFileContents(FSFile file) {
 		FATFile fatFile = (FATFile)file;
@@ -452,17 +895,73 @@ public abstract class FAT implements FSFileSystem {
 			return null;
 		}
 		
-		int sectorNumber = startOfCluster(fatFile.getCurrentCluster())
-				+ fatFile.getCurrentSector();
-		int len = (int)(fatFile.getDataLeft() < bpb_bytesPerSector
-				? fatFile.getDataLeft() : bpb_bytesPerSector);
-		byte[] data = ioManager.readSector(sectorNumber, len);
+		// hand back at most the rest of the current sector
+		int offsetInSector = (int)(fatFile.getPosition() % bytesPerSector());
+		int len = (int)Math.min(fatFile.getDataLeft(), bytesPerSector() - offsetInSector);
+		byte[] data = new byte[len];
 		
-		fatFile.advancePosition(data.length);
+		if (getFileContents(file, ByteBuffer.wrap(data)) < 0) {
+			return null;
+		}
 		
 		return data;
 	}
 	
+	@Override
+	public int getFileContents(FSFile file, ByteBuffer dst) {
+		FATFile fatFile = (FATFile)file;
+		
+		if (fatFile.isEndOfFile()) {
+			return -1;
+		}
+		
+		int cluster = fatFile.getCurrentCluster();
+		if (cluster < 0) {
+			return -1;
+		}
+		mapBadClusters();
+		
+		// read as far as the end of the current run of consecutive 
+		// clusters in one go, since the next cluster of the file after that 
+		// may be anywhere on the volume
+		int bytesPerCluster = geometry.getBytesPerCluster();
+		int offsetInCluster = (int)(fatFile.getPosition() % bytesPerCluster);
+		int offsetInSector = offsetInCluster % bytesPerSector();
+		long leftInRun = (long)fatFile.getClustersLeftInRun() * bytesPerCluster - offsetInCluster;
+		int len = (int)Math.min(Math.min(dst.remaining(), fatFile.getDataLeft()), leftInRun);
+		long sectorNumber = startOfCluster(cluster) + fatFile.getCurrentSector();
+		
+		if (offsetInSector == 0) {
+			int limit = dst.limit();
+			dst.limit(dst.position() + len);
+			boolean success = ioManager.readSectorInto(sectorNumber, bytesPerSector(), dst);
+			dst.limit(limit);
+			if (!success) {
+				return -1;
+			}
+		} else {
+			// an earlier read stopped part way through this sector, so read 
+			// the whole sector and hand back the rest of it
+			Scratch buffers = scratch.get();
+			if (buffers.sectorBuffer == null) {
+				buffers.sectorBuffer = ByteBuffer.allocate(bytesPerSector());
+			}
+			ByteBuffer sectorBuffer = buffers.sectorBuffer;
+			sectorBuffer.clear();
+			if (!ioManager.readSectorInto(sectorNumber, bytesPerSector(), sectorBuffer)) {
+				return -1;
+			}
+			len = Math.min(len, bytesPerSector() - offsetInSector);
+			sectorBuffer.limit(offsetInSector + len);
+			sectorBuffer.position(offsetInSector);
+			dst.put(sectorBuffer);
+		}
+		
+		fatFile.advancePosition(len);
+		
+		return len;
+	}
+	
 	@Override
 	public FSFile getFile(FSDirectoryEntry file) {
 		if (!file.isFile()) {
@@ -477,7 +976,8 @@ public abstract class FAT implements FSFileSystem {
 		fatFile.setClusterChain(getClusterChain(firstCluster));
 		fatFile.setFileSize(fatDE.getFileSize());
 		fatFile.setParent(file.getParent());
-		fatFile.setSectorsPerCluster(bpb_sectorsPerCluster);
+		fatFile.setSectorsPerCluster(geometry.getSectorsPerCluster());
+		fatFile.setBytesPerSector(bytesPerSector());
 		
 		return fatFile;
 	}
@@ -491,14 +991,7 @@ public abstract class FAT implements FSFileSystem {
 		FATDirectoryEntry fatDE = (FATDirectoryEntry)dir;
 		
 		FATDirectory fatDir = new FATDirectory();
-		List<Integer> clusterChain = getClusterChain(fatDE.getFirstCluster());
-		
-		for (Integer cluster : clusterChain) {
-			for (int i = 0; i < bpb_sectorsPerCluster; i++) {
-				fatDir.addEntries(ioManager.readSector(startOfCluster(cluster) + i,
-						bpb_bytesPerSector));
-			}
-		}
+		readDirectoryClusters(fatDE.getFirstCluster(), fatDir);
 		
 		fatDir.setName(fatDE.getName());
 		
@@ -534,15 +1027,113 @@ public abstract class FAT implements FSFileSystem {
 		ioManager.close();
 	}
 	
-	private List<Integer> getClusterChain(int firstCluster) {
-		List<Integer> clusterChain = new LinkedList<Integer>();
-		int fatEntry = firstCluster;
+	/**
+	 * Get the clusters of the chain starting at the given cluster. Chains 
+	 * are remembered, so opening the same file or directory again doesn't 
+	 * walk the FAT again; see {@link #getClusterChainCache()}. The chain 
+	 * returned may be shared and must not be changed.
+	 * 
+	 * @param firstCluster The first cluster of the chain
+	 * @return The clusters of the chain, as runs of consecutive clusters
+	 */
+	public ClusterChain getClusterChain(int firstCluster) {
+		if (firstCluster == 0) {
+			return new ClusterChain();
+		}
 		
+		ClusterChain clusterChain = chainCache.get(firstCluster);
+		if (clusterChain == null) {
+			long version = chainCache.getVersion();
+			clusterChain = readClusterChain(firstCluster);
+			chainCache.put(firstCluster, clusterChain, version);
+		}
+		return clusterChain;
+	}
+	
+	/**
+	 * Get the cache of resolved cluster chains, e.g. to see how often it 
+	 * is hit.
+	 * 
+	 * @return The chain cache of this volume
+	 */
+	public ClusterChainCache getClusterChainCache() {
+		return chainCache;
+	}
+	
+	/**
+	 * Follow the FAT from the given cluster to the end of its chain, 
+	 * without going through the chain cache. Passes over every file on the 
+	 * volume use this, so as not to push out the chains in use. The walk 
+	 * stops early, rather than running off into the rest of the FAT, if 
+	 * the chain loops back on itself or leads to a free, bad or 
+	 * out-of-range cluster; {@link ClusterChain#getEnd()} says which.
+	 * 
+	 * @param firstCluster The first cluster of the chain
+	 * @return The clusters of the chain, as runs of consecutive clusters
+	 */
+	protected ClusterChain readClusterChain(int firstCluster) {
+		ClusterChain clusterChain = new ClusterChain();
+		if (firstCluster == 0) {
+			// an empty file has no clusters at all
+			return clusterChain;
+		}
+		
+		int lastCluster = clustersInDataRegion() + 1;
+		
+		// remember the cluster reached after each power of two steps; if 
+		// the chain comes back round to it, the chain is a loop (Brent's 
+		// cycle detection, which needs no memory of the clusters visited)
+		int checkpoint = -1;
+		int power = 1;
+		int steps = 0;
+		
+		int fatEntry = firstCluster;
 		while (!isEndOfClusterChain(fatEntry)) {
+			ClusterChain.End end = null;
+			if (fatEntry == checkpoint) {
+				fatEntry = removeRepeats(clusterChain, steps + 1);
+				end = ClusterChain.End.CYCLE;
+			} else if (isBadCluster(fatEntry)) {
+				end = ClusterChain.End.BAD_CLUSTER;
+			} else if (fatEntry == 0) {
+				end = ClusterChain.End.FREE_CLUSTER;
+			} else if (fatEntry < 2 || fatEntry > lastCluster) {
+				end = ClusterChain.End.OUT_OF_RANGE;
+			}
+			if (end != null) {
+				clusterChain.setEnd(end, fatEntry);
+				break;
+			}
+			
 			clusterChain.add(fatEntry);
+			if (++steps == power) {
+				checkpoint = fatEntry;
+				power <<= 1;
+				steps = 0;
+			}
 			fatEntry = getFATEntry(fatEntry);
 		}
 		
 		return clusterChain;
 	}
+	
+	/**
+	 * Cut a chain which has gone round a loop more than once back to the 
+	 * point where it starts to repeat itself.
+	 * 
+	 * @param clusterChain The chain, which ends partway round the loop
+	 * @param loopLength The number of clusters in the loop
+	 * @return The first cluster of the loop, which the last cluster left 
+	 *         in the chain links back to
+	 */
+	private static int removeRepeats(ClusterChain clusterChain, int loopLength) {
+		int size = clusterChain.size();
+		for (int i = 0; i + loopLength < size; i++) {
+			if (clusterChain.get(i) == clusterChain.get(i + loopLength)) {
+				clusterChain.truncate(i + loopLength);
+				return clusterChain.get(i);
+			}
+		}
+		return clusterChain.get(size - loopLength);
+	}
 }
@@ -23,6 +23,9 @@
  */
 package net.jonhopkins.delundel.fs.fat;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 class FAT12 extends FAT {
 	
 	/*
@@ -40,7 +43,7 @@ class FAT12 extends FAT {
 	 * Offset: 36<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_driveNumber;
+	protected int bs_driveNumber;
 	
 	/**
 	 * Reserved for use by Windows NT.
@@ -50,7 +53,7 @@ class FAT12 extends FAT {
 	 * Offset: 37<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_reserved1;
+	protected int bs_reserved1;
 	
 	/**
 	 * Extended boot signature (0x29). Indicates that 
@@ -60,7 +63,7 @@ class FAT12 extends FAT {
 	 * Offset: 38<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_bootSignature;
+	protected int bs_bootSignature;
 	
 	/**
 	 * Volume serial number. This field, together with sb_VolumeLabel,
@@ -72,7 +75,7 @@ class FAT12 extends FAT {
 	 * offset: 39<br>
 	 * size: 4<br>
 	 */
-	protected static int bs_volumeID;
+	protected int bs_volumeID;
 	
 	/**
 	 * Volume label. This field matches the 11-byte volume label
@@ -86,7 +89,7 @@ class FAT12 extends FAT {
 	 * offset: 43<br>
 	 * size: 11<br>
 	 */
-	protected static String bs_volumeLabel;
+	protected String bs_volumeLabel;
 	
 	/**
 	 * One of the strings “FAT12 ”, “FAT16 ”, or “FAT ”.
@@ -105,7 +108,18 @@ class FAT12 extends FAT {
 	 * offset: 54<br>
 	 * size: 8<br>
 	 */
-	protected static String bs_fileSystemType;
+	protected String bs_fileSystemType;
+	
+	/**
+	 * Every entry of the FAT, unpacked at mount. A FAT12 volume has at 
+	 * most 4084 clusters, so this is never more than 8 KB.
+	 */
+	private char[] table;
+	
+	/**
+	 * The number of sectors of the FAT read at a time when loading it.
+	 */
+	private static final int LOAD_CHUNK_SECTORS = 8;
 	
 	@Override
 	protected boolean isEndOfClusterChain(int fatEntry) {
@@ -117,17 +131,155 @@ class FAT12 extends FAT {
 		return fatEntry == Util.BAD_CLUSTER_12;
 	}
 	
+	/*
+	 * Entries are packed two to every three bytes. Entry n starts at byte 
+	 * n + n/2; an even entry is the low 12 bits of the little-endian word 
+	 * there, an odd entry the high 12 bits. The FAT is read a few sectors 
+	 * at a time and streamed through an Unpacker, which carries the odd 
+	 * bits over from one read to the next, so entries straddling a sector 
+	 * boundary come out whole. If part of the FAT can't be read, the table 
+	 * stops short and later entries are looked up one at a time.
+	 */
+	@Override
+	protected void loadFAT() {
+		int entries = clustersInDataRegion() + 2;
+		long bytesNeeded = (entries * 3L + 1) / 2;
+		int sectors = (int)Math.min(fatSize(),
+				(bytesNeeded + bytesPerSector() - 1) / bytesPerSector());
+		
+		Unpacker unpacker = new Unpacker(entries);
+		ByteBuffer chunk = ByteBuffer.allocate(LOAD_CHUNK_SECTORS * bytesPerSector());
+		for (int sector = 0; sector < sectors && !unpacker.isFull(); sector += LOAD_CHUNK_SECTORS) {
+			int count = Math.min(LOAD_CHUNK_SECTORS, sectors - sector);
+			chunk.clear();
+			chunk.limit(count * bytesPerSector());
+			if (!ioManager.readSectorInto(startOfFAT() + sector, bytesPerSector(), chunk)) {
+				// keep what was read before the unreadable sector
+				chunk.clear();
+				int readable = 0;
+				while (readable < count) {
+					chunk.limit((readable + 1) * bytesPerSector());
+					if (!ioManager.readSectorInto(startOfFAT() + sector + readable,
+							bytesPerSector(), chunk)) {
+						break;
+					}
+					readable++;
+				}
+				chunk.flip();
+				unpacker.unpack(chunk);
+				break;
+			}
+			chunk.flip();
+			unpacker.unpack(chunk);
+		}
+		
+		table = unpacker.getTable();
+	}
+	
 	@Override
 	protected int getFATEntry(int entryNumber) {
-		int entryPos = (entryNumber & 0x1); // even or odd entry number
-		int byteOffset = (entryNumber - entryPos) / 2 * 3 + entryPos;
-		int fatSector = byteOffset / bpb_bytesPerSector + FAT.startOfFAT();
-		byteOffset = byteOffset % (bpb_bytesPerSector / 2);
+		if (table != null && entryNumber >= 0 && entryNumber < table.length) {
+			return table[entryNumber];
+		}
+		
+		long byteOffset = entryNumber + (entryNumber >>> 1);
+		long fatSector = byteOffset / bytesPerSector() + startOfFAT();
+		int offsetInSector = (int)(byteOffset % bytesPerSector());
 		
-		return Util.unsignedInt12(ioManager.readSector(fatSector, bpb_bytesPerSector),
-				byteOffset, (entryPos != 1));
+		ByteBuffer sector = readFATSector(fatSector);
+		if (sector == null) {
+			return Util.END_OF_CHAIN_12;
+		}
+		int low = sector.get(offsetInSector) & 0xff;
+		int high;
+		if (offsetInSector + 1 < bytesPerSector()) {
+			high = sector.get(offsetInSector + 1) & 0xff;
+		} else {
+			// the entry straddles the end of the sector
+			sector = readFATSector(fatSector + 1);
+			if (sector == null) {
+				return Util.END_OF_CHAIN_12;
+			}
+			high = sector.get(0) & 0xff;
+		}
+		
+		int word = low | (high << 8);
+		return (entryNumber & 1) == 0 ? word & 0xfff : word >>> 4;
 	}
-
+	
+	/*
+	 * An even entry is the low 12 bits of its word and an odd entry the 
+	 * high 12 bits, so the other half of the shared byte is kept.
+	 */
+	@Override
+	protected void putFATEntry(byte[] sectors, int offset, int entryNumber, int value) {
+		int word = (sectors[offset] & 0xff) | ((sectors[offset + 1] & 0xff) << 8);
+		if ((entryNumber & 1) == 0) {
+			word = (word & 0xf000) | (value & 0xfff);
+		} else {
+			word = (word & 0x000f) | ((value & 0xfff) << 4);
+		}
+		sectors[offset] = (byte)word;
+		sectors[offset + 1] = (byte)(word >>> 8);
+	}
+	
+	@Override
+	protected void fatEntryChanged(int cluster, int value) {
+		char[] unpacked = table;
+		if (unpacked != null && cluster < unpacked.length) {
+			unpacked[cluster] = (char)(value & 0xfff);
+		}
+		super.fatEntryChanged(cluster, value);
+	}
+	
+	/**
+	 * Unpacks 12-bit entries from a stream of bytes handed over in pieces 
+	 * of any size.
+	 */
+	private static class Unpacker {
+		private final char[] entries;
+		private int count = 0;
+		
+		// bits read but not yet making up a whole entry, lowest first
+		private int pending = 0;
+		private int pendingBits = 0;
+		
+		Unpacker(int capacity) {
+			entries = new char[capacity];
+		}
+		
+		void unpack(ByteBuffer bytes) {
+			// three bytes make exactly two entries, so whenever no bits are 
+			// left over they can be taken a group at a time
+			while (count < entries.length && bytes.hasRemaining()) {
+				if (pendingBits == 0 && bytes.remaining() >= 3 && count + 1 < entries.length) {
+					int b0 = bytes.get() & 0xff;
+					int b1 = bytes.get() & 0xff;
+					int b2 = bytes.get() & 0xff;
+					entries[count++] = (char)(b0 | ((b1 & 0x0f) << 8));
+					entries[count++] = (char)((b1 >>> 4) | (b2 << 4));
+					continue;
+				}
+				
+				pending |= (bytes.get() & 0xff) << pendingBits;
+				pendingBits += 8;
+				if (pendingBits >= 12) {
+					entries[count++] = (char)(pending & 0xfff);
+					pending >>>= 12;
+					pendingBits -= 12;
+				}
+			}
+		}
+		
+		boolean isFull() {
+			return count == entries.length;
+		}
+		
+		char[] getTable() {
+			return isFull() ? entries : Arrays.copyOf(entries, count);
+		}
+	}
+	
 	@Override
 	protected void initializeBootParameterBlock(byte[] bootSector) {
 		super.initializeBootParameterBlock(bootSector);
@@ -152,17 +304,18 @@ class FAT12 extends FAT {
 	
 	@Override
 	protected void printFAT() {
+		FATGeometry geometry = getGeometry();
 		System.out.println("OEM:                 " + bs_OEMName);
-		System.out.println("Bytes Per Sector:    " + bpb_bytesPerSector);
-		System.out.println("Sectors Per Cluster: " + bpb_sectorsPerCluster);
-		System.out.println("Reserved Sectors:    " + bpb_reservedSectorCount);
-		System.out.println("FATs:                " + bpb_FATCount);
-		System.out.println("Entries in Root:     " + bpb_rootEntryCount);
+		System.out.println("Bytes Per Sector:    " + geometry.getBytesPerSector());
+		System.out.println("Sectors Per Cluster: " + geometry.getSectorsPerCluster());
+		System.out.println("Reserved Sectors:    " + geometry.getReservedSectorCount());
+		System.out.println("FATs:                " + geometry.getFATCount());
+		System.out.println("Entries in Root:     " + geometry.getRootEntryCount());
 		System.out.println("Sectors:             " + totalSectors());
-		System.out.println("Media:               " + bpb_mediaType);
-		System.out.println("FAT Sectors:         " + fatSize() * bpb_FATCount);
-		System.out.println("Sectors Per Track:   " + bpb_sectorsPerTrack);
-		System.out.println("Hidden Sectors:      " + bpb_hiddenSectorCount);
+		System.out.println("Media:               " + geometry.getMediaType());
+		System.out.println("FAT Sectors:         " + fatSize() * geometry.getFATCount());
+		System.out.println("Sectors Per Track:   " + geometry.getSectorsPerTrack());
+		System.out.println("Hidden Sectors:      " + geometry.getHiddenSectorCount());
 		System.out.println("Signature:           " + bs_bootSignature);
 		System.out.println("Volume ID:           " + bs_volumeID);
 		System.out.println("Volume Label:        " + bs_volumeLabel);
@@ -23,6 +23,8 @@
  */
 package net.jonhopkins.delundel.fs.fat;
 
+import java.nio.ByteBuffer;
+
 class FAT16 extends FAT {
 	
 	/*
@@ -40,7 +42,7 @@ class FAT16 extends FAT {
 	 * Offset: 36<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_driveNumber;
+	protected int bs_driveNumber;
 	
 	/**
 	 * Reserved for use by Windows NT.
@@ -50,7 +52,7 @@ class FAT16 extends FAT {
 	 * Offset: 37<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_reserved1;
+	protected int bs_reserved1;
 	
 	/**
 	 * Extended boot signature (0x29). Indicates that 
@@ -60,7 +62,7 @@ class FAT16 extends FAT {
 	 * Offset: 38<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_bootSignature;
+	protected int bs_bootSignature;
 	
 	/**
 	 * Volume serial number. This field, together with sb_VolumeLabel,
@@ -72,7 +74,7 @@ class FAT16 extends FAT {
 	 * offset: 39<br>
 	 * size: 4<br>
 	 */
-	protected static int bs_volumeID;
+	protected int bs_volumeID;
 	
 	/**
 	 * Volume label. This field matches the 11-byte volume label
@@ -86,7 +88,7 @@ class FAT16 extends FAT {
 	 * offset: 43<br>
 	 * size: 11<br>
 	 */
-	protected static String bs_volumeLabel;
+	protected String bs_volumeLabel;
 	
 	/**
 	 * One of the strings “FAT12 ”, “FAT16 ”, or “FAT ”.
@@ -105,7 +107,13 @@ class FAT16 extends FAT {
 	 * offset: 54<br>
 	 * size: 8<br>
 	 */
-	protected static String bs_fileSystemType;
+	protected String bs_fileSystemType;
+	
+	/**
+	 * Every entry of the FAT, decoded at mount. A FAT16 volume has at most 
+	 * 65,524 clusters, so this is never more than 128 KB.
+	 */
+	private char[] table;
 	
 	@Override
 	protected boolean isEndOfClusterChain(int fatEntry) {
@@ -117,13 +125,51 @@ class FAT16 extends FAT {
 		return fatEntry == Util.BAD_CLUSTER_16;
 	}
 	
+	@Override
+	protected void loadFAT() {
+		int entries = clustersInDataRegion() + 2;
+		byte[] fat = readFAT(entries * 2L);
+		if (fat == null) {
+			return;
+		}
+		
+		char[] decoded = new char[Math.min(entries, fat.length / 2)];
+		for (int i = 0; i < decoded.length; i++) {
+			decoded[i] = (char)((fat[2 * i] & 0xff) | ((fat[2 * i + 1] & 0xff) << 8));
+		}
+		table = decoded;
+	}
+	
 	@Override
 	protected int getFATEntry(int entryNumber) {
+		if (table != null && entryNumber >= 0 && entryNumber < table.length) {
+			return table[entryNumber];
+		}
+		
 		int byteOffset = entryNumber * 2;
-		int fatSector = byteOffset / bpb_bytesPerSector + FAT.startOfFAT();
-		byteOffset = byteOffset % (bpb_bytesPerSector / 2);
+		int fatSector = byteOffset / bytesPerSector() + startOfFAT();
+		byteOffset = byteOffset % bytesPerSector();
 		
-		return Util.unsignedInt(ioManager.readSector(fatSector, bpb_bytesPerSector), byteOffset, 2);
+		ByteBuffer sector = readFATSector(fatSector);
+		if (sector == null) {
+			return Util.END_OF_CHAIN_16;
+		}
+		return Util.unsignedInt(sector, byteOffset, 2);
+	}
+	
+	@Override
+	protected void putFATEntry(byte[] sectors, int offset, int entryNumber, int value) {
+		sectors[offset] = (byte)value;
+		sectors[offset + 1] = (byte)(value >>> 8);
+	}
+	
+	@Override
+	protected void fatEntryChanged(int cluster, int value) {
+		char[] decoded = table;
+		if (decoded != null && cluster < decoded.length) {
+			decoded[cluster] = (char)(value & 0xffff);
+		}
+		super.fatEntryChanged(cluster, value);
 	}
 	
 	@Override
@@ -150,17 +196,18 @@ class FAT16 extends FAT {
 	
 	@Override
 	protected void printFAT() {
+		FATGeometry geometry = getGeometry();
 		System.out.println("OEM:                 " + bs_OEMName);
-		System.out.println("Bytes Per Sector:    " + bpb_bytesPerSector);
-		System.out.println("Sectors Per Cluster: " + bpb_sectorsPerCluster);
-		System.out.println("Reserved Sectors:    " + bpb_reservedSectorCount);
-		System.out.println("FATs:                " + bpb_FATCount);
-		System.out.println("Entries in Root:     " + bpb_rootEntryCount);
+		System.out.println("Bytes Per Sector:    " + geometry.getBytesPerSector());
+		System.out.println("Sectors Per Cluster: " + geometry.getSectorsPerCluster());
+		System.out.println("Reserved Sectors:    " + geometry.getReservedSectorCount());
+		System.out.println("FATs:                " + geometry.getFATCount());
+		System.out.println("Entries in Root:     " + geometry.getRootEntryCount());
 		System.out.println("Sectors:             " + totalSectors());
-		System.out.println("Media:               " + bpb_mediaType);
-		System.out.println("FAT Sectors:         " + fatSize() * bpb_FATCount);
-		System.out.println("Sectors Per Track:   " + bpb_sectorsPerTrack);
-		System.out.println("Hidden Sectors:      " + bpb_hiddenSectorCount);
+		System.out.println("Media:               " + geometry.getMediaType());
+		System.out.println("FAT Sectors:         " + fatSize() * geometry.getFATCount());
+		System.out.println("Sectors Per Track:   " + geometry.getSectorsPerTrack());
+		System.out.println("Hidden Sectors:      " + geometry.getHiddenSectorCount());
 		System.out.println("Signature:           " + bs_bootSignature);
 		System.out.println("Volume ID:           " + bs_volumeID);
 		System.out.println("Volume Label:        " + bs_volumeLabel);
@@ -23,6 +23,10 @@
  */
 package net.jonhopkins.delundel.fs.fat;
 
+import java.nio.ByteBuffer;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+
 class FAT32 extends FAT {
 	
 	/*
@@ -30,15 +34,6 @@ class FAT32 extends FAT {
 	 * https://staff.washington.edu/dittrich/misc/fatgen103.pdf
 	 */
 	
-	/**
-	 * The FAT32 32-bit count of sectors occupied by <em>one</em> FAT. If 
-	 * this field has a value, then {@link bpb_FATSize_16} must be 0.
-	 * <p>
-	 * Offset: 36<br>
-	 * Size: 4<br>
-	 */
-	protected static int bpb_FATSize_32;
-	
 	/**
 	 * Flags for FAT mirroring.
 	 * <ul>
@@ -57,7 +52,7 @@ class FAT32 extends FAT {
 	 * Offset: 40<br>
 	 * Size: 2<br>
 	 */
-	protected static int bpb_extraFATFlags;
+	protected int bpb_extraFATFlags;
 	
 	/**
 	 * The version number of the FAT32 volume.
@@ -67,7 +62,7 @@ class FAT32 extends FAT {
 	 * Offset: 42<br>
 	 * Size: 2<br>
 	 */
-	protected static int bpb_fileSystemVersion;
+	protected int bpb_fileSystemVersion;
 	
 	/**
 	 * The cluster number of the first cluster of the root directory.
@@ -77,7 +72,7 @@ class FAT32 extends FAT {
 	 * Offset: 44<br>
 	 * Size: 4<br>
 	 */
-	protected static int bpb_rootCluster;
+	protected int bpb_rootCluster;
 	
 	/**
 	 * Sector number of {@code FSINFO} structure in the reserved area of the 
@@ -93,7 +88,7 @@ class FAT32 extends FAT {
 	 * Offset: 48<br>
 	 * Size: 2<br>
 	 */
-	protected static int bpb_fileSystemInfo;
+	protected int bpb_fileSystemInfo;
 	
 	/**
 	 * If non-zero, indicates the sector number in the reserved area of the 
@@ -104,7 +99,7 @@ class FAT32 extends FAT {
 	 * Offset: 50<br>
 	 * Size: 2<br>
 	 */
-	protected static int bpb_backupBootSector;
+	protected int bpb_backupBootSector;
 	
 	/**
 	 * Reserved for future expansion.
@@ -115,7 +110,7 @@ class FAT32 extends FAT {
 	 * Size: 12<br>
 	 * </ul>
 	 */
-	protected static int bpb_reserved;
+	protected int bpb_reserved;
 	
 	/**
 	 * Int 0x13 drive number (e.g. 0x80). This field supports MS-DOS
@@ -127,7 +122,7 @@ class FAT32 extends FAT {
 	 * Offset: 64<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_driveNumber;
+	protected int bs_driveNumber;
 	
 	/**
 	 * Reserved for use by Windows NT.
@@ -137,7 +132,7 @@ class FAT32 extends FAT {
 	 * Offset: 65<br>
 	 * Size: 1<br>
 	 */
-	protected static int bs_reserved1;
+	protected int bs_reserved1;
 	
 	/**
 	 * This field has the same definition as it does for FAT12 and FAT16
@@ -147,7 +142,7 @@ class FAT32 extends FAT {
 	 * offset: 66<br>
 	 * size: 1<br>
 	 */
-	protected static int bs_bootSignature;
+	protected int bs_bootSignature;
 	
 	/**
 	 * This field has the same definition as it does for FAT12 and FAT16
@@ -157,7 +152,7 @@ class FAT32 extends FAT {
 	 * offset: 64<br>
 	 * size: 4<br>
 	 */
-	protected static int bs_volumeID;
+	protected int bs_volumeID;
 	
 	/**
 	 * This field has the same definition as it does for FAT12 and FAT16
@@ -167,7 +162,7 @@ class FAT32 extends FAT {
 	 * offset: 71<br>
 	 * size: 11<br>
 	 */
-	protected static String bs_volumeLabel;
+	protected String bs_volumeLabel;
 	
 	/**
 	 * Always set to the string ”FAT32 ”. Please see the note for this
@@ -177,7 +172,57 @@ class FAT32 extends FAT {
 	 * offset: 82<br>
 	 * size: 8<br>
 	 */
-	protected static String bs_fileSystemType;
+	protected String bs_fileSystemType;
+	
+	/*
+	 * Start of FSInfo (fsi_) variables
+	 */
+	
+	private static final int FSI_LEAD_SIGNATURE = 0x41615252;
+	private static final int FSI_STRUCT_SIGNATURE = 0x61417272;
+	private static final int FSI_TRAIL_SIGNATURE = 0xAA550000;
+	private static final long FSI_UNKNOWN = 0xFFFFFFFFL;
+	
+	/**
+	 * Contains the last known free cluster count on the volume. If the 
+	 * value is 0xFFFFFFFF, then the free count is unknown and must be 
+	 * computed. Any other value can be used, but is not necessarily 
+	 * correct. It should be range checked at least to make sure it is 
+	 * &lt;= volume cluster count.
+	 * <p>
+	 * Set to -1 if the volume has no valid {@code FSINFO} sector, or once 
+	 * the FAT has been written, since the count no longer matches it.
+	 * <p>
+	 * Offset: 488<br>
+	 * Size: 4<br>
+	 */
+	private volatile long fsi_freeCount = -1;
+	
+	/**
+	 * This is a hint for the FAT driver. It indicates the cluster number 
+	 * at which the driver should start looking for free clusters. If the 
+	 * value is 0xFFFFFFFF, then there is no hint and the driver should 
+	 * start looking at cluster 2. Any other value can be used, but should 
+	 * be checked first to make sure it is a valid cluster number for the 
+	 * volume.
+	 * <p>
+	 * Set to -1 if the volume has no valid {@code FSINFO} sector, or once 
+	 * the FAT has been written, since the hinted cluster may have been 
+	 * allocated.
+	 * <p>
+	 * Offset: 492<br>
+	 * Size: 4<br>
+	 */
+	private volatile long fsi_nextFree = -1;
+	
+	/**
+	 * Only the low 28 bits of a FAT32 entry are used. The high 4 bits are 
+	 * reserved and must be left alone.
+	 */
+	static final int ENTRY_MASK = 0x0FFFFFFF;
+	
+	// the FAT is too large to always hold in memory, so it is paged in
+	private FATPageCache fatCache;
 	
 	@Override
 	protected boolean isEndOfClusterChain(int fatEntry) {
@@ -191,14 +236,142 @@ class FAT32 extends FAT {
 	
 	@Override
 	protected int getFATEntry(int entryNumber) {
-		return 0;
+		if (fatCache != null) {
+			// a failed lookup masks to an end of chain marker
+			return fatCache.get(entryNumber) & ENTRY_MASK;
+		}
+		
+		long byteOffset = entryNumber * 4L;
+		long fatSector = byteOffset / bytesPerSector() + startOfFAT();
+		ByteBuffer sector = readFATSector(fatSector);
+		if (sector == null) {
+			return Util.END_OF_CHAIN_32;
+		}
+		return Util.unsignedInt(sector, (int)(byteOffset % bytesPerSector()), 4) & ENTRY_MASK;
+	}
+	
+	@Override
+	protected void loadFAT() {
+		fatCache = new FATPageCache(ioManager, startOfFAT(), fatSize(), bytesPerSector(),
+				FATPageCache.DEFAULT_PAGE_SIZE, getFATCacheBudget());
+		readFileSystemInfo();
+	}
+	
+	/*
+	 * The FSINFO sector is only trusted if all three of its signatures are 
+	 * present. Its values are hints which may be stale, e.g. if the volume 
+	 * was last written by a driver which doesn't maintain them.
+	 */
+	private void readFileSystemInfo() {
+		fsi_freeCount = -1;
+		fsi_nextFree = -1;
+		if (bpb_fileSystemInfo == 0 || bpb_fileSystemInfo >= getGeometry().getReservedSectorCount()) {
+			return;
+		}
+		
+		byte[] fsInfo = ioManager.readSector(bpb_fileSystemInfo, bytesPerSector());
+		if (fsInfo == null
+				|| Util.unsignedInt(fsInfo, 0, 4) != FSI_LEAD_SIGNATURE
+				|| Util.unsignedInt(fsInfo, 484, 4) != FSI_STRUCT_SIGNATURE
+				|| Util.unsignedInt(fsInfo, 508, 4) != FSI_TRAIL_SIGNATURE) {
+			return;
+		}
+		
+		long freeCount = Util.unsignedLong(fsInfo, 488, 4);
+		if (freeCount != FSI_UNKNOWN && freeCount <= clustersInDataRegion()) {
+			fsi_freeCount = freeCount;
+		}
+		long nextFree = Util.unsignedLong(fsInfo, 492, 4);
+		if (nextFree != FSI_UNKNOWN && nextFree >= 2 && nextFree <= clustersInDataRegion() + 1L) {
+			fsi_nextFree = nextFree;
+		}
+	}
+	
+	/**
+	 * Get the number of free clusters, from the {@code FSINFO} sector if it 
+	 * holds a plausible count and the FAT has not been written since the 
+	 * mount, or else from the allocation bitmap.
+	 */
+	@Override
+	public long getFreeClusterCount() {
+		if (fsi_freeCount < 0) {
+			return super.getFreeClusterCount();
+		}
+		return fsi_freeCount;
+	}
+	
+	@Override
+	protected int getFreeClusterHint() {
+		return fsi_nextFree < 0 ? super.getFreeClusterHint() : (int)fsi_nextFree;
+	}
+	
+	/*
+	 * The root directory of a FAT32 volume is an ordinary cluster chain, 
+	 * so it can grow like any other directory.
+	 */
+	@Override
+	protected void readRootDirectory(FATDirectory root) {
+		readDirectoryClusters(bpb_rootCluster, root);
+	}
+	
+	/*
+	 * With mirroring turned off, only the FAT numbered in the low four bits 
+	 * of the flags is kept up to date.
+	 */
+	@Override
+	protected int getActiveFAT() {
+		if ((bpb_extraFATFlags & 0x80) == 0) {
+			return 0;
+		}
+		int active = bpb_extraFATFlags & 0x0F;
+		return active < getGeometry().getFATCount() ? active : 0;
+	}
+	
+	@Override
+	protected boolean isFATMirrored() {
+		return (bpb_extraFATFlags & 0x80) == 0;
+	}
+	
+	/*
+	 * The reserved high four bits of the entry are kept as they were.
+	 */
+	@Override
+	protected void putFATEntry(byte[] sectors, int offset, int entryNumber, int value) {
+		int old = Util.unsignedInt(sectors, offset, 4);
+		int entry = (old & ~ENTRY_MASK) | (value & ENTRY_MASK);
+		for (int i = 0; i < 4; i++) {
+			sectors[offset + i] = (byte)(entry >>> (8 * i));
+		}
+	}
+	
+	@Override
+	protected void fatEntryChanged(int cluster, int value) {
+		if (fatCache != null) {
+			fatCache.invalidate(cluster);
+		}
+		// the FSINFO hints describe the FAT as it was at mount
+		fsi_freeCount = -1;
+		fsi_nextFree = -1;
+		super.fatEntryChanged(cluster, value);
+	}
+	
+	@Override
+	protected int getRootCluster() {
+		return bpb_rootCluster;
+	}
+	
+	@Override
+	public void setIOManager(FSIOManager manager) {
+		super.setIOManager(manager);
+		if (fatCache != null) {
+			fatCache.setIOManager(manager);
+		}
 	}
 
 	@Override
 	protected void initializeBootParameterBlock(byte[] bootSector) {
 		super.initializeBootParameterBlock(bootSector);
 		
-		bpb_FATSize_32 = Util.unsignedInt(bootSector, 36, 4);
 		bpb_extraFATFlags = Util.unsignedInt(bootSector, 40, 2);
 		bpb_fileSystemVersion = Util.unsignedInt(bootSector, 42, 2);
 		bpb_rootCluster = Util.unsignedInt(bootSector, 44, 4);
@@ -225,17 +398,18 @@ class FAT32 extends FAT {
 	
 	@Override
 	protected void printFAT() {
+		FATGeometry geometry = getGeometry();
 		System.out.println("OEM:                 " + bs_OEMName);
-		System.out.println("Bytes Per Sector:    " + bpb_bytesPerSector);
-		System.out.println("Sectors Per Cluster: " + bpb_sectorsPerCluster);
-		System.out.println("Reserved Sectors:    " + bpb_reservedSectorCount);
-		System.out.println("FATs:                " + bpb_FATCount);
-		System.out.println("Entries in Root:     " + bpb_rootEntryCount);
+		System.out.println("Bytes Per Sector:    " + geometry.getBytesPerSector());
+		System.out.println("Sectors Per Cluster: " + geometry.getSectorsPerCluster());
+		System.out.println("Reserved Sectors:    " + geometry.getReservedSectorCount());
+		System.out.println("FATs:                " + geometry.getFATCount());
+		System.out.println("Entries in Root:     " + geometry.getRootEntryCount());
 		System.out.println("Sectors:             " + totalSectors());
-		System.out.println("Media:               " + bpb_mediaType);
-		System.out.println("FAT Sectors:         " + fatSize() * bpb_FATCount);
-		System.out.println("Sectors Per Track:   " + bpb_sectorsPerTrack);
-		System.out.println("Hidden Sectors:      " + bpb_hiddenSectorCount);
+		System.out.println("Media:               " + geometry.getMediaType());
+		System.out.println("FAT Sectors:         " + fatSize() * geometry.getFATCount());
+		System.out.println("Sectors Per Track:   " + geometry.getSectorsPerTrack());
+		System.out.println("Hidden Sectors:      " + geometry.getHiddenSectorCount());
 		System.out.println("Signature:           " + bs_bootSignature);
 		System.out.println("Volume ID:           " + bs_volumeID);
 		System.out.println("Volume Label:        " + bs_volumeLabel);
@@ -0,0 +1,513 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+
+/**
+ * Checks the FAT of a volume against its directory tree, in the manner of 
+ * fsck. Every chain reachable from the root directory is walked, with 
+ * each directory handled by its own fork/join task and the clusters seen 
+ * so far kept in one shared bitset. The FAT is then swept, in parallel, 
+ * for allocated clusters which no directory entry reached.
+ * <p>
+ * The checker only reads the volume; nothing it finds is repaired.
+ */
+public class FATChecker {
+	
+	/**
+	 * The number of clusters each task sweeps when looking for lost 
+	 * clusters.
+	 */
+	private static final int SWEEP_CHUNK = 1 << 16;
+	
+	private final FAT fat;
+	private final int parallelism;
+	
+	private AtomicLongArray visited;
+	private List<Problem> problems;
+	private AtomicInteger fileCount;
+	private AtomicInteger directoryCount;
+	private AtomicLong lostClusterCount;
+	private AtomicLong badClusterCount;
+	
+	public FATChecker(FAT fat) {
+		this(fat, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Create a checker for the given volume.
+	 * 
+	 * @param fat The volume to check
+	 * @param parallelism The number of threads to check the volume with
+	 */
+	public FATChecker(FAT fat, int parallelism) {
+		this.fat = fat;
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Check the volume.
+	 * 
+	 * @return The problems found
+	 */
+	public Report check() {
+		int clusterCount = fat.getGeometry().getClusterCount() + 2;
+		visited = new AtomicLongArray((clusterCount + 63) >>> 6);
+		problems = new ArrayList<Problem>();
+		fileCount = new AtomicInteger();
+		directoryCount = new AtomicInteger();
+		lostClusterCount = new AtomicLong();
+		badClusterCount = new AtomicLong();
+		
+		FATDirectory root = (FATDirectory)fat.getRootDirectory();
+		int rootCluster = fat.getRootCluster();
+		if (rootCluster != 0) {
+			checkChain("/", rootCluster, fat.readClusterChain(rootCluster), -1);
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new DirectoryTask(root, ""));
+			
+			AtomicLongArray lost = new AtomicLongArray(visited.length());
+			AtomicLongArray referenced = new AtomicLongArray(visited.length());
+			pool.invoke(new SweepTask(2, clusterCount, lost, referenced));
+			reportLostChains(clusterCount, lost, referenced);
+		} finally {
+			pool.shutdown();
+		}
+		
+		Collections.sort(problems, new Comparator<Problem>() {
+			@Override
+			public int compare(Problem a, Problem b) {
+				if (a.type != b.type) {
+					return a.type.compareTo(b.type);
+				}
+				if (a.cluster != b.cluster) {
+					return a.cluster < b.cluster ? -1 : 1;
+				}
+				return a.path.compareTo(b.path);
+			}
+		});
+		
+		return new Report(new ArrayList<Problem>(problems), fileCount.get(),
+				directoryCount.get(), lostClusterCount.get(), badClusterCount.get());
+	}
+	
+	/**
+	 * Check one chain and mark its clusters as visited.
+	 * 
+	 * @param path The path of the file or directory the chain belongs to
+	 * @param firstCluster The first cluster of the chain
+	 * @param chain The chain
+	 * @param fileSize The size of the file, or -1 for a directory
+	 * @return Whether the first cluster of the chain had not already been 
+	 *         visited
+	 */
+	private boolean checkChain(String path, int firstCluster, ClusterChain chain, long fileSize) {
+		if (!chain.isComplete()) {
+			int last = chain.size() > 0 ? chain.get(chain.size() - 1) : firstCluster;
+			Problem.Type type;
+			switch (chain.getEnd()) {
+			case CYCLE:
+				type = Problem.Type.CYCLE;
+				break;
+			case BAD_CLUSTER:
+				type = Problem.Type.BAD_CLUSTER;
+				break;
+			case FREE_CLUSTER:
+				type = Problem.Type.FREE_CLUSTER;
+				break;
+			default:
+				type = Problem.Type.OUT_OF_RANGE;
+				break;
+			}
+			addProblem(type, path, last, "cluster " + last + " links to " + chain.getBadLink());
+		}
+		
+		if (fileSize >= 0) {
+			long bytesPerCluster = fat.getGeometry().getBytesPerCluster();
+			long expected = (fileSize + bytesPerCluster - 1) / bytesPerCluster;
+			if (chain.size() > expected) {
+				addProblem(Problem.Type.CHAIN_TOO_LONG, path, firstCluster,
+						chain.size() + " clusters for " + fileSize + " bytes");
+			} else if (chain.size() < expected && chain.isComplete()) {
+				addProblem(Problem.Type.CHAIN_TOO_SHORT, path, firstCluster,
+						chain.size() + " clusters for " + fileSize + " bytes");
+			}
+		}
+		
+		boolean claimedFirst = true;
+		int shared = 0;
+		int firstShared = -1;
+		for (int extent = 0; extent < chain.getExtentCount(); extent++) {
+			int start = chain.getExtentStart(extent);
+			int end = start + chain.getExtentLength(extent);
+			for (int cluster = start; cluster < end; cluster++) {
+				if (!markVisited(cluster)) {
+					if (shared++ == 0) {
+						firstShared = cluster;
+					}
+					if (cluster == firstCluster) {
+						claimedFirst = false;
+					}
+				}
+			}
+		}
+		if (shared > 0) {
+			addProblem(Problem.Type.CROSS_LINK, path, firstShared,
+					shared + " clusters from cluster " + firstShared + " also belong to another chain");
+		}
+		return claimedFirst;
+	}
+	
+	/**
+	 * Set the bit for a cluster in the visited set.
+	 * 
+	 * @param cluster The cluster
+	 * @return Whether the cluster had not been visited before
+	 */
+	private boolean markVisited(int cluster) {
+		return setBit(visited, cluster);
+	}
+	
+	private static boolean setBit(AtomicLongArray bits, int index) {
+		int word = index >>> 6;
+		long mask = 1L << index;
+		while (true) {
+			long current = bits.get(word);
+			if ((current & mask) != 0) {
+				return false;
+			}
+			if (bits.compareAndSet(word, current, current | mask)) {
+				return true;
+			}
+		}
+	}
+	
+	private static boolean getBit(AtomicLongArray bits, int index) {
+		return (bits.get(index >>> 6) & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Report each run of lost clusters once, from the cluster which starts 
+	 * it. Lost clusters which only form a loop have no start, so any left 
+	 * over afterwards are reported from the first of them found.
+	 */
+	private void reportLostChains(int clusterCount, AtomicLongArray lost,
+			AtomicLongArray referenced) {
+		AtomicLongArray reported = new AtomicLongArray(lost.length());
+		for (int pass = 0; pass < 2; pass++) {
+			for (int cluster = 2; cluster < clusterCount; cluster++) {
+				if (!getBit(lost, cluster) || getBit(reported, cluster)) {
+					continue;
+				}
+				if (pass == 0 && getBit(referenced, cluster)) {
+					continue;
+				}
+				
+				ClusterChain chain = fat.readClusterChain(cluster);
+				int length = 0;
+				for (int i = 0; i < chain.size(); i++) {
+					int c = chain.get(i);
+					if (getBit(lost, c) && setBit(reported, c)) {
+						length++;
+					}
+				}
+				addProblem(Problem.Type.LOST_CHAIN, "", cluster, length + " clusters"
+						+ (pass == 0 ? "" : " in a loop") + " not reachable from any directory");
+			}
+		}
+	}
+	
+	private void addProblem(Problem.Type type, String path, int cluster, String detail) {
+		synchronized (problems) {
+			problems.add(new Problem(type, path, cluster, detail));
+		}
+	}
+	
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final FATDirectory dir;
+		private final String path;
+		
+		DirectoryTask(FATDirectory dir, String path) {
+			this.dir = dir;
+			this.path = path;
+		}
+		
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+			for (FSDirectoryEntry fsEntry : dir.listDirectory()) {
+				FATDirectoryEntry entry = (FATDirectoryEntry)fsEntry;
+				String name = entry.getName();
+				if (entry.isDeleted() || entry.isVolumeID()
+						|| name.equals(".") || name.equals("..")) {
+					continue;
+				}
+				
+				String entryPath = path + "/" + name;
+				int firstCluster = entry.getFirstCluster();
+				ClusterChain chain = fat.readClusterChain(firstCluster);
+				if (entry.isDirectory()) {
+					directoryCount.incrementAndGet();
+					if (firstCluster == 0) {
+						addProblem(Problem.Type.CHAIN_TOO_SHORT, entryPath, 0,
+								"directory has no clusters");
+						continue;
+					}
+					
+					// only descend into a directory whose clusters nothing 
+					// else has claimed, so that a directory cross-linked 
+					// with one of its ancestors can't send the walk round 
+					// in circles
+					if (checkChain(entryPath, firstCluster, chain, -1)) {
+						FATDirectory subdirectory = (FATDirectory)fat.getDirectory(entry);
+						if (subdirectory != null) {
+							subdirectories.add(new DirectoryTask(subdirectory, entryPath));
+						}
+					}
+				} else {
+					fileCount.incrementAndGet();
+					checkChain(entryPath, firstCluster, chain, entry.getFileSize());
+				}
+			}
+			invokeAll(subdirectories);
+		}
+	}
+	
+	/**
+	 * Finds the allocated clusters in part of the FAT which weren't 
+	 * reached from any directory, and which of them another such cluster 
+	 * links to, splitting the range between tasks.
+	 */
+	private class SweepTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final int from;
+		private final int to;
+		private final AtomicLongArray lost;
+		private final AtomicLongArray referenced;
+		
+		SweepTask(int from, int to, AtomicLongArray lost, AtomicLongArray referenced) {
+			this.from = from;
+			this.to = to;
+			this.lost = lost;
+			this.referenced = referenced;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from > SWEEP_CHUNK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SweepTask(from, middle, lost, referenced),
+						new SweepTask(middle, to, lost, referenced));
+				return;
+			}
+			
+			int lastCluster = fat.getGeometry().getClusterCount() + 1;
+			long lostHere = 0;
+			long badHere = 0;
+			for (int cluster = from; cluster < to; cluster++) {
+				int fatEntry = fat.getFATEntry(cluster);
+				if (fatEntry == 0) {
+					continue;
+				}
+				if (fat.isBadCluster(fatEntry)) {
+					badHere++;
+					continue;
+				}
+				if (getBit(visited, cluster)) {
+					continue;
+				}
+				
+				lostHere++;
+				setBit(lost, cluster);
+				if (fatEntry >= 2 && fatEntry <= lastCluster && !getBit(visited, fatEntry)) {
+					setBit(referenced, fatEntry);
+				}
+			}
+			lostClusterCount.addAndGet(lostHere);
+			badClusterCount.addAndGet(badHere);
+		}
+	}
+	
+	/**
+	 * Something wrong with the volume.
+	 */
+	public static class Problem {
+		public enum Type {
+			/** A chain loops back on itself. */
+			CYCLE,
+			/** A cluster belongs to more than one chain. */
+			CROSS_LINK,
+			/** A chain leads to a cluster marked as bad. */
+			BAD_CLUSTER,
+			/** A chain leads to a cluster marked as free. */
+			FREE_CLUSTER,
+			/** A chain leads to a cluster number outside of the volume. */
+			OUT_OF_RANGE,
+			/** A file has more clusters than its size needs. */
+			CHAIN_TOO_LONG,
+			/** A file has too few clusters to hold its size. */
+			CHAIN_TOO_SHORT,
+			/** Allocated clusters that no directory entry leads to. */
+			LOST_CHAIN
+		}
+		
+		private final Type type;
+		private final String path;
+		private final int cluster;
+		private final String detail;
+		
+		Problem(Type type, String path, int cluster, String detail) {
+			this.type = type;
+			this.path = path;
+			this.cluster = cluster;
+			this.detail = detail;
+		}
+		
+		public Type getType() {
+			return type;
+		}
+		
+		/**
+		 * Get the path of the file or directory with the problem.
+		 * 
+		 * @return The path, or an empty string for lost chains
+		 */
+		public String getPath() {
+			return path;
+		}
+		
+		/**
+		 * Get the cluster where the problem was found.
+		 * 
+		 * @return The cluster
+		 */
+		public int getCluster() {
+			return cluster;
+		}
+		
+		public String getDetail() {
+			return detail;
+		}
+		
+		@Override
+		public String toString() {
+			return type + (path.isEmpty() ? "" : " " + path) + ": " + detail;
+		}
+	}
+	
+	/**
+	 * The outcome of checking a volume.
+	 */
+	public static class Report {
+		private final List<Problem> problems;
+		private final int fileCount;
+		private final int directoryCount;
+		private final long lostClusterCount;
+		private final long badClusterCount;
+		
+		Report(List<Problem> problems, int fileCount, int directoryCount,
+				long lostClusterCount, long badClusterCount) {
+			this.problems = Collections.unmodifiableList(problems);
+			this.fileCount = fileCount;
+			this.directoryCount = directoryCount;
+			this.lostClusterCount = lostClusterCount;
+			this.badClusterCount = badClusterCount;
+		}
+		
+		public List<Problem> getProblems() {
+			return problems;
+		}
+		
+		public List<Problem> getProblems(Problem.Type type) {
+			List<Problem> matching = new ArrayList<Problem>();
+			for (Problem problem : problems) {
+				if (problem.getType() == type) {
+					matching.add(problem);
+				}
+			}
+			return matching;
+		}
+		
+		public boolean isClean() {
+			return problems.isEmpty();
+		}
+		
+		public int getFileCount() {
+			return fileCount;
+		}
+		
+		public int getDirectoryCount() {
+			return directoryCount;
+		}
+		
+		/**
+		 * Get the number of allocated clusters which no directory entry 
+		 * leads to.
+		 * 
+		 * @return The number of lost clusters
+		 */
+		public long getLostClusterCount() {
+			return lostClusterCount;
+		}
+		
+		/**
+		 * Get the number of clusters the FAT marks as bad.
+		 * 
+		 * @return The number of bad clusters
+		 */
+		public long getBadClusterCount() {
+			return badClusterCount;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Problem problem : problems) {
+				sb.append(problem).append('\n');
+			}
+			sb.append(fileCount).append(" files, ").append(directoryCount)
+					.append(" directories, ").append(lostClusterCount)
+					.append(" lost clusters, ").append(badClusterCount)
+					.append(" bad clusters, ").append(problems.size()).append(" problems");
+			return sb.toString();
+		}
+	}
+}
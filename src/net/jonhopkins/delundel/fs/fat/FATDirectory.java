@@ -23,15 +23,41 @@
  */
 package net.jonhopkins.delundel.fs.fat;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.List;
 
 import net.jonhopkins.delundel.fs.FSDirectory;
 import net.jonhopkins.delundel.fs.FSDirectoryEntry;
 
+/**
+ * A FAT directory, kept as the raw 32-byte slots read from disk. Adding a 
+ * sector only copies its bytes and notes which slots each entry spans; 
+ * the fields of an entry are decoded from the slots when they are asked 
+ * for, and an entry object is only made for the entries a caller actually 
+ * looks at.
+ */
 public class FATDirectory extends FSDirectory {
-	private FATDirectoryEntry partialDirEntry = null;
+	private static final int SLOT = Util.SIZE_DIR_ENTRY;
+	
+	// every slot of the directory, one after another, exactly as read
+	private byte[] slots = new byte[16 * SLOT];
+	private int slotCount;
+	
+	// for each entry, the slot holding its short name entry and the first 
+	// of the long name entries before it, which is the same slot if it 
+	// has no long name
+	private int[] shortSlots = new int[16];
+	private int[] firstSlots = new int[16];
+	private int entryCount;
+	
+	// the first slot of a set of long name entries which the end of the 
+	// last sector cut off before its short name entry, or -1
+	private int pendingFirstSlot = -1;
+	
+	// the entries made so far
+	private FATDirectoryEntry[] made = new FATDirectoryEntry[16];
 	
 	void setName(String dirName) {
 		this.dirName = dirName;
@@ -41,61 +67,130 @@ public class FATDirectory extends FSDirectory {
 		this.parent = parent;
 	}
 	
-	void addEntries(byte[] directorySector) {
-		List<FSDirectoryEntry> dirEntries = new ArrayList<FSDirectoryEntry>();
+	synchronized void addEntries(ByteBuffer directorySector) {
+		int newSlots = directorySector.remaining() / SLOT;
+		if ((slotCount + newSlots) * SLOT > slots.length) {
+			slots = Arrays.copyOf(slots, Math.max(slots.length * 2, (slotCount + newSlots) * SLOT));
+		}
+		directorySector.get(slots, slotCount * SLOT, newSlots * SLOT);
 		
-		for (int i = 0; i < directorySector.length; i += 32) {
-			FATDirectoryEntry de;
-			if (partialDirEntry != null) {
-				de = partialDirEntry;
-				partialDirEntry = null;
-			} else {
-				de = new FATDirectoryEntry(this);
+		int end = slotCount + newSlots;
+		for (int slot = slotCount; slot < end; slot++) {
+			int offset = slot * SLOT;
+			
+			// normally should stop all processing upon finding an empty 
+			// directory entry, but gonna keep going just in case. A long 
+			// name with no short name entry after it is dropped.
+			if (emptyEntry(offset)) {
+				pendingFirstSlot = -1;
+				continue;
 			}
 			
-			boolean finishedCreating = false;
-			while (!finishedCreating) {
-				if (i >= directorySector.length) {
-					break;
-				}
-				
-				byte[] directoryEntry = Arrays.copyOfRange(directorySector, i, i + 32);
-				
-				// make sure we aren't trying to build an entry with no data
-				// normally should stop all processing upon finding an empty
-				// directory entry, but gonna keep going just in case
-				if (emptyEntry(directoryEntry)) {
-					finishedCreating = true;
-					break;
-				}
-				
-				// longname entries are listed in reverse order, before the 
-				// corresponding shortname entry, add each new entry to the 
-				// beginning of the list until the shortname entry is found
-				if (de.addDataStructure(directoryEntry)) {
-					finishedCreating = true;
-				} else {
-					i += 32;
+			// longname entries are listed in reverse order, before the 
+			// corresponding shortname entry, so the entry isn't complete 
+			// until the shortname entry is found
+			if ((slots[offset + FATDirectoryEntry.DIR_ATTRIBUTES] & 0xff) == Util.ATTR_LONG_NAME) {
+				if (pendingFirstSlot < 0) {
+					pendingFirstSlot = slot;
 				}
+				continue;
+			}
+			
+			int firstSlot = pendingFirstSlot < 0 ? slot : pendingFirstSlot;
+			pendingFirstSlot = -1;
+			if (checksumsMatch(firstSlot, slot)) {
+				addEntry(firstSlot, slot);
 			}
-			if (!finishedCreating) {
-				// in case an entry was cut off by the end of the given sector
-				// save the progress to finish up in the next sector
-				partialDirEntry = de;
-			} else {
-				de.generateName();
-				if (de.verifyDataStructures()) {
-					dirEntries.add(de);
+		}
+		slotCount = end;
+	}
+	
+	/**
+	 * Get the entries of the directory. The list is fixed at the entries 
+	 * read so far, and makes each entry the first time it is asked for.
+	 * 
+	 * @return The contents of the directory
+	 */
+	@Override
+	public synchronized List<FSDirectoryEntry> listDirectory() {
+		final int count = entryCount;
+		return new AbstractList<FSDirectoryEntry>() {
+			@Override
+			public FSDirectoryEntry get(int index) {
+				if (index < 0 || index >= count) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
 				}
+				return getEntry(index);
+			}
+			
+			@Override
+			public int size() {
+				return count;
 			}
+		};
+	}
+	
+	/**
+	 * Get the number of entries in the directory without making any of 
+	 * them.
+	 * 
+	 * @return The number of entries
+	 */
+	public synchronized int getEntryCount() {
+		return entryCount;
+	}
+	
+	synchronized FATDirectoryEntry getEntry(int index) {
+		FATDirectoryEntry entry = made[index];
+		if (entry == null) {
+			entry = new FATDirectoryEntry(this, firstSlots[index], shortSlots[index]);
+			made[index] = entry;
+		}
+		return entry;
+	}
+	
+	/**
+	 * Get the slots the entries read their fields from.
+	 * 
+	 * @return The raw slots of the directory
+	 */
+	synchronized byte[] getSlots() {
+		return slots;
+	}
+	
+	private void addEntry(int firstSlot, int shortSlot) {
+		if (entryCount == shortSlots.length) {
+			shortSlots = Arrays.copyOf(shortSlots, entryCount * 2);
+			firstSlots = Arrays.copyOf(firstSlots, entryCount * 2);
+			made = Arrays.copyOf(made, entryCount * 2);
+		}
+		shortSlots[entryCount] = shortSlot;
+		firstSlots[entryCount] = firstSlot;
+		entryCount++;
+	}
+	
+	/*
+	 * Each long name entry holds the checksum of the short name it belongs 
+	 * to, so a long name left over from a deleted or renamed file isn't 
+	 * put on the wrong entry.
+	 */
+	private boolean checksumsMatch(int firstSlot, int shortSlot) {
+		if (firstSlot == shortSlot) {
+			return true;
 		}
 		
-		this.entries.addAll(dirEntries);
+		int checksum = FATDirectoryEntry.checksum(slots, shortSlot * SLOT);
+		for (int slot = firstSlot; slot < shortSlot; slot++) {
+			if ((slots[slot * SLOT + FATDirectoryEntry.LDIR_CHECKSUM] & 0xff) != checksum) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
-	private boolean emptyEntry(byte[] entry) {
-		for (int i = 0; i < entry.length; i++) {
-			if (entry[i] != 0) {
+	private boolean emptyEntry(int offset) {
+		for (int i = offset; i < offset + SLOT; i++) {
+			if (slots[i] != 0) {
 				return false;
 			}
 		}
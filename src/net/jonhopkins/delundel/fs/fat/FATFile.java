@@ -23,16 +23,17 @@
  */
 package net.jonhopkins.delundel.fs.fat;
 
-import java.util.List;
-
 import net.jonhopkins.delundel.fs.FSDirectory;
 import net.jonhopkins.delundel.fs.FSFile;
 
 public class FATFile extends FSFile {
-	private List<Integer> clusterChain;
+	private ClusterChain clusterChain;
 	private int sectorsPerCluster;
+	private int bytesPerSector;
 	private int currentCluster = 0;
+	private int currentExtent = 0;
 	private int currentSector = 0;
+	private long position = 0;
 	private long dataLeft;
 	
 	void setFileName(String fileName) {
@@ -45,7 +46,7 @@ public class FATFile extends FSFile {
 		this.parent = parent;
 	}
 	
-	void setClusterChain(List<Integer> clusterChain) {
+	void setClusterChain(ClusterChain clusterChain) {
 		this.clusterChain = clusterChain;
 	}
 	
@@ -58,12 +59,44 @@ public class FATFile extends FSFile {
 		this.sectorsPerCluster = sectorsPerCluster;
 	}
 	
+	void setBytesPerSector(int bytesPerSector) {
+		this.bytesPerSector = bytesPerSector;
+	}
+	
 	public boolean isEndOfFile() {
 		return dataLeft <= 0;
 	}
 	
+	ClusterChain getClusterChain() {
+		return clusterChain;
+	}
+	
+	/**
+	 * Get the cluster holding the current position in the file.
+	 * 
+	 * @return The current cluster, or -1 if the cluster chain ends before 
+	 *         the size of the file says it should
+	 */
 	int getCurrentCluster() {
-		return clusterChain.get(currentCluster);
+		if (currentCluster >= clusterChain.size()) {
+			return -1;
+		}
+		return clusterChain.getExtentStart(currentExtent)
+				+ (currentCluster - clusterChain.getExtentOffset(currentExtent));
+	}
+	
+	/**
+	 * Get the number of clusters, including the current one, which follow 
+	 * on from each other on disk before the file jumps elsewhere.
+	 * 
+	 * @return The number of clusters left in the current run
+	 */
+	int getClustersLeftInRun() {
+		if (currentCluster >= clusterChain.size()) {
+			return 0;
+		}
+		return clusterChain.getExtentOffset(currentExtent)
+				+ clusterChain.getExtentLength(currentExtent) - currentCluster;
 	}
 	
 	/**
@@ -79,12 +112,38 @@ public class FATFile extends FSFile {
 		return dataLeft;
 	}
 	
+	/**
+	 * Get the number of bytes of the file that have been read so far.
+	 * 
+	 * @return The position within the file
+	 */
+	long getPosition() {
+		return position;
+	}
+	
 	void advancePosition(int amount) {
 		dataLeft -= amount;
-		currentSector++;
-		if (currentSector >= sectorsPerCluster) {
-			currentSector = 0;
-			currentCluster++;
+		position += amount;
+		
+		long bytesPerCluster = (long)bytesPerSector * sectorsPerCluster;
+		currentCluster = (int)(position / bytesPerCluster);
+		currentSector = (int)(position % bytesPerCluster) / bytesPerSector;
+		
+		if (currentCluster >= clusterChain.size() || extentHolds(currentExtent)) {
+			return;
 		}
+		// reads move forward through the file, so the cluster is usually in 
+		// the next extent; otherwise search for it
+		if (currentExtent + 1 < clusterChain.getExtentCount() && extentHolds(currentExtent + 1)) {
+			currentExtent++;
+		} else {
+			currentExtent = clusterChain.findExtent(currentCluster);
+		}
+	}
+	
+	private boolean extentHolds(int extent) {
+		int offset = clusterChain.getExtentOffset(extent);
+		return currentCluster >= offset
+				&& currentCluster - offset < clusterChain.getExtentLength(extent);
 	}
 }
@@ -0,0 +1,403 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+/**
+ * The layout of one FAT volume, as given by its BPB, with the positions 
+ * of its regions worked out once up front. It never changes once read, 
+ * so it can be shared freely between threads, and every mounted volume 
+ * has its own.
+ * <p>
+ * All sector numbers are relative to sector 0 of the volume, which holds 
+ * the BPB.
+ */
+public final class FATGeometry {
+	/**
+	 * Count of bytes per sector. This value may take on only the
+	 * following values: 512, 1024, 2048 or 4096. If maximum
+	 * compatibility with old implementations is desired, only the value
+	 * 512 should be used. There is a lot of FAT code in the world that is
+	 * basically “hard wired” to 512 bytes per sector and doesn’t bother to
+	 * check this field to make sure it is 512. Microsoft operating systems
+	 * will properly support 1024, 2048, and 4096.
+	 * <p>
+	 * Note: Do not misinterpret these statements about maximum
+	 * compatibility. If the media being recorded has a physical sector size
+	 * N, you must use N and this must still be less than or equal to 4096.
+	 * Maximum compatibility is achieved by only using media with
+	 * specific sector sizes.
+	 * <p>
+	 * offset: 11<br>
+	 * size: 2<br>
+	 */
+	private final int bytesPerSector;
+	
+	/**
+	 * Number of sectors per allocation unit. This value must be a power
+	 * of 2 that is greater than 0. The legal values are 1, 2, 4, 8, 16, 32, 64,
+	 * and 128. Note however, that a value should never be used that
+	 * results in a “bytes per cluster” value (BPB_BytsPerSec *
+	 * BPB_SecPerClus) greater than 32K (32 * 1024). There is a
+	 * misconception that values greater than this are OK. Values that
+	 * cause a cluster size greater than 32K bytes do not work properly; do
+	 * not try to define one. Some versions of some systems allow 64K
+	 * bytes per cluster value. Many application setup programs will not
+	 * work correctly on such a FAT volume.
+	 * <p>
+	 * offset: 13<br>
+	 * size: 1<br>
+	 */
+	private final int sectorsPerCluster;
+	
+	/**
+	 * Number of reserved sectors in the Reserved region of the volume
+	 * starting at the first sector of the volume. This field must not be 0.
+	 * For FAT12 and FAT16 volumes, this value should never be
+	 * anything other than 1. For FAT32 volumes, this value is typically
+	 * 32. There is a lot of FAT code in the world “hard wired” to 1
+	 * reserved sector for FAT12 and FAT16 volumes and that doesn’t
+	 * bother to check this field to make sure it is 1. Microsoft operating
+	 * systems will properly support any non-zero value in this field.
+	 * <p>
+	 * offset: 14<br>
+	 * size: 2<br>
+	 */
+	private final int reservedSectorCount;
+	
+	/**
+	 * The count of FAT data structures on the volume. This field should
+	 * always contain the value 2 for any FAT volume of any type.
+	 * Although any value greater than or equal to 1 is perfectly valid,
+	 * many software programs and a few operating systems’ FAT file
+	 * system drivers may not function properly if the value is something
+	 * other than 2. All Microsoft file system drivers will support a value
+	 * other than 2, but it is still highly recommended that no value other
+	 * than 2 be used in this field.
+	 * <p>
+	 * The reason the standard value for this field is 2 is to provide redundancy
+	 * for the FAT data structure so that if a sector goes bad in one
+	 * of the FATs, that data is not lost because it is duplicated in the other
+	 * FAT. On non-disk-based media, such as FLASH memory cards,
+	 * where such redundancy is a useless feature, a value of 1 may be
+	 * used to save the space that a second copy of the FAT uses, but
+	 * some FAT file system drivers might not recognize such a volume
+	 * properly.
+	 * <p>
+	 * offset: 16<br>
+	 * size: 1<br>
+	 */
+	private final int fatCount;
+	
+	/**
+	 * For FAT12 and FAT16 volumes, this field contains the count of 32-
+	 * byte directory entries in the root directory. For FAT32 volumes,
+	 * this field must be set to 0. For FAT12 and FAT16 volumes, this
+	 * value should always specify a count that when multiplied by 32
+	 * results in an even multiple of BPB_BytsPerSec. For maximum
+	 * compatibility, FAT16 volumes should use the value 512.
+	 * <p>
+	 * offset: 17<br>
+	 * size: 2<br>
+	 */
+	private final int rootEntryCount;
+	
+	/**
+	 * 0xF8 is the standard value for “fixed” (non-removable) media. For
+	 * removable media, 0xF0 is frequently used. The legal values for this
+	 * field are 0xF0, 0xF8, 0xF9, 0xFA, 0xFB, 0xFC, 0xFD, 0xFE, and
+	 * 0xFF. The only other important point is that whatever value is put
+	 * in here must also be put in the low byte of the FAT[0] entry. This
+	 * dates back to the old MS-DOS 1.x media determination noted
+	 * earlier and is no longer usually used for anything.
+	 * <p>
+	 * offset: 21<br>
+	 * size: 1<br>
+	 */
+	private final int mediaType;
+	
+	/**
+	 * The count of sectors occupied by ONE FAT. On FAT12 and FAT16 
+	 * volumes this is the 16-bit BPB_FATSz16. On FAT32 volumes that field 
+	 * must be 0, and the 32-bit BPB_FATSz32 contains the FAT size count.
+	 * <p>
+	 * offset: 22 (BPB_FATSz16), 36 (BPB_FATSz32)<br>
+	 * size: 2 (BPB_FATSz16), 4 (BPB_FATSz32)<br>
+	 */
+	private final int fatSize;
+	
+	/**
+	 * The total count of sectors on the volume. This count includes the 
+	 * count of all sectors in all four regions of the volume. The old 
+	 * 16-bit BPB_TotSec16 holds it if it fits (is less than 0x10000) and 
+	 * the volume is not FAT32; otherwise BPB_TotSec16 is 0 and the 32-bit 
+	 * BPB_TotSec32 holds it.
+	 * <p>
+	 * offset: 19 (BPB_TotSec16), 32 (BPB_TotSec32)<br>
+	 * size: 2 (BPB_TotSec16), 4 (BPB_TotSec32)<br>
+	 */
+	private final long totalSectors;
+	
+	/**
+	 * Sectors per track for interrupt 0x13. This field is only relevant for
+	 * media that have a geometry (volume is broken down into tracks by
+	 * multiple heads and cylinders) and are visible on interrupt 0x13.
+	 * This field contains the “sectors per track” geometry value.
+	 * <p>
+	 * offset: 24<br>
+	 * size: 2<br>
+	 */
+	private final int sectorsPerTrack;
+	
+	/**
+	 * Number of heads for interrupt 0x13. This field is relevant as
+	 * discussed earlier for BPB_SecPerTrk. This field contains the one
+	 * based “count of heads”. For example, on a 1.44 MB 3.5-inch floppy
+	 * drive this value is 2.
+	 * <p>
+	 * offset: 26<br>
+	 * size: 2<br>
+	 */
+	private final int headCount;
+	
+	/**
+	 * Count of hidden sectors preceding the partition that contains this
+	 * FAT volume. This field is generally only relevant for media visible
+	 * on interrupt 0x13. This field should always be zero on media that
+	 * are not partitioned. Exactly what value is appropriate is operating
+	 * system specific.
+	 * <p>
+	 * offset: 28<br>
+	 * size: 4<br>
+	 */
+	private final long hiddenSectorCount;
+	
+	private final int rootDirSectors;
+	private final long startOfRootDir;
+	private final long startOfDataRegion;
+	private final int clusterCount;
+	private final int entryBits;
+	
+	/**
+	 * Read the geometry from the BPB in a boot sector.
+	 * 
+	 * @param bootSector The first sector of the volume
+	 * @throws IllegalArgumentException If the BPB is not sane, as checked 
+	 *         by {@link FAT#hasValidBPB(byte[])}
+	 */
+	public FATGeometry(byte[] bootSector) {
+		if (!FAT.hasValidBPB(bootSector)) {
+			throw new IllegalArgumentException("Boot sector has no usable BPB");
+		}
+		
+		bytesPerSector = Util.unsignedInt(bootSector, 11, 2);
+		sectorsPerCluster = Util.unsignedInt(bootSector, 13, 1);
+		reservedSectorCount = Util.unsignedInt(bootSector, 14, 2);
+		fatCount = Util.unsignedInt(bootSector, 16, 1);
+		rootEntryCount = Util.unsignedInt(bootSector, 17, 2);
+		mediaType = Util.unsignedInt(bootSector, 21, 1);
+		sectorsPerTrack = Util.unsignedInt(bootSector, 24, 2);
+		headCount = Util.unsignedInt(bootSector, 26, 2);
+		hiddenSectorCount = Util.unsignedLong(bootSector, 28, 4);
+		
+		// the 32-bit fields only exist where the 16-bit ones are zero, 
+		// which is how the size of a FAT32 FAT can be found before knowing 
+		// that the volume is FAT32
+		int fatSize16 = Util.unsignedInt(bootSector, 22, 2);
+		fatSize = fatSize16 != 0 ? fatSize16 : Util.unsignedInt(bootSector, 36, 4);
+		int totalSectors16 = Util.unsignedInt(bootSector, 19, 2);
+		totalSectors = totalSectors16 != 0 ? totalSectors16 : Util.unsignedLong(bootSector, 32, 4);
+		
+		// rounds up; always 0 on FAT32, whose BPB_RootEntCnt is 0
+		rootDirSectors = ((rootEntryCount * Util.SIZE_DIR_ENTRY) + (bytesPerSector - 1))
+				/ bytesPerSector;
+		startOfRootDir = reservedSectorCount + (long)fatCount * fatSize;
+		startOfDataRegion = startOfRootDir + rootDirSectors;
+		clusterCount = (int)((totalSectors - startOfDataRegion) / sectorsPerCluster);
+		
+		/*
+		 * This is the one and only way that FAT type is determined. There 
+		 * is no such thing as a FAT12 volume that has more than 4084 
+		 * clusters. There is no such thing as a FAT16 volume that has less 
+		 * than 4085 clusters or more than 65,524 clusters. There is no such 
+		 * thing as a FAT32 volume that has less than 65,525 clusters.
+		 */
+		if (clusterCount < 4085) {
+			entryBits = 12;
+		} else if (clusterCount < 65525) {
+			entryBits = 16;
+		} else {
+			entryBits = 32;
+		}
+	}
+	
+	public int getBytesPerSector() {
+		return bytesPerSector;
+	}
+	
+	public int getSectorsPerCluster() {
+		return sectorsPerCluster;
+	}
+	
+	public int getBytesPerCluster() {
+		return bytesPerSector * sectorsPerCluster;
+	}
+	
+	public int getReservedSectorCount() {
+		return reservedSectorCount;
+	}
+	
+	/**
+	 * Get the number of copies of the FAT.
+	 * 
+	 * @return The number of FATs
+	 */
+	public int getFATCount() {
+		return fatCount;
+	}
+	
+	public int getRootEntryCount() {
+		return rootEntryCount;
+	}
+	
+	public int getMediaType() {
+		return mediaType;
+	}
+	
+	/**
+	 * Get the number of sectors occupied by one copy of the FAT.
+	 * 
+	 * @return The size of the FAT
+	 */
+	public int getFATSize() {
+		return fatSize;
+	}
+	
+	public long getTotalSectors() {
+		return totalSectors;
+	}
+	
+	public int getSectorsPerTrack() {
+		return sectorsPerTrack;
+	}
+	
+	public int getHeadCount() {
+		return headCount;
+	}
+	
+	public long getHiddenSectorCount() {
+		return hiddenSectorCount;
+	}
+	
+	/**
+	 * Get the number of sectors occupied by the root directory, which is 
+	 * 0 on FAT32, where the root directory is a cluster chain.
+	 * 
+	 * @return The size of the root directory region
+	 */
+	public int getRootDirSectors() {
+		return rootDirSectors;
+	}
+	
+	/**
+	 * Get the first sector of the first copy of the FAT.
+	 * 
+	 * @return The start of the FAT
+	 */
+	public int getStartOfFAT() {
+		return reservedSectorCount;
+	}
+	
+	/**
+	 * Get the first sector of one copy of the FAT.
+	 * 
+	 * @param copy The copy, counting from 0
+	 * @return The start of that copy
+	 */
+	public long getStartOfFAT(int copy) {
+		return reservedSectorCount + (long)copy * fatSize;
+	}
+	
+	public long getStartOfRootDir() {
+		return startOfRootDir;
+	}
+	
+	/**
+	 * Get the first sector of the data region, which is the same as the 
+	 * first sector of cluster 2.
+	 * 
+	 * @return The start of the data region
+	 */
+	public long getStartOfDataRegion() {
+		return startOfDataRegion;
+	}
+	
+	public long getSectorsInDataRegion() {
+		return totalSectors - startOfDataRegion;
+	}
+	
+	/**
+	 * Get the number of clusters in the data region. Clusters are numbered 
+	 * from 2, so the last cluster is one more than this.
+	 * 
+	 * @return The number of data clusters
+	 */
+	public int getClusterCount() {
+		return clusterCount;
+	}
+	
+	/**
+	 * Get the width of one FAT entry, which is what makes a volume FAT12, 
+	 * FAT16 or FAT32.
+	 * 
+	 * @return 12, 16 or 32
+	 */
+	public int getEntryBits() {
+		return entryBits;
+	}
+	
+	/**
+	 * Given any valid data cluster, get the first sector of that cluster.
+	 * 
+	 * @param cluster The cluster whose location is to be calculated
+	 * @return The location of the start of the given cluster
+	 */
+	public long startOfCluster(int cluster) {
+		return ((long)(cluster - 2) * sectorsPerCluster) + startOfDataRegion;
+	}
+	
+	/**
+	 * Find the cluster holding a sector.
+	 * 
+	 * @param sector The sector
+	 * @return The cluster, or -1 if the sector is outside of the data region
+	 */
+	public int clusterOfSector(long sector) {
+		long offset = sector - startOfDataRegion;
+		if (offset < 0) {
+			return -1;
+		}
+		long cluster = offset / sectorsPerCluster + 2;
+		return cluster < clusterCount + 2L ? (int)cluster : -1;
+	}
+}
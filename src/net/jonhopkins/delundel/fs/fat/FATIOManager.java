@@ -26,19 +26,93 @@ package net.jonhopkins.delundel.fs.fat;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.jonhopkins.delundel.fs.FSIOManager;
 
+/**
+ * Reads and writes sectors of a dump file. Reads use positional reads on 
+ * the file's channel, so one manager can be shared by any number of 
+ * threads reading at once. Writes and flushes wait for reads in progress 
+ * to finish, so a read never sees a sector half written.
+ */
 public class FATIOManager implements FSIOManager {
+	/**
+	 * Default number of bytes of sector data to keep cached, 8 MB.
+	 */
+	public static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+	
+	/**
+	 * Default number of bytes of written sectors to hold before they are 
+	 * flushed to the file, 4 MB.
+	 */
+	public static final long DEFAULT_WRITE_BUFFER_SIZE = 4 * 1024 * 1024;
+	
 	private RandomAccessFile handle;
-	private int lastReadSectorNumber;
-	private byte[] lastReadSector;
+	private SectorCache cache;
+	private boolean writable;
+	
+	// sectors written but not yet flushed, keyed by byte offset
+	private TreeMap<Long, byte[]> dirtySectors;
+	private long dirtyBytes;
+	private int largestDirtySector;
+	private long writeBufferSize;
+	
+	// held for reading around every read from the file and for writing 
+	// whenever the dirty sectors or the file change
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
 	
 	public FATIOManager(String filename) {
+		this(filename, false);
+	}
+	
+	/**
+	 * Open a dump file, optionally allowing sectors to be written.
+	 * 
+	 * @param filename The dump file to open
+	 * @param writable Whether to open the file for writing
+	 */
+	public FATIOManager(String filename, boolean writable) {
+		this(filename, writable, DEFAULT_CACHE_SIZE, SectorCache.EvictionPolicy.SEGMENTED_LRU);
+	}
+	
+	/**
+	 * Open a dump file for reading with a sector cache of the given size.
+	 * 
+	 * @param filename The dump file to open
+	 * @param cacheSize The number of bytes of sector data to cache
+	 * @param policy How to choose which sectors to drop from the cache
+	 */
+	public FATIOManager(String filename, long cacheSize, SectorCache.EvictionPolicy policy) {
+		this(filename, false, cacheSize, policy);
+	}
+	
+	/**
+	 * Open a dump file with a sector cache of the given size.
+	 * 
+	 * @param filename The dump file to open
+	 * @param writable Whether to open the file for writing
+	 * @param cacheSize The number of bytes of sector data to cache
+	 * @param policy How to choose which sectors to drop from the cache
+	 */
+	public FATIOManager(String filename, boolean writable, long cacheSize,
+			SectorCache.EvictionPolicy policy) {
+		this.writable = writable;
+		cache = new SectorCache(cacheSize, policy);
+		dirtySectors = new TreeMap<Long, byte[]>();
+		writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
 		try {
-			handle = new RandomAccessFile(filename, "r");
-			lastReadSectorNumber = -1;
+			handle = new RandomAccessFile(filename, writable ? "rw" : "r");
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			System.exit(-1);
@@ -46,40 +120,270 @@ public class FATIOManager implements FSIOManager {
 	}
 	
 	@Override
-	public byte[] readSector(int sectorNumber, int size) {
+	public byte[] readSector(long sectorNumber, int size) {
 		if (sectorNumber < 0) {
 			return null;
 		}
 		
-		if (sectorNumber == lastReadSectorNumber) {
-			return Arrays.copyOf(lastReadSector, lastReadSector.length);
+		byte[] sector = new byte[size];
+		if (!readSectorInto(sectorNumber, size, ByteBuffer.wrap(sector))) {
+			return null;
+		}
+		
+		return sector;
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		if (count == 1) {
+			return readSector(startSector, size);
+		}
+		if (startSector < 0 || count < 0) {
+			return null;
 		}
 		
-		lastReadSector = new byte[size];
+		// large runs would only flush the cache, so they bypass it
+		byte[] sectors = new byte[count * size];
+		lock.readLock().lock();
 		try {
-			handle.seek(sectorNumber * size);
-			handle.readFully(lastReadSector);
-			lastReadSectorNumber = sectorNumber;
+			if (!readFully(startSector * size, ByteBuffer.wrap(sectors))) {
+				return null;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		
+		return sectors;
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		if (sectorNumber < 0) {
+			return false;
+		}
+		
+		long offset = sectorNumber * size;
+		int length = dst.remaining();
+		lock.readLock().lock();
+		try {
+			if (length > size) {
+				// multi-sector reads go straight into the caller's buffer
+				return readFully(offset, dst);
+			}
+			
+			if (cache.read(offset, dst)) {
+				return true;
+			}
+			
+			// the cache takes the array, so copy out of it before handing 
+			// it over, while no other thread can have evicted it yet
+			byte[] sector = cache.allocate(size);
+			if (!readFully(offset, ByteBuffer.wrap(sector))) {
+				return false;
+			}
+			dst.put(sector, 0, length);
+			cache.put(offset, sector);
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		byte[] sectors = readSectors(startSector, count, size);
+		if (sectors == null) {
+			future.completeExceptionally(new IOException("Could not read sectors "
+					+ startSector + "+" + count));
+		} else {
+			future.complete(ByteBuffer.wrap(sectors));
+		}
+		return future;
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return writable;
+	}
+	
+	/**
+	 * Buffer a sector to be written to the file. Written sectors are held 
+	 * until {@link #flush()} is called, the file is closed, or more than 
+	 * {@link #getWriteBufferSize()} bytes are waiting, so that runs of 
+	 * adjacent sectors can be written in one operation.
+	 * <p>
+	 * Reads always see sectors that are waiting to be written.
+	 * 
+	 * @param sectorNumber The sector to write
+	 * @param data The new contents of the sector
+	 */
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		if (!writable) {
+			throw new IllegalStateException("Dump file was opened read-only");
+		}
+		if (sectorNumber < 0) {
+			return;
+		}
+		
+		long offset = sectorNumber * data.length;
+		byte[] copy = Arrays.copyOf(data, data.length);
+		lock.writeLock().lock();
+		try {
+			byte[] old = dirtySectors.put(offset, copy);
+			if (old != null) {
+				dirtyBytes -= old.length;
+			}
+			dirtyBytes += data.length;
+			largestDirtySector = Math.max(largestDirtySector, data.length);
+			cache.remove(offset);
+			
+			if (dirtyBytes > writeBufferSize) {
+				flushDirtySectors();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Write every buffered sector to the file. Adjacent sectors are 
+	 * gathered into a single write.
+	 */
+	@Override
+	public void flush() {
+		lock.writeLock().lock();
+		try {
+			flushDirtySectors();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	public long getWriteBufferSize() {
+		return writeBufferSize;
+	}
+	
+	public void setWriteBufferSize(long writeBufferSize) {
+		this.writeBufferSize = writeBufferSize;
+	}
+	
+	/**
+	 * Get the sector cache, e.g. to query its hit and miss counts.
+	 * 
+	 * @return The sector cache
+	 */
+	public SectorCache getCache() {
+		return cache;
+	}
+	
+	private void flushDirtySectors() {
+		if (dirtySectors.isEmpty()) {
+			return;
+		}
+		
+		FileChannel channel = handle.getChannel();
+		List<ByteBuffer> run = new ArrayList<ByteBuffer>();
+		Iterator<Map.Entry<Long, byte[]>> it = dirtySectors.entrySet().iterator();
+		long runStart = -1;
+		long runEnd = -1;
+		
+		try {
+			while (it.hasNext()) {
+				Map.Entry<Long, byte[]> sector = it.next();
+				if (sector.getKey() != runEnd) {
+					writeRun(channel, runStart, run);
+					runStart = sector.getKey();
+					runEnd = runStart;
+				}
+				run.add(ByteBuffer.wrap(sector.getValue()));
+				runEnd += sector.getValue().length;
+			}
+			writeRun(channel, runStart, run);
 		} catch (IOException e) {
+			// keep the sectors, so a later flush can try again
 			e.printStackTrace();
-			return null;
+			return;
 		}
 		
-		return Arrays.copyOf(lastReadSector, size);
+		dirtySectors.clear();
+		dirtyBytes = 0;
+		largestDirtySector = 0;
 	}
 	
-	@Override
-	public void writeSector(int sectorNumber, byte[] data) {
-		// TODO Auto-generated method stub
+	private void writeRun(FileChannel channel, long offset, List<ByteBuffer> run)
+			throws IOException {
+		if (run.isEmpty()) {
+			return;
+		}
 		
+		// moving the channel's position is safe, since the write lock is 
+		// held and reads never use it
+		ByteBuffer[] buffers = run.toArray(new ByteBuffer[run.size()]);
+		channel.position(offset);
+		while (buffers[buffers.length - 1].hasRemaining()) {
+			channel.write(buffers);
+		}
+		run.clear();
+	}
+	
+	/**
+	 * Read from the file into {@code dst}, then patch in any overlapping 
+	 * sectors which haven't been flushed yet. The caller must hold the 
+	 * read lock.
+	 */
+	private boolean readFully(long offset, ByteBuffer dst) {
+		FileChannel channel = handle.getChannel();
+		int start = dst.position();
+		long position = offset;
+		try {
+			while (dst.hasRemaining()) {
+				int read = channel.read(dst, position);
+				if (read < 0) {
+					return false;
+				}
+				position += read;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		if (!dirtySectors.isEmpty()) {
+			applyDirtySectors(offset, dst, start);
+		}
+		return true;
+	}
+	
+	private void applyDirtySectors(long offset, ByteBuffer dst, int start) {
+		long end = offset + (dst.position() - start);
+		for (Map.Entry<Long, byte[]> sector : dirtySectors.subMap(
+				offset - largestDirtySector + 1, true, end, false).entrySet()) {
+			long sectorStart = sector.getKey();
+			byte[] data = sector.getValue();
+			long from = Math.max(sectorStart, offset);
+			long to = Math.min(sectorStart + data.length, end);
+			for (long i = from; i < to; i++) {
+				dst.put(start + (int)(i - offset), data[(int)(i - sectorStart)]);
+			}
+		}
 	}
 	
 	@Override
 	public void close() {
+		lock.writeLock().lock();
 		try {
+			flushDirtySectors();
+			cache.clear();
+			if (writable) {
+				handle.getChannel().force(false);
+			}
 			handle.close();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 }
@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.jonhopkins.delundel.fs.FSDetector;
+import net.jonhopkins.delundel.fs.FSFileSystem;
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.Partition;
+import net.jonhopkins.delundel.fs.PartitionScanner;
+import net.jonhopkins.delundel.fs.PartitionTask;
+
+/**
+ * Finds the FAT volumes in an image file, which may be a whole disk with 
+ * an MBR or GPT partition table or a single volume. The partition table is 
+ * read once, and a partition is only mounted when it is asked for. Work on 
+ * several partitions can be spread over a number of worker threads.
+ */
+public class FATImageDetector extends FSDetector {
+	/**
+	 * The default number of partitions processed at once, one per 
+	 * processor. No more workers are started than there are partitions.
+	 */
+	public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+	
+	private String filename;
+	private int workers;
+	private List<Partition> partitions;
+	private volatile BadSectorMap badSectors;
+	private volatile FATMirrors.Policy mirrorPolicy = FATMirrors.Policy.ACTIVE;
+	private volatile long fatCacheBudget = FATPageCache.DEFAULT_BUDGET;
+	
+	public FATImageDetector(String filename) {
+		this(filename, DEFAULT_WORKERS);
+	}
+	
+	/**
+	 * @param filename The image file
+	 * @param workers The number of partitions to process at once
+	 */
+	public FATImageDetector(String filename, int workers) {
+		this.filename = filename;
+		this.workers = Math.max(1, workers);
+	}
+	
+	/**
+	 * Read the image through a {@link ResilientIOManager} from now on, so 
+	 * that unreadable sectors are zero-filled and recorded rather than 
+	 * failing the read.
+	 * 
+	 * @param badSectors The map to record unreadable sectors in, shared by 
+	 *        every partition, or null to read the image directly
+	 */
+	public void setBadSectorMap(BadSectorMap badSectors) {
+		this.badSectors = badSectors;
+	}
+	
+	public BadSectorMap getBadSectorMap() {
+		return badSectors;
+	}
+	
+	/**
+	 * Choose which copy of the FAT the partitions of this image read when 
+	 * they are mounted from now on.
+	 * 
+	 * @param policy How to choose the copy
+	 */
+	public void setMirrorPolicy(FATMirrors.Policy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("No policy for choosing the FAT");
+		}
+		this.mirrorPolicy = policy;
+	}
+	
+	public FATMirrors.Policy getMirrorPolicy() {
+		return mirrorPolicy;
+	}
+	
+	/**
+	 * Set the most memory each FAT32 partition of this image mounted from 
+	 * now on keeps pages of its FAT in, e.g. to look at a large disk on a 
+	 * machine with little memory.
+	 * 
+	 * @param budget The budget in bytes
+	 */
+	public void setFATCacheBudget(long budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("Negative FAT cache budget " + budget);
+		}
+		this.fatCacheBudget = budget;
+	}
+	
+	public long getFATCacheBudget() {
+		return fatCacheBudget;
+	}
+	
+	/**
+	 * Get the partitions in the image, whatever filesystem they hold. The 
+	 * partition table is read the first time this is called.
+	 * 
+	 * @return The partitions in the image
+	 */
+	public synchronized List<Partition> getPartitions() {
+		if (partitions == null) {
+			FSIOManager image = openImage();
+			PartitionScanner scanner = new PartitionScanner(image, new File(filename).length());
+			partitions = Collections.unmodifiableList(scanner.scan());
+			image.close();
+		}
+		return partitions;
+	}
+	
+	/**
+	 * Mount the FAT volume on a partition. Each call opens the image again, 
+	 * so the filesystem returned is independent of any other and should be 
+	 * unmounted when it is no longer needed.
+	 * 
+	 * @param partition A partition of this image
+	 * @return The filesystem, or null if the partition doesn't hold a FAT 
+	 *         volume
+	 */
+	public FSFileSystem mount(Partition partition) {
+		FSIOManager ioManager = partition.open(openImage());
+		byte[] bootSector = ioManager.readSector(0, 512);
+		if (bootSector == null || !FAT.isFAT(bootSector)) {
+			ioManager.close();
+			return null;
+		}
+		return FAT.getFAT(ioManager, mirrorPolicy, fatCacheBudget);
+	}
+	
+	/**
+	 * Run a task on every partition of the image, mounting each partition 
+	 * just for the task and unmounting it afterwards. Up to the configured 
+	 * number of partitions are processed at once.
+	 * 
+	 * @param task The work to do on each partition
+	 * @return The results of the task, in partition order. The result for 
+	 *         a partition is null if its task failed.
+	 */
+	public <T> List<T> processPartitions(final PartitionTask<T> task) {
+		List<Callable<T>> jobs = new ArrayList<Callable<T>>();
+		for (final Partition partition : getPartitions()) {
+			jobs.add(new Callable<T>() {
+				@Override
+				public T call() {
+					FSFileSystem filesystem = mount(partition);
+					try {
+						return task.process(partition, filesystem);
+					} finally {
+						if (filesystem != null) {
+							filesystem.unmount();
+						}
+					}
+				}
+			});
+		}
+		return run(jobs);
+	}
+	
+	/**
+	 * Mount every FAT volume in the image, so their names can be listed. 
+	 * The caller should unmount the ones it doesn't go on to use; to look 
+	 * at a single partition, use {@link #getPartitions()} and 
+	 * {@link #mount(Partition)} instead.
+	 */
+	@Override
+	public FSFileSystem[] detectFileSystems() {
+		List<Callable<FSFileSystem>> jobs = new ArrayList<Callable<FSFileSystem>>();
+		for (final Partition partition : getPartitions()) {
+			jobs.add(new Callable<FSFileSystem>() {
+				@Override
+				public FSFileSystem call() {
+					return mount(partition);
+				}
+			});
+		}
+		
+		List<FSFileSystem> filesystems = new ArrayList<FSFileSystem>();
+		for (FSFileSystem filesystem : run(jobs)) {
+			if (filesystem != null) {
+				filesystems.add(filesystem);
+			}
+		}
+		return filesystems.toArray(new FSFileSystem[filesystems.size()]);
+	}
+	
+	private FSIOManager openImage() {
+		FSIOManager image = new FATIOManager(filename);
+		BadSectorMap map = badSectors;
+		return map == null ? image : new ResilientIOManager(image, map);
+	}
+	
+	private <T> List<T> run(List<Callable<T>> jobs) {
+		List<T> results = new ArrayList<T>(jobs.size());
+		if (workers == 1 || jobs.size() <= 1) {
+			for (Callable<T> job : jobs) {
+				try {
+					results.add(job.call());
+				} catch (Exception e) {
+					e.printStackTrace();
+					results.add(null);
+				}
+			}
+			return results;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, jobs.size()));
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>(jobs.size());
+			for (Callable<T> job : jobs) {
+				futures.add(executor.submit(job));
+			}
+			for (Future<T> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					results.add(null);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					results.add(null);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+}
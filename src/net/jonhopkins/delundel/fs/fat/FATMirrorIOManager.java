@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+
+/**
+ * Serves reads of the first copy of the FAT from whichever copy has been 
+ * chosen for each of its sectors, so that the rest of the code can keep 
+ * reading the first copy while actually seeing a healthier one, or a 
+ * merge of several. Reads outside of the first copy pass straight through, 
+ * as do all writes.
+ */
+public class FATMirrorIOManager extends FilterIOManager {
+	private final long startOfFAT;
+	private final long fatSize;
+	private volatile byte[] copyForSector;
+	
+	/**
+	 * @param ioManager The volume
+	 * @param startOfFAT The first sector of the first copy of the FAT
+	 * @param fatSize The number of sectors in one copy of the FAT
+	 * @param copyForSector The copy to read each sector of the FAT from
+	 */
+	public FATMirrorIOManager(FSIOManager ioManager, long startOfFAT, long fatSize,
+			byte[] copyForSector) {
+		super(ioManager);
+		this.startOfFAT = startOfFAT;
+		this.fatSize = fatSize;
+		this.copyForSector = copyForSector.clone();
+	}
+	
+	/**
+	 * Change which copy each sector of the FAT is read from.
+	 * 
+	 * @param copyForSector The copy to read each sector of the FAT from
+	 */
+	public void setCopies(byte[] copyForSector) {
+		this.copyForSector = copyForSector.clone();
+	}
+	
+	/**
+	 * Get the copy a sector of the FAT is read from.
+	 * 
+	 * @param fatSector The sector, counted from the start of the FAT
+	 * @return The copy of the FAT it is read from
+	 */
+	public int getCopy(long fatSector) {
+		return copyForSector[(int)fatSector] & 0xFF;
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		return ioManager.readSector(map(sectorNumber, copyForSector), size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		byte[] sectors = new byte[count * size];
+		if (!readSectorInto(startSector, size, ByteBuffer.wrap(sectors))) {
+			return null;
+		}
+		return sectors;
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		byte[] copies = copyForSector;
+		long end = sectorNumber + (dst.remaining() + size - 1) / size;
+		if (end <= startOfFAT || sectorNumber >= startOfFAT + fatSize) {
+			return ioManager.readSectorInto(sectorNumber, size, dst);
+		}
+		
+		// split the read wherever the copy being read from changes
+		int limit = dst.limit();
+		try {
+			long sector = sectorNumber;
+			while (dst.position() < limit) {
+				long run = runLength(sector, end, copies);
+				dst.limit((int)Math.min(limit, dst.position() + run * size));
+				if (!ioManager.readSectorInto(map(sector, copies), size, dst)) {
+					return false;
+				}
+				sector += run;
+			}
+		} finally {
+			dst.limit(limit);
+		}
+		return true;
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		if (startSector + count <= startOfFAT || startSector >= startOfFAT + fatSize) {
+			return ioManager.readSectorsAsync(startSector, count, size);
+		}
+		
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		byte[] sectors = readSectors(startSector, count, size);
+		if (sectors == null) {
+			future.completeExceptionally(new IOException("Could not read sectors "
+					+ startSector + "+" + count));
+		} else {
+			future.complete(ByteBuffer.wrap(sectors));
+		}
+		return future;
+	}
+	
+	private long map(long sectorNumber, byte[] copies) {
+		long fatSector = sectorNumber - startOfFAT;
+		if (fatSector < 0 || fatSector >= fatSize) {
+			return sectorNumber;
+		}
+		return sectorNumber + (copies[(int)fatSector] & 0xFF) * fatSize;
+	}
+	
+	/**
+	 * Count the sectors from the given one which are read from the same 
+	 * place, stopping at the given end.
+	 */
+	private long runLength(long sector, long end, byte[] copies) {
+		if (sector < startOfFAT) {
+			return Math.min(end, startOfFAT) - sector;
+		}
+		long fatEnd = startOfFAT + fatSize;
+		if (sector >= fatEnd) {
+			return end - sector;
+		}
+		
+		int first = (int)(sector - startOfFAT);
+		int last = (int)(Math.min(end, fatEnd) - startOfFAT);
+		int i = first + 1;
+		while (i < last && copies[i] == copies[first]) {
+			i++;
+		}
+		return i - first;
+	}
+}
@@ -0,0 +1,508 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+
+/**
+ * Compares the copies of the FAT on a volume. The copies are read side by 
+ * side a chunk at a time and compared eight bytes at a go; only where they 
+ * differ are the entries decoded, to judge which copy looks right.
+ * <p>
+ * A copy is judged by the entries in the sectors where the copies 
+ * disagree: an entry pointing outside of the volume, or the media 
+ * descriptor not matching the boot sector, counts against it, and an 
+ * unreadable sector counts against it more than any number of bad entries.
+ * Any {@link ResilientIOManager} underneath is asked to make its reads 
+ * fail rather than fill them with zeros while the copies are read, since 
+ * an unreadable copy would otherwise pass for an empty one.
+ */
+public class FATMirrors {
+	
+	/**
+	 * Which copy of the FAT a volume reads when it is mounted, as passed 
+	 * to {@link FAT#getFAT(FSIOManager, Policy)}.
+	 */
+	public enum Policy {
+		/**
+		 * The first copy, or the active copy if a FAT32 volume has 
+		 * mirroring turned off. The copies are not compared.
+		 */
+		ACTIVE,
+		/** The copy which looks healthiest overall. */
+		HEALTHIEST,
+		/** For each sector of the FAT, the copy which looks healthiest there. */
+		MERGE
+	}
+	
+	private static final int CHUNK_SECTORS = 128;
+	
+	private final FAT fat;
+	
+	public FATMirrors(FAT fat) {
+		this.fat = fat;
+	}
+	
+	/**
+	 * Read and compare every copy of the FAT.
+	 * 
+	 * @return What was found
+	 */
+	public Report compare() {
+		FSIOManager ioManager = rawIOManager();
+		FATGeometry geometry = fat.getGeometry();
+		int copies = geometry.getFATCount();
+		int sectorSize = geometry.getBytesPerSector();
+		long fatSize = geometry.getFATSize();
+		long startOfFAT = geometry.getStartOfFAT();
+		
+		Report report = new Report(copies, fatSize, geometry.getEntryBits(), sectorSize,
+				fat.getActiveFAT());
+		ByteBuffer[] buffers = new ByteBuffer[copies];
+		for (int copy = 0; copy < copies; copy++) {
+			buffers[copy] = ByteBuffer.allocate(CHUNK_SECTORS * sectorSize)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		boolean[][] readable = new boolean[copies][CHUNK_SECTORS];
+		List<ResilientIOManager> resilient = resilientManagers(ioManager);
+		
+		for (long chunk = 0; chunk < fatSize; chunk += CHUNK_SECTORS) {
+			int sectors = (int)Math.min(CHUNK_SECTORS, fatSize - chunk);
+			setStrictReads(resilient, true);
+			try {
+				for (int copy = 0; copy < copies; copy++) {
+					readChunk(ioManager, startOfFAT + copy * fatSize + chunk, sectors,
+							sectorSize, buffers[copy], readable[copy]);
+				}
+			} finally {
+				setStrictReads(resilient, false);
+			}
+			
+			for (int i = 0; i < sectors; i++) {
+				long fatSector = chunk + i;
+				int offset = i * sectorSize;
+				boolean divergent = false;
+				for (int copy = 1; copy < copies; copy++) {
+					if (!sameSector(buffers[0], readable[0][i], buffers[copy],
+							readable[copy][i], offset, sectorSize)) {
+						report.differingSectors[copy]++;
+						divergent = true;
+					}
+				}
+				if (!divergent) {
+					continue;
+				}
+				
+				// the sector number, then each copy's score
+				long[] scores = new long[copies + 1];
+				scores[0] = fatSector;
+				for (int copy = 0; copy < copies; copy++) {
+					if (readable[copy][i]) {
+						scores[copy + 1] = scoreSector(buffers[copy], offset, sectorSize,
+								fatSector * sectorSize);
+						report.invalidEntries[copy] += scores[copy + 1];
+					} else {
+						scores[copy + 1] = Long.MAX_VALUE;
+					}
+				}
+				report.addDivergentSector(scores);
+			}
+			for (int copy = 0; copy < copies; copy++) {
+				for (int i = 0; i < sectors; i++) {
+					if (!readable[copy][i]) {
+						report.unreadableSectors[copy]++;
+					}
+				}
+			}
+		}
+		
+		report.finish();
+		return report;
+	}
+	
+	/**
+	 * Find the manager underneath any {@link FATMirrorIOManager}, so that 
+	 * each copy is read from where it really is.
+	 */
+	private FSIOManager rawIOManager() {
+		FSIOManager manager = fat.getIOManager();
+		while (manager instanceof FilterIOManager) {
+			if (manager instanceof FATMirrorIOManager) {
+				return ((FilterIOManager)manager).getWrappedManager();
+			}
+			manager = ((FilterIOManager)manager).getWrappedManager();
+		}
+		return fat.getIOManager();
+	}
+	
+	/**
+	 * Find each {@link ResilientIOManager} underneath a manager.
+	 */
+	private static List<ResilientIOManager> resilientManagers(FSIOManager manager) {
+		List<ResilientIOManager> found = new ArrayList<ResilientIOManager>();
+		while (manager instanceof FilterIOManager) {
+			if (manager instanceof ResilientIOManager) {
+				found.add((ResilientIOManager)manager);
+			}
+			manager = ((FilterIOManager)manager).getWrappedManager();
+		}
+		return found;
+	}
+	
+	private static void setStrictReads(List<ResilientIOManager> managers, boolean strict) {
+		for (ResilientIOManager manager : managers) {
+			manager.setStrictReads(strict);
+		}
+	}
+	
+	/**
+	 * Read a chunk of one copy. If the chunk can't be read in one go, each 
+	 * sector is read on its own to find which of them are unreadable.
+	 */
+	private static void readChunk(FSIOManager ioManager, long start, int sectors, int sectorSize,
+			ByteBuffer buffer, boolean[] readable) {
+		buffer.clear();
+		buffer.limit(sectors * sectorSize);
+		if (ioManager.readSectorInto(start, sectorSize, buffer)) {
+			for (int i = 0; i < sectors; i++) {
+				readable[i] = true;
+			}
+			return;
+		}
+		
+		for (int i = 0; i < sectors; i++) {
+			buffer.limit((i + 1) * sectorSize);
+			buffer.position(i * sectorSize);
+			readable[i] = ioManager.readSectorInto(start + i, sectorSize, buffer);
+		}
+	}
+	
+	private static boolean sameSector(ByteBuffer a, boolean aReadable, ByteBuffer b,
+			boolean bReadable, int offset, int sectorSize) {
+		if (!aReadable || !bReadable) {
+			return aReadable == bReadable;
+		}
+		int end = offset + sectorSize;
+		for (int i = offset; i < end; i += 8) {
+			if (a.getLong(i) != b.getLong(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Count the entries in a sector of one copy of the FAT which can't be 
+	 * right.
+	 * 
+	 * @param buffer The chunk holding the sector
+	 * @param offset Where the sector starts in the chunk
+	 * @param sectorSize The size of a sector
+	 * @param fatOffset Where the sector starts in the FAT, in bytes
+	 * @return The number of invalid entries
+	 */
+	private long scoreSector(ByteBuffer buffer, int offset, int sectorSize, long fatOffset) {
+		FATGeometry geometry = fat.getGeometry();
+		int bits = geometry.getEntryBits();
+		long lastCluster = geometry.getClusterCount() + 1L;
+		long badMarker = bits == 12 ? Util.BAD_CLUSTER_12
+				: bits == 16 ? Util.BAD_CLUSTER_16 : Util.BAD_CLUSTER_32;
+		
+		// the first and last entry of the sector; a FAT12 entry straddling 
+		// two sectors is left out of both, which only blunts the score
+		long first;
+		long last;
+		if (bits == 12) {
+			first = (fatOffset * 2 + 2) / 3;
+			last = ((fatOffset + sectorSize - 2) * 2) / 3;
+		} else {
+			first = fatOffset * 8 / bits;
+			last = (fatOffset + sectorSize) * 8 / bits - 1;
+		}
+		last = Math.min(last, lastCluster);
+		
+		long invalid = 0;
+		for (long entry = first; entry <= last; entry++) {
+			long value;
+			if (bits == 12) {
+				int at = (int)(entry + entry / 2 - fatOffset) + offset;
+				int word = (buffer.get(at) & 0xFF) | ((buffer.get(at + 1) & 0xFF) << 8);
+				value = (entry & 1) == 0 ? word & 0x0FFF : word >>> 4;
+			} else if (bits == 16) {
+				value = buffer.getShort((int)(entry * 2 - fatOffset) + offset) & 0xFFFF;
+			} else {
+				value = buffer.getInt((int)(entry * 4 - fatOffset) + offset) & FAT32.ENTRY_MASK;
+			}
+			
+			if (entry == 0) {
+				if ((value & 0xFF) != geometry.getMediaType()) {
+					invalid++;
+				}
+			} else if (entry >= 2 && value != 0 && value < badMarker
+					&& (value < 2 || value > lastCluster)) {
+				invalid++;
+			}
+		}
+		return invalid;
+	}
+	
+	/**
+	 * What comparing the copies of the FAT found.
+	 */
+	public static class Report {
+		private final int copyCount;
+		private final long fatSize;
+		private final int entryBits;
+		private final int bytesPerSector;
+		private final int activeCopy;
+		
+		private final long[] differingSectors;
+		private final long[] unreadableSectors;
+		private final long[] invalidEntries;
+		private final List<Range> divergentRanges = new ArrayList<Range>();
+		private long divergentSectorCount = 0;
+		private long rangeStart = -1;
+		private long rangeEnd = -1;
+		
+		// for each divergent sector, its number and each copy's score there
+		private final List<long[]> sectorScores = new ArrayList<long[]>();
+		
+		private int healthiestCopy;
+		private byte[] mergePlan;
+		
+		Report(int copyCount, long fatSize, int entryBits, int bytesPerSector, int activeCopy) {
+			this.copyCount = copyCount;
+			this.fatSize = fatSize;
+			this.entryBits = entryBits;
+			this.bytesPerSector = bytesPerSector;
+			this.activeCopy = activeCopy;
+			this.differingSectors = new long[copyCount];
+			this.unreadableSectors = new long[copyCount];
+			this.invalidEntries = new long[copyCount];
+		}
+		
+		private void addDivergentSector(long[] scores) {
+			sectorScores.add(scores);
+			long fatSector = scores[0];
+			divergentSectorCount++;
+			if (fatSector == rangeEnd + 1 && rangeStart >= 0) {
+				rangeEnd = fatSector;
+				return;
+			}
+			closeRange();
+			rangeStart = fatSector;
+			rangeEnd = fatSector;
+		}
+		
+		private void closeRange() {
+			if (rangeStart >= 0) {
+				divergentRanges.add(new Range(rangeStart, rangeEnd, entryBits, bytesPerSector));
+			}
+		}
+		
+		private void finish() {
+			closeRange();
+			
+			healthiestCopy = activeCopy < copyCount ? activeCopy : 0;
+			for (int copy = 0; copy < copyCount; copy++) {
+				if (unreadableSectors[copy] < unreadableSectors[healthiestCopy]
+						|| (unreadableSectors[copy] == unreadableSectors[healthiestCopy]
+						&& invalidEntries[copy] < invalidEntries[healthiestCopy])) {
+					healthiestCopy = copy;
+				}
+			}
+			
+			mergePlan = new byte[(int)fatSize];
+			Arrays.fill(mergePlan, (byte)healthiestCopy);
+			for (long[] scores : sectorScores) {
+				int best = healthiestCopy;
+				for (int copy = 0; copy < copyCount; copy++) {
+					if (scores[copy + 1] < scores[best + 1]) {
+						best = copy;
+					}
+				}
+				mergePlan[(int)scores[0]] = (byte)best;
+			}
+			sectorScores.clear();
+		}
+		
+		public int getCopyCount() {
+			return copyCount;
+		}
+		
+		/**
+		 * Check whether every copy of the FAT is identical.
+		 * 
+		 * @return Whether the copies agree
+		 */
+		public boolean isConsistent() {
+			return divergentSectorCount == 0;
+		}
+		
+		/**
+		 * Get the number of sectors of the FAT in which the copies disagree.
+		 * 
+		 * @return The number of divergent sectors
+		 */
+		public long getDivergentSectorCount() {
+			return divergentSectorCount;
+		}
+		
+		/**
+		 * Get the runs of consecutive sectors in which the copies disagree.
+		 * 
+		 * @return The divergent ranges, in order
+		 */
+		public List<Range> getDivergentRanges() {
+			return Collections.unmodifiableList(divergentRanges);
+		}
+		
+		/**
+		 * Get the number of sectors of a copy which differ from the first 
+		 * copy.
+		 * 
+		 * @param copy The copy
+		 * @return The number of differing sectors
+		 */
+		public long getDifferingSectors(int copy) {
+			return differingSectors[copy];
+		}
+		
+		public long getUnreadableSectors(int copy) {
+			return unreadableSectors[copy];
+		}
+		
+		/**
+		 * Get the number of entries of a copy which can't be right, in the 
+		 * sectors where the copies disagree.
+		 * 
+		 * @param copy The copy
+		 * @return The number of invalid entries
+		 */
+		public long getInvalidEntries(int copy) {
+			return invalidEntries[copy];
+		}
+		
+		/**
+		 * Get the copy with the fewest unreadable sectors, then the fewest 
+		 * invalid entries, preferring the active copy when there is a tie.
+		 * 
+		 * @return The healthiest copy
+		 */
+		public int getHealthiestCopy() {
+			return healthiestCopy;
+		}
+		
+		/**
+		 * Get the healthiest copy for each sector of the FAT. Where the 
+		 * copies agree, or are equally healthy, the healthiest copy overall 
+		 * is used.
+		 * 
+		 * @return The copy to read each sector of the FAT from
+		 */
+		public byte[] getMergePlan() {
+			return mergePlan.clone();
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int copy = 0; copy < copyCount; copy++) {
+				sb.append("FAT ").append(copy + 1).append(": ")
+						.append(differingSectors[copy]).append(" sectors differ from FAT 1, ")
+						.append(unreadableSectors[copy]).append(" unreadable, ")
+						.append(invalidEntries[copy]).append(" invalid entries\n");
+			}
+			for (Range range : divergentRanges) {
+				sb.append("differ: ").append(range).append('\n');
+			}
+			if (isConsistent()) {
+				sb.append("All copies are identical");
+			} else {
+				sb.append(divergentSectorCount).append(" sectors differ, FAT ")
+						.append(healthiestCopy + 1).append(" is the healthiest");
+			}
+			return sb.toString();
+		}
+	}
+	
+	/**
+	 * A run of consecutive sectors of the FAT in which the copies disagree.
+	 */
+	public static class Range {
+		private final long firstSector;
+		private final long lastSector;
+		private final int entryBits;
+		private final int bytesPerSector;
+		
+		Range(long firstSector, long lastSector, int entryBits, int bytesPerSector) {
+			this.firstSector = firstSector;
+			this.lastSector = lastSector;
+			this.entryBits = entryBits;
+			this.bytesPerSector = bytesPerSector;
+		}
+		
+		/**
+		 * Get the first sector of the range, counted from the start of the 
+		 * FAT.
+		 * 
+		 * @return The first sector
+		 */
+		public long getFirstSector() {
+			return firstSector;
+		}
+		
+		public long getLastSector() {
+			return lastSector;
+		}
+		
+		/**
+		 * Get the first FAT entry, and so the first cluster, which the 
+		 * range touches.
+		 * 
+		 * @return The first entry
+		 */
+		public long getFirstEntry() {
+			return firstSector * bytesPerSector * 8 / entryBits;
+		}
+		
+		public long getLastEntry() {
+			return ((lastSector + 1) * bytesPerSector * 8 - 1) / entryBits;
+		}
+		
+		@Override
+		public String toString() {
+			return "sectors " + firstSector + "-" + lastSector + " (entries " + getFirstEntry()
+					+ "-" + getLastEntry() + ")";
+		}
+	}
+}
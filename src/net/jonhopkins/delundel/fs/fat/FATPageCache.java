@@ -0,0 +1,358 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+
+/**
+ * Holds the recently used parts of a FAT32 FAT in memory. A FAT32 FAT can 
+ * run to hundreds of megabytes, so rather than decoding all of it at mount 
+ * the FAT is split into fixed-size pages which are read on first use and 
+ * kept in direct buffers outside the Java heap, up to a memory budget.
+ * <p>
+ * A page table maps each page of the FAT to the buffer holding it, so a 
+ * lookup in a cached page costs a couple of array accesses and one buffer 
+ * read. 
+ * When every buffer is in use, the clock algorithm picks a page which 
+ * hasn't been used since the clock hand last passed it to evict.
+ * <p>
+ * The cache can be shared by several threads. A lookup in a cached page 
+ * takes no lock: it reads the entry and then checks that no page was 
+ * evicted or loaded meanwhile, trying again under the lock if one was. 
+ * Pages are loaded one at a time, but the page table is only locked while 
+ * it changes, never while a page is being read, so threads walking cached 
+ * parts of the FAT don't wait on one that missed.
+ */
+public class FATPageCache {
+	/**
+	 * The default size of a page, 64 KB, which holds 16,384 entries.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+	
+	/**
+	 * The default memory budget, 16 MB, which covers the whole FAT of a 
+	 * volume with 4 million clusters.
+	 */
+	public static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+	
+	private FSIOManager ioManager;
+	private final long startOfFAT;
+	private final int bytesPerSector;
+	private final long fatBytes;
+	private final int sectorsPerPage;
+	private final int entriesPerPage;
+	private final int entryShift;
+	
+	// guards the page table and the page each slot holds. Changes are made 
+	// under the write lock; lookups read optimistically.
+	private final StampedLock tableLock = new StampedLock();
+	
+	// held while loading or dropping pages, so that only one thread at a 
+	// time moves the clock hand and fills slots
+	private final Object loadLock = new Object();
+	
+	// the slot holding each page of the FAT, or -1 if it isn't cached
+	private final int[] pageTable;
+	
+	// the buffers the budget allows, and the page each one holds
+	private final ByteBuffer[] slots;
+	private final IntBuffer[] slotEntries;
+	private final int[] slotPage;
+	private final AtomicIntegerArray referenced;
+	private int hand;
+	private int slotsInUse;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * @param ioManager The volume
+	 * @param startOfFAT The first sector of the FAT
+	 * @param fatSize The number of sectors in the FAT
+	 * @param bytesPerSector The sector size of the volume
+	 * @param pageSize The size of a page in bytes, a power of two which is 
+	 *        a multiple of the sector size
+	 * @param budget The most memory to use for pages, in bytes. At least 
+	 *        one page is always kept.
+	 */
+	public FATPageCache(FSIOManager ioManager, long startOfFAT, long fatSize, int bytesPerSector,
+			int pageSize, long budget) {
+		if (Integer.bitCount(pageSize) != 1 || pageSize % bytesPerSector != 0) {
+			throw new IllegalArgumentException("Page size " + pageSize
+					+ " must be a power of two and a multiple of " + bytesPerSector);
+		}
+		
+		this.ioManager = ioManager;
+		this.startOfFAT = startOfFAT;
+		this.bytesPerSector = bytesPerSector;
+		this.fatBytes = fatSize * bytesPerSector;
+		this.sectorsPerPage = pageSize / bytesPerSector;
+		this.entriesPerPage = pageSize / 4;
+		this.entryShift = Integer.numberOfTrailingZeros(entriesPerPage);
+		
+		int pages = (int)((fatBytes + pageSize - 1) / pageSize);
+		pageTable = new int[pages];
+		Arrays.fill(pageTable, -1);
+		
+		int slotCount = (int)Math.max(1, Math.min(pages, budget / pageSize));
+		slots = new ByteBuffer[slotCount];
+		slotEntries = new IntBuffer[slotCount];
+		slotPage = new int[slotCount];
+		referenced = new AtomicIntegerArray(slotCount);
+		Arrays.fill(slotPage, -1);
+		
+		// buffers are allocated as they are first needed, so a small FAT 
+		// never takes the whole budget
+	}
+	
+	/**
+	 * Look up an entry of the FAT.
+	 * 
+	 * @param entryNumber The entry to get
+	 * @return The raw 32-bit entry, or -1 if it is outside the FAT or its 
+	 *         page could not be read
+	 */
+	public int get(int entryNumber) {
+		if (entryNumber < 0) {
+			return -1;
+		}
+		
+		int page = entryNumber >>> entryShift;
+		if (page >= pageTable.length) {
+			return -1;
+		}
+		int index = entryNumber & (entriesPerPage - 1);
+		
+		// what is read here may be torn by a page being evicted at the 
+		// same time, so it only counts if the stamp is still valid after
+		long stamp = tableLock.tryOptimisticRead();
+		if (stamp != 0) {
+			int slot = pageTable[page];
+			if (slot >= 0) {
+				IntBuffer entries = slotEntries[slot];
+				if (entries != null) {
+					int entry = index < entries.limit() ? entries.get(index) : -1;
+					if (tableLock.validate(stamp)) {
+						hits.incrementAndGet();
+						markReferenced(slot);
+						return entry;
+					}
+				}
+			}
+		}
+		
+		synchronized (loadLock) {
+			// only loads change the page table, so it can be read freely 
+			// here, and another thread may have loaded the page meanwhile
+			int slot = pageTable[page];
+			if (slot >= 0) {
+				hits.incrementAndGet();
+				markReferenced(slot);
+			} else {
+				misses.incrementAndGet();
+				slot = load(page);
+				if (slot < 0) {
+					return -1;
+				}
+			}
+			
+			IntBuffer entries = slotEntries[slot];
+			if (index >= entries.limit()) {
+				return -1;
+			}
+			return entries.get(index);
+		}
+	}
+	
+	/**
+	 * Drop every cached page, e.g. after the FAT has been written to.
+	 */
+	public void invalidate() {
+		synchronized (loadLock) {
+			long stamp = tableLock.writeLock();
+			try {
+				Arrays.fill(pageTable, -1);
+				Arrays.fill(slotPage, -1);
+				Arrays.fill(slotEntries, null);
+				for (int slot = 0; slot < slots.length; slot++) {
+					referenced.set(slot, 0);
+				}
+			} finally {
+				tableLock.unlockWrite(stamp);
+			}
+		}
+	}
+	
+	/**
+	 * Drop the cached page holding an entry, e.g. after it has been 
+	 * written to.
+	 * 
+	 * @param entryNumber The entry which changed
+	 */
+	public void invalidate(int entryNumber) {
+		int page = entryNumber >>> entryShift;
+		if (page < 0 || page >= pageTable.length) {
+			return;
+		}
+		synchronized (loadLock) {
+			int slot = pageTable[page];
+			if (slot >= 0) {
+				unmap(slot);
+			}
+		}
+	}
+	
+	/**
+	 * Read pages through a different manager from now on, e.g. one which 
+	 * wraps the original. Cached pages are kept.
+	 * 
+	 * @param ioManager The volume
+	 */
+	public void setIOManager(FSIOManager ioManager) {
+		synchronized (loadLock) {
+			this.ioManager = ioManager;
+		}
+	}
+	
+	/**
+	 * Get the most memory the cache will use.
+	 * 
+	 * @return The number of bytes of pages which may be cached
+	 */
+	public long getCapacity() {
+		return (long)slots.length * entriesPerPage * 4;
+	}
+	
+	public int getPageCount() {
+		return pageTable.length;
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+	
+	/*
+	 * Every hit would otherwise write to the same flag, so only write it 
+	 * when the clock hand has cleared it.
+	 */
+	private void markReferenced(int slot) {
+		if (referenced.get(slot) == 0) {
+			referenced.lazySet(slot, 1);
+		}
+	}
+	
+	/*
+	 * Called holding the load lock. The slot is taken out of the page table 
+	 * before its buffer is refilled, so lookups never see a half read page 
+	 * as valid, and the read itself happens outside the table lock.
+	 */
+	private int load(int page) {
+		int slot = chooseSlot();
+		if (slotPage[slot] >= 0) {
+			evictions.incrementAndGet();
+		}
+		unmap(slot);
+		if (slots[slot] == null) {
+			slots[slot] = ByteBuffer.allocateDirect(entriesPerPage * 4)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		// the last page may be cut short by the end of the FAT
+		ByteBuffer buffer = slots[slot];
+		long pageStart = (long)page * entriesPerPage * 4;
+		buffer.clear();
+		buffer.limit((int)Math.min(buffer.capacity(), fatBytes - pageStart));
+		if (!ioManager.readSectorInto(startOfFAT + (long)page * sectorsPerPage,
+				bytesPerSector, buffer)) {
+			return -1;
+		}
+		buffer.flip();
+		
+		long stamp = tableLock.writeLock();
+		try {
+			slotEntries[slot] = buffer.asIntBuffer();
+			slotPage[slot] = page;
+			pageTable[page] = slot;
+		} finally {
+			tableLock.unlockWrite(stamp);
+		}
+		referenced.set(slot, 1);
+		return slot;
+	}
+	
+	private void unmap(int slot) {
+		long stamp = tableLock.writeLock();
+		try {
+			if (slotPage[slot] >= 0) {
+				pageTable[slotPage[slot]] = -1;
+			}
+			slotPage[slot] = -1;
+			slotEntries[slot] = null;
+		} finally {
+			tableLock.unlockWrite(stamp);
+		}
+		referenced.set(slot, 0);
+	}
+	
+	/*
+	 * Use an unused buffer while the budget allows, otherwise sweep the 
+	 * clock hand round, giving each referenced page a second chance, until 
+	 * a page that hasn't been used since the last sweep is found.
+	 */
+	private int chooseSlot() {
+		if (slotsInUse < slots.length) {
+			return slotsInUse++;
+		}
+		
+		while (true) {
+			int slot = hand;
+			hand = (hand + 1) % slots.length;
+			if (slotPage[slot] < 0) {
+				return slot;
+			}
+			if (referenced.get(slot) != 0) {
+				referenced.set(slot, 0);
+				continue;
+			}
+			return slot;
+		}
+	}
+}
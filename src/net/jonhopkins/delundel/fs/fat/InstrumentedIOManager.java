@@ -0,0 +1,317 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+
+/**
+ * Counts the reads and writes that reach another manager, broken down by 
+ * the region of the volume they touch: the reserved sectors holding the 
+ * boot sector, each copy of the FAT, the FAT12/FAT16 root directory, and 
+ * the data region. An operation is counted against the region its first 
+ * sector is in.
+ * <p>
+ * Alongside the counts, the time taken by each read is recorded in a 
+ * histogram with one bucket per power of two nanoseconds, which is enough 
+ * to tell cache hits from disk reads without keeping every sample.
+ */
+public class InstrumentedIOManager extends FilterIOManager {
+	/**
+	 * Number of latency buckets. Bucket {@code i} counts operations which 
+	 * took at least 2<sup>i</sup> and less than 2<sup>i+1</sup> ns.
+	 */
+	public static final int LATENCY_BUCKETS = 64;
+	
+	private final int bytesPerSector;
+	private final long reservedSectors;
+	private final long fatSize;
+	private final int fatCount;
+	private final long startOfDataRegion;
+	private final RegionStats[] regions;
+	private final int rootDirRegion;
+	private final int dataRegion;
+	
+	/**
+	 * @param ioManager The manager to count operations on
+	 * @param bytesPerSector The sector size of the volume
+	 * @param reservedSectors The number of sectors before the first FAT
+	 * @param fatSize The number of sectors in each FAT
+	 * @param fatCount The number of copies of the FAT
+	 * @param startOfRootDir The first sector of the root directory
+	 * @param startOfDataRegion The first sector of the data region
+	 */
+	public InstrumentedIOManager(FSIOManager ioManager, int bytesPerSector, long reservedSectors,
+			long fatSize, int fatCount, long startOfRootDir, long startOfDataRegion) {
+		super(ioManager);
+		this.bytesPerSector = bytesPerSector;
+		this.reservedSectors = reservedSectors;
+		this.fatSize = fatSize;
+		this.fatCount = fatCount;
+		this.startOfDataRegion = startOfDataRegion;
+		
+		List<RegionStats> list = new ArrayList<RegionStats>();
+		list.add(new RegionStats("boot"));
+		for (int i = 1; i <= fatCount; i++) {
+			list.add(new RegionStats("FAT " + i));
+		}
+		// FAT32 keeps the root directory in the data region
+		if (startOfDataRegion > startOfRootDir) {
+			rootDirRegion = list.size();
+			list.add(new RegionStats("root dir"));
+		} else {
+			rootDirRegion = -1;
+		}
+		dataRegion = list.size();
+		list.add(new RegionStats("data"));
+		regions = list.toArray(new RegionStats[list.size()]);
+	}
+	
+	/**
+	 * Get the statistics for every region, in the order the regions appear 
+	 * on the volume.
+	 * 
+	 * @return The statistics
+	 */
+	public List<RegionStats> getRegions() {
+		return Collections.unmodifiableList(Arrays.asList(regions));
+	}
+	
+	/**
+	 * Clear the statistics of every region.
+	 */
+	public void reset() {
+		for (RegionStats region : regions) {
+			region.reset();
+		}
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		long start = System.nanoTime();
+		byte[] data = ioManager.readSector(sectorNumber, size);
+		regionOf(sectorNumber, size).recordRead(data == null ? 0 : size, System.nanoTime() - start);
+		return data;
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		long start = System.nanoTime();
+		byte[] data = ioManager.readSectors(startSector, count, size);
+		regionOf(startSector, size).recordRead(data == null ? 0 : data.length,
+				System.nanoTime() - start);
+		return data;
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		int length = dst.remaining();
+		long start = System.nanoTime();
+		boolean success = ioManager.readSectorInto(sectorNumber, size, dst);
+		regionOf(sectorNumber, size).recordRead(success ? length : 0, System.nanoTime() - start);
+		return success;
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		final RegionStats region = regionOf(startSector, size);
+		final long start = System.nanoTime();
+		return ioManager.readSectorsAsync(startSector, count, size).whenComplete(
+				new BiConsumer<ByteBuffer, Throwable>() {
+					@Override
+					public void accept(ByteBuffer data, Throwable failure) {
+						region.recordRead(data == null ? 0 : data.remaining(),
+								System.nanoTime() - start);
+					}
+				});
+	}
+	
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		long start = System.nanoTime();
+		ioManager.writeSector(sectorNumber, data);
+		regionOf(sectorNumber, data.length).recordWrite(data.length, System.nanoTime() - start);
+	}
+	
+	private RegionStats regionOf(long sectorNumber, int size) {
+		// callers don't always use the volume's sector size, e.g. the boot 
+		// sector is read as 512 bytes
+		long sector = sectorNumber * size / bytesPerSector;
+		if (sector < reservedSectors) {
+			return regions[0];
+		}
+		if (sector < reservedSectors + fatSize * fatCount) {
+			return regions[1 + (int)((sector - reservedSectors) / fatSize)];
+		}
+		if (sector < startOfDataRegion && rootDirRegion >= 0) {
+			return regions[rootDirRegion];
+		}
+		return regions[dataRegion];
+	}
+	
+	/**
+	 * Counters for one region of the volume. They may be updated by several 
+	 * threads at once.
+	 */
+	public static class RegionStats {
+		private final String name;
+		private final AtomicLong reads = new AtomicLong();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong readNanos = new AtomicLong();
+		private final AtomicLong writes = new AtomicLong();
+		private final AtomicLong bytesWritten = new AtomicLong();
+		private final AtomicLongArray readLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+		private final AtomicLongArray writeLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+		
+		RegionStats(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public long getReadCount() {
+			return reads.get();
+		}
+		
+		public long getBytesRead() {
+			return bytesRead.get();
+		}
+		
+		/**
+		 * Get the average time taken by a read.
+		 * 
+		 * @return The mean read latency in nanoseconds, or 0 if nothing 
+		 *         has been read
+		 */
+		public long getMeanReadNanos() {
+			long count = reads.get();
+			return count == 0 ? 0 : readNanos.get() / count;
+		}
+		
+		public long getWriteCount() {
+			return writes.get();
+		}
+		
+		public long getBytesWritten() {
+			return bytesWritten.get();
+		}
+		
+		/**
+		 * Get a copy of the read latency histogram.
+		 * 
+		 * @return The number of reads in each bucket
+		 * @see InstrumentedIOManager#LATENCY_BUCKETS
+		 */
+		public long[] getReadLatencyHistogram() {
+			return snapshot(readLatencies);
+		}
+		
+		/**
+		 * Get a copy of the write latency histogram.
+		 * 
+		 * @return The number of writes in each bucket
+		 * @see InstrumentedIOManager#LATENCY_BUCKETS
+		 */
+		public long[] getWriteLatencyHistogram() {
+			return snapshot(writeLatencies);
+		}
+		
+		/**
+		 * Estimate a percentile of the read latency from the histogram.
+		 * 
+		 * @param percentile The percentile, between 0 and 100
+		 * @return The upper bound, in nanoseconds, of the bucket holding 
+		 *         the percentile, or 0 if nothing has been read
+		 */
+		public long getReadLatencyPercentile(double percentile) {
+			long[] histogram = getReadLatencyHistogram();
+			long total = 0;
+			for (long count : histogram) {
+				total += count;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			
+			long target = (long)Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if (seen >= target && seen > 0) {
+					return i >= 62 ? Long.MAX_VALUE : 1L << (i + 1);
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+		
+		void recordRead(long bytes, long nanos) {
+			reads.incrementAndGet();
+			bytesRead.addAndGet(bytes);
+			readNanos.addAndGet(nanos);
+			readLatencies.incrementAndGet(bucket(nanos));
+		}
+		
+		void recordWrite(long bytes, long nanos) {
+			writes.incrementAndGet();
+			bytesWritten.addAndGet(bytes);
+			writeLatencies.incrementAndGet(bucket(nanos));
+		}
+		
+		void reset() {
+			reads.set(0);
+			bytesRead.set(0);
+			readNanos.set(0);
+			writes.set(0);
+			bytesWritten.set(0);
+			for (int i = 0; i < LATENCY_BUCKETS; i++) {
+				readLatencies.set(i, 0);
+				writeLatencies.set(i, 0);
+			}
+		}
+		
+		private static int bucket(long nanos) {
+			return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+		}
+		
+		private static long[] snapshot(AtomicLongArray histogram) {
+			long[] copy = new long[histogram.length()];
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] = histogram.get(i);
+			}
+			return copy;
+		}
+	}
+}
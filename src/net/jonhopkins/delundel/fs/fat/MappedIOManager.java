@@ -0,0 +1,224 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+
+/**
+ * Reads sectors from a raw dump file by memory-mapping it.
+ * <p>
+ * A single mapping is limited to 2 GB, so the file is mapped in fixed-size 
+ * windows when the manager is opened. The default window size is a multiple 
+ * of every legal sector size, so a sector only straddles two windows if a 
+ * custom window size is used.
+ * <p>
+ * The windows are shared by every thread, so reads never move their 
+ * position or limit, and go through a duplicate instead.
+ */
+public class MappedIOManager implements FSIOManager {
+	/**
+	 * Default size of each mapped window, 64 MB.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	private RandomAccessFile handle;
+	private FileChannel channel;
+	private long fileSize;
+	private int windowSize;
+	private final MappedByteBuffer[] windows;
+	
+	public MappedIOManager(String filename) {
+		this(filename, DEFAULT_WINDOW_SIZE);
+	}
+	
+	public MappedIOManager(String filename, int windowSize) {
+		this.windowSize = windowSize;
+		MappedByteBuffer[] mapped = null;
+		try {
+			handle = new RandomAccessFile(filename, "r");
+			channel = handle.getChannel();
+			fileSize = channel.size();
+			mapped = new MappedByteBuffer[(int)((fileSize + windowSize - 1) / windowSize)];
+			for (int i = 0; i < mapped.length; i++) {
+				long start = (long)i * windowSize;
+				long length = Math.min(windowSize, fileSize - start);
+				mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			}
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		windows = mapped;
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		if (sectorNumber < 0) {
+			return null;
+		}
+		return read(sectorNumber * size, size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		if (startSector < 0 || count < 0) {
+			return null;
+		}
+		return read(startSector * size, count * size);
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		if (sectorNumber < 0) {
+			return false;
+		}
+		
+		long offset = sectorNumber * size;
+		if (offset + dst.remaining() > fileSize) {
+			return false;
+		}
+		
+		while (dst.hasRemaining()) {
+			ByteBuffer window = getWindow(offset);
+			int windowOffset = (int)(offset % windowSize);
+			int len = Math.min(dst.remaining(), window.capacity() - windowOffset);
+			window.limit(windowOffset + len);
+			window.position(windowOffset);
+			dst.put(window);
+			offset += len;
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		byte[] sectors = readSectors(startSector, count, size);
+		if (sectors == null) {
+			future.completeExceptionally(new IOException("Could not read sectors "
+					+ startSector + "+" + count));
+		} else {
+			future.complete(ByteBuffer.wrap(sectors));
+		}
+		return future;
+	}
+	
+	/**
+	 * Get a read-only view of a sector without copying it out of the mapped 
+	 * file. The returned buffer's position is 0 and its limit is 
+	 * {@code size}.
+	 * <p>
+	 * The view is only valid until this manager is closed.
+	 * 
+	 * @param sectorNumber The sector to view
+	 * @param size The size of a sector
+	 * @return A view of the sector, or null if it lies outside the file
+	 */
+	public ByteBuffer viewSector(long sectorNumber, int size) {
+		if (sectorNumber < 0) {
+			return null;
+		}
+		
+		long offset = sectorNumber * size;
+		if (offset + size > fileSize) {
+			return null;
+		}
+		
+		int windowOffset = (int)(offset % windowSize);
+		if (windowOffset + size > windowSize) {
+			// a view can't span two mappings, so hand back a copy instead
+			return ByteBuffer.wrap(readSector(sectorNumber, size)).asReadOnlyBuffer();
+		}
+		
+		ByteBuffer view = getWindow(offset);
+		view.limit(windowOffset + size);
+		view.position(windowOffset);
+		return view.slice().asReadOnlyBuffer();
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return false;
+	}
+	
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		throw new IllegalStateException("Mapped dump files are read-only");
+	}
+	
+	@Override
+	public void flush() {
+		// nothing is ever written
+	}
+	
+	@Override
+	public void close() {
+		// mappings are released once they are garbage collected
+		try {
+			handle.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private byte[] read(long offset, int length) {
+		if (offset + length > fileSize) {
+			return null;
+		}
+		
+		byte[] data = new byte[length];
+		int copied = 0;
+		while (copied < length) {
+			// only loops more than once if the data straddles two windows
+			ByteBuffer window = getWindow(offset + copied);
+			int windowOffset = (int)((offset + copied) % windowSize);
+			int len = Math.min(length - copied, window.limit() - windowOffset);
+			window.position(windowOffset);
+			window.get(data, copied, len);
+			copied += len;
+		}
+		
+		return data;
+	}
+	
+	/*
+	 * A duplicate of the window holding the offset, which the caller may 
+	 * position freely without disturbing other threads.
+	 */
+	private ByteBuffer getWindow(long offset) {
+		return windows[(int)(offset / windowSize)].duplicate();
+	}
+}
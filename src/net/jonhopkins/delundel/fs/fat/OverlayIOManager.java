@@ -0,0 +1,424 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+
+/**
+ * Makes a read-only image look writable without modifying it.
+ * <p>
+ * Every written sector goes to a sparse overlay file, at the same offset 
+ * it has in the image, and is marked in a bitmap of dirty sectors. Reads 
+ * are served from the image, with any dirty sectors patched in from the 
+ * overlay. Nothing is ever written to the wrapped manager, so deletes and 
+ * undeletes can be tried out on an evidence image without copying it first.
+ * <p>
+ * The bitmap is kept next to the overlay file, with a {@code .map} 
+ * suffix, so an experiment can be picked up again later by opening the 
+ * same overlay. Each sector is added to the map as soon as its data has 
+ * been written, so the map is complete even if the program dies before 
+ * the overlay is flushed. Flushing compacts the map and forces both files 
+ * out to disk.
+ * <p>
+ * One overlay may be shared by several threads. Reads run side by side, 
+ * while writes, flushes and reverts wait for them and run one at a time, 
+ * so the bitmap and the map file are only ever changed by one thread.
+ */
+public class OverlayIOManager extends FilterIOManager {
+	private static final String MAP_SUFFIX = ".map";
+	private static final String TEMP_SUFFIX = ".tmp";
+	
+	private int sectorSize;
+	private String mapFilename;
+	private RandomAccessFile overlay;
+	private SectorBitmap dirtySectors;
+	
+	// the map file is a snapshot of the bitmap, followed by the number of 
+	// every sector dirtied since the snapshot was taken
+	private RandomAccessFile map;
+	private long mapEnd;
+	private final ByteBuffer mapRecord = ByteBuffer.allocate(8);
+	
+	// guards the bitmap and the map; the overlay file itself is only read 
+	// and written with positional calls
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Overlay writes on top of an image.
+	 * 
+	 * @param ioManager The image, which is only ever read from
+	 * @param overlayFilename The file to hold written sectors, which is 
+	 *        created if it doesn't exist
+	 * @param sectorSize The size of a sector of the volume
+	 */
+	public OverlayIOManager(FSIOManager ioManager, String overlayFilename, int sectorSize) {
+		super(ioManager);
+		this.sectorSize = sectorSize;
+		this.mapFilename = overlayFilename + MAP_SUFFIX;
+		dirtySectors = new SectorBitmap();
+		try {
+			overlay = new RandomAccessFile(overlayFilename, "rw");
+			if (new File(mapFilename).exists()) {
+				loadMap();
+			}
+			saveMap();
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		return readSectors(sectorNumber, 1, size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		byte[] sectors = new byte[count * size];
+		if (!readSectorInto(startSector, size, ByteBuffer.wrap(sectors))) {
+			return null;
+		}
+		return sectors;
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		if (sectorNumber < 0) {
+			return false;
+		}
+		
+		long offset = sectorNumber * size;
+		int start = dst.position();
+		int length = dst.remaining();
+		
+		lock.readLock().lock();
+		try {
+			if (!isDirty(offset, length, false)) {
+				return ioManager.readSectorInto(sectorNumber, size, dst);
+			}
+			
+			// only go to the image if part of the range hasn't been overwritten
+			if (!isDirty(offset, length, true)
+					&& !ioManager.readSectorInto(sectorNumber, size, dst)) {
+				return false;
+			}
+			
+			dst.position(start);
+			if (!applyOverlay(offset, dst)) {
+				return false;
+			}
+			dst.position(start + length);
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		final long offset = startSector * size;
+		boolean dirty;
+		lock.readLock().lock();
+		try {
+			dirty = isDirty(offset, count * size, false);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (!dirty) {
+			return ioManager.readSectorsAsync(startSector, count, size);
+		}
+		
+		return ioManager.readSectorsAsync(startSector, count, size).thenApply(
+				new Function<ByteBuffer, ByteBuffer>() {
+					@Override
+					public ByteBuffer apply(ByteBuffer sectors) {
+						lock.readLock().lock();
+						try {
+							if (!applyOverlay(offset, sectors)) {
+								throw new IllegalStateException("Could not read overlay");
+							}
+						} finally {
+							lock.readLock().unlock();
+						}
+						sectors.rewind();
+						return sectors;
+					}
+				});
+	}
+	
+	/**
+	 * The overlay takes every write, so even a read-only image is writable.
+	 */
+	@Override
+	public boolean isWritable() {
+		return true;
+	}
+	
+	/**
+	 * Write a sector to the overlay. The image is left untouched.
+	 * 
+	 * @param sectorNumber The sector to write
+	 * @param data The new contents of the sector, which must be one 
+	 *        sector long
+	 */
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		if (data.length != sectorSize) {
+			throw new IllegalArgumentException("Overlay sectors are " + sectorSize
+					+ " bytes, not " + data.length);
+		}
+		if (sectorNumber < 0) {
+			return;
+		}
+		
+		lock.writeLock().lock();
+		try {
+			FileChannel channel = overlay.getChannel();
+			ByteBuffer src = ByteBuffer.wrap(data);
+			long position = sectorNumber * sectorSize;
+			while (src.hasRemaining()) {
+				position += channel.write(src, position);
+			}
+			
+			// only record the sector once its data is in place
+			if (!dirtySectors.get(sectorNumber)) {
+				appendToMap(sectorNumber);
+				dirtySectors.set(sectorNumber);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Write the overlay and the bitmap of dirty sectors out to disk.
+	 */
+	@Override
+	public void flush() {
+		lock.writeLock().lock();
+		try {
+			overlay.getChannel().force(false);
+			saveMap();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public void close() {
+		flush();
+		lock.writeLock().lock();
+		try {
+			overlay.close();
+			map.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		ioManager.close();
+	}
+	
+	/**
+	 * Throw away every write made so far, so that reads see the image as 
+	 * it is.
+	 */
+	public void revert() {
+		lock.writeLock().lock();
+		try {
+			dirtySectors.clear();
+			// empty the map first, so no sector is ever marked dirty without 
+			// its data
+			saveMap();
+			overlay.setLength(0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Check whether a sector has been written to the overlay.
+	 * 
+	 * @param sectorNumber The sector to check
+	 * @return Whether reads of the sector come from the overlay
+	 */
+	public boolean isDirty(long sectorNumber) {
+		lock.readLock().lock();
+		try {
+			return dirtySectors.get(sectorNumber);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public long getDirtySectorCount() {
+		lock.readLock().lock();
+		try {
+			return dirtySectors.cardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Check whether any, or every, overlay sector touching the given byte 
+	 * range is dirty. The caller must hold the lock.
+	 */
+	private boolean isDirty(long offset, int length, boolean all) {
+		if (length <= 0) {
+			return false;
+		}
+		
+		long first = offset / sectorSize;
+		long last = (offset + length - 1) / sectorSize;
+		if (all) {
+			long clean = dirtySectors.nextClearBit(first);
+			return clean > last;
+		}
+		long dirty = dirtySectors.nextSetBit(first);
+		return dirty >= 0 && dirty <= last;
+	}
+	
+	/**
+	 * Copy every dirty sector that overlaps {@code dst}, which holds the 
+	 * volume starting at byte {@code offset}, from the overlay into 
+	 * {@code dst}. Only the bytes from the position to the limit of 
+	 * {@code dst} are touched, and its position isn't changed.
+	 */
+	private boolean applyOverlay(long offset, ByteBuffer dst) {
+		int start = dst.position();
+		long end = offset + dst.remaining();
+		FileChannel channel = overlay.getChannel();
+		
+		long sector = dirtySectors.nextSetBit(offset / sectorSize);
+		while (sector >= 0 && sector * sectorSize < end) {
+			long from = Math.max(sector * sectorSize, offset);
+			long to = Math.min((sector + 1) * sectorSize, end);
+			
+			ByteBuffer part = dst.duplicate();
+			part.limit(start + (int)(to - offset));
+			part.position(start + (int)(from - offset));
+			try {
+				long position = from;
+				while (part.hasRemaining()) {
+					int read = channel.read(part, position);
+					if (read < 0) {
+						return false;
+					}
+					position += read;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			
+			sector = dirtySectors.nextSetBit(sector + 1);
+		}
+		
+		return true;
+	}
+	
+	private void loadMap() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(mapFilename)));
+		try {
+			dirtySectors.read(in);
+			while (true) {
+				dirtySectors.set(in.readLong());
+			}
+		} catch (EOFException e) {
+			// the end of the map, or a record cut short by a crash, in which 
+			// case the sector is read from the image again
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Replace the map with a snapshot of the bitmap. The snapshot is written 
+	 * to a temporary file first, so a crash leaves either the old map or the 
+	 * new one.
+	 */
+	private void saveMap() throws IOException {
+		File temp = new File(mapFilename + TEMP_SUFFIX);
+		FileOutputStream file = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		try {
+			dirtySectors.write(out);
+			out.flush();
+			file.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		
+		if (map != null) {
+			map.close();
+		}
+		Files.move(temp.toPath(), Paths.get(mapFilename), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		map = new RandomAccessFile(mapFilename, "rw");
+		mapEnd = map.length();
+	}
+	
+	private void appendToMap(long sectorNumber) throws IOException {
+		mapRecord.clear();
+		mapRecord.putLong(sectorNumber).flip();
+		FileChannel channel = map.getChannel();
+		while (mapRecord.hasRemaining()) {
+			mapEnd += channel.write(mapRecord, mapEnd);
+		}
+	}
+}
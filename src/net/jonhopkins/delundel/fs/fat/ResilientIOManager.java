@@ -0,0 +1,290 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+
+/**
+ * Keeps reads going on damaged media. A read which fails is split into 
+ * its sectors, each sector is tried again a bounded number of times, and 
+ * any sector which still can't be read is handed back filled with zeros 
+ * and recorded in a {@link BadSectorMap}. Sectors in the map are never 
+ * read again, even in a later run if the map is kept in a file, so one 
+ * dying sector costs a few attempts once rather than stalling every pass 
+ * over it.
+ * <p>
+ * Parts of the image can also be skipped without ever being tried, such 
+ * as the clusters a FAT has already marked as bad.
+ * <p>
+ * Since every read of a sector this manager can reach succeeds, reads 
+ * past the end of a truncated image come back as zeros too. Writes pass 
+ * straight through.
+ * <p>
+ * A caller which judges data by whether it could be read at all, such as 
+ * {@link FATMirrors}, can turn on strict reads for its own thread; its 
+ * reads of bad or skipped sectors then fail instead of coming back as 
+ * zeros.
+ */
+public class ResilientIOManager extends FilterIOManager {
+	/**
+	 * The default number of times a failed sector is tried again.
+	 */
+	public static final int DEFAULT_RETRIES = 2;
+	
+	private final BadSectorMap badSectors;
+	private final BadSectorMap skipped = new BadSectorMap();
+	private final int retries;
+	
+	private final AtomicLong failedReads = new AtomicLong();
+	private final AtomicLong zeroFilledSectors = new AtomicLong();
+	
+	private final ThreadLocal<Boolean> strict = new ThreadLocal<Boolean>() {
+		@Override
+		protected Boolean initialValue() {
+			return Boolean.FALSE;
+		}
+	};
+	
+	/**
+	 * @param ioManager The image
+	 * @param badSectors The map to record unreadable sectors in, and to 
+	 *        skip the sectors already in it
+	 */
+	public ResilientIOManager(FSIOManager ioManager, BadSectorMap badSectors) {
+		this(ioManager, badSectors, DEFAULT_RETRIES);
+	}
+	
+	/**
+	 * @param ioManager The image
+	 * @param badSectors The map to record unreadable sectors in, and to 
+	 *        skip the sectors already in it
+	 * @param retries The number of times to try a failed sector again
+	 */
+	public ResilientIOManager(FSIOManager ioManager, BadSectorMap badSectors, int retries) {
+		super(ioManager);
+		if (retries < 0) {
+			throw new IllegalArgumentException("Retries must not be negative: " + retries);
+		}
+		this.badSectors = badSectors;
+		this.retries = retries;
+	}
+	
+	/**
+	 * Hand back zeros for part of the image without trying to read it. 
+	 * Unlike sectors which fail, skipped parts aren't added to the bad 
+	 * sector map.
+	 * 
+	 * @param offset The byte offset of the part to skip
+	 * @param length The length of the part in bytes
+	 */
+	public void skip(long offset, long length) {
+		skipped.add(offset, length);
+	}
+	
+	/**
+	 * Make reads on the calling thread fail when they reach a sector which 
+	 * can't be read or is skipped, rather than filling it with zeros. The 
+	 * sector is still retried and recorded in the bad sector map first. 
+	 * Asynchronous reads finish on other threads and aren't affected.
+	 * 
+	 * @param strict Whether reads on this thread should fail
+	 */
+	public void setStrictReads(boolean strict) {
+		this.strict.set(strict);
+	}
+	
+	/**
+	 * Check whether reads on the calling thread fail rather than being 
+	 * filled with zeros.
+	 * 
+	 * @return Whether strict reads are on for this thread
+	 */
+	public boolean isStrictReads() {
+		return strict.get();
+	}
+	
+	public BadSectorMap getBadSectorMap() {
+		return badSectors;
+	}
+	
+	/**
+	 * Get the number of attempts to read a sector which have failed, 
+	 * counting each retry.
+	 * 
+	 * @return The number of failed attempts
+	 */
+	public long getFailedReadCount() {
+		return failedReads.get();
+	}
+	
+	/**
+	 * Get the number of sectors handed back as zeros, whether they failed 
+	 * or were already known to be bad.
+	 * 
+	 * @return The number of zero-filled sectors
+	 */
+	public long getZeroFilledCount() {
+		return zeroFilledSectors.get();
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		return readSectors(sectorNumber, 1, size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		if (startSector < 0 || count < 0) {
+			return null;
+		}
+		byte[] data = new byte[count * size];
+		if (!readSectorInto(startSector, size, ByteBuffer.wrap(data))) {
+			return null;
+		}
+		return data;
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		if (sectorNumber < 0) {
+			return false;
+		}
+		
+		int start = dst.position();
+		int end = dst.limit();
+		int count = (end - start + size - 1) / size;
+		if (count > 1 && !isBad(sectorNumber * size, end - start)) {
+			if (ioManager.readSectorInto(sectorNumber, size, dst)) {
+				return true;
+			}
+			dst.position(start);
+		}
+		
+		// go through the sectors one at a time, so that only those which 
+		// really can't be read are lost
+		for (int i = 0; i < count; i++) {
+			int sectorStart = start + i * size;
+			dst.limit(Math.min(end, sectorStart + size));
+			dst.position(sectorStart);
+			if (!readOneSector(sectorNumber + i, size, dst)) {
+				if (strict.get()) {
+					dst.limit(end);
+					dst.position(start);
+					return false;
+				}
+				while (dst.hasRemaining()) {
+					dst.put((byte)0);
+				}
+				zeroFilledSectors.incrementAndGet();
+			}
+		}
+		dst.limit(end);
+		dst.position(end);
+		return true;
+	}
+	
+	/*
+	 * Sectors already known to be bad are left alone. If the whole range 
+	 * is fine, the read goes straight to the wrapped manager; otherwise the 
+	 * sectors are read one at a time.
+	 */
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(final long startSector, final int count,
+			final int size) {
+		if (startSector < 0 || isBad(startSector * size, (long)count * size)) {
+			CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+			byte[] sectors = readSectors(startSector, count, size);
+			if (sectors == null) {
+				future.completeExceptionally(new IllegalArgumentException("No sector " + startSector));
+			} else {
+				future.complete(ByteBuffer.wrap(sectors));
+			}
+			return future;
+		}
+		
+		return ioManager.readSectorsAsync(startSector, count, size).handle(
+				new BiFunction<ByteBuffer, Throwable, ByteBuffer>() {
+					@Override
+					public ByteBuffer apply(ByteBuffer buffer, Throwable error) {
+						if (error == null && buffer != null) {
+							return buffer;
+						}
+						byte[] sectors = readSectors(startSector, count, size);
+						if (sectors == null) {
+							throw new IllegalStateException("Unreadable sector in "
+									+ startSector + "-" + (startSector + count - 1));
+						}
+						return ByteBuffer.wrap(sectors);
+					}
+				});
+	}
+	
+	/**
+	 * Write the bad sector map to its file.
+	 */
+	@Override
+	public void flush() {
+		super.flush();
+		badSectors.save();
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		badSectors.save();
+	}
+	
+	private boolean isBad(long offset, long length) {
+		return badSectors.overlaps(offset, length) || skipped.overlaps(offset, length);
+	}
+	
+	/**
+	 * Read a single sector, trying again a few times if it fails.
+	 * 
+	 * @return Whether the sector was read
+	 */
+	private boolean readOneSector(long sectorNumber, int size, ByteBuffer dst) {
+		long offset = sectorNumber * size;
+		if (isBad(offset, size)) {
+			return false;
+		}
+		
+		int start = dst.position();
+		for (int attempt = 0; attempt <= retries; attempt++) {
+			if (ioManager.readSectorInto(sectorNumber, size, dst)) {
+				return true;
+			}
+			failedReads.incrementAndGet();
+			dst.position(start);
+		}
+		badSectors.add(offset, size);
+		return false;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A bitmap indexed by sector number. Unlike {@link java.util.BitSet}, it 
+ * can hold every sector of a volume with more than 2^31 sectors.
+ * <p>
+ * The bits are stored in pages which are only allocated once a bit in 
+ * them is set, so a mostly empty bitmap of a large volume stays small.
+ */
+class SectorBitmap {
+	private static final int WORDS_PER_PAGE = 4096;
+	private static final long BITS_PER_PAGE = WORDS_PER_PAGE * 64L;
+	
+	private long[][] pages = new long[0][];
+	
+	boolean get(long bit) {
+		int page = (int)(bit / BITS_PER_PAGE);
+		if (bit < 0 || page >= pages.length || pages[page] == null) {
+			return false;
+		}
+		int word = (int)((bit % BITS_PER_PAGE) >>> 6);
+		return (pages[page][word] & (1L << bit)) != 0;
+	}
+	
+	void set(long bit) {
+		int page = (int)(bit / BITS_PER_PAGE);
+		if (page >= pages.length) {
+			pages = Arrays.copyOf(pages, page + 1);
+		}
+		if (pages[page] == null) {
+			pages[page] = new long[WORDS_PER_PAGE];
+		}
+		int word = (int)((bit % BITS_PER_PAGE) >>> 6);
+		pages[page][word] |= (1L << bit);
+	}
+	
+	void clear() {
+		pages = new long[0][];
+	}
+	
+	/**
+	 * Find the first set bit at or after {@code from}.
+	 * 
+	 * @return The index of the bit, or -1 if there is none
+	 */
+	long nextSetBit(long from) {
+		long bit = Math.max(from, 0);
+		while (bit / BITS_PER_PAGE < pages.length) {
+			int page = (int)(bit / BITS_PER_PAGE);
+			if (pages[page] == null) {
+				bit = (page + 1) * BITS_PER_PAGE;
+				continue;
+			}
+			int word = (int)((bit % BITS_PER_PAGE) >>> 6);
+			long bits = pages[page][word] & (-1L << bit);
+			while (bits == 0) {
+				if (++word == WORDS_PER_PAGE) {
+					break;
+				}
+				bits = pages[page][word];
+			}
+			if (bits != 0) {
+				return page * BITS_PER_PAGE + word * 64L + Long.numberOfTrailingZeros(bits);
+			}
+			bit = (page + 1) * BITS_PER_PAGE;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Find the first clear bit at or after {@code from}.
+	 * 
+	 * @return The index of the bit
+	 */
+	long nextClearBit(long from) {
+		long bit = Math.max(from, 0);
+		while (get(bit)) {
+			bit++;
+		}
+		return bit;
+	}
+	
+	long cardinality() {
+		long count = 0;
+		for (long[] page : pages) {
+			if (page != null) {
+				for (long word : page) {
+					count += Long.bitCount(word);
+				}
+			}
+		}
+		return count;
+	}
+	
+	void write(DataOutput out) throws IOException {
+		int allocated = 0;
+		for (long[] page : pages) {
+			if (page != null) {
+				allocated++;
+			}
+		}
+		
+		out.writeInt(allocated);
+		for (int i = 0; i < pages.length; i++) {
+			if (pages[i] != null) {
+				out.writeInt(i);
+				for (long word : pages[i]) {
+					out.writeLong(word);
+				}
+			}
+		}
+	}
+	
+	void read(DataInput in) throws IOException {
+		clear();
+		int allocated = in.readInt();
+		for (int i = 0; i < allocated; i++) {
+			int page = in.readInt();
+			if (page >= pages.length) {
+				pages = Arrays.copyOf(pages, page + 1);
+			}
+			pages[page] = new long[WORDS_PER_PAGE];
+			for (int word = 0; word < WORDS_PER_PAGE; word++) {
+				pages[page][word] = in.readLong();
+			}
+		}
+	}
+}
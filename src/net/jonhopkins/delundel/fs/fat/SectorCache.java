@@ -0,0 +1,290 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of sector contents, keyed by the byte offset of the 
+ * sector within the volume.
+ * <p>
+ * The cache holds at most {@code capacity} bytes of sector data. Two 
+ * eviction policies are available:
+ * <ul>
+ * <li>{@link EvictionPolicy#LRU} -- evict the least recently used sector.</li>
+ * <li>{@link EvictionPolicy#SEGMENTED_LRU} -- new sectors enter a 
+ * probationary segment and are only promoted to the protected segment if 
+ * they are read again. Sectors which are read once, such as the data of a 
+ * large file being extracted, are evicted from the probationary segment 
+ * first, so FAT and directory sectors stay cached while files stream 
+ * through.</li>
+ * </ul>
+ * <p>
+ * The cache is safe to share between threads. Threads should use 
+ * {@link #read(long, ByteBuffer)} rather than {@link #get(long, int)}, 
+ * since an array handed out by {@code get} may be evicted and reused by 
+ * another thread while it is still being read.
+ */
+public class SectorCache {
+	public enum EvictionPolicy {
+		LRU,
+		SEGMENTED_LRU
+	}
+	
+	/**
+	 * Share of the capacity given to the protected segment when using 
+	 * {@link EvictionPolicy#SEGMENTED_LRU}.
+	 */
+	private static final int PROTECTED_PERCENT = 80;
+	
+	/**
+	 * Maximum number of evicted arrays kept around for reuse.
+	 */
+	private static final int MAX_SPARES = 16;
+	
+	private final long capacity;
+	private final long protectedCapacity;
+	private final EvictionPolicy policy;
+	
+	// with LRU only the probationary segment is used
+	private final LinkedHashMap<Long, byte[]> probationary;
+	private final LinkedHashMap<Long, byte[]> protectedSegment;
+	private long probationaryBytes;
+	private long protectedBytes;
+	private final ArrayDeque<byte[]> spares;
+	
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	public SectorCache(long capacity, EvictionPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.protectedCapacity = policy == EvictionPolicy.SEGMENTED_LRU
+				? capacity * PROTECTED_PERCENT / 100 : 0;
+		
+		probationary = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+		protectedSegment = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+		spares = new ArrayDeque<byte[]>(MAX_SPARES);
+	}
+	
+	/**
+	 * Get an array to read a new sector into, reusing one that was evicted 
+	 * if possible so that a full cache doesn't allocate on every miss.
+	 * 
+	 * @param size The size of a sector
+	 * @return An array of {@code size} bytes
+	 */
+	public synchronized byte[] allocate(int size) {
+		byte[] spare = spares.poll();
+		if (spare != null && spare.length == size) {
+			return spare;
+		}
+		return new byte[size];
+	}
+	
+	/**
+	 * Look up the sector starting at byte {@code offset}.
+	 * 
+	 * @param offset The byte offset of the sector
+	 * @param size The number of bytes wanted
+	 * @return The cached sector, which must not be modified, or null if 
+	 *         it is not cached
+	 */
+	public synchronized byte[] get(long offset, int size) {
+		Long key = offset;
+		byte[] sector = protectedSegment.get(key);
+		if (sector == null) {
+			sector = probationary.get(key);
+			if (sector != null && policy == EvictionPolicy.SEGMENTED_LRU) {
+				promote(key, sector);
+			}
+		}
+		
+		if (sector == null || sector.length < size) {
+			misses++;
+			return null;
+		}
+		
+		hits++;
+		return sector;
+	}
+	
+	/**
+	 * Copy the start of the sector at byte {@code offset} into {@code dst}, 
+	 * if it is cached. Exactly {@code dst.remaining()} bytes are copied.
+	 * 
+	 * @param offset The byte offset of the sector
+	 * @param dst The buffer to copy into
+	 * @return Whether the sector was cached
+	 */
+	public synchronized boolean read(long offset, ByteBuffer dst) {
+		byte[] sector = get(offset, dst.remaining());
+		if (sector == null) {
+			return false;
+		}
+		dst.put(sector, 0, dst.remaining());
+		return true;
+	}
+	
+	/**
+	 * Add a sector to the cache. The cache takes ownership of the array.
+	 * 
+	 * @param offset The byte offset of the sector
+	 * @param sector The contents of the sector
+	 */
+	public synchronized void put(long offset, byte[] sector) {
+		if (sector.length > capacity) {
+			return;
+		}
+		
+		remove(offset);
+		probationary.put(offset, sector);
+		probationaryBytes += sector.length;
+		evict();
+	}
+	
+	/**
+	 * Drop a sector from the cache, if it is present.
+	 * 
+	 * @param offset The byte offset of the sector
+	 */
+	public synchronized void remove(long offset) {
+		Long key = offset;
+		byte[] old = probationary.remove(key);
+		if (old != null) {
+			probationaryBytes -= old.length;
+		}
+		old = protectedSegment.remove(key);
+		if (old != null) {
+			protectedBytes -= old.length;
+		}
+	}
+	
+	/**
+	 * Drop every sector from the cache. The statistics are kept.
+	 */
+	public synchronized void clear() {
+		spares.clear();
+		probationary.clear();
+		protectedSegment.clear();
+		probationaryBytes = 0;
+		protectedBytes = 0;
+	}
+	
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	public EvictionPolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Get the number of bytes of sector data currently held.
+	 * 
+	 * @return The size of the cached data
+	 */
+	public synchronized long getSize() {
+		return probationaryBytes + protectedBytes;
+	}
+	
+	public synchronized long getHitCount() {
+		return hits;
+	}
+	
+	public synchronized long getMissCount() {
+		return misses;
+	}
+	
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+	
+	/**
+	 * Get the fraction of lookups that were served from the cache.
+	 * 
+	 * @return The hit ratio, between 0 and 1
+	 */
+	public synchronized double getHitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double)hits / lookups;
+	}
+	
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+	
+	private void promote(Long key, byte[] sector) {
+		probationary.remove(key);
+		probationaryBytes -= sector.length;
+		protectedSegment.put(key, sector);
+		protectedBytes += sector.length;
+		
+		// demote the coldest protected sectors back to probation, where 
+		// they get one more chance before being evicted. The sector just 
+		// promoted is the most recently used, so stopping at it keeps it 
+		// protected even if it is bigger than the whole segment.
+		Iterator<Map.Entry<Long, byte[]>> it = protectedSegment.entrySet().iterator();
+		while (protectedBytes > protectedCapacity && it.hasNext()) {
+			Map.Entry<Long, byte[]> coldest = it.next();
+			if (coldest.getKey().equals(key)) {
+				break;
+			}
+			it.remove();
+			protectedBytes -= coldest.getValue().length;
+			probationary.put(coldest.getKey(), coldest.getValue());
+			probationaryBytes += coldest.getValue().length;
+		}
+		evict();
+	}
+	
+	private void evict() {
+		evict(probationary, true);
+		evict(protectedSegment, false);
+	}
+	
+	private void evict(LinkedHashMap<Long, byte[]> segment, boolean isProbationary) {
+		Iterator<Map.Entry<Long, byte[]>> it = segment.entrySet().iterator();
+		while (getSize() > capacity && it.hasNext()) {
+			byte[] sector = it.next().getValue();
+			it.remove();
+			if (isProbationary) {
+				probationaryBytes -= sector.length;
+			} else {
+				protectedBytes -= sector.length;
+			}
+			if (spares.size() < MAX_SPARES) {
+				spares.offer(sector);
+			}
+			evictions++;
+		}
+	}
+}
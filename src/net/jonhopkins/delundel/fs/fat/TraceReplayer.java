@@ -0,0 +1,366 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+
+/**
+ * Plays back a trace recorded by {@link TracingIOManager} against any 
+ * manager and measures how long it takes. The trace is decoded before the 
+ * clock starts, so only the manager's own work is timed.
+ * <p>
+ * Asynchronous reads are all issued before any of them is waited for, up 
+ * to the next call of another kind or the end of the trace, so a run of 
+ * them is in flight at once as it was when it was recorded.
+ * <p>
+ * Traces don't hold sector contents, so writes are skipped unless 
+ * {@link #setReplayWrites(boolean)} is turned on, in which case zero-filled 
+ * sectors are written. Only replay writes against a scratch copy of an 
+ * image.
+ */
+public class TraceReplayer {
+	private int[] ops = new int[1024];
+	private long[] sectors = new long[1024];
+	private int[] sizes = new int[1024];
+	private int[] extras = new int[1024];
+	private int count;
+	private boolean replayWrites;
+	
+	/**
+	 * Load a trace.
+	 * 
+	 * @param traceFilename The trace file
+	 * @throws IOException If the file can't be read or isn't a trace
+	 */
+	public TraceReplayer(String traceFilename) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(traceFilename)));
+		try {
+			if (in.readInt() != TracingIOManager.MAGIC) {
+				throw new IOException(traceFilename + " is not a sector trace");
+			}
+			int version = in.readUnsignedByte();
+			if (version != TracingIOManager.VERSION) {
+				throw new IOException("Unsupported trace version " + version);
+			}
+			load(in);
+		} finally {
+			in.close();
+		}
+	}
+	
+	public boolean getReplayWrites() {
+		return replayWrites;
+	}
+	
+	public void setReplayWrites(boolean replayWrites) {
+		this.replayWrites = replayWrites;
+	}
+	
+	/**
+	 * Get the number of calls in the trace.
+	 * 
+	 * @return The number of records
+	 */
+	public int getRecordCount() {
+		return count;
+	}
+	
+	/**
+	 * Play the trace back against a manager. The manager is not closed, and 
+	 * writes are skipped if it can't write.
+	 * 
+	 * @param target The manager to replay the calls on
+	 * @return What was done and how long it took
+	 */
+	public Result replay(FSIOManager target) {
+		Result result = new Result();
+		ByteBuffer buffer = ByteBuffer.allocate(0);
+		byte[] zeros = new byte[0];
+		boolean writes = replayWrites && target.isWritable();
+		Queue<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<CompletableFuture<ByteBuffer>>();
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long sector = sectors[i];
+			int size = sizes[i];
+			if (ops[i] == TracingIOManager.OP_READ_SECTORS_ASYNC) {
+				pending.add(target.readSectorsAsync(sector, extras[i], size));
+				result.maxInFlight = Math.max(result.maxInFlight, pending.size());
+				continue;
+			}
+			join(pending, result);
+			
+			switch (ops[i]) {
+			case TracingIOManager.OP_READ_SECTOR:
+				result.read(target.readSector(sector, size) == null ? -1 : size);
+				break;
+			case TracingIOManager.OP_READ_SECTORS:
+				byte[] data = target.readSectors(sector, extras[i], size);
+				result.read(data == null ? -1 : data.length);
+				break;
+			case TracingIOManager.OP_READ_SECTOR_INTO:
+				if (buffer.capacity() < extras[i]) {
+					buffer = ByteBuffer.allocate(extras[i]);
+				}
+				buffer.clear();
+				buffer.limit(extras[i]);
+				result.read(target.readSectorInto(sector, size, buffer) ? extras[i] : -1);
+				break;
+			case TracingIOManager.OP_WRITE_SECTOR:
+				if (!writes) {
+					result.skipped++;
+					break;
+				}
+				if (zeros.length != size) {
+					zeros = new byte[size];
+				}
+				target.writeSector(sector, zeros);
+				result.writes++;
+				result.bytesWritten += size;
+				break;
+			case TracingIOManager.OP_FLUSH:
+				if (writes) {
+					target.flush();
+				}
+				break;
+			}
+		}
+		join(pending, result);
+		result.nanos = System.nanoTime() - start;
+		
+		return result;
+	}
+	
+	private static void join(Queue<CompletableFuture<ByteBuffer>> pending, Result result) {
+		while (!pending.isEmpty()) {
+			try {
+				result.read(pending.remove().join().remaining());
+			} catch (CompletionException e) {
+				result.read(-1);
+			}
+		}
+	}
+	
+	private void load(DataInputStream in) throws IOException {
+		long previousSector = 0;
+		while (true) {
+			int op = in.read();
+			if (op < 0) {
+				break;
+			}
+			
+			long sector = previousSector;
+			int size = 0;
+			int extra = -1;
+			if (op != TracingIOManager.OP_FLUSH) {
+				sector = previousSector + unzigzag(readVarLong(in));
+				size = (int)readVarLong(in);
+				if (op == TracingIOManager.OP_READ_SECTORS
+						|| op == TracingIOManager.OP_READ_SECTORS_ASYNC
+						|| op == TracingIOManager.OP_READ_SECTOR_INTO) {
+					extra = (int)readVarLong(in);
+				}
+				previousSector = sector;
+			}
+			
+			if (count == ops.length) {
+				ops = Arrays.copyOf(ops, count * 2);
+				sectors = Arrays.copyOf(sectors, count * 2);
+				sizes = Arrays.copyOf(sizes, count * 2);
+				extras = Arrays.copyOf(extras, count * 2);
+			}
+			ops[count] = op;
+			sectors[count] = sector;
+			sizes[count] = size;
+			extras[count] = extra;
+			count++;
+		}
+	}
+	
+	private static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Trace ends part way through a record");
+			}
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in trace");
+	}
+	
+	/**
+	 * The outcome of replaying a trace.
+	 */
+	public static class Result {
+		private long reads;
+		private long bytesRead;
+		private long failedReads;
+		private long writes;
+		private long bytesWritten;
+		private long skipped;
+		private int maxInFlight;
+		private long nanos;
+		
+		public long getReadCount() {
+			return reads;
+		}
+		
+		public long getBytesRead() {
+			return bytesRead;
+		}
+		
+		public long getFailedReadCount() {
+			return failedReads;
+		}
+		
+		public long getWriteCount() {
+			return writes;
+		}
+		
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+		
+		/**
+		 * Get the number of writes in the trace which were not replayed.
+		 * 
+		 * @return The number of skipped writes
+		 */
+		public long getSkippedWriteCount() {
+			return skipped;
+		}
+		
+		/**
+		 * Get the most asynchronous reads that were waiting to complete at 
+		 * once.
+		 * 
+		 * @return The deepest the queue of asynchronous reads grew
+		 */
+		public int getMaxInFlight() {
+			return maxInFlight;
+		}
+		
+		public long getElapsedNanos() {
+			return nanos;
+		}
+		
+		/**
+		 * Get the number of calls made per second.
+		 * 
+		 * @return The operation rate
+		 */
+		public double getOperationsPerSecond() {
+			return nanos == 0 ? 0 : (reads + writes) * 1e9 / nanos;
+		}
+		
+		/**
+		 * Get the number of megabytes read and written per second.
+		 * 
+		 * @return The throughput in MB/s
+		 */
+		public double getThroughput() {
+			return nanos == 0 ? 0 : (bytesRead + bytesWritten) * 1e9 / nanos / (1024 * 1024);
+		}
+		
+		private void read(long bytes) {
+			reads++;
+			if (bytes < 0) {
+				failedReads++;
+			} else {
+				bytesRead += bytes;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d reads (%d failed, %d bytes), %d writes (%d bytes, %d skipped)"
+					+ " in %.3f ms: %.0f ops/s, %.2f MB/s",
+					reads, failedReads, bytesRead, writes, bytesWritten, skipped,
+					nanos / 1e6, getOperationsPerSecond(), getThroughput());
+		}
+	}
+	
+	/**
+	 * Replay a trace against an image from the command line.
+	 * <p>
+	 * Usage: {@code TraceReplayer <trace> <image> [fat|mapped|async] [--writes]}
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: TraceReplayer <trace> <image> [fat|mapped|async] [--writes]");
+			return;
+		}
+		
+		TraceReplayer replayer = new TraceReplayer(args[0]);
+		String kind = "fat";
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--writes")) {
+				replayer.setReplayWrites(true);
+			} else {
+				kind = args[i];
+			}
+		}
+		
+		FSIOManager target;
+		if (kind.equals("mapped")) {
+			target = new MappedIOManager(args[1]);
+		} else if (kind.equals("async")) {
+			target = new AsyncIOManager(args[1]);
+		} else {
+			target = new FATIOManager(args[1], replayer.getReplayWrites());
+		}
+		
+		if (replayer.getReplayWrites() && !target.isWritable()) {
+			System.out.println("The " + kind + " manager can't write, so writes will be skipped");
+			replayer.setReplayWrites(false);
+		}
+		
+		System.out.format("Replaying %d records against %s (%s)\n", replayer.getRecordCount(),
+				args[1], kind);
+		Result result = replayer.replay(target);
+		target.close();
+		System.out.println(result);
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package net.jonhopkins.delundel.fs.fat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+
+/**
+ * Records every call made to another manager in a trace file, so the same 
+ * sequence of reads and writes can later be played back against a 
+ * different manager by {@link TraceReplayer}. Only sector numbers and 
+ * sizes are recorded, never sector contents, so traces of real images 
+ * can be shared without sharing the images.
+ * <p>
+ * A trace starts with the magic number {@code DUTR} and a version byte, 
+ * followed by one record per call:
+ * <ul>
+ * <li>an operation byte,</li>
+ * <li>the sector number as a zigzag-encoded varint giving the difference 
+ * from the previous record's sector, so sequential access costs one byte,</li>
+ * <li>the sector size as a varint,</li>
+ * <li>for {@code readSectors} and {@code readSectorsAsync}, the sector 
+ * count as a varint, and for {@code readSectorInto}, the number of bytes 
+ * read as a varint.</li>
+ * </ul>
+ * A flush record is the operation byte alone.
+ */
+public class TracingIOManager extends FilterIOManager {
+	static final int MAGIC = 0x44555452; // "DUTR"
+	static final int VERSION = 1;
+	
+	static final int OP_READ_SECTOR = 1;
+	static final int OP_READ_SECTORS = 2;
+	static final int OP_READ_SECTOR_INTO = 3;
+	static final int OP_READ_SECTORS_ASYNC = 4;
+	static final int OP_WRITE_SECTOR = 5;
+	static final int OP_FLUSH = 6;
+	
+	private DataOutputStream out;
+	private long previousSector;
+	private long recordCount;
+	
+	/**
+	 * Start tracing the calls made to a manager.
+	 * 
+	 * @param ioManager The manager to trace
+	 * @param traceFilename The file to write the trace to, which is 
+	 *        replaced if it exists
+	 * @throws IOException If the trace file can't be created
+	 */
+	public TracingIOManager(FSIOManager ioManager, String traceFilename) throws IOException {
+		super(ioManager);
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(traceFilename)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Get the number of calls recorded so far.
+	 * 
+	 * @return The number of records in the trace
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+	
+	@Override
+	public byte[] readSector(long sectorNumber, int size) {
+		record(OP_READ_SECTOR, sectorNumber, size, -1);
+		return ioManager.readSector(sectorNumber, size);
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		record(OP_READ_SECTORS, startSector, size, count);
+		return ioManager.readSectors(startSector, count, size);
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		record(OP_READ_SECTOR_INTO, sectorNumber, size, dst.remaining());
+		return ioManager.readSectorInto(sectorNumber, size, dst);
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		record(OP_READ_SECTORS_ASYNC, startSector, size, count);
+		return ioManager.readSectorsAsync(startSector, count, size);
+	}
+	
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		record(OP_WRITE_SECTOR, sectorNumber, data.length, -1);
+		ioManager.writeSector(sectorNumber, data);
+	}
+	
+	@Override
+	public void flush() {
+		synchronized (this) {
+			if (out != null) {
+				try {
+					out.writeByte(OP_FLUSH);
+					recordCount++;
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+		ioManager.flush();
+	}
+	
+	/**
+	 * Finish the trace file, leaving the wrapped manager open. Calls made 
+	 * after this are passed through without being recorded.
+	 */
+	public synchronized void stop() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		out = null;
+	}
+	
+	@Override
+	public void close() {
+		stop();
+		ioManager.close();
+	}
+	
+	private synchronized void record(int op, long sectorNumber, int size, int extra) {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.writeByte(op);
+			writeVarLong(out, zigzag(sectorNumber - previousSector));
+			writeVarLong(out, size);
+			if (extra >= 0) {
+				writeVarLong(out, extra);
+			}
+			previousSector = sectorNumber;
+			recordCount++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	// a broken trace shouldn't break the reads being traced
+	private void fail(IOException e) {
+		e.printStackTrace();
+		try {
+			out.close();
+		} catch (IOException ignored) {
+		}
+		out = null;
+	}
+	
+	private static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+	
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+}
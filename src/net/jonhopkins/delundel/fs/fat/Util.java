@@ -23,6 +23,8 @@
  */
 package net.jonhopkins.delundel.fs.fat;
 
+import java.nio.ByteBuffer;
+
 class Util {
 	static final int BAD_CLUSTER_12 = 0x0FF7;
 	static final int BAD_CLUSTER_16 = 0xFFF7;
@@ -103,10 +105,22 @@ class Util {
 		return ret;
 	}
 	
-	static long unsignedLong(byte[] byteArray, int offset, int numBytes) {
+	/**
+	 * Same as {@link #unsignedInt(byte[], int, int)}, but reads from an 
+	 * absolute offset in a buffer without moving its position.
+	 */
+	static int unsignedInt(ByteBuffer buffer, int offset, int numBytes) {
 		int ret = 0;
 		for (int i = 0; i < numBytes; i++) {
-			ret += ((byteArray[offset + i] & 0x00ff) << (i * 8));
+			ret += ((buffer.get(offset + i) & 0x00ff) << (i * 8));
+		}
+		return ret;
+	}
+	
+	static long unsignedLong(byte[] byteArray, int offset, int numBytes) {
+		long ret = 0;
+		for (int i = 0; i < numBytes; i++) {
+			ret += ((byteArray[offset + i] & 0x00ffL) << (i * 8));
 		}
 		return ret;
 	}
@@ -114,9 +128,9 @@ class Util {
 	static int unsignedInt12(byte[] byteArray, int offset, boolean first) {
 		int ret = 0;
 		
-		int firstByte = (int)byteArray[offset + 0];
-		int secondByte = (int)byteArray[offset + 1];
-		int thirdByte = (int)byteArray[offset + 2];
+		int firstByte = byteArray[offset + 0] & 0xff;
+		int secondByte = byteArray[offset + 1] & 0xff;
+		int thirdByte = byteArray[offset + 2] & 0xff;
 		
 		// UV WX YZ --> XUV YZW
 		
@@ -131,6 +145,20 @@ class Util {
 		return ret;
 	}
 	
+	static int unsignedInt12(ByteBuffer buffer, int offset, boolean first) {
+		int firstByte = buffer.get(offset + 0) & 0xff;
+		int secondByte = buffer.get(offset + 1) & 0xff;
+		int thirdByte = buffer.get(offset + 2) & 0xff;
+		
+		// UV WX YZ --> XUV YZW
+		
+		if (first) {
+			return firstByte + ((secondByte & 0x0f) << 8);
+		} else {
+			return (thirdByte << 4) + ((secondByte & 0xf0) >> 4);
+		}
+	}
+	
 	protected static void testUnsignedInt12() {
 		// 12 34 56 --> 412 563
 		byte[] bytes = new byte[] { 0x12, 0x34, 0x56 };
@@ -138,5 +166,12 @@ class Util {
 		int second = unsignedInt12(bytes, 0, false);
 		
 		assert(first == 0x412 && second == 0x563);
+		
+		// F8 FF FF --> FF8 FFF
+		bytes = new byte[] { (byte)0xf8, (byte)0xff, (byte)0xff };
+		first = unsignedInt12(bytes, 0, true);
+		second = unsignedInt12(bytes, 0, false);
+		
+		assert(first == 0xff8 && second == 0xfff);
 	}
 }
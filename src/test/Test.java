@@ -79,4 +79,14 @@ public abstract class Test {
 	public void assertNotEquals(Object obj1, Object obj2) {
 		assertNotEquals(null, obj1, obj2);
 	}
+	
+	protected void printStartOfTest(String testName) {
+		System.out.println("---------------------------");
+		System.out.println("Running test: " + testName);
+	}
+	
+	protected void printEndOfPassedTest() {
+		System.out.println("Passed!");
+		System.out.println("---------------------------");
+	}
 }
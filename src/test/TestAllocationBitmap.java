@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+
+import net.jonhopkins.delundel.fs.fat.AllocationBitmap;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import test.resources.TestVolumeFAT32;
+
+/**
+ * Tests the allocation bitmap and free extent index built from a FAT32 
+ * volume.
+ */
+public class TestAllocationBitmap extends TestVolumeFAT32 {
+	
+	@Override
+	public void runTests() {
+		before();
+		testAllocationBitmap();
+		after();
+		
+		before();
+		testFreeExtentIndex();
+		after();
+	}
+	
+	public void testAllocationBitmap() {
+		printStartOfTest("testAllocationBitmap");
+		FAT fat = mount();
+		AllocationBitmap bitmap = fat.getAllocationBitmap();
+		assertEquals("entries covered", bitmap.getClusterCount(), VOLUME_CLUSTERS + 2);
+		assertTrue("reserved entries in use", bitmap.isAllocated(0) && bitmap.isAllocated(1));
+		assertTrue("root directory in use", bitmap.isAllocated(2) && bitmap.isAllocated(3));
+		for (int cluster : FILE_CHAIN) {
+			assertTrue("file cluster " + cluster + " in use", bitmap.isAllocated(cluster));
+		}
+		assertTrue("gap in file is free", bitmap.isFree(12));
+		assertTrue("past the end is not free", !bitmap.isFree(VOLUME_CLUSTERS + 2));
+		assertEquals("free count", bitmap.getFreeCount(),
+				(long)VOLUME_CLUSTERS - 2 - FILE_CHAIN.length);
+		assertEquals("next free from 10", bitmap.nextFree(10), 12);
+		assertEquals("next free from 64", bitmap.nextFree(64), 64);
+		assertEquals("next free past the end", bitmap.nextFree(VOLUME_CLUSTERS + 2), -1);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testFreeExtentIndex() {
+		printStartOfTest("testFreeExtentIndex");
+		FAT fat = mount();
+		AllocationBitmap bitmap = fat.getAllocationBitmap();
+		assertEquals("free extents", bitmap.getFreeExtentCount(), 3);
+		assertEquals("first free extent", bitmap.getFreeExtentStart(0), 4);
+		assertEquals("first free extent length", bitmap.getFreeExtentLength(0), 6);
+		assertEquals("second free extent", bitmap.getFreeExtentStart(1), 12);
+		assertEquals("second free extent length", bitmap.getFreeExtentLength(1), 8);
+		assertEquals("last free extent", bitmap.getFreeExtentStart(2), 21);
+		assertEquals("last free extent length", bitmap.getFreeExtentLength(2),
+				VOLUME_CLUSTERS + 2 - 21);
+		
+		int[] bySize = bitmap.getFreeExtentsBySize();
+		assertEquals("smallest", bySize[0], 0);
+		assertEquals("largest", bySize[2], 2);
+		assertEquals("extent holding 15", bitmap.findFreeExtent(15), 1);
+		assertEquals("allocated cluster", bitmap.findFreeExtent(20), -1);
+		assertEquals("best fit for 7", bitmap.findFreeExtentOfLength(7), 1);
+		assertEquals("best fit for 1", bitmap.findFreeExtentOfLength(1), 0);
+		assertEquals("too long", bitmap.findFreeExtentOfLength(VOLUME_CLUSTERS), -1);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import net.jonhopkins.delundel.fs.fat.AsyncIOManager;
+
+/**
+ * Tests that AsyncIOManager hands each read its own data when many are in 
+ * flight, and reports reads it can't do through the future.
+ */
+public class TestAsyncIO extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final int QUEUE_DEPTH = 4;
+	private static final int READS = 500;
+	private static final String VOLUME = "res/samplefat.bin";
+	
+	private byte[] volume;
+	private int sectors;
+	private AsyncIOManager manager;
+	
+	public void runTests() {
+		before();
+		
+		testManyReadsInFlight();
+		testFailedFutures();
+		testMultiSectorReads();
+		testPartialSectorInto();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+		try {
+			volume = Files.readAllBytes(new File(VOLUME).toPath());
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		sectors = volume.length / SECTOR_SIZE;
+		manager = new AsyncIOManager(VOLUME, QUEUE_DEPTH);
+	}
+	
+	public void testManyReadsInFlight() {
+		printStartOfTest("testManyReadsInFlight");
+		// far more reads than the queue depth, so they complete in whatever 
+		// order the channel gets to them
+		Random random = new Random(0);
+		long[] starts = new long[READS];
+		int[] counts = new int[READS];
+		List<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+		for (int i = 0; i < READS; i++) {
+			counts[i] = 1 + random.nextInt(8);
+			starts[i] = random.nextInt(sectors - counts[i]);
+			futures.add(manager.readSectorsAsync(starts[i], counts[i], SECTOR_SIZE));
+		}
+		
+		for (int i = 0; i < READS; i++) {
+			ByteBuffer data = futures.get(i).join();
+			assertEquals("read " + i + " starts at 0", data.position(), 0);
+			assertEquals("read " + i + " is all there", data.limit(), counts[i] * SECTOR_SIZE);
+			assertTrue("read " + i + " has its own sectors",
+					Arrays.equals(data.array(), expected(starts[i], counts[i])));
+		}
+		printEndOfPassedTest();
+	}
+	
+	public void testFailedFutures() {
+		printStartOfTest("testFailedFutures");
+		assertFailed("past the end", manager.readSectorsAsync(sectors, 1, SECTOR_SIZE));
+		assertFailed("over the end", manager.readSectorsAsync(sectors - 1, 2, SECTOR_SIZE));
+		assertFailed("negative sector", manager.readSectorsAsync(-1, 1, SECTOR_SIZE));
+		assertFailed("negative count", manager.readSectorsAsync(0, -1, SECTOR_SIZE));
+		
+		assertTrue("manager still reads after failures", Arrays.equals(
+				manager.readSectorsAsync(sectors - 1, 1, SECTOR_SIZE).join().array(),
+				expected(sectors - 1, 1)));
+		printEndOfPassedTest();
+	}
+	
+	public void testMultiSectorReads() {
+		printStartOfTest("testMultiSectorReads");
+		assertTrue("readSectors", Arrays.equals(manager.readSectors(10, 9, SECTOR_SIZE),
+				expected(10, 9)));
+		assertTrue("readSector", Arrays.equals(manager.readSector(19, SECTOR_SIZE),
+				expected(19, 1)));
+		
+		ByteBuffer buffer = ByteBuffer.allocate(4 * SECTOR_SIZE);
+		assertTrue("readSectorInto succeeds", manager.readSectorInto(20, SECTOR_SIZE, buffer));
+		assertFalse("buffer filled", buffer.hasRemaining());
+		assertTrue("readSectorInto", Arrays.equals(buffer.array(), expected(20, 4)));
+		printEndOfPassedTest();
+	}
+	
+	public void testPartialSectorInto() {
+		printStartOfTest("testPartialSectorInto");
+		ByteBuffer buffer = ByteBuffer.allocate(2 * SECTOR_SIZE);
+		buffer.position(100);
+		buffer.limit(100 + SECTOR_SIZE + 200);
+		assertTrue("readSectorInto succeeds", manager.readSectorInto(30, SECTOR_SIZE, buffer));
+		assertEquals("position advanced past the data", buffer.position(), 100 + SECTOR_SIZE + 200);
+		assertTrue("part of a second sector read", Arrays.equals(
+				Arrays.copyOfRange(buffer.array(), 100, 100 + SECTOR_SIZE + 200),
+				Arrays.copyOfRange(volume, 30 * SECTOR_SIZE, 31 * SECTOR_SIZE + 200)));
+		assertTrue("rest of the buffer untouched", Arrays.equals(
+				Arrays.copyOfRange(buffer.array(), 0, 100), new byte[100]));
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		manager.close();
+	}
+	
+	private void assertFailed(String message, CompletableFuture<ByteBuffer> future) {
+		try {
+			future.join();
+			throw new AssertionError(message + " succeeded");
+		} catch (CompletionException e) {
+			assertTrue(message + " fails with an IOException", e.getCause() instanceof IOException);
+		}
+	}
+	
+	private byte[] expected(long sector, int count) {
+		return Arrays.copyOfRange(volume, (int)sector * SECTOR_SIZE,
+				(int)(sector + count) * SECTOR_SIZE);
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+import net.jonhopkins.delundel.fs.fat.ClusterChain;
+import net.jonhopkins.delundel.fs.fat.ClusterChainCache;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATFile;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.InstrumentedIOManager;
+import test.resources.TestVolumeFAT32;
+
+/**
+ * Tests reading FAT32 cluster chains as runs of contiguous clusters, 
+ * stopping walks that run into a cycle or a bad link, and the cache of 
+ * chains each mount keeps.
+ */
+public class TestClusterChains extends TestVolumeFAT32 {
+	
+	@Override
+	public void runTests() {
+		before();
+		testChainStoredAsExtents();
+		after();
+		
+		before();
+		testOneReadPerExtent();
+		after();
+		
+		before();
+		testClusterChainLookup();
+		after();
+		
+		before();
+		testChainStopsAtCycle();
+		after();
+		
+		before();
+		testChainStopsAtBadLink();
+		after();
+		
+		before();
+		testChainCacheHits();
+		after();
+		
+		before();
+		testSetFATEntryInvalidatesChains();
+		after();
+	}
+	
+	public void testChainStoredAsExtents() {
+		printStartOfTest("testChainStoredAsExtents");
+		FAT fat = mount();
+		ClusterChain chain = fat.getClusterChain(FILE_CHAIN[0]);
+		assertEquals("clusters in chain", chain.size(), FILE_CHAIN.length);
+		assertEquals("extents in chain", chain.getExtentCount(), 2);
+		assertEquals("first extent start", chain.getExtentStart(0), 10);
+		assertEquals("first extent length", chain.getExtentLength(0), 2);
+		assertEquals("second extent start", chain.getExtentStart(1), 20);
+		assertEquals("second extent length", chain.getExtentLength(1), 1);
+		for (int i = 0; i < FILE_CHAIN.length; i++) {
+			assertEquals("cluster " + i, chain.get(i), FILE_CHAIN[i]);
+		}
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testOneReadPerExtent() {
+		printStartOfTest("testOneReadPerExtent");
+		FAT fat = mount();
+		FATFile file = (FATFile)fat.getFile(fat.getRootDirectory().listDirectory().get(1));
+		InstrumentedIOManager stats = fat.instrument();
+		ByteBuffer contents = ByteBuffer.allocate(FILE_SIZE);
+		assertEquals("first read covers the first extent",
+				fat.getFileContents(file, contents), 2 * SECTOR_SIZE);
+		assertEquals("second read covers the rest",
+				fat.getFileContents(file, contents), FILE_SIZE - 2 * SECTOR_SIZE);
+		assertEquals("end of file", fat.getFileContents(file, contents), -1);
+		List<InstrumentedIOManager.RegionStats> regions = stats.getRegions();
+		assertEquals("data reads", regions.get(regions.size() - 1).getReadCount(), 2L);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testClusterChainLookup() {
+		printStartOfTest("testClusterChainLookup");
+		// runs of 1, 2, 3, ... clusters with a gap of one cluster after each
+		ClusterChain chain = fat32Chain();
+		int[] expected = new int[chain.size()];
+		int next = 2;
+		int index = 0;
+		for (int run = 1; run <= 50; run++) {
+			for (int i = 0; i < run; i++) {
+				expected[index++] = next++;
+			}
+			next++;
+		}
+		assertEquals("extents", chain.getExtentCount(), 50);
+		for (int i = expected.length - 1; i >= 0; i--) {
+			assertEquals("cluster " + i, chain.get(i), expected[i]);
+		}
+		assertTrue("contains a cluster in a run", chain.contains(expected[100]));
+		assertTrue("gap between runs is not in the chain", !chain.contains(3));
+		try {
+			chain.get(expected.length);
+			throw new AssertionError("read past the end of the chain");
+		} catch (IndexOutOfBoundsException e) {
+		}
+		printEndOfPassedTest();
+	}
+	
+	public void testChainStopsAtCycle() {
+		printStartOfTest("testChainStopsAtCycle");
+		setFATEntries(20, 10);
+		FAT fat = mount();
+		ClusterChain chain = fat.getClusterChain(FILE_CHAIN[0]);
+		assertEquals("end of chain", chain.getEnd(), ClusterChain.End.CYCLE);
+		assertEquals("each cluster once", chain.size(), FILE_CHAIN.length);
+		assertEquals("link back into the chain", chain.getBadLink(), 10);
+		
+		// a loop which doesn't start at the first cluster
+		setFATEntries(3, 11);
+		fat.unmount();
+		fat = mount();
+		chain = fat.getClusterChain(2);
+		assertEquals("lead-in and loop", chain.size(), 5);
+		assertEquals("loop start", chain.get(2), 11);
+		assertEquals("loop end", chain.get(4), 10);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testChainStopsAtBadLink() {
+		printStartOfTest("testChainStopsAtBadLink");
+		setFATEntries(11, 0x0FFFFFF7, 3, VOLUME_CLUSTERS + 2, 40, 0, 41, 40);
+		FAT fat = mount();
+		ClusterChain chain = fat.getClusterChain(FILE_CHAIN[0]);
+		assertEquals("bad cluster", chain.getEnd(), ClusterChain.End.BAD_CLUSTER);
+		assertEquals("clusters before the bad link", chain.size(), 2);
+		chain = fat.getClusterChain(2);
+		assertEquals("out of range", chain.getEnd(), ClusterChain.End.OUT_OF_RANGE);
+		assertEquals("bad link", chain.getBadLink(), VOLUME_CLUSTERS + 2);
+		chain = fat.getClusterChain(41);
+		assertEquals("free cluster", chain.getEnd(), ClusterChain.End.FREE_CLUSTER);
+		assertTrue("empty file", fat.getClusterChain(0).isComplete());
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testChainCacheHits() {
+		printStartOfTest("testChainCacheHits");
+		FAT fat = mount();
+		ClusterChainCache cache = fat.getClusterChainCache();
+		FSDirectoryEntry hello = fat.getRootDirectory().listDirectory().get(1);
+		cache.resetStatistics();
+		
+		FATFile first = (FATFile)fat.getFile(hello);
+		InstrumentedIOManager stats = fat.instrument();
+		FATFile second = (FATFile)fat.getFile(hello);
+		assertEquals("first open walks the chain", cache.getMissCount(), 1L);
+		assertEquals("second open hits", cache.getHitCount(), 1L);
+		assertEquals("hit rate", cache.getHitRate(), 0.5);
+		assertEquals("no FAT reads for the second open", stats.getRegions().get(1).getReadCount(), 0L);
+		
+		// each file keeps its own position in the shared chain
+		ByteBuffer contents = ByteBuffer.allocate(FILE_SIZE);
+		while (fat.getFileContents(first, contents) > 0) {
+		}
+		ByteBuffer start = ByteBuffer.allocate(1);
+		fat.getFileContents(second, start);
+		assertEquals("second file still at the start", start.get(0), fileByte(0));
+		
+		// whole-volume passes go round the cache
+		fat.getOwnerIndex();
+		assertEquals("owner index doesn't use the cache", cache.getMissCount(), 1L);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testSetFATEntryInvalidatesChains() {
+		printStartOfTest("testSetFATEntryInvalidatesChains");
+		FAT fat = FAT.getFAT(new FATIOManager(volume.getPath(), true));
+		ClusterChainCache cache = fat.getClusterChainCache();
+		ClusterChain hello = fat.getClusterChain(FILE_CHAIN[0]);
+		ClusterChain root = fat.getClusterChain(2);
+		long freeBefore = fat.getAllocationBitmap().getFreeCount();
+		
+		// cut HELLO.TXT short after its second cluster
+		assertTrue("entry written", fat.setFATEntry(11, 0x0FFFFFFF));
+		assertEquals("only the chain through the cluster dropped", cache.getInvalidationCount(), 1L);
+		assertTrue("other chains kept", fat.getClusterChain(2) == root);
+		ClusterChain shorter = fat.getClusterChain(FILE_CHAIN[0]);
+		assertTrue("chain walked again", shorter != hello);
+		assertEquals("new length", shorter.size(), 2);
+		
+		// freeing the cluster cut off touches no cached chain
+		assertTrue("entry freed", fat.setFATEntry(20, 0));
+		assertEquals("nothing else dropped", cache.getInvalidationCount(), 1L);
+		assertTrue("shorter chain kept", fat.getClusterChain(FILE_CHAIN[0]) == shorter);
+		assertEquals("bitmap rebuilt", fat.getAllocationBitmap().getFreeCount(), freeBefore + 1);
+		
+		// the reserved high bits of the entry survive, and every copy of 
+		// the FAT is written
+		fat.getIOManager().flush();
+		for (int copy = 0; copy < 2; copy++) {
+			ByteBuffer sector = ByteBuffer.wrap(readSector(volume,
+					VOLUME_RESERVED + copy * VOLUME_FAT_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals("copy " + copy + " written", sector.getInt(11 * 4), 0x0FFFFFFF);
+			assertEquals("copy " + copy + " high bits kept", sector.getInt(2 * 4), 0xF0000003);
+		}
+		fat.unmount();
+		
+		fat = mount();
+		assertEquals("change persists", fat.getClusterChain(FILE_CHAIN[0]).size(), 2);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	private ClusterChain fat32Chain() {
+		// 1275 clusters across 50 runs, with a free cluster after each run
+		ByteBuffer fat = ByteBuffer.allocate(1400 * 4).order(ByteOrder.LITTLE_ENDIAN);
+		int cluster = 2;
+		for (int run = 1; run <= 50; run++) {
+			for (int i = 0; i < run; i++) {
+				int next = i + 1 < run ? cluster + 1 : cluster + 2;
+				fat.putInt(cluster * 4, run == 50 && i + 1 == run ? 0x0FFFFFFF : next);
+				cluster++;
+			}
+			cluster++;
+		}
+		writeSector(volume, VOLUME_RESERVED, fat.array());
+		FAT fat32 = mount();
+		ClusterChain chain = fat32.getClusterChain(2);
+		fat32.unmount();
+		return chain;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+import net.jonhopkins.delundel.fs.fat.ClusterOwnerIndex;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATDirectoryEntry;
+import test.resources.TestVolumeFAT32;
+
+/**
+ * Tests the index from clusters back to the directory entries that own 
+ * them.
+ */
+public class TestClusterOwners extends TestVolumeFAT32 {
+	
+	@Override
+	public void runTests() {
+		before();
+		testOwnerIndex();
+		after();
+		
+		before();
+		testOwnerIndexFindsCrossLinks();
+		after();
+	}
+	
+	public void testOwnerIndex() {
+		printStartOfTest("testOwnerIndex");
+		FAT fat = mount();
+		ClusterOwnerIndex index = fat.getOwnerIndex();
+		assertEquals("live entries", index.getEntryCount(), 2);
+		assertEquals("root directory", index.getOwnerId(2), ClusterOwnerIndex.ROOT_DIRECTORY);
+		assertEquals("root directory path", index.getOwnerPath(3), "/");
+		for (int cluster : FILE_CHAIN) {
+			assertEquals("owner of " + cluster, index.getOwner(cluster).getName(), "HELLO.TXT");
+		}
+		assertEquals("owner path", index.getOwnerPath(20), "/HELLO.TXT");
+		assertEquals("owner of sector", index.getOwnerOfSector(clusterSector(11)).getName(),
+				"HELLO.TXT");
+		assertEquals("free cluster", index.getOwnerId(12), ClusterOwnerIndex.UNOWNED);
+		assertTrue("reserved sectors are not owned", index.getOwnerOfSector(0) == null);
+		assertTrue("no cross-links", index.getCrossLinks().isEmpty());
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testOwnerIndexFindsCrossLinks() {
+		printStartOfTest("testOwnerIndexFindsCrossLinks");
+		// add a subdirectory holding a file which shares a cluster with 
+		// HELLO.TXT from there to the end of its chain, and a deleted file whose cluster has been reused
+		byte[] root = readSector(volume, clusterSector(2));
+		ByteBuffer rootFirst = ByteBuffer.wrap(root).order(ByteOrder.LITTLE_ENDIAN);
+		dirEntry(rootFirst, 2, "SUB        ", 0x10, 30, 0);
+		dirEntry(rootFirst, 3, "\u00E5ONE    TXT", 0x20, 20, SECTOR_SIZE);
+		writeSector(volume, clusterSector(2), root);
+		
+		ByteBuffer sub = sector();
+		sub.put(510, (byte)0).put(511, (byte)0);
+		dirEntry(sub, 0, ".          ", 0x10, 30, 0);
+		dirEntry(sub, 1, "..         ", 0x10, 0, 0);
+		dirEntry(sub, 2, "INNER   TXT", 0x20, 11, SECTOR_SIZE);
+		writeSector(volume, clusterSector(30), sub.array());
+		
+		setFATEntries(30, 0x0FFFFFFF);
+		
+		FAT fat = mount();
+		ClusterOwnerIndex index = fat.getOwnerIndex();
+		assertEquals("live entries", index.getEntryCount(), 4);
+		assertEquals("subdirectory", index.getOwnerPath(30), "/SUB");
+		
+		List<ClusterOwnerIndex.CrossLink> crossLinks = index.getCrossLinks();
+		assertEquals("cross-links", crossLinks.size(), 2);
+		ClusterOwnerIndex.CrossLink crossLink = crossLinks.get(0);
+		assertEquals("cross-linked cluster", crossLink.getCluster(), 11);
+		assertEquals("rest of the chain", crossLinks.get(1).getCluster(), 20);
+		assertTrue("both files named", crossLink.toString().contains("/HELLO.TXT")
+				&& crossLink.toString().contains("/SUB/INNER.TXT"));
+		
+		FATDirectoryEntry deleted = null;
+		for (FSDirectoryEntry entry : fat.getRootDirectory().listDirectory()) {
+			if (entry.isDeleted()) {
+				deleted = (FATDirectoryEntry)entry;
+			}
+		}
+		assertTrue("deleted entry listed", deleted != null);
+		assertTrue("deleted file's cluster reused", index.isReallocated(deleted));
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+}
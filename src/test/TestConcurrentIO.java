@@ -0,0 +1,192 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.SectorCache;
+
+/**
+ * Tests that one FATIOManager can be shared by several threads.
+ */
+public class TestConcurrentIO extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final int THREADS = 8;
+	private static final int READS_PER_THREAD = 2000;
+	private static final String VOLUME = "res/samplefat.bin";
+	
+	private byte[] volume;
+	
+	public void runTests() {
+		before();
+		
+		testParallelReads();
+		testReadsDuringWrites();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+		try {
+			volume = Files.readAllBytes(new File(VOLUME).toPath());
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	public void testParallelReads() {
+		printStartOfTest("testParallelReads");
+		// a small cache, so sectors are evicted and their arrays reused 
+		// while other threads are reading
+		final FSIOManager manager = new FATIOManager(VOLUME, 16 * SECTOR_SIZE,
+				SectorCache.EvictionPolicy.SEGMENTED_LRU);
+		final int sectors = volume.length / SECTOR_SIZE;
+		
+		runThreads(new Worker() {
+			@Override
+			public void run(Random random) {
+				ByteBuffer buffer = ByteBuffer.allocate(SECTOR_SIZE);
+				for (int i = 0; i < READS_PER_THREAD; i++) {
+					int sector = random.nextInt(64);
+					if (random.nextBoolean()) {
+						sector = random.nextInt(sectors);
+					}
+					buffer.clear();
+					assertTrue("read succeeds", manager.readSectorInto(sector, SECTOR_SIZE, buffer));
+					assertTrue("sector " + sector + " is intact", Arrays.equals(buffer.array(),
+							Arrays.copyOfRange(volume, sector * SECTOR_SIZE, (sector + 1) * SECTOR_SIZE)));
+				}
+			}
+		});
+		
+		manager.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testReadsDuringWrites() {
+		printStartOfTest("testReadsDuringWrites");
+		File image = copyOfVolume();
+		final FATIOManager manager = new FATIOManager(image.getPath(), true, 16 * SECTOR_SIZE,
+				SectorCache.EvictionPolicy.LRU);
+		manager.setWriteBufferSize(8 * SECTOR_SIZE);
+		
+		// every sector is always filled with a single value, so a reader 
+		// can tell if it saw part of one write and part of another
+		for (int sector = 0; sector < 32; sector++) {
+			manager.writeSector(sector, filledSector(0));
+		}
+		manager.flush();
+		
+		runThreads(new Worker() {
+			@Override
+			public void run(Random random) {
+				for (int i = 0; i < READS_PER_THREAD; i++) {
+					int sector = random.nextInt(32);
+					if (random.nextInt(4) == 0) {
+						manager.writeSector(sector, filledSector(random.nextInt(256)));
+						continue;
+					}
+					byte[] data = manager.readSector(sector, SECTOR_SIZE);
+					assertTrue("sector " + sector + " is not torn",
+							Arrays.equals(data, filledSector(data[0])));
+				}
+			}
+		});
+		
+		manager.close();
+		image.delete();
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+	}
+	
+	private interface Worker {
+		public void run(Random random);
+	}
+	
+	private void runThreads(final Worker worker) {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREADS; i++) {
+			final long seed = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						worker.run(new Random(seed));
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+	}
+	
+	private File copyOfVolume() {
+		try {
+			File image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			file.write(volume);
+			file.close();
+			return image;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private byte[] filledSector(int value) {
+		byte[] sector = new byte[SECTOR_SIZE];
+		Arrays.fill(sector, (byte)value);
+		return sector;
+	}
+}
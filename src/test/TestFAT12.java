@@ -23,24 +23,266 @@
  */
 package test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+import net.jonhopkins.delundel.fs.fat.ClusterChain;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATFile;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.InstrumentedIOManager;
+
 public class TestFAT12 extends Test {
 	
+	private static final int SECTOR_SIZE = 512;
+	private static final int VOLUME_RESERVED = 1;
+	private static final int VOLUME_FAT_SIZE = 12;
+	private static final int VOLUME_CLUSTERS = 4000;
+	
+	// entries 341 and 682 straddle the first and second sector boundaries 
+	// of the FAT
+	private static final int[] STRADDLING_CHAIN = { 339, 340, 341, 342, 682, 683 };
+	
+	private FAT fs;
+	private File volume;
+	
 	@Override
 	public void runTests() {
-		// TODO Auto-generated method stub
+		before();
 		
+		testIsFAT12();
+		testReadFileAcrossClusters();
+		testChainsWalkedFromMemory();
+		testStraddlingEntries();
+		testStraddlingEntriesLookedUpOneByOne();
+		testWriteStraddlingEntry();
+		
+		after();
 	}
 	
 	@Override
 	public void before() {
-		// TODO Auto-generated method stub
+		fs = FAT.getFAT(new FATIOManager("res/samplefat.bin"));
+		volume = createVolume();
+	}
+	
+	public void testIsFAT12() {
+		printStartOfTest("testIsFAT12");
+		assertEquals(fs.getFileSystemType() + " == FAT12", fs.getFileSystemType(), "FAT12");
+		printEndOfPassedTest();
+	}
+	
+	public void testReadFileAcrossClusters() {
+		printStartOfTest("testReadFileAcrossClusters");
+		FATFile file = (FATFile)fs.getFile(entry("LICENSE.TXT"));
+		StringBuilder contents = new StringBuilder();
+		byte[] data;
+		while ((data = fs.getFileContents(file)) != null) {
+			contents.append(new String(data));
+		}
+		assertEquals("whole file read", (long)contents.length(), file.getFileSize());
+		assertTrue("file spans several clusters", file.getFileSize() > 512);
+		assertTrue("LICENSE.TXT is text", contents.indexOf("\u0000") < 0);
+		printEndOfPassedTest();
+	}
+	
+	public void testChainsWalkedFromMemory() {
+		printStartOfTest("testChainsWalkedFromMemory");
+		InstrumentedIOManager stats = fs.instrument();
+		fs.getFile(entry("PING.EX_"));
+		for (InstrumentedIOManager.RegionStats region : stats.getRegions()) {
+			if (region.getName().startsWith("FAT")) {
+				assertEquals(region.getName() + " not read", region.getReadCount(), 0L);
+			}
+		}
+		printEndOfPassedTest();
+	}
+	
+	public void testStraddlingEntries() {
+		printStartOfTest("testStraddlingEntries");
+		FAT fat = FAT.getFAT(new FATIOManager(volume.getPath()));
+		assertEquals("FAT12", fat.getFileSystemType(), "FAT12");
+		checkStraddlingChain(fat);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testStraddlingEntriesLookedUpOneByOne() {
+		printStartOfTest("testStraddlingEntriesLookedUpOneByOne");
+		// the second sector of the FAT can't be read while mounting, so 
+		// the table stops at entry 340 and the rest are read as needed
+		FailingIOManager failing = new FailingIOManager(new FATIOManager(volume.getPath()),
+				VOLUME_RESERVED + 1);
+		FAT fat = FAT.getFAT(failing);
+		failing.failedSector = -1;
+		checkStraddlingChain(fat);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testWriteStraddlingEntry() {
+		printStartOfTest("testWriteStraddlingEntry");
+		// entry 341 starts in the last byte of the first sector of the FAT
+		FAT fat = FAT.getFAT(new FATIOManager(volume.getPath(), true));
+		ClusterChain before = fat.getClusterChain(STRADDLING_CHAIN[0]);
+		assertTrue("entry written", fat.setFATEntry(341, 0xFFF));
+		ClusterChain after = fat.getClusterChain(STRADDLING_CHAIN[0]);
+		assertTrue("cached chain dropped", after != before);
+		assertEquals("chain ends at the written entry", after.size(), 3);
+		fat.unmount();
 		
+		// the entries sharing bytes with it are untouched
+		fat = FAT.getFAT(new FATIOManager(volume.getPath()));
+		assertEquals("chain ends on disk", fat.getClusterChain(STRADDLING_CHAIN[0]).size(), 3);
+		assertEquals("next entry intact", fat.getClusterChain(342).size(), 3);
+		fat.unmount();
+		
+		volume.delete();
+		volume = createVolume();
+		printEndOfPassedTest();
 	}
 	
 	@Override
 	public void after() {
-		// TODO Auto-generated method stub
+		fs.unmount();
+		volume.delete();
+	}
+	
+	private void checkStraddlingChain(FAT fat) {
+		ClusterChain chain = fat.getClusterChain(STRADDLING_CHAIN[0]);
+		assertTrue("chain intact", chain.isComplete());
+		assertEquals("chain length", chain.size(), STRADDLING_CHAIN.length);
+		for (int i = 0; i < STRADDLING_CHAIN.length; i++) {
+			assertEquals("cluster " + i, chain.get(i), STRADDLING_CHAIN[i]);
+		}
+		
+		FATFile file = (FATFile)fat.getFile(fat.getRootDirectory().listDirectory().get(0));
+		ByteBuffer contents = ByteBuffer.allocate((int)file.getFileSize());
+		while (fat.getFileContents(file, contents) > 0) {
+		}
+		assertEquals("whole file read", contents.position(), contents.capacity());
+		for (int i = 0; i < STRADDLING_CHAIN.length; i++) {
+			assertEquals("cluster " + i + " of the file", contents.get(i * SECTOR_SIZE),
+					(byte)STRADDLING_CHAIN[i]);
+		}
+	}
+	
+	private File createVolume() {
+		int totalSectors = VOLUME_RESERVED + 2 * VOLUME_FAT_SIZE + 1 + VOLUME_CLUSTERS;
+		
+		ByteBuffer boot = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		boot.put(0, (byte)0xEB).put(1, (byte)0x3C).put(2, (byte)0x90);
+		boot.putShort(11, (short)SECTOR_SIZE);
+		boot.put(13, (byte)1);
+		boot.putShort(14, (short)VOLUME_RESERVED);
+		boot.put(16, (byte)2);
+		boot.putShort(17, (short)16);
+		boot.putShort(19, (short)totalSectors);
+		boot.put(21, (byte)0xF8);
+		boot.putShort(22, (short)VOLUME_FAT_SIZE);
+		boot.put(510, (byte)0x55).put(511, (byte)0xAA);
+		
+		byte[] fat = new byte[VOLUME_FAT_SIZE * SECTOR_SIZE];
+		putEntry12(fat, 0, 0xFF8);
+		putEntry12(fat, 1, 0xFFF);
+		for (int i = 0; i < STRADDLING_CHAIN.length; i++) {
+			putEntry12(fat, STRADDLING_CHAIN[i],
+					i + 1 < STRADDLING_CHAIN.length ? STRADDLING_CHAIN[i + 1] : 0xFFF);
+		}
+		
+		byte[] root = new byte[SECTOR_SIZE];
+		String name = "STRADDLETXT";
+		for (int i = 0; i < name.length(); i++) {
+			root[i] = (byte)name.charAt(i);
+		}
+		root[11] = 0x20;
+		ByteBuffer.wrap(root).order(ByteOrder.LITTLE_ENDIAN)
+				.putShort(26, (short)STRADDLING_CHAIN[0])
+				.putInt(28, STRADDLING_CHAIN.length * SECTOR_SIZE);
 		
+		try {
+			File file = File.createTempFile("delundel", ".img");
+			file.deleteOnExit();
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			out.setLength((long)totalSectors * SECTOR_SIZE);
+			out.seek(0);
+			out.write(boot.array());
+			out.seek(VOLUME_RESERVED * SECTOR_SIZE);
+			out.write(fat);
+			out.write(fat);
+			out.write(root);
+			long dataStart = VOLUME_RESERVED + 2 * VOLUME_FAT_SIZE + 1;
+			for (int cluster : STRADDLING_CHAIN) {
+				// mark each cluster with the low byte of its number
+				byte[] data = new byte[SECTOR_SIZE];
+				data[0] = (byte)cluster;
+				out.seek((dataStart + cluster - 2) * SECTOR_SIZE);
+				out.write(data);
+			}
+			out.close();
+			return file;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
 	}
 	
+	private void putEntry12(byte[] fat, int entry, int value) {
+		int offset = entry + entry / 2;
+		if ((entry & 1) == 0) {
+			fat[offset] = (byte)value;
+			fat[offset + 1] = (byte)((fat[offset + 1] & 0xF0) | (value >>> 8));
+		} else {
+			fat[offset] = (byte)((fat[offset] & 0x0F) | (value << 4));
+			fat[offset + 1] = (byte)(value >>> 4);
+		}
+	}
+	
+	/**
+	 * Fails every read which touches one sector.
+	 */
+	private static class FailingIOManager extends FilterIOManager {
+		long failedSector;
+		
+		FailingIOManager(FSIOManager ioManager, long failedSector) {
+			super(ioManager);
+			this.failedSector = failedSector;
+		}
+		
+		@Override
+		public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+			long sectors = (dst.remaining() + size - 1) / size;
+			if (failedSector >= sectorNumber && failedSector < sectorNumber + sectors) {
+				return false;
+			}
+			return super.readSectorInto(sectorNumber, size, dst);
+		}
+		
+		@Override
+		public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+			if (failedSector >= startSector && failedSector < startSector + count) {
+				CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+				future.completeExceptionally(new IOException("Failed sector " + failedSector));
+				return future;
+			}
+			return super.readSectorsAsync(startSector, count, size);
+		}
+	}
+	
+	private FSDirectoryEntry entry(String name) {
+		List<FSDirectoryEntry> entries = fs.getRootDirectory().listDirectory();
+		for (FSDirectoryEntry entry : entries) {
+			if (entry.getName().equals(name)) {
+				return entry;
+			}
+		}
+		throw new AssertionError("no entry named " + name);
+	}
 }
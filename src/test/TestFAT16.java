@@ -27,6 +27,7 @@ import net.jonhopkins.delundel.fs.FSDirectory;
 import net.jonhopkins.delundel.fs.FSFileSystem;
 import net.jonhopkins.delundel.fs.fat.FAT;
 import net.jonhopkins.delundel.fs.fat.FATFile;
+import net.jonhopkins.delundel.fs.fat.InstrumentedIOManager;
 import test.resources.TestDataFAT16;
 
 public class TestFAT16 extends Test {
@@ -43,6 +44,7 @@ public class TestFAT16 extends Test {
 		testDirectoryEntryLongName();
 		testDirectoryEntryLongNameAcrossSectors();
 		testGetContentsOfFile();
+		testInstrumentedReadsByRegion();
 		
 		after();
 	}
@@ -116,18 +118,45 @@ public class TestFAT16 extends Test {
 		printEndOfPassedTest();
 	}
 	
-	@Override
-	public void after() {
+	public void testInstrumentedReadsByRegion() {
+		printStartOfTest("testInstrumentedReadsByRegion");
+		
+		FAT fat = FAT.getFAT(new TestIOManager(new TestDataFAT16()));
+		InstrumentedIOManager stats = fat.instrument();
+		assertTrue("instrumenting twice gives the same counters", fat.instrument() == stats);
+		
+		FSDirectory dir = fat.getRootDirectory();
+		assertEquals("root directory read once", region(stats, "root dir").getReadCount(), 1L);
+		assertEquals("no data read yet", region(stats, "data").getReadCount(), 0L);
+		
+		FATFile file = (FATFile)fat.getFile(dir.listDirectory().get(0));
+		assertEquals("cluster chain walked without reading the FAT",
+				region(stats, "FAT 1").getReadCount(), 0L);
+		while (!file.isEndOfFile()) {
+			fat.getFileContents(file);
+		}
+		assertEquals("whole file read from the data region",
+				region(stats, "data").getBytesRead(), file.getFileSize());
+		assertTrue("read latency recorded",
+				region(stats, "data").getReadLatencyPercentile(100) > 0);
 		
+		stats.reset();
+		assertEquals("reset clears the counters", region(stats, "data").getReadCount(), 0L);
+		
+		printEndOfPassedTest();
 	}
 	
-	private void printStartOfTest(String testName) {
-		System.out.println("---------------------------");
-		System.out.println("Running test: " + testName);
+	@Override
+	public void after() {
+		
 	}
 	
-	private void printEndOfPassedTest() {
-		System.out.println("Passed!");
-		System.out.println("---------------------------");
+	private InstrumentedIOManager.RegionStats region(InstrumentedIOManager stats, String name) {
+		for (InstrumentedIOManager.RegionStats region : stats.getRegions()) {
+			if (region.getName().equals(name)) {
+				return region;
+			}
+		}
+		throw new AssertionError("no region named " + name);
 	}
 }
@@ -23,23 +23,264 @@
  */
 package test;
 
-public class TestFAT32 extends Test {
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATFile;
+import net.jonhopkins.delundel.fs.fat.FATGeometry;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.InstrumentedIOManager;
+import test.resources.TestVolumeFAT32;
+
+public class TestFAT32 extends TestVolumeFAT32 {
 	
 	@Override
 	public void runTests() {
-		// TODO Auto-generated method stub
+		before();
+		testIsFAT32();
+		after();
+		
+		before();
+		testRootDirectoryIsClusterChain();
+		after();
+		
+		before();
+		testReadFragmentedFile();
+		after();
+		
+		before();
+		testFreeSpaceFromFSInfo();
+		after();
+		
+		before();
+		testFreeSpaceWithoutFSInfo();
+		after();
+		
+		before();
+		testFreeSpaceAfterFATWrite();
+		after();
 		
+		before();
+		testTwoVolumesMountedAtOnce();
+		after();
+		
+		before();
+		testGarbageBootSectorNotMounted();
+		after();
 	}
 	
-	@Override
-	public void before() {
-		// TODO Auto-generated method stub
+	public void testIsFAT32() {
+		printStartOfTest("testIsFAT32");
+		FAT fat = mount();
+		assertEquals(fat.getFileSystemType() + " == FAT32", fat.getFileSystemType(), "FAT32");
+		assertEquals("volume label", fat.getFileSystemName(), "TESTVOL");
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testRootDirectoryIsClusterChain() {
+		printStartOfTest("testRootDirectoryIsClusterChain");
+		FAT fat = mount();
+		List<FSDirectoryEntry> entries = fat.getRootDirectory().listDirectory();
+		assertEquals("entries from both root clusters", entries.size(), 3);
+		assertEquals("entry in first cluster", entries.get(1).getName(), "HELLO.TXT");
+		assertEquals("entry in second cluster", entries.get(2).getName(), "SECOND.TXT");
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testReadFragmentedFile() {
+		printStartOfTest("testReadFragmentedFile");
+		FAT fat = mount();
+		FATFile file = (FATFile)fat.getFile(fat.getRootDirectory().listDirectory().get(1));
+		ByteBuffer contents = ByteBuffer.allocate(FILE_SIZE);
+		while (fat.getFileContents(file, contents) > 0) {
+		}
+		assertEquals("whole file read", contents.position(), FILE_SIZE);
+		for (int i = 0; i < FILE_SIZE; i++) {
+			assertEquals("byte " + i, contents.get(i), fileByte(i));
+		}
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testFreeSpaceFromFSInfo() {
+		printStartOfTest("testFreeSpaceFromFSInfo");
+		// count from before the mount, so a scan made while mounting shows
+		InstrumentedIOManager stats = new InstrumentedIOManager(
+				new FATIOManager(volume.getPath()), SECTOR_SIZE, VOLUME_RESERVED, VOLUME_FAT_SIZE, 2,
+				clusterSector(2), clusterSector(2));
+		FAT fat = FAT.getFAT(stats);
+		assertEquals("free count from FSInfo", fat.getFreeClusterCount(), (long)VOLUME_FREE_COUNT);
+		assertEquals("first FAT not scanned", stats.getRegions().get(1).getReadCount(), 0L);
+		assertEquals("second FAT not scanned", stats.getRegions().get(2).getReadCount(), 0L);
+		assertEquals("search starts at the FSInfo hint", fat.findFreeCluster(), VOLUME_FREE_HINT);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testFreeSpaceWithoutFSInfo() {
+		printStartOfTest("testFreeSpaceWithoutFSInfo");
+		writeSector(volume, 1, new byte[SECTOR_SIZE]);
+		FAT fat = mount();
+		// clusters 2 and 3 hold the root directory
+		assertEquals("free count from scanning the FAT", fat.getFreeClusterCount(),
+				(long)VOLUME_CLUSTERS - 2 - FILE_CHAIN.length);
+		assertEquals("search starts at cluster 2", fat.findFreeCluster(), 4);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testFreeSpaceAfterFATWrite() {
+		printStartOfTest("testFreeSpaceAfterFATWrite");
+		FAT fat = FAT.getFAT(new FATIOManager(volume.getPath(), true));
+		assertEquals("free count from FSInfo", fat.getFreeClusterCount(), (long)VOLUME_FREE_COUNT);
+		
+		// allocate the cluster FSInfo points the search at
+		assertTrue("entry written", fat.setFATEntry(VOLUME_FREE_HINT, 0x0FFFFFFF));
+		assertEquals("free count from the bitmap once the FAT changes",
+				fat.getFreeClusterCount(), (long)VOLUME_CLUSTERS - 2 - FILE_CHAIN.length - 1);
+		assertNotEquals("allocated cluster no longer offered", fat.findFreeCluster(),
+				VOLUME_FREE_HINT);
 		
+		assertTrue("entry freed", fat.setFATEntry(VOLUME_FREE_HINT, 0));
+		assertEquals("freed cluster counted", fat.getFreeClusterCount(),
+				(long)VOLUME_CLUSTERS - 2 - FILE_CHAIN.length);
+		fat.unmount();
+		printEndOfPassedTest();
 	}
 	
-	@Override
-	public void after() {
-		// TODO Auto-generated method stub
+	public void testTwoVolumesMountedAtOnce() {
+		printStartOfTest("testTwoVolumesMountedAtOnce");
+		// mount both volumes over and over on two threads at once; neither 
+		// mount may change the layout the other one sees
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final AtomicReference<FAT> mounted32 = new AtomicReference<FAT>();
+		final AtomicReference<FAT> mounted12 = new AtomicReference<FAT>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] mounters = new Thread[2];
+		for (int t = 0; t < mounters.length; t++) {
+			final boolean mountFloppy = t == 1;
+			mounters[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 20; i++) {
+							barrier.await();
+							FAT fat = mountFloppy
+									? FAT.getFAT(new FATIOManager("res/samplefat.bin"))
+									: mount();
+							FATGeometry geometry = fat.getGeometry();
+							if (mountFloppy) {
+								assertEquals("FAT12 entry width", geometry.getEntryBits(), 12);
+								assertEquals("FAT12 root directory", geometry.getStartOfRootDir(), 19L);
+							} else {
+								assertEquals("FAT32 entry width", geometry.getEntryBits(), 32);
+								assertEquals("FAT32 cluster count", geometry.getClusterCount(),
+										VOLUME_CLUSTERS);
+								assertEquals("FAT32 data region", geometry.getStartOfDataRegion(),
+										clusterSector(2));
+							}
+							FAT previous = (mountFloppy ? mounted12 : mounted32).getAndSet(fat);
+							if (previous != null) {
+								previous.unmount();
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+						barrier.reset();
+					}
+				}
+			});
+			mounters[t].start();
+		}
+		join(mounters);
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
 		
+		final FAT fat32 = mounted32.get();
+		final FAT fat12 = mounted12.get();
+		FATGeometry geometry = fat32.getGeometry();
+		assertEquals("cluster of a sector", geometry.clusterOfSector(clusterSector(20)), 20);
+		assertEquals("sector before the data region", geometry.clusterOfSector(0), -1);
+		
+		final int floppyEntries = fat12.getRootDirectory().listDirectory().size();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean readFloppy = (t & 1) != 0;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							if (readFloppy) {
+								assertEquals("floppy root listing",
+										fat12.getRootDirectory().listDirectory().size(), floppyEntries);
+								continue;
+							}
+							FATFile file = (FATFile)fat32.getFile(
+									fat32.getRootDirectory().listDirectory().get(1));
+							ByteBuffer contents = ByteBuffer.allocate(FILE_SIZE);
+							while (fat32.getFileContents(file, contents) > 0) {
+							}
+							for (int j = 0; j < FILE_SIZE; j++) {
+								assertEquals("byte " + j, contents.get(j), fileByte(j));
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		join(threads);
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		
+		fat12.unmount();
+		fat32.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testGarbageBootSectorNotMounted() {
+		printStartOfTest("testGarbageBootSectorNotMounted");
+		try {
+			File file = File.createTempFile("delundel", ".img");
+			file.deleteOnExit();
+			writeSector(file, 0, new byte[SECTOR_SIZE]);
+			writeSector(file, 1, new byte[SECTOR_SIZE]);
+			FSIOManager zeroed = new FATIOManager(file.getPath());
+			assertTrue("zeroed boot sector not mounted", FAT.getFAT(zeroed) == null);
+			zeroed.close();
+			
+			writeSector(file, 0, garbage());
+			FSIOManager garbled = new FATIOManager(file.getPath());
+			assertTrue("garbage boot sector not mounted", FAT.getFAT(garbled) == null);
+			garbled.close();
+			file.delete();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		printEndOfPassedTest();
+	}
+	
+	private void join(Thread[] threads) {
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		}
 	}
 }
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATChecker;
+import test.resources.TestVolumeFAT32;
+
+/**
+ * Tests the consistency checker on a clean FAT32 volume and on one with 
+ * planted problems.
+ */
+public class TestFATChecker extends TestVolumeFAT32 {
+	
+	@Override
+	public void runTests() {
+		before();
+		testCheckerOnCleanVolume();
+		after();
+		
+		before();
+		testCheckerFindsProblems();
+		after();
+	}
+	
+	public void testCheckerOnCleanVolume() {
+		printStartOfTest("testCheckerOnCleanVolume");
+		FAT fat = mount();
+		FATChecker.Report report = new FATChecker(fat, 4).check();
+		assertTrue("no problems: " + report, report.isClean());
+		assertEquals("files", report.getFileCount(), 2);
+		assertEquals("directories", report.getDirectoryCount(), 0);
+		assertEquals("lost clusters", report.getLostClusterCount(), 0L);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testCheckerFindsProblems() {
+		printStartOfTest("testCheckerFindsProblems");
+		byte[] root = readSector(volume, clusterSector(2));
+		dirEntry(ByteBuffer.wrap(root).order(ByteOrder.LITTLE_ENDIAN), 2, "LOOP    TXT", 0x20,
+				70, 2 * SECTOR_SIZE);
+		writeSector(volume, clusterSector(2), root);
+		setFATEntries(
+				// HELLO.TXT gains a cluster it doesn't need
+				20, 21, 21, 0x0FFFFFFF,
+				// a lost chain and a lost loop
+				40, 41, 41, 0x0FFFFFFF, 50, 51, 51, 50,
+				60, 0x0FFFFFF7,
+				// LOOP.TXT goes round in circles
+				70, 71, 71, 70);
+		
+		FAT fat = mount();
+		FATChecker.Report report = new FATChecker(fat, 4).check();
+		assertEquals("problems: " + report, report.getProblems().size(), 4);
+		
+		List<FATChecker.Problem> cycles = report.getProblems(FATChecker.Problem.Type.CYCLE);
+		assertEquals("cycles", cycles.size(), 1);
+		assertEquals("looping file", cycles.get(0).getPath(), "/LOOP.TXT");
+		
+		List<FATChecker.Problem> tooLong = report.getProblems(FATChecker.Problem.Type.CHAIN_TOO_LONG);
+		assertEquals("over-long chains", tooLong.size(), 1);
+		assertEquals("over-long file", tooLong.get(0).getPath(), "/HELLO.TXT");
+		
+		List<FATChecker.Problem> lost = report.getProblems(FATChecker.Problem.Type.LOST_CHAIN);
+		assertEquals("lost chains", lost.size(), 2);
+		assertEquals("lost chain start", lost.get(0).getCluster(), 40);
+		assertEquals("lost loop", lost.get(1).getCluster(), 50);
+		assertEquals("lost clusters", report.getLostClusterCount(), 4L);
+		assertEquals("bad clusters", report.getBadClusterCount(), 1L);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+}
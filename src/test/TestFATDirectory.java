@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import test.resources.TestVolumeFAT32;
+
+/**
+ * Tests reading directories that span many clusters.
+ */
+public class TestFATDirectory extends TestVolumeFAT32 {
+	
+	private static final int LARGE_DIR_START = 30;
+	private static final int LARGE_DIR_CLUSTERS = 40;
+	
+	@Override
+	public void runTests() {
+		before();
+		testLargeDirectory();
+		after();
+		
+		before();
+		testDirectoryRunsReadAhead();
+		after();
+	}
+	
+	public void testLargeDirectory() {
+		printStartOfTest("testLargeDirectory");
+		// carry the root directory on into 40 more clusters of files with 
+		// long names; three slots a file, so most names cross a sector
+		int files = LARGE_DIR_CLUSTERS * SECTOR_SIZE / 32 / 3;
+		int badFile = 100;
+		ByteBuffer dir = ByteBuffer.allocate(LARGE_DIR_CLUSTERS * SECTOR_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < files; i++) {
+			String shortName = String.format("IMG%05dJPG", i);
+			int checksum = shortNameChecksum(shortName);
+			if (i == badFile) {
+				checksum ^= 0xFF;
+			}
+			longNameEntry(dir, i * 3, largeDirName(i).substring(13), 0x42, checksum);
+			longNameEntry(dir, i * 3 + 1, largeDirName(i).substring(0, 13), 0x01, checksum);
+			dirEntry(dir, i * 3 + 2, shortName, 0x20, 0, i);
+		}
+		
+		byte[] fatSector = readSector(volume, VOLUME_RESERVED);
+		ByteBuffer fatEntries = ByteBuffer.wrap(fatSector).order(ByteOrder.LITTLE_ENDIAN);
+		fatEntries.putInt(3 * 4, LARGE_DIR_START);
+		for (int i = 0; i < LARGE_DIR_CLUSTERS; i++) {
+			int cluster = LARGE_DIR_START + i;
+			fatEntries.putInt(cluster * 4, i + 1 < LARGE_DIR_CLUSTERS ? cluster + 1 : 0x0FFFFFFF);
+			writeSector(volume, clusterSector(cluster),
+					Arrays.copyOfRange(dir.array(), i * SECTOR_SIZE, (i + 1) * SECTOR_SIZE));
+		}
+		writeSector(volume, VOLUME_RESERVED, fatSector);
+		writeSector(volume, VOLUME_RESERVED + VOLUME_FAT_SIZE, fatSector);
+		
+		FAT fat = mount();
+		List<FSDirectoryEntry> entries = fat.getRootDirectory().listDirectory();
+		assertEquals("entry with a bad checksum dropped", entries.size(), 3 + files - 1);
+		assertEquals("entries before the large part", entries.get(2).getName(), "SECOND.TXT");
+		int index = 3;
+		for (int i = 0; i < files; i++) {
+			if (i == badFile) {
+				continue;
+			}
+			FSDirectoryEntry entry = entries.get(index);
+			assertEquals("long name " + i, entry.getName(), largeDirName(i));
+			assertEquals("size of " + i, entry.getFileSize(), (long)i);
+			assertTrue("file " + i, entry.isFile() && !entry.isDeleted());
+			index++;
+		}
+		assertTrue("entries are only made once", entries.get(50) == entries.get(50));
+		assertTrue("listing again hands out the same entries",
+				fat.getRootDirectory().listDirectory().get(50) == entries.get(50));
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testDirectoryRunsReadAhead() {
+		printStartOfTest("testDirectoryRunsReadAhead");
+		// carry the root directory on into three more runs, and put an 
+		// entry in the last one
+		setFATEntries(3, 30, 30, 40, 40, 50, 50, 0x0FFFFFFF);
+		writeSector(volume, clusterSector(30), new byte[SECTOR_SIZE]);
+		writeSector(volume, clusterSector(40), new byte[SECTOR_SIZE]);
+		ByteBuffer last = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		dirEntry(last, 0, "LAST    TXT", 0x20, 0, 0);
+		writeSector(volume, clusterSector(50), last.array());
+		
+		// hold back the first run until the others have been asked for, 
+		// which only happens if they are read ahead of parsing it
+		final CountDownLatch laterRuns = new CountDownLatch(3);
+		final AtomicBoolean readAhead = new AtomicBoolean();
+		FSIOManager delaying = new FilterIOManager(new FATIOManager(volume.getPath())) {
+			@Override
+			public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count,
+					int size) {
+				final CompletableFuture<ByteBuffer> read =
+						super.readSectorsAsync(startSector, count, size);
+				if (startSector != clusterSector(2)) {
+					laterRuns.countDown();
+					return read;
+				}
+				final CompletableFuture<ByteBuffer> delayed = new CompletableFuture<ByteBuffer>();
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							readAhead.set(laterRuns.await(5, TimeUnit.SECONDS));
+						} catch (InterruptedException e) {
+						}
+						delayed.complete(read.join());
+					}
+				}).start();
+				return delayed;
+			}
+		};
+		
+		FAT fat = FAT.getFAT(delaying);
+		List<FSDirectoryEntry> entries = fat.getRootDirectory().listDirectory();
+		assertTrue("later runs requested before the first was parsed", readAhead.get());
+		assertEquals("every run parsed", entries.get(entries.size() - 1).getName(), "LAST.TXT");
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	private String largeDirName(int i) {
+		return String.format("camera_image_%05d.jpeg", i);
+	}
+}
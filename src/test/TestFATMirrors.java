@@ -0,0 +1,218 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CompletableFuture;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+import net.jonhopkins.delundel.fs.fat.BadSectorMap;
+import net.jonhopkins.delundel.fs.fat.ClusterChain;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATFile;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.FATMirrors;
+import net.jonhopkins.delundel.fs.fat.ResilientIOManager;
+import test.resources.TestVolumeFAT32;
+
+/**
+ * Tests comparing, choosing between and merging the copies of the FAT.
+ */
+public class TestFATMirrors extends TestVolumeFAT32 {
+	
+	@Override
+	public void runTests() {
+		before();
+		testMirrorsConsistent();
+		after();
+		
+		before();
+		testMirrorsPickHealthiest();
+		after();
+		
+		before();
+		testMirrorsMerge();
+		after();
+		
+		before();
+		testUnreadableCopyUnderResilientIO();
+		after();
+	}
+	
+	public void testMirrorsConsistent() {
+		printStartOfTest("testMirrorsConsistent");
+		FAT fat = mount();
+		FATMirrors.Report report = fat.compareFATs();
+		assertEquals("copies", report.getCopyCount(), 2);
+		assertTrue("copies agree", report.isConsistent());
+		assertEquals("healthiest", report.getHealthiestCopy(), 0);
+		assertTrue("no divergent ranges", report.getDivergentRanges().isEmpty());
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testMirrorsPickHealthiest() {
+		printStartOfTest("testMirrorsPickHealthiest");
+		// the first sector of the first FAT has been overwritten
+		writeSector(volume, VOLUME_RESERVED, garbage());
+		
+		FAT fat = mount();
+		FATMirrors.Report report = fat.compareFATs();
+		assertEquals("divergent sectors", report.getDivergentSectorCount(), 1L);
+		assertEquals("divergent range", report.getDivergentRanges().get(0).getFirstSector(), 0L);
+		assertEquals("entries in range", report.getDivergentRanges().get(0).getLastEntry(), 127L);
+		assertEquals("second copy differs", report.getDifferingSectors(1), 1L);
+		assertTrue("first copy is damaged", report.getInvalidEntries(0) > 100);
+		assertEquals("second copy is intact", report.getInvalidEntries(1), 0L);
+		assertEquals("healthiest", report.getHealthiestCopy(), 1);
+		
+		fat.useFAT(report.getHealthiestCopy());
+		ClusterChain chain = fat.getClusterChain(FILE_CHAIN[0]);
+		assertTrue("chain intact", chain.isComplete());
+		assertEquals("chain length", chain.size(), FILE_CHAIN.length);
+		fat.unmount();
+		
+		fat = mount(FATMirrors.Policy.HEALTHIEST);
+		FATFile file = (FATFile)fat.getFile(fat.getRootDirectory().listDirectory().get(1));
+		ByteBuffer contents = ByteBuffer.allocate(FILE_SIZE);
+		while (fat.getFileContents(file, contents) > 0) {
+		}
+		assertEquals("file read through the second FAT", contents.position(), FILE_SIZE);
+		fat.unmount();
+		
+		// the policy belongs to that mount alone
+		fat = mount();
+		assertTrue("other mounts read the first FAT",
+				!fat.getClusterChain(FILE_CHAIN[0]).isComplete());
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testMirrorsMerge() {
+		printStartOfTest("testMirrorsMerge");
+		// each copy has lost a different sector
+		writeSector(volume, VOLUME_RESERVED, garbage());
+		writeSector(volume, VOLUME_RESERVED + VOLUME_FAT_SIZE + 1, garbage());
+		
+		FAT fat = mount();
+		FATMirrors.Report report = fat.compareFATs();
+		assertEquals("divergent sectors", report.getDivergentSectorCount(), 2L);
+		assertEquals("one range", report.getDivergentRanges().size(), 1);
+		byte[] plan = report.getMergePlan();
+		assertEquals("first sector from the second copy", plan[0], (byte)1);
+		assertEquals("second sector from the first copy", plan[1], (byte)0);
+		
+		fat.useMergedFAT(report);
+		byte[] fatSectors = fat.getIOManager().readSectors(VOLUME_RESERVED, 2, SECTOR_SIZE);
+		ByteBuffer merged = ByteBuffer.wrap(fatSectors).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals("media descriptor", merged.getInt(0), 0x0FFFFFF8);
+		assertEquals("free entry in the second sector", merged.getInt(SECTOR_SIZE), 0);
+		assertTrue("chain intact", fat.getClusterChain(FILE_CHAIN[0]).isComplete());
+		assertTrue("cluster 200 free", fat.getAllocationBitmap().isFree(200));
+		fat.unmount();
+		
+		fat = mount(FATMirrors.Policy.MERGE);
+		assertEquals("merged at mount", fat.getClusterChain(FILE_CHAIN[0]).size(),
+				FILE_CHAIN.length);
+		assertTrue("cluster 200 free at mount", fat.getAllocationBitmap().isFree(200));
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testUnreadableCopyUnderResilientIO() {
+		printStartOfTest("testUnreadableCopyUnderResilientIO");
+		// the first copy has a damaged sector, and the second can't be read 
+		// at all; zero-filled, the second would pass for an empty FAT
+		writeSector(volume, VOLUME_RESERVED, garbage());
+		FailingIOManager failing = new FailingIOManager(new FATIOManager(volume.getPath()),
+				VOLUME_RESERVED + VOLUME_FAT_SIZE, VOLUME_FAT_SIZE);
+		ResilientIOManager resilient = new ResilientIOManager(failing, new BadSectorMap(), 0);
+		
+		FAT fat = FAT.getFAT(resilient);
+		FATMirrors.Report report = fat.compareFATs();
+		assertEquals("second copy unreadable", report.getUnreadableSectors(1),
+				(long)VOLUME_FAT_SIZE);
+		assertEquals("first copy readable", report.getUnreadableSectors(0), 0L);
+		assertEquals("healthiest", report.getHealthiestCopy(), 0);
+		byte[] plan = report.getMergePlan();
+		for (int i = 0; i < plan.length; i++) {
+			assertEquals("sector " + i + " from the first copy", plan[i], (byte)0);
+		}
+		assertTrue("strict reads turned off again", !resilient.isStrictReads());
+		assertTrue("unreadable sectors recorded",
+				resilient.getBadSectorMap().overlaps((long)(VOLUME_RESERVED + VOLUME_FAT_SIZE)
+						* SECTOR_SIZE, SECTOR_SIZE));
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	/**
+	 * Fails every read touching a run of sectors.
+	 */
+	private static class FailingIOManager extends FilterIOManager {
+		final long firstFailed;
+		final long failedCount;
+		
+		FailingIOManager(FSIOManager ioManager, long firstFailed, long failedCount) {
+			super(ioManager);
+			this.firstFailed = firstFailed;
+			this.failedCount = failedCount;
+		}
+		
+		@Override
+		public byte[] readSector(long sectorNumber, int size) {
+			return readSectors(sectorNumber, 1, size);
+		}
+		
+		@Override
+		public byte[] readSectors(long startSector, int count, int size) {
+			byte[] data = new byte[count * size];
+			return readSectorInto(startSector, size, ByteBuffer.wrap(data)) ? data : null;
+		}
+		
+		@Override
+		public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+			long sectors = (dst.remaining() + size - 1) / size;
+			if (sectorNumber < firstFailed + failedCount && firstFailed < sectorNumber + sectors) {
+				return false;
+			}
+			return super.readSectorInto(sectorNumber, size, dst);
+		}
+		
+		@Override
+		public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+			CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+			byte[] data = readSectors(startSector, count, size);
+			if (data == null) {
+				future.completeExceptionally(new IOException("Failed sector in " + startSector));
+			} else {
+				future.complete(ByteBuffer.wrap(data));
+			}
+			return future;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATMirrors;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.FATPageCache;
+import test.resources.TestVolumeFAT32;
+
+/**
+ * Tests the paged FAT cache against a bare FAT32 table whose entries are 
+ * all distinct, and its budget on a mounted volume.
+ */
+public class TestFATPageCache extends TestVolumeFAT32 {
+	
+	private static final int FAT_START = 32;
+	private static final int FAT_SECTORS = 63;
+	private static final int FAT_ENTRIES = FAT_SECTORS * SECTOR_SIZE / 4;
+	private static final int PAGE_SIZE = 4096;
+	
+	private File image;
+	private FSIOManager ioManager;
+	
+	@Override
+	public void runTests() {
+		before();
+		testPageCacheReturnsEveryEntry();
+		after();
+		
+		before();
+		testPageCacheStaysWithinBudget();
+		after();
+		
+		before();
+		testPageCacheLastPartialPage();
+		after();
+		
+		before();
+		testPageCacheInvalidate();
+		after();
+		
+		before();
+		testPageCacheConcurrentLookups();
+		after();
+		
+		before();
+		testPageCacheHitsDoNotWaitForLoads();
+		after();
+		
+		before();
+		testPageCacheBudgetPerMount();
+		after();
+	}
+	
+	@Override
+	public void before() {
+		super.before();
+		try {
+			image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			
+			ByteBuffer fat = ByteBuffer.allocate(FAT_SECTORS * SECTOR_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < FAT_ENTRIES; i++) {
+				fat.putInt(expectedEntry(i));
+			}
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			file.setLength((FAT_START + FAT_SECTORS + 16) * SECTOR_SIZE);
+			file.seek(FAT_START * SECTOR_SIZE);
+			file.write(fat.array());
+			file.close();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		ioManager = new FATIOManager(image.getPath());
+	}
+	
+	public void testPageCacheReturnsEveryEntry() {
+		printStartOfTest("testPageCacheReturnsEveryEntry");
+		FATPageCache cache = newCache(2 * PAGE_SIZE);
+		for (int i = 0; i < FAT_ENTRIES; i++) {
+			assertEquals("entry " + i, cache.get(i), expectedEntry(i));
+		}
+		assertEquals("each page read once", cache.getMissCount(), (long)cache.getPageCount());
+		assertEquals("every other lookup hits", cache.getHitCount(),
+				(long)FAT_ENTRIES - cache.getPageCount());
+		assertEquals("entries past the FAT are not found", cache.get(FAT_ENTRIES), -1);
+		printEndOfPassedTest();
+	}
+	
+	public void testPageCacheStaysWithinBudget() {
+		printStartOfTest("testPageCacheStaysWithinBudget");
+		FATPageCache cache = newCache(3 * PAGE_SIZE);
+		assertEquals("budget allows three pages", cache.getCapacity(), 3L * PAGE_SIZE);
+		for (int page = 0; page < cache.getPageCount(); page++) {
+			cache.get(page * PAGE_SIZE / 4);
+		}
+		assertEquals("all but three pages evicted", cache.getEvictionCount(),
+				(long)cache.getPageCount() - 3);
+		
+		FATPageCache tiny = newCache(0);
+		assertEquals("at least one page is always kept", tiny.getCapacity(), (long)PAGE_SIZE);
+		assertEquals("tiny cache still answers", tiny.get(FAT_ENTRIES - 1),
+				expectedEntry(FAT_ENTRIES - 1));
+		printEndOfPassedTest();
+	}
+	
+	public void testPageCacheLastPartialPage() {
+		printStartOfTest("testPageCacheLastPartialPage");
+		FATPageCache cache = newCache(FATPageCache.DEFAULT_BUDGET);
+		// 63 sectors don't divide into 8-sector pages
+		assertEquals("page count rounds up", cache.getPageCount(), 8);
+		assertEquals("last entry", cache.get(FAT_ENTRIES - 1), expectedEntry(FAT_ENTRIES - 1));
+		assertEquals("entry past the end of the last page", cache.get(FAT_ENTRIES), -1);
+		printEndOfPassedTest();
+	}
+	
+	public void testPageCacheInvalidate() {
+		printStartOfTest("testPageCacheInvalidate");
+		FATPageCache cache = newCache(FATPageCache.DEFAULT_BUDGET);
+		cache.get(5);
+		cache.get(5000);
+		cache.invalidate(5);
+		cache.get(5);
+		cache.get(5000);
+		assertEquals("only the invalidated page is reread", cache.getMissCount(), 3L);
+		cache.invalidate();
+		cache.get(5000);
+		assertEquals("invalidating everything rereads", cache.getMissCount(), 4L);
+		printEndOfPassedTest();
+	}
+	
+	public void testPageCacheConcurrentLookups() {
+		printStartOfTest("testPageCacheConcurrentLookups");
+		// two slots for eight pages, so lookups race with evictions
+		final FATPageCache cache = newCache(2 * PAGE_SIZE);
+		final int lookups = 20000;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < lookups; i++) {
+							int entry = random.nextInt(FAT_ENTRIES);
+							assertEquals("entry " + entry, cache.get(entry), expectedEntry(entry));
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		join(threads);
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertEquals("every lookup counted", cache.getHitCount() + cache.getMissCount(),
+				(long)lookups * threads.length);
+		printEndOfPassedTest();
+	}
+	
+	public void testPageCacheHitsDoNotWaitForLoads() {
+		printStartOfTest("testPageCacheHitsDoNotWaitForLoads");
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final long blockedSector = FAT_START + PAGE_SIZE / SECTOR_SIZE;
+		FSIOManager blocking = new FilterIOManager(ioManager) {
+			@Override
+			public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+				if (sectorNumber == blockedSector) {
+					loading.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new AssertionError(e);
+					}
+				}
+				return super.readSectorInto(sectorNumber, size, dst);
+			}
+		};
+		final FATPageCache cache = new FATPageCache(blocking, FAT_START, FAT_SECTORS, SECTOR_SIZE,
+				PAGE_SIZE, FATPageCache.DEFAULT_BUDGET);
+		cache.get(0);
+		
+		// the second page is stuck being read
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				cache.get(PAGE_SIZE / 4);
+			}
+		});
+		loader.start();
+		try {
+			loading.await();
+			final AtomicReference<Integer> hit = new AtomicReference<Integer>();
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					hit.set(cache.get(1));
+				}
+			});
+			reader.start();
+			reader.join(5000);
+			assertEquals("cached page read during a load", hit.get(), expectedEntry(1));
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		} finally {
+			release.countDown();
+		}
+		join(new Thread[] { loader });
+		assertEquals("loaded page", cache.get(PAGE_SIZE / 4), expectedEntry(PAGE_SIZE / 4));
+		printEndOfPassedTest();
+	}
+	
+	public void testPageCacheBudgetPerMount() {
+		printStartOfTest("testPageCacheBudgetPerMount");
+		FAT small = FAT.getFAT(new FATIOManager(volume.getPath()), FATMirrors.Policy.ACTIVE, 0);
+		FAT normal = mount();
+		assertEquals("budget of the small mount", small.getFATCacheBudget(), 0L);
+		assertEquals("other mounts keep the default", normal.getFATCacheBudget(),
+				FATPageCache.DEFAULT_BUDGET);
+		assertTrue("small mount still reads chains",
+				small.getClusterChain(FILE_CHAIN[0]).isComplete());
+		small.unmount();
+		normal.unmount();
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		ioManager.close();
+		image.delete();
+		super.after();
+	}
+	
+	private FATPageCache newCache(long budget) {
+		return new FATPageCache(ioManager, FAT_START, FAT_SECTORS, SECTOR_SIZE, PAGE_SIZE, budget);
+	}
+	
+	// the high bits are set to check that entries come back untouched
+	private int expectedEntry(int i) {
+		return (i * 7919) ^ 0xA0000000;
+	}
+	
+	private void join(Thread[] threads) {
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		}
+	}
+}
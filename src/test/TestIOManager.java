@@ -23,6 +23,9 @@
  */
 package test;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
 import net.jonhopkins.delundel.fs.FSIOManager;
 import test.resources.TestData;
 
@@ -35,8 +38,8 @@ public class TestIOManager implements FSIOManager {
 	}
 	
 	@Override
-	public byte[] readSector(int sectorNumber, int size) {
-		switch (sectorNumber) {
+	public byte[] readSector(long sectorNumber, int size) {
+		switch ((int)sectorNumber) {
 		case 0:
 			return data.getBootSector();
 		case 1:
@@ -45,15 +48,52 @@ public class TestIOManager implements FSIOManager {
 		case 2:
 		case 3:
 			// 2 root sectors
-			return data.getRootSector(sectorNumber - 2);
+			return data.getRootSector((int)sectorNumber - 2);
 		default:
 			// 4 reserved sectors before the user data sectors
-			return data.getDataSector(sectorNumber - 4);
+			return data.getDataSector((int)sectorNumber - 4);
+		}
+	}
+	
+	@Override
+	public byte[] readSectors(long startSector, int count, int size) {
+		byte[] sectors = new byte[count * size];
+		for (int i = 0; i < count; i++) {
+			byte[] sector = readSector(startSector + i, size);
+			System.arraycopy(sector, 0, sectors, i * size, Math.min(sector.length, size));
 		}
+		return sectors;
+	}
+	
+	@Override
+	public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+		while (dst.hasRemaining()) {
+			byte[] sector = readSector(sectorNumber++, size);
+			if (sector == null) {
+				return false;
+			}
+			dst.put(sector, 0, Math.min(sector.length, dst.remaining()));
+		}
+		return true;
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+		return CompletableFuture.completedFuture(ByteBuffer.wrap(readSectors(startSector, count, size)));
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return true;
+	}
+	
+	@Override
+	public void writeSector(long sectorNumber, byte[] data) {
+		
 	}
 	
 	@Override
-	public void writeSector(int sectorNumber, byte[] data) {
+	public void flush() {
 		
 	}
 	
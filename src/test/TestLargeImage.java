@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.fat.AsyncIOManager;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.MappedIOManager;
+import net.jonhopkins.delundel.fs.fat.OverlayIOManager;
+
+/**
+ * Tests sector addressing past the 2 GB and 4 GB marks using a sparse 
+ * image, so the file takes almost no space on disk.
+ */
+public class TestLargeImage extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final long IMAGE_SIZE = 5L * 1024 * 1024 * 1024;
+	private static final long SECTOR_AT_4GB = (4L * 1024 * 1024 * 1024) / SECTOR_SIZE;
+	private static final long HIGH_SECTOR = SECTOR_AT_4GB + 1000;
+	
+	private File image;
+	
+	public void runTests() {
+		before();
+		
+		testFATIOManagerReadsPast4GB();
+		testMappedIOManagerReadsPast4GB();
+		testAsyncIOManagerReadsPast4GB();
+		testReadAcross4GBBoundary();
+		testWriteBackPast4GB();
+		testOverlayPast4GB();
+		testLargeVolumeIsFAT32();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+		try {
+			image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			file.setLength(IMAGE_SIZE);
+			file.seek(0);
+			file.write(largeFAT32BootSector());
+			file.seek((SECTOR_AT_4GB - 1) * SECTOR_SIZE);
+			file.write(filledSector(1));
+			file.write(filledSector(2));
+			file.seek(HIGH_SECTOR * SECTOR_SIZE);
+			file.write(filledSector(3));
+			file.close();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	public void testFATIOManagerReadsPast4GB() {
+		printStartOfTest("testFATIOManagerReadsPast4GB");
+		assertReadsHighSector(new FATIOManager(image.getPath()));
+		printEndOfPassedTest();
+	}
+	
+	public void testMappedIOManagerReadsPast4GB() {
+		printStartOfTest("testMappedIOManagerReadsPast4GB");
+		assertReadsHighSector(new MappedIOManager(image.getPath()));
+		printEndOfPassedTest();
+	}
+	
+	public void testAsyncIOManagerReadsPast4GB() {
+		printStartOfTest("testAsyncIOManagerReadsPast4GB");
+		assertReadsHighSector(new AsyncIOManager(image.getPath()));
+		printEndOfPassedTest();
+	}
+	
+	public void testReadAcross4GBBoundary() {
+		printStartOfTest("testReadAcross4GBBoundary");
+		FSIOManager manager = new FATIOManager(image.getPath());
+		
+		byte[] sectors = manager.readSectors(SECTOR_AT_4GB - 1, 2, SECTOR_SIZE);
+		assertTrue("sector before 4 GB is filled with 1",
+				Arrays.equals(Arrays.copyOfRange(sectors, 0, SECTOR_SIZE), filledSector(1)));
+		assertTrue("sector at 4 GB is filled with 2",
+				Arrays.equals(Arrays.copyOfRange(sectors, SECTOR_SIZE, 2 * SECTOR_SIZE),
+						filledSector(2)));
+		
+		ByteBuffer buffer = ByteBuffer.allocate(2 * SECTOR_SIZE);
+		assertTrue("readSectorInto across 4 GB succeeds",
+				manager.readSectorInto(SECTOR_AT_4GB - 1, SECTOR_SIZE, buffer));
+		assertTrue("readSectorInto matches readSectors", Arrays.equals(buffer.array(), sectors));
+		
+		manager.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testWriteBackPast4GB() {
+		printStartOfTest("testWriteBackPast4GB");
+		FSIOManager manager = new FATIOManager(image.getPath(), true);
+		manager.writeSector(HIGH_SECTOR + 1, filledSector(4));
+		assertTrue("buffered write is visible before flushing",
+				Arrays.equals(manager.readSector(HIGH_SECTOR + 1, SECTOR_SIZE), filledSector(4)));
+		manager.close();
+		
+		manager = new FATIOManager(image.getPath());
+		assertTrue("write past 4 GB landed at the right offset",
+				Arrays.equals(manager.readSector(HIGH_SECTOR + 1, SECTOR_SIZE), filledSector(4)));
+		assertTrue("neighbouring sector is untouched",
+				Arrays.equals(manager.readSector(HIGH_SECTOR, SECTOR_SIZE), filledSector(3)));
+		manager.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testOverlayPast4GB() {
+		printStartOfTest("testOverlayPast4GB");
+		File overlayFile = new File(image.getPath() + ".overlay");
+		overlayFile.deleteOnExit();
+		new File(overlayFile.getPath() + ".map").deleteOnExit();
+		
+		OverlayIOManager overlay = new OverlayIOManager(new FATIOManager(image.getPath()),
+				overlayFile.getPath(), SECTOR_SIZE);
+		overlay.writeSector(HIGH_SECTOR, filledSector(5));
+		assertTrue("overlay serves the written sector",
+				Arrays.equals(overlay.readSector(HIGH_SECTOR, SECTOR_SIZE), filledSector(5)));
+		assertTrue("overlay marks the sector dirty", overlay.isDirty(HIGH_SECTOR));
+		overlay.close();
+		
+		FSIOManager manager = new FATIOManager(image.getPath());
+		assertTrue("image is untouched by the overlay",
+				Arrays.equals(manager.readSector(HIGH_SECTOR, SECTOR_SIZE), filledSector(3)));
+		manager.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testLargeVolumeIsFAT32() {
+		printStartOfTest("testLargeVolumeIsFAT32");
+		FSIOManager manager = new FATIOManager(image.getPath());
+		String type = FAT.getFAT(manager).getFileSystemType();
+		assertEquals(type + " == FAT32", type, "FAT32");
+		manager.close();
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		image.delete();
+	}
+	
+	private void assertReadsHighSector(FSIOManager manager) {
+		assertTrue("sector past 4 GB is filled with 3",
+				Arrays.equals(manager.readSector(HIGH_SECTOR, SECTOR_SIZE), filledSector(3)));
+		manager.close();
+	}
+	
+	private byte[] filledSector(int value) {
+		byte[] sector = new byte[SECTOR_SIZE];
+		Arrays.fill(sector, (byte)value);
+		return sector;
+	}
+	
+	/*
+	 * A boot sector for a volume of 0xF0000000 sectors (almost 2 TB), whose 
+	 * sector count no longer fits in a signed int.
+	 */
+	private byte[] largeFAT32BootSector() {
+		long totalSectors = 0xF0000000L;
+		int sectorsPerCluster = 64;
+		int fatSize = (int)((totalSectors / sectorsPerCluster) * 4 / SECTOR_SIZE) + 1;
+		
+		ByteBuffer bootSector = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		bootSector.putShort(11, (short)SECTOR_SIZE);
+		bootSector.put(13, (byte)sectorsPerCluster);
+		bootSector.putShort(14, (short)32);
+		bootSector.put(16, (byte)2);
+		bootSector.putInt(32, (int)totalSectors);
+		bootSector.putInt(36, fatSize);
+		bootSector.putInt(44, 2);
+		return bootSector.array();
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.MappedIOManager;
+import net.jonhopkins.delundel.fs.fat.OverlayIOManager;
+
+/**
+ * Tests MappedIOManager with windows small enough that sectors straddle 
+ * them, on its own and shared by several threads.
+ */
+public class TestMappedIO extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final int SECTORS = 40;
+	// not a multiple of the sector size, so every few sectors straddle two 
+	// windows, and the last window is shorter than the rest
+	private static final int WINDOW_SIZE = 3000;
+	private static final int THREADS = 8;
+	private static final int READS_PER_THREAD = 2000;
+	private static final String VOLUME = "res/samplefat.bin";
+	
+	private File image;
+	private byte[] contents;
+	private MappedIOManager manager;
+	
+	public void runTests() {
+		before();
+		
+		testSectorsAcrossWindowBoundaries();
+		testReadsPastEndOfImage();
+		testViewIsReadOnly();
+		testConcurrentReads();
+		testFATOnMappedImage();
+		testWritesRefused();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+		contents = new byte[SECTORS * SECTOR_SIZE];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte)(i * 31 + i / SECTOR_SIZE);
+		}
+		
+		try {
+			image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			file.write(contents);
+			file.close();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		
+		manager = new MappedIOManager(image.getPath(), WINDOW_SIZE);
+	}
+	
+	public void testSectorsAcrossWindowBoundaries() {
+		printStartOfTest("testSectorsAcrossWindowBoundaries");
+		ByteBuffer buffer = ByteBuffer.allocate(SECTOR_SIZE);
+		for (int sector = 0; sector < SECTORS; sector++) {
+			assertTrue("readSector " + sector,
+					Arrays.equals(manager.readSector(sector, SECTOR_SIZE), expected(sector, 1)));
+			
+			buffer.clear();
+			assertTrue("readSectorInto " + sector + " succeeds",
+					manager.readSectorInto(sector, SECTOR_SIZE, buffer));
+			assertTrue("readSectorInto " + sector,
+					Arrays.equals(buffer.array(), expected(sector, 1)));
+			
+			assertTrue("viewSector " + sector,
+					Arrays.equals(copyOf(manager.viewSector(sector, SECTOR_SIZE)),
+							expected(sector, 1)));
+		}
+		
+		assertTrue("the whole image in one read",
+				Arrays.equals(manager.readSectors(0, SECTORS, SECTOR_SIZE), contents));
+		
+		ByteBuffer large = ByteBuffer.allocate(3 * SECTOR_SIZE);
+		assertTrue("readSectorInto over a boundary succeeds",
+				manager.readSectorInto(5, SECTOR_SIZE, large));
+		assertTrue("readSectorInto over a boundary", Arrays.equals(large.array(), expected(5, 3)));
+		printEndOfPassedTest();
+	}
+	
+	public void testReadsPastEndOfImage() {
+		printStartOfTest("testReadsPastEndOfImage");
+		assertTrue("last sector, in the short final window",
+				Arrays.equals(manager.readSector(SECTORS - 1, SECTOR_SIZE),
+						expected(SECTORS - 1, 1)));
+		assertTrue("sector past the end", manager.readSector(SECTORS, SECTOR_SIZE) == null);
+		assertTrue("run over the end", manager.readSectors(SECTORS - 1, 2, SECTOR_SIZE) == null);
+		assertTrue("negative sector", manager.readSector(-1, SECTOR_SIZE) == null);
+		assertTrue("view past the end", manager.viewSector(SECTORS, SECTOR_SIZE) == null);
+		assertFalse("readSectorInto past the end",
+				manager.readSectorInto(SECTORS, SECTOR_SIZE, ByteBuffer.allocate(SECTOR_SIZE)));
+		printEndOfPassedTest();
+	}
+	
+	public void testViewIsReadOnly() {
+		printStartOfTest("testViewIsReadOnly");
+		ByteBuffer view = manager.viewSector(2, SECTOR_SIZE);
+		assertTrue("view is read-only", view.isReadOnly());
+		assertEquals("view starts at 0", view.position(), 0);
+		assertEquals("view ends at the sector size", view.limit(), SECTOR_SIZE);
+		printEndOfPassedTest();
+	}
+	
+	public void testConcurrentReads() {
+		printStartOfTest("testConcurrentReads");
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final long seed = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						readRandomSectors(new Random(seed));
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		printEndOfPassedTest();
+	}
+	
+	public void testFATOnMappedImage() {
+		printStartOfTest("testFATOnMappedImage");
+		// FAT entries are read through views of the mapping
+		FAT mapped = FAT.getFAT(new MappedIOManager(VOLUME));
+		FAT copied = FAT.getFAT(new FATIOManager(VOLUME));
+		int lastCluster = mapped.getGeometry().getClusterCount() + 1;
+		for (int cluster = 2; cluster <= lastCluster; cluster++) {
+			assertEquals("chain from " + cluster,
+					mapped.getClusterChain(cluster).toString(),
+					copied.getClusterChain(cluster).toString());
+		}
+		mapped.unmount();
+		copied.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testWritesRefused() {
+		printStartOfTest("testWritesRefused");
+		assertFalse("mapped image is not writable", manager.isWritable());
+		try {
+			manager.writeSector(0, new byte[SECTOR_SIZE]);
+			throw new AssertionError("wrote to a mapped image");
+		} catch (IllegalStateException e) {
+		}
+		
+		FAT fat = FAT.getFAT(new MappedIOManager(VOLUME));
+		int cluster = 2;
+		while (fat.getClusterChain(cluster).size() < 2) {
+			cluster++;
+		}
+		String chain = fat.getClusterChain(cluster).toString();
+		try {
+			fat.setFATEntry(cluster, 0xFFF);
+			throw new AssertionError("changed the FAT of a mapped image");
+		} catch (IllegalStateException e) {
+		}
+		assertEquals("chain is unchanged", fat.getClusterChain(cluster).toString(), chain);
+		
+		// an overlay takes the writes instead
+		File overlayFile = new File(image.getPath() + ".overlay");
+		File mapFile = new File(overlayFile.getPath() + ".map");
+		overlayFile.deleteOnExit();
+		mapFile.deleteOnExit();
+		OverlayIOManager overlay = new OverlayIOManager(new MappedIOManager(VOLUME),
+				overlayFile.getPath(), SECTOR_SIZE);
+		assertTrue("overlay is writable", overlay.isWritable());
+		fat.setIOManager(overlay);
+		assertTrue("setFATEntry through an overlay", fat.setFATEntry(cluster, 0xFFF));
+		assertEquals("chain ends after one cluster", fat.getClusterChain(cluster).size(), 1);
+		fat.unmount();
+		overlayFile.delete();
+		mapFile.delete();
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		manager.close();
+		image.delete();
+	}
+	
+	/*
+	 * Mixes every kind of read, so that a thread moving a shared window's 
+	 * position or limit would corrupt another thread's data.
+	 */
+	private void readRandomSectors(Random random) {
+		ByteBuffer buffer = ByteBuffer.allocate(2 * SECTOR_SIZE);
+		for (int i = 0; i < READS_PER_THREAD; i++) {
+			int sector = random.nextInt(SECTORS - 1);
+			switch (random.nextInt(4)) {
+			case 0:
+				assertTrue("readSector " + sector, Arrays.equals(
+						manager.readSector(sector, SECTOR_SIZE), expected(sector, 1)));
+				break;
+			case 1:
+				assertTrue("readSectors " + sector, Arrays.equals(
+						manager.readSectors(sector, 2, SECTOR_SIZE), expected(sector, 2)));
+				break;
+			case 2:
+				buffer.clear();
+				assertTrue("readSectorInto " + sector + " succeeds",
+						manager.readSectorInto(sector, SECTOR_SIZE, buffer));
+				assertTrue("readSectorInto " + sector,
+						Arrays.equals(buffer.array(), expected(sector, 2)));
+				break;
+			default:
+				assertTrue("viewSector " + sector, Arrays.equals(
+						copyOf(manager.viewSector(sector, SECTOR_SIZE)), expected(sector, 1)));
+				break;
+			}
+		}
+	}
+	
+	private byte[] expected(int sector, int count) {
+		return Arrays.copyOfRange(contents, sector * SECTOR_SIZE, (sector + count) * SECTOR_SIZE);
+	}
+	
+	private byte[] copyOf(ByteBuffer view) {
+		byte[] data = new byte[view.remaining()];
+		view.duplicate().get(data);
+		return data;
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.OverlayIOManager;
+
+/**
+ * Tests that OverlayIOManager keeps writes away from the image, and that 
+ * they survive reopening the overlay, even without closing it first.
+ */
+public class TestOverlayIO extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final int SECTORS = 64;
+	
+	private File image;
+	private File overlayFile;
+	private File mapFile;
+	
+	public void runTests() {
+		testWritesStayInOverlay();
+		testReadsMixDirtyAndCleanSectors();
+		testReopenWithSavedMap();
+		testReopenAfterCrash();
+		testTornMapRecordIgnored();
+		testRevert();
+		testConcurrentWrites();
+	}
+	
+	/*
+	 * Each test starts from an image with every sector filled with its 
+	 * own number, and no overlay.
+	 */
+	@Override
+	public void before() {
+		try {
+			image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			for (int sector = 0; sector < SECTORS; sector++) {
+				file.write(filledSector(sector));
+			}
+			file.close();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		
+		overlayFile = new File(image.getPath() + ".overlay");
+		mapFile = new File(overlayFile.getPath() + ".map");
+		overlayFile.deleteOnExit();
+		mapFile.deleteOnExit();
+	}
+	
+	public void testWritesStayInOverlay() {
+		before();
+		printStartOfTest("testWritesStayInOverlay");
+		OverlayIOManager overlay = open();
+		overlay.writeSector(5, filledSector(100));
+		assertTrue("overlay serves the written sector",
+				Arrays.equals(overlay.readSector(5, SECTOR_SIZE), filledSector(100)));
+		assertTrue("sector 5 is dirty", overlay.isDirty(5));
+		assertFalse("sector 6 is clean", overlay.isDirty(6));
+		
+		overlay.writeSector(5, filledSector(101));
+		assertEquals("rewriting a sector counts it once", overlay.getDirtySectorCount(), 1L);
+		assertTrue("latest write wins",
+				Arrays.equals(overlay.readSector(5, SECTOR_SIZE), filledSector(101)));
+		overlay.close();
+		
+		FSIOManager manager = new FATIOManager(image.getPath());
+		assertTrue("image is untouched",
+				Arrays.equals(manager.readSector(5, SECTOR_SIZE), filledSector(5)));
+		manager.close();
+		after();
+		printEndOfPassedTest();
+	}
+	
+	public void testReadsMixDirtyAndCleanSectors() {
+		before();
+		printStartOfTest("testReadsMixDirtyAndCleanSectors");
+		OverlayIOManager overlay = open();
+		overlay.writeSector(11, filledSector(111));
+		overlay.writeSector(13, filledSector(113));
+		
+		byte[] expected = concat(filledSector(10), filledSector(111), filledSector(12),
+				filledSector(113), filledSector(14));
+		assertTrue("readSectors patches dirty sectors in",
+				Arrays.equals(overlay.readSectors(10, 5, SECTOR_SIZE), expected));
+		assertTrue("readSectorsAsync patches dirty sectors in",
+				Arrays.equals(overlay.readSectorsAsync(10, 5, SECTOR_SIZE).join().array(), expected));
+		
+		// start part way through a dirty sector and end part way through a 
+		// clean one
+		ByteBuffer buffer = ByteBuffer.allocate(SECTOR_SIZE);
+		assertTrue("readSectorInto succeeds", overlay.readSectorInto(23, SECTOR_SIZE / 2,
+				buffer));
+		assertTrue("readSectorInto over half-sectors", Arrays.equals(buffer.array(),
+				Arrays.copyOfRange(expected, SECTOR_SIZE + SECTOR_SIZE / 2,
+						2 * SECTOR_SIZE + SECTOR_SIZE / 2)));
+		overlay.close();
+		after();
+		printEndOfPassedTest();
+	}
+	
+	public void testReopenWithSavedMap() {
+		before();
+		printStartOfTest("testReopenWithSavedMap");
+		OverlayIOManager overlay = open();
+		overlay.writeSector(3, filledSector(103));
+		overlay.writeSector(40, filledSector(140));
+		overlay.close();
+		
+		overlay = open();
+		assertEquals("both sectors still dirty", overlay.getDirtySectorCount(), 2L);
+		assertTrue("sector 3 from the overlay",
+				Arrays.equals(overlay.readSector(3, SECTOR_SIZE), filledSector(103)));
+		assertTrue("sector 40 from the overlay",
+				Arrays.equals(overlay.readSector(40, SECTOR_SIZE), filledSector(140)));
+		assertTrue("other sectors from the image",
+				Arrays.equals(overlay.readSector(4, SECTOR_SIZE), filledSector(4)));
+		overlay.close();
+		after();
+		printEndOfPassedTest();
+	}
+	
+	public void testReopenAfterCrash() {
+		before();
+		printStartOfTest("testReopenAfterCrash");
+		OverlayIOManager running = open();
+		running.flush();
+		running.writeSector(7, filledSector(107));
+		running.writeSector(8, filledSector(108));
+		
+		// what a crash would leave behind, before any flush
+		crash();
+		OverlayIOManager overlay = open();
+		assertEquals("unflushed writes are in the map", overlay.getDirtySectorCount(), 2L);
+		assertTrue("sector 7 from the overlay",
+				Arrays.equals(overlay.readSector(7, SECTOR_SIZE), filledSector(107)));
+		assertTrue("sector 8 from the overlay",
+				Arrays.equals(overlay.readSector(8, SECTOR_SIZE), filledSector(108)));
+		overlay.close();
+		running.close();
+		after();
+		printEndOfPassedTest();
+	}
+	
+	public void testTornMapRecordIgnored() {
+		before();
+		printStartOfTest("testTornMapRecordIgnored");
+		OverlayIOManager running = open();
+		running.writeSector(20, filledSector(120));
+		
+		// a crash part way through recording the next sector
+		crash();
+		running.close();
+		try {
+			FileOutputStream out = new FileOutputStream(mapFile, true);
+			out.write(new byte[3]);
+			out.close();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		
+		OverlayIOManager overlay = open();
+		assertEquals("only the whole record is read", overlay.getDirtySectorCount(), 1L);
+		assertTrue("sector 20 from the overlay",
+				Arrays.equals(overlay.readSector(20, SECTOR_SIZE), filledSector(120)));
+		overlay.writeSector(21, filledSector(121));
+		overlay.close();
+		
+		overlay = open();
+		assertTrue("map still usable after the torn record",
+				overlay.isDirty(20) && overlay.isDirty(21));
+		overlay.close();
+		after();
+		printEndOfPassedTest();
+	}
+	
+	public void testRevert() {
+		before();
+		printStartOfTest("testRevert");
+		OverlayIOManager overlay = open();
+		overlay.writeSector(30, filledSector(130));
+		overlay.flush();
+		overlay.revert();
+		assertEquals("nothing dirty", overlay.getDirtySectorCount(), 0L);
+		assertTrue("image shows through again",
+				Arrays.equals(overlay.readSector(30, SECTOR_SIZE), filledSector(30)));
+		overlay.close();
+		
+		overlay = open();
+		assertEquals("still reverted after reopening", overlay.getDirtySectorCount(), 0L);
+		assertTrue("image after reopening",
+				Arrays.equals(overlay.readSector(30, SECTOR_SIZE), filledSector(30)));
+		overlay.writeSector(31, filledSector(131));
+		assertTrue("writes work after reverting",
+				Arrays.equals(overlay.readSector(31, SECTOR_SIZE), filledSector(131)));
+		overlay.close();
+		after();
+		printEndOfPassedTest();
+	}
+	
+	public void testConcurrentWrites() {
+		before();
+		printStartOfTest("testConcurrentWrites");
+		final int threads = 8;
+		final int sectorsPerThread = 200;
+		final OverlayIOManager running = open();
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			writers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						// interleave the threads' sectors, and read each one 
+						// back while the others are still writing
+						for (int i = 0; i < sectorsPerThread; i++) {
+							int sector = i * threads + first;
+							running.writeSector(sector, filledSector(sector));
+							if (!Arrays.equals(running.readSector(sector, SECTOR_SIZE),
+									filledSector(sector))) {
+								throw new AssertionError("sector " + sector + " read back");
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertEquals("every sector dirty", running.getDirtySectorCount(),
+				(long)threads * sectorsPerThread);
+		
+		// every sector was recorded whole in the map as it was written
+		crash();
+		OverlayIOManager overlay = open();
+		assertEquals("every sector in the map", overlay.getDirtySectorCount(),
+				(long)threads * sectorsPerThread);
+		for (int sector = 0; sector < threads * sectorsPerThread; sector++) {
+			assertTrue("sector " + sector + " from the overlay",
+					Arrays.equals(overlay.readSector(sector, SECTOR_SIZE), filledSector(sector)));
+		}
+		overlay.close();
+		running.close();
+		after();
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		overlayFile.delete();
+		mapFile.delete();
+		image.delete();
+	}
+	
+	/*
+	 * Copy the overlay and its map somewhere else while a manager still has 
+	 * them open, and make the copies the files the next manager opens.
+	 */
+	private void crash() {
+		File crashedOverlay = new File(image.getPath() + ".crashed");
+		crashedOverlay.deleteOnExit();
+		new File(crashedOverlay.getPath() + ".map").deleteOnExit();
+		try {
+			Files.copy(overlayFile.toPath(), crashedOverlay.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			Files.copy(mapFile.toPath(), new File(crashedOverlay.getPath() + ".map").toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		overlayFile = crashedOverlay;
+		mapFile = new File(crashedOverlay.getPath() + ".map");
+	}
+	
+	private OverlayIOManager open() {
+		return new OverlayIOManager(new FATIOManager(image.getPath()), overlayFile.getPath(),
+				SECTOR_SIZE);
+	}
+	
+	private byte[] filledSector(int value) {
+		byte[] sector = new byte[SECTOR_SIZE];
+		Arrays.fill(sector, (byte)value);
+		return sector;
+	}
+	
+	private byte[] concat(byte[]... sectors) {
+		byte[] all = new byte[sectors.length * SECTOR_SIZE];
+		for (int i = 0; i < sectors.length; i++) {
+			System.arraycopy(sectors[i], 0, all, i * SECTOR_SIZE, SECTOR_SIZE);
+		}
+		return all;
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.jonhopkins.delundel.fs.FSDirectoryEntry;
+import net.jonhopkins.delundel.fs.FSFileSystem;
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.OffsetIOManager;
+import net.jonhopkins.delundel.fs.Partition;
+import net.jonhopkins.delundel.fs.PartitionTask;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.FATImageDetector;
+
+/**
+ * Tests partition table parsing using whole-disk images built around the 
+ * sample floppy image.
+ */
+public class TestPartitions extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final String VOLUME = "res/samplefat.bin";
+	private static final String BASIC_DATA_GUID = "EBD0A0A2-B9E5-4433-87C0-68B6B72699C7";
+	
+	private byte[] volume;
+	private List<File> images = new ArrayList<File>();
+	
+	public void runTests() {
+		before();
+		
+		testUnpartitionedImage();
+		testMBR();
+		testExtendedPartitions();
+		testGPT();
+		testOffsetIOManagerBounds();
+		testProcessPartitionsInParallel();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+		try {
+			volume = Files.readAllBytes(new File(VOLUME).toPath());
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	public void testUnpartitionedImage() {
+		printStartOfTest("testUnpartitionedImage");
+		List<Partition> partitions = new FATImageDetector(VOLUME).getPartitions();
+		assertEquals("one partition", partitions.size(), 1);
+		assertEquals("no partition table", partitions.get(0).getScheme(), Partition.Scheme.NONE);
+		assertEquals("partition covers the image", partitions.get(0).getLength(), (long)volume.length);
+		assertEquals("one filesystem", new FATImageDetector(VOLUME).detectFileSystems().length, 1);
+		printEndOfPassedTest();
+	}
+	
+	public void testMBR() {
+		printStartOfTest("testMBR");
+		ByteBuffer mbr = sector();
+		mbrEntry(mbr, 0, 0x01, 2048, volume.length / SECTOR_SIZE);
+		mbrEntry(mbr, 1, 0x83, 8192, 100);
+		String image = createImage(mbr.array(), 8192 + 100, 2048);
+		
+		FATImageDetector detector = new FATImageDetector(image);
+		List<Partition> partitions = detector.getPartitions();
+		assertEquals("two partitions", partitions.size(), 2);
+		assertEquals("first partition type", partitions.get(0).getType(), "01");
+		assertEquals("first partition start", partitions.get(0).getStart(), 2048L * SECTOR_SIZE);
+		assertEquals("second partition type", partitions.get(1).getType(), "83");
+		
+		FSFileSystem[] filesystems = detector.detectFileSystems();
+		assertEquals("only the FAT partition mounts", filesystems.length, 1);
+		assertSameRootDirectory(filesystems[0]);
+		filesystems[0].unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testExtendedPartitions() {
+		printStartOfTest("testExtendedPartitions");
+		int volumeSectors = volume.length / SECTOR_SIZE;
+		int extendedStart = 1024;
+		int secondEBR = 4096;
+		
+		ByteBuffer mbr = sector();
+		mbrEntry(mbr, 0, 0x0F, extendedStart, 2 * secondEBR);
+		ByteBuffer firstEBR = sector();
+		mbrEntry(firstEBR, 0, 0x06, 63, volumeSectors);
+		mbrEntry(firstEBR, 1, 0x05, secondEBR, volumeSectors + 63);
+		ByteBuffer lastEBR = sector();
+		mbrEntry(lastEBR, 0, 0x0B, 63, volumeSectors);
+		
+		String image = createImage(mbr.array(), extendedStart + 2 * secondEBR,
+				extendedStart + 63, extendedStart + secondEBR + 63);
+		writeSector(image, extendedStart, firstEBR.array());
+		writeSector(image, extendedStart + secondEBR, lastEBR.array());
+		
+		FATImageDetector detector = new FATImageDetector(image);
+		List<Partition> partitions = detector.getPartitions();
+		assertEquals("two logical partitions", partitions.size(), 2);
+		assertEquals("first logical partition is numbered after the primaries",
+				partitions.get(0).getIndex(), 4);
+		assertEquals("first logical partition start",
+				partitions.get(0).getStart(), (long)(extendedStart + 63) * SECTOR_SIZE);
+		assertEquals("second logical partition start",
+				partitions.get(1).getStart(), (long)(extendedStart + secondEBR + 63) * SECTOR_SIZE);
+		
+		FSFileSystem[] filesystems = detector.detectFileSystems();
+		assertEquals("both logical partitions mount", filesystems.length, 2);
+		for (FSFileSystem filesystem : filesystems) {
+			assertSameRootDirectory(filesystem);
+			filesystem.unmount();
+		}
+		printEndOfPassedTest();
+	}
+	
+	public void testGPT() {
+		printStartOfTest("testGPT");
+		ByteBuffer mbr = sector();
+		mbrEntry(mbr, 0, 0xEE, 1, 0xFFFFFFFF);
+		
+		ByteBuffer header = sector();
+		header.put("EFI PART".getBytes(StandardCharsets.US_ASCII));
+		header.putLong(72, 2);
+		header.putInt(80, 128);
+		header.putInt(84, 128);
+		
+		ByteBuffer entries = ByteBuffer.allocate(128 * 128).order(ByteOrder.LITTLE_ENDIAN);
+		putGUID(entries, 0, BASIC_DATA_GUID);
+		entries.putLong(32, 2048);
+		entries.putLong(40, 2048 + volume.length / SECTOR_SIZE - 1);
+		byte[] name = "FLOPPY".getBytes(StandardCharsets.UTF_16LE);
+		entries.position(56);
+		entries.put(name);
+		
+		String image = createImage(mbr.array(), 2048 + volume.length / SECTOR_SIZE, 2048);
+		writeSector(image, 1, header.array());
+		for (int i = 0; i < entries.capacity() / SECTOR_SIZE; i++) {
+			writeSector(image, 2 + i, Arrays.copyOfRange(entries.array(),
+					i * SECTOR_SIZE, (i + 1) * SECTOR_SIZE));
+		}
+		
+		FATImageDetector detector = new FATImageDetector(image);
+		List<Partition> partitions = detector.getPartitions();
+		assertEquals("one partition", partitions.size(), 1);
+		Partition partition = partitions.get(0);
+		assertEquals("GPT scheme", partition.getScheme(), Partition.Scheme.GPT);
+		assertEquals("type GUID", partition.getType(), BASIC_DATA_GUID);
+		assertEquals("partition name", partition.getName(), "FLOPPY");
+		assertEquals("partition length", partition.getLength(), (long)volume.length);
+		
+		FSFileSystem filesystem = detector.mount(partition);
+		assertSameRootDirectory(filesystem);
+		filesystem.unmount();
+		printEndOfPassedTest();
+	}
+	
+	public void testOffsetIOManagerBounds() {
+		printStartOfTest("testOffsetIOManagerBounds");
+		FSIOManager manager = new OffsetIOManager(new FATIOManager(VOLUME), SECTOR_SIZE, 4 * SECTOR_SIZE);
+		assertTrue("first sector is the wrapped manager's second sector",
+				Arrays.equals(manager.readSector(0, SECTOR_SIZE),
+						Arrays.copyOfRange(volume, SECTOR_SIZE, 2 * SECTOR_SIZE)));
+		assertTrue("last sector is readable", manager.readSector(3, SECTOR_SIZE) != null);
+		assertTrue("sector past the end is not readable", manager.readSector(4, SECTOR_SIZE) == null);
+		assertTrue("run past the end is not readable", manager.readSectors(2, 3, SECTOR_SIZE) == null);
+		assertFalse("readSectorInto past the end fails",
+				manager.readSectorInto(3, SECTOR_SIZE, ByteBuffer.allocate(2 * SECTOR_SIZE)));
+		manager.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testProcessPartitionsInParallel() {
+		printStartOfTest("testProcessPartitionsInParallel");
+		ByteBuffer mbr = sector();
+		int volumeSectors = volume.length / SECTOR_SIZE;
+		for (int i = 0; i < 4; i++) {
+			mbrEntry(mbr, i, 0x01, 2048 + i * 4096, volumeSectors);
+		}
+		String image = createImage(mbr.array(), 2048 + 4 * 4096, 2048, 2048 + 4096,
+				2048 + 2 * 4096, 2048 + 3 * 4096);
+		
+		List<String> types = new FATImageDetector(image, 4).processPartitions(
+				new PartitionTask<String>() {
+					@Override
+					public String process(Partition partition, FSFileSystem filesystem) {
+						return filesystem == null ? null : filesystem.getFileSystemType();
+					}
+				});
+		assertEquals("every partition processed", types.size(), 4);
+		for (String type : types) {
+			assertEquals("every partition holds FAT12", type, "FAT12");
+		}
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		for (File image : images) {
+			image.delete();
+		}
+	}
+	
+	private void assertSameRootDirectory(FSFileSystem filesystem) {
+		FSIOManager manager = new FATIOManager(VOLUME);
+		FSFileSystem expected = FAT.getFAT(manager);
+		List<FSDirectoryEntry> expectedEntries = expected.getRootDirectory().listDirectory();
+		List<FSDirectoryEntry> entries = filesystem.getRootDirectory().listDirectory();
+		manager.close();
+		
+		assertEquals("same number of root entries", entries.size(), expectedEntries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEquals("same root entry", entries.get(i).getName(), expectedEntries.get(i).getName());
+		}
+	}
+	
+	/*
+	 * Build a sparse image with the given first sector, holding a copy of 
+	 * the sample volume at each of the given sectors.
+	 */
+	private String createImage(byte[] firstSector, long totalSectors, long... volumeStarts) {
+		try {
+			File image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			images.add(image);
+			
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			file.setLength(totalSectors * SECTOR_SIZE);
+			file.write(firstSector);
+			for (long start : volumeStarts) {
+				file.seek(start * SECTOR_SIZE);
+				file.write(volume);
+			}
+			file.close();
+			return image.getPath();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private void writeSector(String image, long sector, byte[] data) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			file.seek(sector * SECTOR_SIZE);
+			file.write(data);
+			file.close();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private ByteBuffer sector() {
+		ByteBuffer sector = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		sector.put(510, (byte)0x55);
+		sector.put(511, (byte)0xAA);
+		return sector;
+	}
+	
+	private void mbrEntry(ByteBuffer sector, int index, int type, long firstSector, long sectorCount) {
+		int entry = 446 + index * 16;
+		sector.put(entry + 4, (byte)type);
+		sector.putInt(entry + 8, (int)firstSector);
+		sector.putInt(entry + 12, (int)sectorCount);
+	}
+	
+	private void putGUID(ByteBuffer buffer, int offset, String guid) {
+		String hex = guid.replace("-", "");
+		buffer.putInt(offset, (int)Long.parseLong(hex.substring(0, 8), 16));
+		buffer.putShort(offset + 4, (short)Integer.parseInt(hex.substring(8, 12), 16));
+		buffer.putShort(offset + 6, (short)Integer.parseInt(hex.substring(12, 16), 16));
+		for (int i = 0; i < 8; i++) {
+			buffer.put(offset + 8 + i, (byte)Integer.parseInt(hex.substring(16 + 2 * i, 18 + 2 * i), 16));
+		}
+	}
+}
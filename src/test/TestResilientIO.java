@@ -0,0 +1,261 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.FilterIOManager;
+import net.jonhopkins.delundel.fs.fat.BadSectorMap;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATFile;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.ResilientIOManager;
+
+/**
+ * Tests reading past unreadable sectors and keeping the bad sector map.
+ */
+public class TestResilientIO extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final String VOLUME = "res/samplefat.bin";
+	
+	private byte[] volume;
+	private File mapFile;
+	
+	public void runTests() {
+		before();
+		
+		testBadSectorMapMergesRanges();
+		testFailedSectorZeroFilled();
+		testTransientErrorRetried();
+		testBadSectorMapPersists();
+		testBadClustersSkippedAfterFirstRead();
+		testUnreadableBootSector();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+		try {
+			volume = Files.readAllBytes(new File(VOLUME).toPath());
+			mapFile = File.createTempFile("delundel", ".bad");
+			mapFile.deleteOnExit();
+			mapFile.delete();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	public void testBadSectorMapMergesRanges() {
+		printStartOfTest("testBadSectorMapMergesRanges");
+		BadSectorMap map = new BadSectorMap();
+		map.add(0, 512);
+		map.add(1024, 512);
+		assertEquals("separate ranges", map.getRangeCount(), 2);
+		map.add(512, 512);
+		assertEquals("gap filled", map.getRangeCount(), 1);
+		assertEquals("bytes", map.getByteCount(), 1536L);
+		map.add(100, 10);
+		assertEquals("contained range changes nothing", map.getByteCount(), 1536L);
+		assertTrue("overlaps the start", map.overlaps(0, 1));
+		assertTrue("overlaps the end", map.overlaps(1535, 100));
+		assertTrue("just past the end", !map.overlaps(1536, 512));
+		printEndOfPassedTest();
+	}
+	
+	public void testFailedSectorZeroFilled() {
+		printStartOfTest("testFailedSectorZeroFilled");
+		FailingIOManager failing = new FailingIOManager(new FATIOManager(VOLUME), 5, -1);
+		BadSectorMap map = new BadSectorMap();
+		ResilientIOManager resilient = new ResilientIOManager(failing, map, 2);
+		
+		byte[] data = resilient.readSectors(3, 4, SECTOR_SIZE);
+		assertTrue("read succeeds", data != null);
+		for (int i = 0; i < 4; i++) {
+			byte[] expected = i == 2 ? new byte[SECTOR_SIZE] : sector(3 + i);
+			assertTrue("sector " + (3 + i), Arrays.equals(
+					Arrays.copyOfRange(data, i * SECTOR_SIZE, (i + 1) * SECTOR_SIZE), expected));
+		}
+		// the whole read, then the first try and two retries of the sector
+		assertEquals("bounded attempts", failing.attempts, 4);
+		assertEquals("failed attempts", resilient.getFailedReadCount(), 3L);
+		assertEquals("zero-filled", resilient.getZeroFilledCount(), 1L);
+		assertTrue("sector recorded", map.overlaps(5L * SECTOR_SIZE, SECTOR_SIZE));
+		
+		ByteBuffer buffer = ByteBuffer.allocate(SECTOR_SIZE);
+		assertTrue("bad sector read again", resilient.readSectorInto(5, SECTOR_SIZE, buffer));
+		assertEquals("not tried again", failing.attempts, 4);
+		assertTrue("neighbour still read", Arrays.equals(resilient.readSector(6, SECTOR_SIZE),
+				sector(6)));
+		resilient.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testTransientErrorRetried() {
+		printStartOfTest("testTransientErrorRetried");
+		FailingIOManager failing = new FailingIOManager(new FATIOManager(VOLUME), 7, 2);
+		BadSectorMap map = new BadSectorMap();
+		ResilientIOManager resilient = new ResilientIOManager(failing, map, 2);
+		assertTrue("sector read on the last retry",
+				Arrays.equals(resilient.readSector(7, SECTOR_SIZE), sector(7)));
+		assertEquals("nothing recorded", map.getRangeCount(), 0);
+		assertEquals("nothing zero-filled", resilient.getZeroFilledCount(), 0L);
+		resilient.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testBadSectorMapPersists() {
+		printStartOfTest("testBadSectorMapPersists");
+		ResilientIOManager resilient = new ResilientIOManager(
+				new FailingIOManager(new FATIOManager(VOLUME), 9, -1), new BadSectorMap(mapFile));
+		resilient.readSector(9, SECTOR_SIZE);
+		resilient.close();
+		assertTrue("map written", mapFile.exists());
+		
+		// the sector has recovered, but is skipped from the map
+		FailingIOManager counting = new FailingIOManager(new FATIOManager(VOLUME), 9, 0);
+		BadSectorMap map = new BadSectorMap(mapFile);
+		assertTrue("map read back", map.overlaps(9L * SECTOR_SIZE, SECTOR_SIZE));
+		resilient = new ResilientIOManager(counting, map);
+		assertTrue("zero-filled", Arrays.equals(resilient.readSector(9, SECTOR_SIZE),
+				new byte[SECTOR_SIZE]));
+		assertEquals("sector not touched", counting.attempts, 0);
+		resilient.close();
+		printEndOfPassedTest();
+	}
+	
+	public void testBadClustersSkippedAfterFirstRead() {
+		printStartOfTest("testBadClustersSkippedAfterFirstRead");
+		File image = copyOfVolume();
+		FAT fat = FAT.getFAT(new FATIOManager(image.getPath(), true));
+		int cluster = fat.findFreeCluster();
+		fat.setFATEntry(cluster, 0xFF7);
+		long sector = fat.getGeometry().startOfCluster(cluster);
+		fat.unmount();
+		
+		FailingIOManager counting = new FailingIOManager(new FATIOManager(image.getPath()), sector, 0);
+		ResilientIOManager resilient = new ResilientIOManager(counting, new BadSectorMap());
+		fat = FAT.getFAT(resilient);
+		// mounting doesn't look for bad clusters
+		resilient.readSector(sector, SECTOR_SIZE);
+		assertEquals("bad cluster not mapped yet", counting.attempts, 1);
+		
+		FATFile file = (FATFile)fat.getFile(fat.getRootDirectory().listDirectory().get(0));
+		assertTrue("file read", fat.getFileContents(file, ByteBuffer.allocate(1)) > 0);
+		assertTrue("bad cluster found", fat.getAllocationBitmap().isBad(cluster));
+		resilient.readSector(sector, SECTOR_SIZE);
+		assertEquals("bad cluster not read", counting.attempts, 1);
+		assertEquals("not recorded as a read error", resilient.getBadSectorMap().getRangeCount(), 0);
+		fat.unmount();
+		image.delete();
+		printEndOfPassedTest();
+	}
+	
+	public void testUnreadableBootSector() {
+		printStartOfTest("testUnreadableBootSector");
+		FSIOManager failing = new FailingIOManager(new FATIOManager(VOLUME), 0, -1);
+		assertTrue("no volume", FAT.getFAT(failing) == null);
+		failing.close();
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		mapFile.delete();
+	}
+	
+	/**
+	 * Fails reads touching one sector a given number of times, or for ever 
+	 * if negative, and counts the reads which touch it.
+	 */
+	private static class FailingIOManager extends FilterIOManager {
+		final long failedSector;
+		int failuresLeft;
+		int attempts;
+		
+		FailingIOManager(FSIOManager ioManager, long failedSector, int failures) {
+			super(ioManager);
+			this.failedSector = failedSector;
+			this.failuresLeft = failures;
+		}
+		
+		@Override
+		public byte[] readSector(long sectorNumber, int size) {
+			return readSectors(sectorNumber, 1, size);
+		}
+		
+		@Override
+		public byte[] readSectors(long startSector, int count, int size) {
+			byte[] data = new byte[count * size];
+			return readSectorInto(startSector, size, ByteBuffer.wrap(data)) ? data : null;
+		}
+		
+		@Override
+		public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+			long sectors = (dst.remaining() + size - 1) / size;
+			if (failedSector >= sectorNumber && failedSector < sectorNumber + sectors) {
+				attempts++;
+				if (failuresLeft != 0) {
+					failuresLeft--;
+					return false;
+				}
+			}
+			return super.readSectorInto(sectorNumber, size, dst);
+		}
+		
+		@Override
+		public CompletableFuture<ByteBuffer> readSectorsAsync(long startSector, int count, int size) {
+			CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+			byte[] data = readSectors(startSector, count, size);
+			if (data == null) {
+				future.completeExceptionally(new IOException("Failed sector " + failedSector));
+			} else {
+				future.complete(ByteBuffer.wrap(data));
+			}
+			return future;
+		}
+	}
+	
+	private byte[] sector(long sector) {
+		return Arrays.copyOfRange(volume, (int)sector * SECTOR_SIZE, (int)(sector + 1) * SECTOR_SIZE);
+	}
+	
+	private File copyOfVolume() {
+		try {
+			File image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			Files.write(image.toPath(), volume);
+			return image;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import net.jonhopkins.delundel.fs.fat.SectorCache;
+
+/**
+ * Tests the eviction policies and statistics of SectorCache.
+ */
+public class TestSectorCache extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	
+	public void runTests() {
+		before();
+		
+		testLRUEvictsLeastRecentlyUsed();
+		testEvictedArraysReused();
+		testSegmentedKeepsRereadSectors();
+		testSegmentedDemotesColdestProtected();
+		testPromotedSectorNotDemoted();
+		testCounters();
+		testRemoveAndClear();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+	}
+	
+	public void testLRUEvictsLeastRecentlyUsed() {
+		printStartOfTest("testLRUEvictsLeastRecentlyUsed");
+		SectorCache cache = new SectorCache(3 * SECTOR_SIZE, SectorCache.EvictionPolicy.LRU);
+		put(cache, 0, 1, 2);
+		assertTrue("sector 0 cached", cache.get(offset(0), SECTOR_SIZE) != null);
+		put(cache, 3);
+		assertTrue("least recently used sector evicted", cache.get(offset(1), SECTOR_SIZE) == null);
+		assertTrue("recently read sector kept", cache.get(offset(0), SECTOR_SIZE) != null);
+		assertTrue("newest sector kept", cache.get(offset(3), SECTOR_SIZE) != null);
+		assertEquals("one eviction", cache.getEvictionCount(), 1L);
+		assertEquals("size is capped", cache.getSize(), 3L * SECTOR_SIZE);
+		printEndOfPassedTest();
+	}
+	
+	public void testEvictedArraysReused() {
+		printStartOfTest("testEvictedArraysReused");
+		SectorCache cache = new SectorCache(SECTOR_SIZE, SectorCache.EvictionPolicy.LRU);
+		byte[] first = cache.allocate(SECTOR_SIZE);
+		cache.put(offset(0), first);
+		cache.put(offset(1), cache.allocate(SECTOR_SIZE));
+		assertTrue("evicted array handed out again", cache.allocate(SECTOR_SIZE) == first);
+		assertTrue("spare of the wrong size not used",
+				cache.allocate(SECTOR_SIZE * 2).length == SECTOR_SIZE * 2);
+		printEndOfPassedTest();
+	}
+	
+	public void testSegmentedKeepsRereadSectors() {
+		printStartOfTest("testSegmentedKeepsRereadSectors");
+		SectorCache cache = new SectorCache(10 * SECTOR_SIZE,
+				SectorCache.EvictionPolicy.SEGMENTED_LRU);
+		put(cache, 0, 1);
+		cache.get(offset(0), SECTOR_SIZE);
+		cache.get(offset(1), SECTOR_SIZE);
+		
+		// a file streaming through is only read once
+		for (int sector = 100; sector < 200; sector++) {
+			put(cache, sector);
+		}
+		assertTrue("reread sector 0 kept", cache.get(offset(0), SECTOR_SIZE) != null);
+		assertTrue("reread sector 1 kept", cache.get(offset(1), SECTOR_SIZE) != null);
+		assertTrue("streamed sector evicted", cache.get(offset(100), SECTOR_SIZE) == null);
+		
+		SectorCache lru = new SectorCache(10 * SECTOR_SIZE, SectorCache.EvictionPolicy.LRU);
+		put(lru, 0);
+		lru.get(offset(0), SECTOR_SIZE);
+		for (int sector = 100; sector < 200; sector++) {
+			put(lru, sector);
+		}
+		assertTrue("plain LRU loses it", lru.get(offset(0), SECTOR_SIZE) == null);
+		printEndOfPassedTest();
+	}
+	
+	public void testSegmentedDemotesColdestProtected() {
+		printStartOfTest("testSegmentedDemotesColdestProtected");
+		// the protected segment holds four sectors
+		SectorCache cache = new SectorCache(5 * SECTOR_SIZE,
+				SectorCache.EvictionPolicy.SEGMENTED_LRU);
+		for (int sector = 0; sector < 5; sector++) {
+			put(cache, sector);
+			cache.get(offset(sector), SECTOR_SIZE);
+		}
+		
+		// promoting sector 4 demoted sector 0, which goes first
+		put(cache, 10);
+		assertEquals("one eviction", cache.getEvictionCount(), 1L);
+		assertTrue("demoted sector evicted", cache.get(offset(0), SECTOR_SIZE) == null);
+		for (int sector = 1; sector < 5; sector++) {
+			assertTrue("protected sector " + sector + " kept",
+					cache.get(offset(sector), SECTOR_SIZE) != null);
+		}
+		printEndOfPassedTest();
+	}
+	
+	public void testPromotedSectorNotDemoted() {
+		printStartOfTest("testPromotedSectorNotDemoted");
+		// the protected segment is smaller than a sector, so promoting one 
+		// overfills it
+		SectorCache cache = new SectorCache(SECTOR_SIZE + SECTOR_SIZE / 8,
+				SectorCache.EvictionPolicy.SEGMENTED_LRU);
+		put(cache, 0);
+		cache.get(offset(0), SECTOR_SIZE);
+		put(cache, 1);
+		assertTrue("promoted sector kept", cache.get(offset(0), SECTOR_SIZE) != null);
+		assertTrue("new sector evicted instead", cache.get(offset(1), SECTOR_SIZE) == null);
+		printEndOfPassedTest();
+	}
+	
+	public void testCounters() {
+		printStartOfTest("testCounters");
+		SectorCache cache = new SectorCache(4 * SECTOR_SIZE,
+				SectorCache.EvictionPolicy.SEGMENTED_LRU);
+		assertTrue("empty cache misses", cache.get(offset(0), SECTOR_SIZE) == null);
+		put(cache, 0);
+		assertTrue("probationary hit", cache.get(offset(0), SECTOR_SIZE) != null);
+		assertTrue("protected hit", cache.get(offset(0), SECTOR_SIZE) != null);
+		assertTrue("asking for more than the sector misses",
+				cache.get(offset(0), 2 * SECTOR_SIZE) == null);
+		assertEquals("hits", cache.getHitCount(), 2L);
+		assertEquals("misses", cache.getMissCount(), 2L);
+		assertEquals("hit ratio", cache.getHitRatio(), 0.5);
+		
+		cache.clear();
+		assertEquals("clear keeps the statistics", cache.getHitCount(), 2L);
+		cache.resetStatistics();
+		assertEquals("hits reset", cache.getHitCount(), 0L);
+		assertEquals("misses reset", cache.getMissCount(), 0L);
+		assertEquals("no lookups, no ratio", cache.getHitRatio(), 0.0);
+		printEndOfPassedTest();
+	}
+	
+	public void testRemoveAndClear() {
+		printStartOfTest("testRemoveAndClear");
+		SectorCache cache = new SectorCache(4 * SECTOR_SIZE,
+				SectorCache.EvictionPolicy.SEGMENTED_LRU);
+		put(cache, 0, 1, 2);
+		cache.get(offset(0), SECTOR_SIZE);
+		cache.remove(offset(0));
+		cache.remove(offset(1));
+		assertEquals("removed from both segments", cache.getSize(), (long)SECTOR_SIZE);
+		assertTrue("removed sector gone", cache.get(offset(0), SECTOR_SIZE) == null);
+		
+		put(cache, 2);
+		assertEquals("putting a sector again replaces it", cache.getSize(), (long)SECTOR_SIZE);
+		cache.clear();
+		assertEquals("cleared", cache.getSize(), 0L);
+		assertEquals("nothing evicted", cache.getEvictionCount(), 0L);
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+	}
+	
+	private void put(SectorCache cache, int... sectors) {
+		for (int sector : sectors) {
+			cache.put(offset(sector), new byte[SECTOR_SIZE]);
+		}
+	}
+	
+	private long offset(int sector) {
+		return (long)sector * SECTOR_SIZE;
+	}
+}
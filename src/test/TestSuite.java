@@ -26,7 +26,61 @@ package test;
 public class TestSuite {
 	
 	public static void main(String[] args) {
-		Test test = new TestFAT16();
+		Test test = new TestFAT12();
+		test.runTests();
+		
+		test = new TestFAT16();
+		test.runTests();
+		
+		test = new TestFAT32();
+		test.runTests();
+		
+		test = new TestFATDirectory();
+		test.runTests();
+		
+		test = new TestFATPageCache();
+		test.runTests();
+		
+		test = new TestClusterChains();
+		test.runTests();
+		
+		test = new TestAllocationBitmap();
+		test.runTests();
+		
+		test = new TestClusterOwners();
+		test.runTests();
+		
+		test = new TestFATChecker();
+		test.runTests();
+		
+		test = new TestFATMirrors();
+		test.runTests();
+		
+		test = new TestLargeImage();
+		test.runTests();
+		
+		test = new TestMappedIO();
+		test.runTests();
+		
+		test = new TestAsyncIO();
+		test.runTests();
+		
+		test = new TestOverlayIO();
+		test.runTests();
+		
+		test = new TestPartitions();
+		test.runTests();
+		
+		test = new TestSectorCache();
+		test.runTests();
+		
+		test = new TestConcurrentIO();
+		test.runTests();
+		
+		test = new TestTracing();
+		test.runTests();
+		
+		test = new TestResilientIO();
 		test.runTests();
 	}
 	
@@ -0,0 +1,310 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import net.jonhopkins.delundel.fs.FSIOManager;
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.InstrumentedIOManager;
+import net.jonhopkins.delundel.fs.fat.MappedIOManager;
+import net.jonhopkins.delundel.fs.fat.TraceReplayer;
+import net.jonhopkins.delundel.fs.fat.TracingIOManager;
+
+/**
+ * Tests recording sector traces and playing them back.
+ */
+public class TestTracing extends Test {
+	
+	private static final int SECTOR_SIZE = 512;
+	private static final String VOLUME = "res/samplefat.bin";
+	
+	private File trace;
+	
+	public void runTests() {
+		before();
+		
+		testTraceOfMount();
+		testEveryOperationRoundTrips();
+		testWritesOnlyReplayedWhenEnabled();
+		testAsyncReadsReplayedTogether();
+		testUnwritableTraceFile();
+		testStopUnderAnotherManager();
+		
+		after();
+	}
+	
+	@Override
+	public void before() {
+		try {
+			trace = File.createTempFile("delundel", ".trace");
+			trace.deleteOnExit();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	public void testTraceOfMount() {
+		printStartOfTest("testTraceOfMount");
+		TracingIOManager tracer = newTracer(new FATIOManager(VOLUME));
+		FAT fat = FAT.getFAT(tracer);
+		int entries = fat.getRootDirectory().listDirectory().size();
+		assertTrue("root directory has entries", entries > 0);
+		long records = tracer.getRecordCount();
+		tracer.close();
+		
+		TraceReplayer replayer = load();
+		assertEquals("every call recorded", (long)replayer.getRecordCount(), records);
+		
+		FSIOManager mapped = new MappedIOManager(VOLUME);
+		TraceReplayer.Result result = replayer.replay(mapped);
+		mapped.close();
+		assertEquals("every call replayed", result.getReadCount(), records);
+		assertEquals("no reads failed", result.getFailedReadCount(), 0L);
+		// the boot sector, the 9-sector FAT and the 14-sector root directory
+		assertEquals("boot sector, FAT and root directory read",
+				result.getBytesRead(), (1 + 9 + 14L) * SECTOR_SIZE);
+		printEndOfPassedTest();
+	}
+	
+	public void testEveryOperationRoundTrips() {
+		printStartOfTest("testEveryOperationRoundTrips");
+		CountingIOManager counter = new CountingIOManager();
+		TracingIOManager tracer = newTracer(counter);
+		tracer.readSector(2000, SECTOR_SIZE);
+		tracer.readSector(5, SECTOR_SIZE);
+		tracer.readSectors(1L << 40, 3, 4096);
+		tracer.readSectorInto(7, SECTOR_SIZE, ByteBuffer.allocate(100));
+		tracer.readSectorsAsync(8, 2, SECTOR_SIZE).join();
+		tracer.flush();
+		tracer.close();
+		String recorded = counter.log.toString();
+		
+		counter = new CountingIOManager();
+		TraceReplayer replayer = load();
+		replayer.setReplayWrites(true);
+		TraceReplayer.Result result = replayer.replay(counter);
+		assertEquals("replayed calls match recorded calls", counter.log.toString(), recorded);
+		assertEquals("bytes read", result.getBytesRead(),
+				2L * SECTOR_SIZE + 3 * 4096 + 100 + 2 * SECTOR_SIZE);
+		printEndOfPassedTest();
+	}
+	
+	public void testWritesOnlyReplayedWhenEnabled() {
+		printStartOfTest("testWritesOnlyReplayedWhenEnabled");
+		TracingIOManager tracer = newTracer(new CountingIOManager());
+		tracer.writeSector(0, new byte[SECTOR_SIZE]);
+		tracer.writeSector(1, new byte[SECTOR_SIZE]);
+		tracer.close();
+		
+		File image = scratchImage();
+		FATIOManager target = new FATIOManager(image.getPath(), true);
+		TraceReplayer replayer = load();
+		TraceReplayer.Result result = replayer.replay(target);
+		assertEquals("writes skipped by default", result.getSkippedWriteCount(), 2L);
+		assertTrue("image untouched", !isZeroFilled(target.readSector(0, SECTOR_SIZE)));
+		
+		replayer.setReplayWrites(true);
+		result = replayer.replay(target);
+		assertEquals("writes replayed", result.getWriteCount(), 2L);
+		assertTrue("sector written with zeroes", isZeroFilled(target.readSector(0, SECTOR_SIZE)));
+		target.close();
+		image.delete();
+		printEndOfPassedTest();
+	}
+	
+	public void testAsyncReadsReplayedTogether() {
+		printStartOfTest("testAsyncReadsReplayedTogether");
+		final int reads = 8;
+		TracingIOManager tracer = newTracer(new CountingIOManager());
+		for (int i = 0; i < reads; i++) {
+			tracer.readSectorsAsync(i * 4, 4, SECTOR_SIZE);
+		}
+		tracer.readSector(100, SECTOR_SIZE);
+		tracer.readSectorsAsync(200, 1, SECTOR_SIZE);
+		tracer.close();
+		
+		// no read completes until the whole first run has been issued, so 
+		// replaying them one at a time times out
+		final CountDownLatch issued = new CountDownLatch(reads);
+		CountingIOManager target = new CountingIOManager() {
+			@Override
+			public CompletableFuture<ByteBuffer> readSectorsAsync(
+					long startSector, final int count, final int size) {
+				issued.countDown();
+				return CompletableFuture.supplyAsync(new Supplier<ByteBuffer>() {
+					@Override
+					public ByteBuffer get() {
+						try {
+							if (!issued.await(5, TimeUnit.SECONDS)) {
+								throw new IllegalStateException("reads waited for one at a time");
+							}
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+						return ByteBuffer.allocate(count * size);
+					}
+				});
+			}
+		};
+		TraceReplayer.Result result = load().replay(target);
+		assertEquals("no reads failed", result.getFailedReadCount(), 0L);
+		assertEquals("every read counted", result.getReadCount(), reads + 2L);
+		assertEquals("whole run in flight at once", result.getMaxInFlight(), reads);
+		assertEquals("bytes read", result.getBytesRead(), (reads * 4 + 2L) * SECTOR_SIZE);
+		printEndOfPassedTest();
+	}
+	
+	public void testUnwritableTraceFile() {
+		printStartOfTest("testUnwritableTraceFile");
+		// the trace file would have to go inside a plain file
+		String traceFilename = new File(trace, "trace").getPath();
+		try {
+			new TracingIOManager(new CountingIOManager(), traceFilename);
+			throw new AssertionError("trace file created inside a file");
+		} catch (IOException e) {
+		}
+		printEndOfPassedTest();
+	}
+	
+	public void testStopUnderAnotherManager() {
+		printStartOfTest("testStopUnderAnotherManager");
+		TracingIOManager tracer = newTracer(new FATIOManager(VOLUME));
+		FAT fat = FAT.getFAT(tracer);
+		InstrumentedIOManager stats = fat.instrument();
+		tracer.stop();
+		long records = tracer.getRecordCount();
+		
+		assertTrue("tracer found under the statistics", fat.removeIOManager(tracer));
+		assertTrue("statistics kept on top", fat.getIOManager() == stats);
+		assertTrue("tracer taken out", stats.getWrappedManager() instanceof FATIOManager);
+		assertFalse("tracer only taken out once", fat.removeIOManager(tracer));
+		assertTrue("reads still pass through", stats.readSector(0, SECTOR_SIZE) != null);
+		assertEquals("nothing recorded after stopping", tracer.getRecordCount(), records);
+		assertEquals("trace finished", (long)load().getRecordCount(), records);
+		fat.unmount();
+		printEndOfPassedTest();
+	}
+	
+	@Override
+	public void after() {
+		trace.delete();
+	}
+	
+	private TracingIOManager newTracer(FSIOManager ioManager) {
+		try {
+			return new TracingIOManager(ioManager, trace.getPath());
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private TraceReplayer load() {
+		try {
+			return new TraceReplayer(trace.getPath());
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private File scratchImage() {
+		try {
+			File image = File.createTempFile("delundel", ".img");
+			image.deleteOnExit();
+			RandomAccessFile file = new RandomAccessFile(image, "rw");
+			file.write(Files.readAllBytes(new File(VOLUME).toPath()));
+			file.close();
+			return image;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private boolean isZeroFilled(byte[] sector) {
+		return Arrays.equals(sector, new byte[sector.length]);
+	}
+	
+	/*
+	 * Logs every call and answers reads with zeroes.
+	 */
+	private static class CountingIOManager implements FSIOManager {
+		StringBuilder log = new StringBuilder();
+		
+		@Override
+		public byte[] readSector(long sectorNumber, int size) {
+			log.append("readSector " + sectorNumber + " " + size + "\n");
+			return new byte[size];
+		}
+		
+		@Override
+		public byte[] readSectors(long startSector, int count, int size) {
+			log.append("readSectors " + startSector + " " + count + " " + size + "\n");
+			return new byte[count * size];
+		}
+		
+		@Override
+		public boolean readSectorInto(long sectorNumber, int size, ByteBuffer dst) {
+			log.append("readSectorInto " + sectorNumber + " " + size + " " + dst.remaining() + "\n");
+			dst.position(dst.limit());
+			return true;
+		}
+		
+		@Override
+		public CompletableFuture<ByteBuffer> readSectorsAsync(
+				long startSector, int count, int size) {
+			log.append("readSectorsAsync " + startSector + " " + count + " " + size + "\n");
+			return CompletableFuture.completedFuture(
+					ByteBuffer.allocate(count * size));
+		}
+		
+		@Override
+		public boolean isWritable() {
+			return true;
+		}
+		
+		@Override
+		public void writeSector(long sectorNumber, byte[] data) {
+			log.append("writeSector " + sectorNumber + " " + data.length + "\n");
+		}
+		
+		@Override
+		public void flush() {
+			log.append("flush\n");
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Jon Hopkins
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+ * DEALINGS IN THE SOFTWARE.
+ */
+package test.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import net.jonhopkins.delundel.fs.fat.FAT;
+import net.jonhopkins.delundel.fs.fat.FATIOManager;
+import net.jonhopkins.delundel.fs.fat.FATMirrors;
+import test.Test;
+
+/**
+ * Base for tests that run against a small FAT32 volume in a temporary 
+ * file: one sector per cluster, and just enough clusters to count as 
+ * FAT32. The root directory fills clusters 2 and 3, and holds the volume 
+ * label, HELLO.TXT, whose clusters are {@link #FILE_CHAIN}, and the empty 
+ * SECOND.TXT. {@link #before()} makes a new volume and {@link #after()} 
+ * deletes it, so a test may change the volume as it likes.
+ */
+public abstract class TestVolumeFAT32 extends Test {
+	protected static final int SECTOR_SIZE = 512;
+	protected static final int VOLUME_RESERVED = 32;
+	protected static final int VOLUME_FAT_SIZE = 516;
+	protected static final int VOLUME_CLUSTERS = 66000;
+	protected static final int VOLUME_FREE_HINT = 30;
+	protected static final int VOLUME_FREE_COUNT = 65000;
+	protected static final int[] FILE_CHAIN = { 10, 11, 20 };
+	protected static final int FILE_SIZE = 1200;
+	
+	protected File volume;
+	
+	@Override
+	public void before() {
+		volume = createVolume();
+	}
+	
+	@Override
+	public void after() {
+		volume.delete();
+	}
+	
+	protected FAT mount() {
+		return FAT.getFAT(new FATIOManager(volume.getPath()));
+	}
+	
+	protected FAT mount(FATMirrors.Policy policy) {
+		return FAT.getFAT(new FATIOManager(volume.getPath()), policy);
+	}
+	
+	/**
+	 * Overwrite entries in the first FAT of the volume.
+	 * 
+	 * @param entries Pairs of cluster and new entry, all in the first 
+	 *        sector of the FAT
+	 */
+	protected void setFATEntries(int... entries) {
+		byte[] fatSector = readSector(volume, VOLUME_RESERVED);
+		ByteBuffer fat = ByteBuffer.wrap(fatSector).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < entries.length; i += 2) {
+			fat.putInt(entries[i] * 4, entries[i + 1]);
+		}
+		writeSector(volume, VOLUME_RESERVED, fatSector);
+	}
+	
+	protected long clusterSector(int cluster) {
+		return VOLUME_RESERVED + 2 * VOLUME_FAT_SIZE + (cluster - 2);
+	}
+	
+	protected byte fileByte(int i) {
+		return (byte)('a' + i % 26);
+	}
+	
+	protected ByteBuffer sector() {
+		ByteBuffer sector = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		sector.put(510, (byte)0x55);
+		sector.put(511, (byte)0xAA);
+		return sector;
+	}
+	
+	protected void dirEntry(ByteBuffer sector, int index, String name, int attributes,
+			int firstCluster, int size) {
+		int offset = index * 32;
+		putString(sector, offset, name);
+		sector.put(offset + 11, (byte)attributes);
+		sector.putShort(offset + 20, (short)(firstCluster >>> 16));
+		sector.putShort(offset + 26, (short)firstCluster);
+		sector.putInt(offset + 28, size);
+	}
+	
+	protected void longNameEntry(ByteBuffer sector, int index, String part, int ordinal,
+			int checksum) {
+		int offset = index * 32;
+		int[] chars = { 1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30 };
+		for (int i = 0; i < chars.length; i++) {
+			char ch = i < part.length() ? part.charAt(i) : (i == part.length() ? 0 : (char)0xFFFF);
+			sector.putShort(offset + chars[i], (short)ch);
+		}
+		sector.put(offset, (byte)ordinal);
+		sector.put(offset + 11, (byte)0x0F);
+		sector.put(offset + 13, (byte)checksum);
+	}
+	
+	protected int shortNameChecksum(String name) {
+		int sum = 0;
+		for (int i = 0; i < 11; i++) {
+			sum = (((sum & 1) == 1 ? 0x80 : 0) + (sum >> 1) + name.charAt(i)) & 0xFF;
+		}
+		return sum;
+	}
+	
+	protected byte[] garbage() {
+		byte[] data = new byte[SECTOR_SIZE];
+		Arrays.fill(data, (byte)0xAB);
+		return data;
+	}
+	
+	protected byte[] readSector(File file, long sector) {
+		try {
+			byte[] data = new byte[SECTOR_SIZE];
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			in.seek(sector * SECTOR_SIZE);
+			in.readFully(data);
+			in.close();
+			return data;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	protected void writeSector(File file, long sector, byte[] data) {
+		try {
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			out.seek(sector * SECTOR_SIZE);
+			out.write(data);
+			out.close();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private void putString(ByteBuffer buffer, int offset, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			buffer.put(offset + i, (byte)s.charAt(i));
+		}
+	}
+	
+	private File createVolume() {
+		int totalSectors = VOLUME_RESERVED + 2 * VOLUME_FAT_SIZE + VOLUME_CLUSTERS;
+		
+		ByteBuffer boot = sector();
+		boot.put(0, (byte)0xEB).put(1, (byte)0x58).put(2, (byte)0x90);
+		boot.putShort(11, (short)SECTOR_SIZE);
+		boot.put(13, (byte)1);
+		boot.putShort(14, (short)VOLUME_RESERVED);
+		boot.put(16, (byte)2);
+		boot.put(21, (byte)0xF8);
+		boot.putInt(32, totalSectors);
+		boot.putInt(36, VOLUME_FAT_SIZE);
+		boot.putInt(44, 2);
+		boot.putShort(48, (short)1);
+		boot.putShort(50, (short)6);
+		putString(boot, 71, "TESTVOL    ");
+		putString(boot, 82, "FAT32   ");
+		
+		ByteBuffer fsInfo = sector();
+		fsInfo.putInt(0, 0x41615252);
+		fsInfo.putInt(484, 0x61417272);
+		fsInfo.putInt(488, VOLUME_FREE_COUNT);
+		fsInfo.putInt(492, VOLUME_FREE_HINT);
+		fsInfo.putInt(508, 0xAA550000);
+		
+		ByteBuffer fat = ByteBuffer.allocate(VOLUME_FAT_SIZE * SECTOR_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		fat.putInt(0, 0x0FFFFFF8);
+		fat.putInt(4, 0xFFFFFFFF);
+		// the reserved high bits must be ignored
+		fat.putInt(2 * 4, 0xF0000003);
+		fat.putInt(3 * 4, 0x0FFFFFFF);
+		for (int i = 0; i < FILE_CHAIN.length; i++) {
+			fat.putInt(FILE_CHAIN[i] * 4, i + 1 < FILE_CHAIN.length ? FILE_CHAIN[i + 1] : 0x0FFFFFFF);
+		}
+		
+		ByteBuffer rootFirst = sector();
+		rootFirst.put(510, (byte)0).put(511, (byte)0);
+		dirEntry(rootFirst, 0, "TESTVOL    ", 0x08, 0, 0);
+		dirEntry(rootFirst, 1, "HELLO   TXT", 0x20, FILE_CHAIN[0], FILE_SIZE);
+		ByteBuffer rootSecond = sector();
+		rootSecond.put(510, (byte)0).put(511, (byte)0);
+		dirEntry(rootSecond, 0, "SECOND  TXT", 0x20, 0, 0);
+		
+		try {
+			File file = File.createTempFile("delundel", ".img");
+			file.deleteOnExit();
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			out.setLength((long)totalSectors * SECTOR_SIZE);
+			out.close();
+			
+			writeSector(file, 0, boot.array());
+			writeSector(file, 1, fsInfo.array());
+			writeSector(file, VOLUME_RESERVED, fat.array());
+			writeSector(file, VOLUME_RESERVED + VOLUME_FAT_SIZE, fat.array());
+			writeSector(file, clusterSector(2), rootFirst.array());
+			writeSector(file, clusterSector(3), rootSecond.array());
+			for (int i = 0; i < FILE_CHAIN.length; i++) {
+				byte[] data = new byte[SECTOR_SIZE];
+				for (int j = 0; j < SECTOR_SIZE; j++) {
+					data[j] = fileByte(i * SECTOR_SIZE + j);
+				}
+				writeSector(file, clusterSector(FILE_CHAIN[i]), data);
+			}
+			return file;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+}